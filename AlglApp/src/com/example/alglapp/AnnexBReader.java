@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * A random access reader for an H.264 Annex-B elementary stream file.
+ *
+ * The file is scanned once for start codes and NAL units are grouped into
+ * access units following the first-slice and non-VCL NAL unit rules of
+ * H.264 section 7.4.1.2.3, giving a frame index equivalent to the one of an
+ * IVF file. SPS and PPS NAL units preceding the first access unit are
+ * returned as codec configuration data and are not part of any frame.
+ *
+ * The stream has no header, so frame rate is supplied by the caller and frame
+ * timestamps are derived from it. Frame size is taken from the leading SPS,
+ * or from the caller if the stream does not start with one.
+ */
+public class AnnexBReader implements EncodedStreamReader {
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+    private static final String[] FILE_EXTENSIONS = { ".h264", ".264" };
+    // NAL unit types.
+    private static final int NAL_SLICE = 1;
+    private static final int NAL_SLICE_IDR = 5;
+    private static final int NAL_SEI = 6;
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+    private static final int NAL_AUD = 9;
+
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private MappedByteBuffer mMapping;
+    private int mWidth;
+    private int mHeight;
+    private double mFrameRate;
+    private ByteBuffer mCodecConfig;
+    private int mFrameCount;
+    private long[] mFrameOffsets;   // Offset of the first start code of the access unit
+    private int[] mFrameSizes;
+    private boolean[] mKeyFrames;   // Access unit contains an IDR slice
+
+    // Access unit scan state.
+    private long mAccessUnitStart = -1;
+    private boolean mAccessUnitHasSlice;
+    private boolean mAccessUnitIsKey;
+    private long mConfigStart = -1;
+    private long mConfigEnd = -1;
+
+    /**
+     * Initializes the Annex-B file reader.
+     *
+     * @param filename   name of the elementary stream file
+     * @param width      frame width if the stream does not start with an SPS
+     * @param height     frame height if the stream does not start with an SPS
+     * @param frameRate  frame rate used to compute frame timestamps
+     * @param mapFile    map the file into memory and serve frames from the mapping
+     */
+    public AnnexBReader(String filename, int width, int height, double frameRate,
+            boolean mapFile) throws IOException {
+        mFile = new RandomAccessFile(filename, "r");
+        mChannel = mFile.getChannel();
+        mWidth = width;
+        mHeight = height;
+        mFrameRate = frameRate;
+        mFrameOffsets = new long[256];
+        mFrameSizes = new int[256];
+        mKeyFrames = new boolean[256];
+        scanNalUnits();
+        if (mConfigStart >= 0) {
+            mCodecConfig = ByteBuffer.allocate((int)(mConfigEnd - mConfigStart));
+            readFully(mCodecConfig, mConfigStart);
+            mCodecConfig.flip();
+            // Frame size from the SPS takes precedence over the caller supplied one.
+            H264StreamAnalyzer analyzer = new H264StreamAnalyzer();
+            analyzer.analyze(mCodecConfig, 0, mCodecConfig.limit());
+            if (analyzer.width > 0 && analyzer.height > 0) {
+                mWidth = analyzer.width;
+                mHeight = analyzer.height;
+            }
+        }
+        long fileLength = mChannel.size();
+        if (mapFile && fileLength > 0 && fileLength <= Integer.MAX_VALUE) {
+            mMapping = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+        }
+    }
+
+    /**
+     * Initializes the Annex-B file reader using positional reads.
+     *
+     * @param filename   name of the elementary stream file
+     * @param width      frame width if the stream does not start with an SPS
+     * @param height     frame height if the stream does not start with an SPS
+     * @param frameRate  frame rate used to compute frame timestamps
+     */
+    public AnnexBReader(String filename, int width, int height, double frameRate)
+            throws IOException {
+        this(filename, width, height, frameRate, false);
+    }
+
+    /**
+     * Tells if the file name has H.264 elementary stream extension.
+     */
+    public static boolean isAnnexBFile(String filename) {
+        if (filename == null) {
+            return false;
+        }
+        String name = filename.toLowerCase(Locale.US);
+        for (String extension : FILE_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    public boolean isMapped() {
+        return mMapping != null;
+    }
+
+    public int getFrameSize(int frameIndex) {
+        if (frameIndex >= mFrameCount || frameIndex < 0) {
+            return 0;
+        }
+        return mFrameSizes[frameIndex];
+    }
+
+    public int getMaxFrameSize() {
+        int maxFrameSize = 0;
+        for (int i = 0; i < mFrameCount; i++) {
+            maxFrameSize = Math.max(maxFrameSize, mFrameSizes[i]);
+        }
+        return maxFrameSize;
+    }
+
+    /**
+     * Returns file offset of the access unit.
+     */
+    public long getFrameOffset(int frameIndex) {
+        if (frameIndex >= mFrameCount || frameIndex < 0) {
+            return -1;
+        }
+        return mFrameOffsets[frameIndex];
+    }
+
+    /**
+     * Copies access unit data into a caller supplied buffer starting at its current
+     * position. Buffer position is advanced by the frame size.
+     *
+     * @return number of bytes copied or -1 if frame index is out of range.
+     */
+    public int readFrame(int frameIndex, ByteBuffer dst) throws IOException {
+        if (frameIndex >= mFrameCount || frameIndex < 0) {
+            return -1;
+        }
+        int frameSize = mFrameSizes[frameIndex];
+        if (dst.remaining() < frameSize) {
+            throw new IllegalArgumentException("Buffer is too small for frame " + frameIndex +
+                    ": " + dst.remaining() + " < " + frameSize);
+        }
+        if (isMapped()) {
+            dst.put(getMappedFrame(frameIndex));
+            return frameSize;
+        }
+        int limit = dst.limit();
+        dst.limit(dst.position() + frameSize);
+        try {
+            readFully(dst, mFrameOffsets[frameIndex]);
+        } finally {
+            dst.limit(limit);
+        }
+        return frameSize;
+    }
+
+    /**
+     * Returns a read-only view of the access unit data. The file must be opened
+     * in memory mapped mode.
+     */
+    public ByteBuffer getFrameBuffer(int frameIndex) {
+        if (frameIndex >= mFrameCount || frameIndex < 0) {
+            return null;
+        }
+        if (!isMapped()) {
+            throw new IllegalStateException("H.264 file is not memory mapped");
+        }
+        return getMappedFrame(frameIndex).slice();
+    }
+
+    /**
+     * Returns frame timestamp in seconds derived from the frame rate.
+     */
+    public double getFrameTimestamp(int frameIndex) {
+        return frameIndex / mFrameRate;
+    }
+
+    public boolean isKeyFrame(int frameIndex) {
+        if (frameIndex >= mFrameCount || frameIndex < 0) {
+            return false;
+        }
+        return mKeyFrames[frameIndex];
+    }
+
+    public ByteBuffer getCodecConfig() {
+        return mCodecConfig == null ? null : mCodecConfig.asReadOnlyBuffer();
+    }
+
+    public void close() throws IOException {
+        mMapping = null;
+        mFile.close();
+    }
+
+    private ByteBuffer getMappedFrame(int frameIndex) {
+        ByteBuffer frame = mMapping.asReadOnlyBuffer();
+        int offset = (int)mFrameOffsets[frameIndex];
+        frame.position(offset);
+        frame.limit(offset + mFrameSizes[frameIndex]);
+        return frame;
+    }
+
+    private void readFully(ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int bytesRead = mChannel.read(dst, position);
+            if (bytesRead < 0) {
+                throw new IOException("Unexpected end of file at offset " + position);
+            }
+            position += bytesRead;
+        }
+    }
+
+    /**
+     * Finds NAL units in a single buffered pass over the file. Besides the NAL
+     * unit type the first bit of a slice header is needed - it is set if
+     * first_mb_in_slice is zero, i.e. the slice starts a new picture.
+     */
+    private void scanNalUnits() throws IOException {
+        long fileLength = mChannel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        byte[] data = buffer.array();
+        int zeros = 0;
+        int headerBytesPending = 0;  // 2 - NAL header byte, 1 - first slice header byte
+        long nalStart = 0;
+        int nalType = 0;
+        long position = 0;
+        while (position < fileLength) {
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                if (mChannel.read(buffer, position + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            int length = buffer.position();
+            if (length == 0) {
+                break;
+            }
+            for (int i = 0; i < length; i++) {
+                int value = data[i] & 0xFF;
+                if (headerBytesPending == 2) {
+                    nalType = value & 0x1F;
+                    if (nalType == NAL_SLICE || nalType == NAL_SLICE_IDR) {
+                        headerBytesPending = 1;
+                    } else {
+                        headerBytesPending = 0;
+                        onNalUnit(nalStart, nalType, false);
+                    }
+                    zeros = (value == 0) ? 1 : 0;
+                    continue;
+                }
+                if (headerBytesPending == 1) {
+                    headerBytesPending = 0;
+                    // first_mb_in_slice is ue(v) coded - zero is coded as a single '1' bit.
+                    onNalUnit(nalStart, nalType, (value & 0x80) != 0);
+                    zeros = (value == 0) ? 1 : 0;
+                    continue;
+                }
+                if (value == 0) {
+                    zeros++;
+                    continue;
+                }
+                if (value == 1 && zeros >= 2) {
+                    // Include zero_byte of a 4 byte start code, but not trailing zeros.
+                    nalStart = position + i - Math.min(zeros, 3);
+                    headerBytesPending = 2;
+                }
+                zeros = 0;
+            }
+            position += length;
+        }
+        finishAccessUnit(position);
+        if (mConfigStart >= 0 && mConfigEnd < 0) {
+            mConfigEnd = position;
+        }
+    }
+
+    private void onNalUnit(long nalStart, int nalType, boolean firstSliceOfPicture) {
+        boolean isSlice = (nalType == NAL_SLICE || nalType == NAL_SLICE_IDR);
+        if (mAccessUnitStart < 0) {
+            // Parameter sets preceding the first access unit are codec configuration data.
+            if (nalType == NAL_SPS || nalType == NAL_PPS) {
+                if (mConfigStart < 0) {
+                    mConfigStart = nalStart;
+                }
+                return;
+            }
+            if (mConfigStart >= 0) {
+                mConfigEnd = nalStart;
+            }
+            mAccessUnitStart = nalStart;
+        } else if (mAccessUnitHasSlice) {
+            boolean startsAccessUnit;
+            if (isSlice) {
+                startsAccessUnit = firstSliceOfPicture;
+            } else {
+                startsAccessUnit = nalType == NAL_AUD || nalType == NAL_SEI ||
+                        nalType == NAL_SPS || nalType == NAL_PPS ||
+                        (nalType >= 14 && nalType <= 18);
+            }
+            if (startsAccessUnit) {
+                finishAccessUnit(nalStart);
+                mAccessUnitStart = nalStart;
+            }
+        }
+        if (isSlice) {
+            mAccessUnitHasSlice = true;
+        }
+        if (nalType == NAL_SLICE_IDR) {
+            mAccessUnitIsKey = true;
+        }
+    }
+
+    private void finishAccessUnit(long end) {
+        if (mAccessUnitStart >= 0 && mAccessUnitHasSlice) {
+            if (mFrameCount == mFrameOffsets.length) {
+                int capacity = 2 * mFrameCount;
+                long[] frameOffsets = new long[capacity];
+                int[] frameSizes = new int[capacity];
+                boolean[] keyFrames = new boolean[capacity];
+                System.arraycopy(mFrameOffsets, 0, frameOffsets, 0, mFrameCount);
+                System.arraycopy(mFrameSizes, 0, frameSizes, 0, mFrameCount);
+                System.arraycopy(mKeyFrames, 0, keyFrames, 0, mFrameCount);
+                mFrameOffsets = frameOffsets;
+                mFrameSizes = frameSizes;
+                mKeyFrames = keyFrames;
+            }
+            mFrameOffsets[mFrameCount] = mAccessUnitStart;
+            mFrameSizes[mFrameCount] = (int)(end - mAccessUnitStart);
+            mKeyFrames[mFrameCount] = mAccessUnitIsKey;
+            mFrameCount++;
+        }
+        mAccessUnitHasSlice = false;
+        mAccessUnitIsKey = false;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes an H.264 Annex-B elementary stream file.
+ *
+ * Encoder output is already start code delimited, so access units are
+ * written back to back. Codec configuration data (SPS and PPS) is written in
+ * band, where decoders and AnnexBReader expect it. The stream has no
+ * timestamps - AnnexBReader assigns them from the frame rate.
+ */
+public class AnnexBWriter implements EncodedStreamWriter {
+    private FileOutputStream mOutputStream;
+    private FileChannel mOutputChannel;
+    private int mFrameCount;
+
+    /**
+     * Initializes the Annex-B file writer. Existing file is truncated.
+     *
+     * @param filename   name of the elementary stream file
+     */
+    public AnnexBWriter(String filename) throws IOException {
+        mOutputStream = new FileOutputStream(filename, false);
+        mOutputChannel = mOutputStream.getChannel();
+        mFrameCount = 0;
+    }
+
+    /**
+     * Writes codec configuration NAL units in band.
+     */
+    public void writeCodecConfig(ByteBuffer config) throws IOException {
+        write(config);
+    }
+
+    /**
+     * Writes a single access unit. Timestamp is not stored.
+     */
+    public void writeFrame(byte[] frame, long timeStamp) throws IOException {
+        writeFrame(ByteBuffer.wrap(frame), timeStamp);
+    }
+
+    /**
+     * Writes a single access unit. Timestamp is not stored.
+     */
+    public void writeFrame(ByteBuffer frame, long timeStamp) throws IOException {
+        write(frame);
+        mFrameCount++;
+    }
+
+    /**
+     * Returns number of frames written so far.
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Closes the file.
+     */
+    public void close() throws IOException {
+        mOutputStream.close();
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        ByteBuffer data = buffer.duplicate();
+        while (data.hasRemaining()) {
+            mOutputChannel.write(data);
+        }
+    }
+}
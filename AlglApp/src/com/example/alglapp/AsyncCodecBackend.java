@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+/**
+ * Codec backend which reports buffers to a listener as soon as they become
+ * available and keeps them until they are dequeued, so a caller can wait for
+ * the listener instead of blocking in the dequeue calls.
+ */
+public interface AsyncCodecBackend extends VideoCodecBackend {
+    /**
+     * Tells if an input buffer is waiting to be dequeued, or the codec failed.
+     */
+    public boolean hasInputBuffer();
+
+    /**
+     * Tells if an output buffer or format change is waiting to be dequeued, or
+     * the codec failed.
+     */
+    public boolean hasOutputBuffer();
+}
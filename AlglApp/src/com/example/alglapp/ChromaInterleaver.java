@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * Chroma plane interleave and de-interleave kernels for YUV420 planar <->
+ * semi-planar conversion.
+ *
+ * Samples are moved eight at a time: 64 bit words are loaded from the buffers
+ * and bytes are spread or gathered with shifts and masks (SIMD within a
+ * register), the remainder is moved one sample at a time. Buffers are accessed
+ * through little endian WordBuffer views, so the first byte of a word is its
+ * lowest byte. Words are read through a LongBuffer view when all offsets are
+ * multiples of 8 - the common case for macroblock aligned frames - and with
+ * unaligned ByteBuffer.getLong() otherwise.
+ *
+ * Word access pays off when a buffer would otherwise be read one byte at a
+ * time through ByteBuffer.get() - a direct codec buffer. When both views are
+ * backed by arrays the plain array loop of the scalar reference is as fast or
+ * faster once compiled - the word kernels measured 0.4x - 1.4x of it - so it
+ * is used instead.
+ */
+public class ChromaInterleaver {
+    private static final long MASK_16 = 0x0000FFFF0000FFFFL;
+    private static final long MASK_8 = 0x00FF00FF00FF00FFL;
+
+    /**
+     * Little endian byte and word views of a byte array or buffer. Offsets
+     * passed to the kernels are absolute indices of the original buffer, its
+     * position, limit and byte order are not used or modified.
+     */
+    public static class WordBuffer {
+        private final ByteBuffer mBytes;
+        private final LongBuffer mWords;
+        // Backing array and offset of index 0 in it, null for direct buffers.
+        private final byte[] mArray;
+        private final int mArrayOffset;
+
+        public WordBuffer(byte[] array) {
+            this(ByteBuffer.wrap(array));
+        }
+
+        public WordBuffer(ByteBuffer buffer) {
+            mBytes = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            mBytes.clear();
+            mWords = mBytes.asLongBuffer();
+            mArray = buffer.hasArray() ? buffer.array() : null;
+            mArrayOffset = buffer.hasArray() ? buffer.arrayOffset() : 0;
+        }
+    }
+
+    /**
+     * Interleaves |count| samples of two chroma planes to |dst|, sample of the
+     * first plane first - U and V give NV12, V and U give NV21.
+     *
+     * @param src           source of both planes
+     * @param firstOffset   offset of the first plane samples in |src|
+     * @param secondOffset  offset of the second plane samples in |src|
+     * @param dst           destination of 2 * |count| bytes
+     * @param dstOffset     offset of the interleaved samples in |dst|
+     * @param count         number of samples of each plane
+     */
+    public static void interleave(WordBuffer src, int firstOffset, int secondOffset,
+            WordBuffer dst, int dstOffset, int count) {
+        if (src.mArray != null && dst.mArray != null) {
+            interleaveScalar(src.mArray, src.mArrayOffset + firstOffset,
+                    src.mArrayOffset + secondOffset, dst.mArray, dst.mArrayOffset + dstOffset,
+                    count);
+            return;
+        }
+        ByteBuffer srcBytes = src.mBytes;
+        ByteBuffer dstBytes = dst.mBytes;
+        int words = count >> 3;
+        if (((firstOffset | secondOffset | dstOffset) & 7) == 0) {
+            interleaveWords(src.mWords, firstOffset >> 3, secondOffset >> 3,
+                    dst.mWords, dstOffset >> 3, words);
+        } else {
+            for (int i = 0; i < words; i++) {
+                long u = srcBytes.getLong(firstOffset + 8 * i);
+                long v = srcBytes.getLong(secondOffset + 8 * i);
+                dstBytes.putLong(dstOffset + 16 * i,
+                        spread(u & 0xFFFFFFFFL) | (spread(v & 0xFFFFFFFFL) << 8));
+                dstBytes.putLong(dstOffset + 16 * i + 8,
+                        spread(u >>> 32) | (spread(v >>> 32) << 8));
+            }
+        }
+        for (int i = words << 3; i < count; i++) {
+            dstBytes.put(dstOffset + 2 * i, srcBytes.get(firstOffset + i));
+            dstBytes.put(dstOffset + 2 * i + 1, srcBytes.get(secondOffset + i));
+        }
+    }
+
+    /**
+     * Splits |count| interleaved sample pairs to two chroma planes, first sample
+     * of the pair to the first plane - NV12 gives U and V, NV21 gives V and U.
+     *
+     * @param src           source of 2 * |count| interleaved bytes
+     * @param srcOffset     offset of the interleaved samples in |src|
+     * @param dst           destination of both planes
+     * @param firstOffset   offset of the first plane samples in |dst|
+     * @param secondOffset  offset of the second plane samples in |dst|
+     * @param count         number of samples of each plane
+     */
+    public static void deinterleave(WordBuffer src, int srcOffset,
+            WordBuffer dst, int firstOffset, int secondOffset, int count) {
+        if (src.mArray != null && dst.mArray != null) {
+            deinterleaveScalar(src.mArray, src.mArrayOffset + srcOffset,
+                    dst.mArray, dst.mArrayOffset + firstOffset, dst.mArrayOffset + secondOffset,
+                    count);
+            return;
+        }
+        ByteBuffer srcBytes = src.mBytes;
+        ByteBuffer dstBytes = dst.mBytes;
+        int words = count >> 3;
+        if (((srcOffset | firstOffset | secondOffset) & 7) == 0) {
+            deinterleaveWords(src.mWords, srcOffset >> 3,
+                    dst.mWords, firstOffset >> 3, secondOffset >> 3, words);
+        } else {
+            for (int i = 0; i < words; i++) {
+                long low = srcBytes.getLong(srcOffset + 16 * i);
+                long high = srcBytes.getLong(srcOffset + 16 * i + 8);
+                dstBytes.putLong(firstOffset + 8 * i,
+                        gather(low & MASK_8) | (gather(high & MASK_8) << 32));
+                dstBytes.putLong(secondOffset + 8 * i,
+                        gather((low >>> 8) & MASK_8) | (gather((high >>> 8) & MASK_8) << 32));
+            }
+        }
+        for (int i = words << 3; i < count; i++) {
+            dstBytes.put(firstOffset + i, srcBytes.get(srcOffset + 2 * i));
+            dstBytes.put(secondOffset + i, srcBytes.get(srcOffset + 2 * i + 1));
+        }
+    }
+
+    /**
+     * Word aligned interleave() - offsets and |words| are in 8 byte words.
+     */
+    private static void interleaveWords(LongBuffer src, int first, int second,
+            LongBuffer dst, int out, int words) {
+        for (int i = 0; i < words; i++) {
+            long u = src.get(first + i);
+            long v = src.get(second + i);
+            dst.put(out + 2 * i, spread(u & 0xFFFFFFFFL) | (spread(v & 0xFFFFFFFFL) << 8));
+            dst.put(out + 2 * i + 1, spread(u >>> 32) | (spread(v >>> 32) << 8));
+        }
+    }
+
+    /**
+     * Word aligned deinterleave() - offsets and |words| are in 8 byte words.
+     */
+    private static void deinterleaveWords(LongBuffer src, int in,
+            LongBuffer dst, int first, int second, int words) {
+        for (int i = 0; i < words; i++) {
+            long low = src.get(in + 2 * i);
+            long high = src.get(in + 2 * i + 1);
+            dst.put(first + i, gather(low & MASK_8) | (gather(high & MASK_8) << 32));
+            dst.put(second + i,
+                    gather((low >>> 8) & MASK_8) | (gather((high >>> 8) & MASK_8) << 32));
+        }
+    }
+
+    /**
+     * Reference implementation of interleave() moving one sample at a time.
+     */
+    public static void interleaveScalar(byte[] src, int firstOffset, int secondOffset,
+            byte[] dst, int dstOffset, int count) {
+        for (int i = 0; i < count; i++) {
+            dst[dstOffset++] = src[firstOffset++];
+            dst[dstOffset++] = src[secondOffset++];
+        }
+    }
+
+    /**
+     * Reference implementation of deinterleave() moving one sample at a time.
+     */
+    public static void deinterleaveScalar(byte[] src, int srcOffset,
+            byte[] dst, int firstOffset, int secondOffset, int count) {
+        for (int i = 0; i < count; i++) {
+            dst[firstOffset++] = src[srcOffset++];
+            dst[secondOffset++] = src[srcOffset++];
+        }
+    }
+
+    /**
+     * Moves the four low bytes of |x| to the even bytes of the result.
+     */
+    private static long spread(long x) {
+        x = (x | (x << 16)) & MASK_16;
+        return (x | (x << 8)) & MASK_8;
+    }
+
+    /**
+     * Moves the even bytes of |x| to the four low bytes of the result. Odd
+     * bytes of |x| must be zero.
+     */
+    private static long gather(long x) {
+        x = (x | (x >>> 8)) & MASK_16;
+        return (x | (x >>> 16)) & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.LinkedList;
+
+/**
+ * Runs the dequeue calls of a synchronous codec backend on threads of its own,
+ * so the codec reports buffers like a codec in MediaCodec callback mode.
+ *
+ * The input thread dequeues input buffers, the output thread output buffers
+ * and format changes, each blocking in the codec for up to DEQUEUE_TIMEOUT_US
+ * at a time. Dequeued indices are queued and the buffer listener is notified,
+ * dequeue calls of the wrapper hand the queued indices out. A codec which can
+ * tell no buffer will become available without a client call returns from
+ * the dequeue call early - the stand-in codec does - and is asked again after
+ * the client queues an input buffer or releases an output buffer, or after an
+ * output buffer was dequeued.
+ *
+ * The wrapped codec is called from the dequeue threads and from the client
+ * thread at the same time, so it must be thread safe.
+ */
+public class DequeueThreadBackend implements AsyncCodecBackend {
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+
+    private final VideoCodecBackend mCodec;
+    private final Runnable mBufferListener;
+    private Thread mInputThread;
+    private Thread mOutputThread;
+    private volatile boolean mRunning;
+
+    // Dequeued input buffer indices and output buffer indices with their info,
+    // guarded by mLock. Output format change is queued as
+    // INFO_OUTPUT_FORMAT_CHANGED index with null info to keep the order.
+    private final Object mLock = new Object();
+    private final ArrayDeque<Integer> mInputIndices = new ArrayDeque<Integer>();
+    private final ArrayDeque<Integer> mOutputIndices = new ArrayDeque<Integer>();
+    // LinkedList - ArrayDeque does not take the null info.
+    private final LinkedList<MediaCodec.BufferInfo> mOutputInfos =
+            new LinkedList<MediaCodec.BufferInfo>();
+    private MediaFormat mOutputFormat;
+    private RuntimeException mError;
+    // Count of events which may make a codec buffer available - queued input,
+    // released or dequeued output.
+    private int mBufferEvents;
+
+    /**
+     * @param codec     codec backend to dequeue buffers of
+     * @param listener  called from the dequeue threads every time a buffer
+     *                  becomes available or an error occurs
+     */
+    public DequeueThreadBackend(VideoCodecBackend codec, Runnable listener) {
+        mCodec = codec;
+        mBufferListener = listener;
+    }
+
+    /**
+     * Starts the dequeue threads of a configured codec. No buffer may be owned
+     * by the client.
+     */
+    public void start() {
+        mRunning = true;
+        mInputThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runDequeueLoop(true);
+            }
+        }, mCodec.getName() + " input");
+        mOutputThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runDequeueLoop(false);
+            }
+        }, mCodec.getName() + " output");
+        // Daemon threads do not keep the process alive if a test fails
+        // without releasing the codec.
+        mInputThread.setDaemon(true);
+        mOutputThread.setDaemon(true);
+        mInputThread.start();
+        mOutputThread.start();
+    }
+
+    @Override
+    public String getName() {
+        return mCodec.getName();
+    }
+
+    @Override
+    public void configure(MediaFormat format, boolean encoder) throws Exception {
+        mCodec.configure(format, encoder);
+        start();
+    }
+
+    /**
+     * Dequeues input or output buffers until the wrapper is released or the
+     * codec fails.
+     */
+    private void runDequeueLoop(boolean input) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        try {
+            while (mRunning) {
+                int events;
+                synchronized (mLock) {
+                    events = mBufferEvents;
+                }
+                long startNs = System.nanoTime();
+                int index = input ? mCodec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US) :
+                        mCodec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+                synchronized (mLock) {
+                    if (index >= 0 && input) {
+                        mInputIndices.add(index);
+                    } else if (index >= 0) {
+                        MediaCodec.BufferInfo outputInfo = new MediaCodec.BufferInfo();
+                        outputInfo.set(info.offset, info.size, info.presentationTimeUs,
+                                info.flags);
+                        mOutputIndices.add(index);
+                        mOutputInfos.add(outputInfo);
+                        mBufferEvents++;
+                    } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                        mOutputIndices.add(index);
+                        mOutputInfos.add(null);
+                        mOutputFormat = mCodec.getOutputFormat();
+                    } else if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                        // If the codec did not wait for a buffer, wait for a
+                        // buffer event instead.
+                        long waitMs = DEQUEUE_TIMEOUT_US / 1000 -
+                                (System.nanoTime() - startNs) / 1000000;
+                        long deadlineMs = System.currentTimeMillis() + waitMs;
+                        while (mRunning && mBufferEvents == events && waitMs > 0) {
+                            mLock.wait(waitMs);
+                            waitMs = deadlineMs - System.currentTimeMillis();
+                        }
+                        continue;
+                    } else {
+                        // Output buffers changed - the codec has already fetched them.
+                        continue;
+                    }
+                    mLock.notifyAll();
+                }
+                mBufferListener.run();
+            }
+        } catch (InterruptedException e) {
+            // Released.
+        } catch (RuntimeException e) {
+            synchronized (mLock) {
+                if (mError == null) {
+                    mError = e;
+                }
+                mLock.notifyAll();
+            }
+            mBufferListener.run();
+        }
+    }
+
+    @Override
+    public boolean hasInputBuffer() {
+        synchronized (mLock) {
+            return !mInputIndices.isEmpty() || mError != null;
+        }
+    }
+
+    @Override
+    public boolean hasOutputBuffer() {
+        synchronized (mLock) {
+            return !mOutputIndices.isEmpty() || mError != null;
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        synchronized (mLock) {
+            waitForIndex(mInputIndices, timeoutUs);
+            Integer index = mInputIndices.poll();
+            return (index == null) ? MediaCodec.INFO_TRY_AGAIN_LATER : index;
+        }
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+            int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+        onBufferEvent();
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        synchronized (mLock) {
+            waitForIndex(mOutputIndices, timeoutUs);
+            Integer index = mOutputIndices.poll();
+            if (index == null) {
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+            MediaCodec.BufferInfo outputInfo = mOutputInfos.poll();
+            if (outputInfo != null) {
+                info.set(outputInfo.offset, outputInfo.size,
+                        outputInfo.presentationTimeUs, outputInfo.flags);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Waits until |indices| is not empty or the timeout expires - negative
+     * timeout waits indefinitely. Must be called with mLock held. Throws the
+     * error of a dequeue thread.
+     */
+    private void waitForIndex(ArrayDeque<Integer> indices, long timeoutUs) {
+        long timeoutMs = (timeoutUs + 999) / 1000;
+        long deadlineMs = System.currentTimeMillis() + timeoutMs;
+        while (indices.isEmpty() && mError == null && (timeoutUs < 0 || timeoutMs > 0)) {
+            try {
+                // wait(0) has no deadline.
+                mLock.wait(timeoutUs < 0 ? 0 : timeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            timeoutMs = deadlineMs - System.currentTimeMillis();
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    /**
+     * Wakes dequeue threads waiting for a codec buffer to become available.
+     */
+    private void onBufferEvent() {
+        synchronized (mLock) {
+            mBufferEvents++;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        synchronized (mLock) {
+            return mOutputFormat;
+        }
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mCodec.releaseOutputBuffer(index);
+        onBufferEvent();
+    }
+
+    @Override
+    public void setVideoBitrate(int bitrate) {
+        mCodec.setVideoBitrate(bitrate);
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        mCodec.requestSyncFrame();
+    }
+
+    /**
+     * Stops the dequeue threads, then releases the codec.
+     */
+    @Override
+    public void release() {
+        mRunning = false;
+        onBufferEvent();
+        boolean interrupted = false;
+        for (Thread thread : new Thread[] { mInputThread, mOutputThread }) {
+            while (thread != null && thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        mCodec.release();
+        synchronized (mLock) {
+            mInputIndices.clear();
+            mOutputIndices.clear();
+            mOutputInfos.clear();
+        }
+    }
+}
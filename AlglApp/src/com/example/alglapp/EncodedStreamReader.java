@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Random access reader of encoded frames stored in a container or
+ * elementary stream file.
+ */
+public interface EncodedStreamReader {
+    /**
+     * Returns frame width.
+     */
+    public int getWidth();
+
+    /**
+     * Returns frame height.
+     */
+    public int getHeight();
+
+    /**
+     * Returns number of complete frames in the file.
+     */
+    public int getFrameCount();
+
+    /**
+     * Returns size of the frame in bytes.
+     */
+    public int getFrameSize(int frameIndex);
+
+    /**
+     * Returns size of the largest frame in bytes.
+     */
+    public int getMaxFrameSize();
+
+    /**
+     * Tells if the file is memory mapped, so getFrameBuffer() can be used.
+     */
+    public boolean isMapped();
+
+    /**
+     * Reads frame data to the buffer starting at its position.
+     *
+     * @return number of bytes read.
+     */
+    public int readFrame(int frameIndex, ByteBuffer dst) throws IOException;
+
+    /**
+     * Returns a read-only view of the frame data in the memory mapping.
+     */
+    public ByteBuffer getFrameBuffer(int frameIndex);
+
+    /**
+     * Returns presentation timestamp of the frame in seconds.
+     */
+    public double getFrameTimestamp(int frameIndex);
+
+    /**
+     * Tells if the frame is a key frame.
+     */
+    public boolean isKeyFrame(int frameIndex);
+
+    /**
+     * Returns read-only codec configuration data or null if the stream has none.
+     */
+    public ByteBuffer getCodecConfig();
+
+    /**
+     * Closes the file.
+     */
+    public void close() throws IOException;
+}
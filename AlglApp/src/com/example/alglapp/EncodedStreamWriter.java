@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes encoded frames to a container or elementary stream file.
+ *
+ * Codec configuration data, e.g. H.264 SPS and PPS, is passed separately from
+ * frames, so containers without a notion of codec configuration do not store
+ * it as a regular frame.
+ */
+public interface EncodedStreamWriter {
+    /**
+     * Writes codec configuration data between position and limit of the buffer.
+     * Buffer position is not modified.
+     */
+    public void writeCodecConfig(ByteBuffer config) throws IOException;
+
+    /**
+     * Writes a single encoded frame.
+     *
+     * @param frame     actual contents of the encoded frame data
+     * @param timeStamp timestamp of the frame in microseconds
+     */
+    public void writeFrame(byte[] frame, long timeStamp) throws IOException;
+
+    /**
+     * Writes a single encoded frame stored between position and limit of the buffer.
+     * Buffer position is not modified and the buffer is not referenced after
+     * the call returns.
+     *
+     * @param frame     actual contents of the encoded frame data
+     * @param timeStamp timestamp of the frame in microseconds
+     */
+    public void writeFrame(ByteBuffer frame, long timeStamp) throws IOException;
+
+    /**
+     * Returns number of frames written so far.
+     */
+    public int getFrameCount();
+
+    /**
+     * Finalizes and closes the file.
+     */
+    public void close() throws IOException;
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+/**
+ * Pool of frame sized byte arrays keyed by array size.
+ *
+ * Frame conversion and scaling code takes scratch and destination arrays from
+ * the pool and returns them when done, so a steady-state codec loop reuses the
+ * same arrays instead of allocating a new one for every frame. Arrays are only
+ * allocated when the pool has no free array of the requested size, and pool
+ * bookkeeping itself does not allocate once the number of sizes and arrays
+ * stops growing. Acquire and release are thread safe.
+ */
+public class FrameBufferPool {
+    // Maximum number of free arrays kept for one size - extra arrays are left
+    // to the garbage collector.
+    private static final int MAX_FREE_BUFFERS = 8;
+
+    private int mSizeCount;
+    private int[] mSizes = new int[4];
+    private byte[][][] mFreeBuffers = new byte[4][][];
+    private int[] mFreeCounts = new int[4];
+
+    /**
+     * Returns an array of exactly |size| bytes. Contents are undefined.
+     */
+    public synchronized byte[] acquire(int size) {
+        int index = findSize(size);
+        if (index >= 0 && mFreeCounts[index] > 0) {
+            int count = --mFreeCounts[index];
+            byte[] buffer = mFreeBuffers[index][count];
+            mFreeBuffers[index][count] = null;
+            return buffer;
+        }
+        return new byte[size];
+    }
+
+    /**
+     * Returns an array obtained by acquire() to the pool. The caller must
+     * not use the array afterwards. Null is ignored.
+     */
+    public synchronized void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int index = findSize(buffer.length);
+        if (index < 0) {
+            index = addSize(buffer.length);
+        }
+        if (mFreeCounts[index] < MAX_FREE_BUFFERS) {
+            mFreeBuffers[index][mFreeCounts[index]++] = buffer;
+        }
+    }
+
+    /**
+     * Drops all free arrays.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mSizeCount; i++) {
+            for (int j = 0; j < mFreeCounts[i]; j++) {
+                mFreeBuffers[i][j] = null;
+            }
+            mFreeCounts[i] = 0;
+        }
+    }
+
+    private int findSize(int size) {
+        for (int i = 0; i < mSizeCount; i++) {
+            if (mSizes[i] == size) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int addSize(int size) {
+        if (mSizeCount == mSizes.length) {
+            int capacity = 2 * mSizeCount;
+            int[] sizes = new int[capacity];
+            byte[][][] freeBuffers = new byte[capacity][][];
+            int[] freeCounts = new int[capacity];
+            System.arraycopy(mSizes, 0, sizes, 0, mSizeCount);
+            System.arraycopy(mFreeBuffers, 0, freeBuffers, 0, mSizeCount);
+            System.arraycopy(mFreeCounts, 0, freeCounts, 0, mSizeCount);
+            mSizes = sizes;
+            mFreeBuffers = freeBuffers;
+            mFreeCounts = freeCounts;
+        }
+        mSizes[mSizeCount] = size;
+        mFreeBuffers[mSizeCount] = new byte[MAX_FREE_BUFFERS][];
+        mFreeCounts[mSizeCount] = 0;
+        return mSizeCount++;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import android.media.MediaCodecInfo.CodecCapabilities;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts decoder output frames to packed YUV420 planar (I420) in one pass.
+ *
+ * Decoder output may be planar or semi-planar, with row stride larger than
+ * the frame width and slice height larger than the frame height. The converter
+ * reads every visible row of the codec buffer once and writes it straight to
+ * its place in the packed frame, de-interleaving chroma of semi-planar layouts
+ * on the way, so no intermediate full frame copy is made. Chroma is
+ * de-interleaved by ChromaInterleaver, eight samples at a time for direct
+ * codec buffers.
+ *
+ * A converter caches word views of the last source and destination, so it
+ * should not be shared between threads.
+ */
+public class FrameConverter {
+    /** YUV420 planar: Y plane, U plane, V plane. */
+    public static final int LAYOUT_PLANAR = 0;
+    /** YUV420 semi-planar: Y plane, interleaved U/V plane. */
+    public static final int LAYOUT_NV12 = 1;
+    /** YUV420 semi-planar: Y plane, interleaved V/U plane. */
+    public static final int LAYOUT_NV21 = 2;
+
+    // QCOM NV12 with aligned rows and planes, reported by stride and slice height.
+    private static final int COLOR_QCOM_FORMATYUV420PackedSemiPlanar32m = 0x7FA30C04;
+
+    private Object mSrc;
+    private ChromaInterleaver.WordBuffer mSrcWords;
+    private byte[] mDst;
+    private ChromaInterleaver.WordBuffer mDstWords;
+
+    /**
+     * Returns memory layout of a codec color format, or -1 if the format is
+     * not supported.
+     */
+    public static int getLayout(int colorFormat) {
+        switch (colorFormat) {
+            case CodecCapabilities.COLOR_FormatYUV420Planar:
+            case CodecCapabilities.COLOR_FormatYUV420PackedPlanar:
+                return LAYOUT_PLANAR;
+            case CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
+            case CodecCapabilities.COLOR_FormatYUV420PackedSemiPlanar:
+            case CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar:
+            case COLOR_QCOM_FORMATYUV420PackedSemiPlanar32m:
+                return LAYOUT_NV12;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Returns number of bytes of a frame in the given layout needed to convert
+     * it - the last row of every plane may end right after the visible pixels.
+     */
+    public static int getRequiredSize(int layout, int width, int height,
+            int stride, int sliceHeight) {
+        int chromaOffset = stride * sliceHeight;
+        if (layout == LAYOUT_PLANAR) {
+            int chromaPlaneSize = (stride / 2) * (sliceHeight / 2);
+            return chromaOffset + chromaPlaneSize + (stride / 2) * (height / 2 - 1) + width / 2;
+        }
+        return chromaOffset + stride * (height / 2 - 1) + width;
+    }
+
+    /**
+     * Converts a frame to packed I420.
+     *
+     * @param src          frame data starting at the buffer position; position
+     *                     is not modified
+     * @param layout       one of the LAYOUT_ constants
+     * @param width        frame width
+     * @param height       frame height
+     * @param stride       row stride of the luma plane, chroma row stride is half
+     *                     of it for the planar layout and equal for semi-planar ones
+     * @param sliceHeight  number of rows of the luma plane
+     * @param dst          destination of width * height * 3 / 2 bytes
+     */
+    public void toPackedI420(ByteBuffer src, int layout, int width, int height,
+            int stride, int sliceHeight, byte[] dst) {
+        if (layout < LAYOUT_PLANAR || layout > LAYOUT_NV21) {
+            throw new IllegalArgumentException("Unsupported layout " + layout);
+        }
+        if (src.remaining() < getRequiredSize(layout, width, height, stride, sliceHeight)) {
+            throw new IllegalArgumentException("Frame buffer is too small: " + src.remaining() +
+                    " for " + width + " x " + height + ", stride " + stride +
+                    ", slice height " + sliceHeight);
+        }
+        int ySize = width * height;
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        int chromaOffset = stride * sliceHeight;
+
+        if (src.hasArray()) {
+            byte[] array = src.array();
+            int base = src.arrayOffset() + src.position();
+            // Y plane
+            for (int i = 0; i < height; i++) {
+                System.arraycopy(array, base + i * stride, dst, i * width, width);
+            }
+            if (layout == LAYOUT_PLANAR) {
+                int chromaStride = stride / 2;
+                int vOffset = chromaOffset + chromaStride * (sliceHeight / 2);
+                for (int i = 0; i < chromaHeight; i++) {
+                    System.arraycopy(array, base + chromaOffset + i * chromaStride,
+                            dst, ySize + i * chromaWidth, chromaWidth);
+                    System.arraycopy(array, base + vOffset + i * chromaStride,
+                            dst, ySize + ySize / 4 + i * chromaWidth, chromaWidth);
+                }
+            } else {
+                deinterleavePlane(getSrcWords(src), base + chromaOffset, stride,
+                        getDstWords(dst), ySize, chromaWidth, chromaHeight,
+                        layout == LAYOUT_NV21);
+            }
+            return;
+        }
+
+        // Direct buffer - bulk read every row, semi-planar chroma is
+        // de-interleaved straight from the buffer.
+        ByteBuffer data = src.duplicate();
+        int base = src.position();
+        for (int i = 0; i < height; i++) {
+            data.position(base + i * stride);
+            data.get(dst, i * width, width);
+        }
+        if (layout == LAYOUT_PLANAR) {
+            int chromaStride = stride / 2;
+            int vOffset = chromaOffset + chromaStride * (sliceHeight / 2);
+            for (int i = 0; i < chromaHeight; i++) {
+                data.position(base + chromaOffset + i * chromaStride);
+                data.get(dst, ySize + i * chromaWidth, chromaWidth);
+                data.position(base + vOffset + i * chromaStride);
+                data.get(dst, ySize + ySize / 4 + i * chromaWidth, chromaWidth);
+            }
+        } else {
+            deinterleavePlane(getSrcWords(src), base + chromaOffset, stride,
+                    getDstWords(dst), ySize, chromaWidth, chromaHeight,
+                    layout == LAYOUT_NV21);
+        }
+    }
+
+    /**
+     * Splits |height| rows of |width| interleaved chroma sample pairs to the
+     * packed U and V planes following the Y plane of size |ySize|.
+     */
+    private static void deinterleavePlane(ChromaInterleaver.WordBuffer src, int srcOffset,
+            int stride, ChromaInterleaver.WordBuffer dst, int ySize, int width, int height,
+            boolean swapUV) {
+        int uOffset = ySize;
+        int vOffset = ySize + ySize / 4;
+        if (swapUV) {
+            int tmp = uOffset;
+            uOffset = vOffset;
+            vOffset = tmp;
+        }
+        for (int i = 0; i < height; i++) {
+            ChromaInterleaver.deinterleave(src, srcOffset + i * stride,
+                    dst, uOffset + i * width, vOffset + i * width, width);
+        }
+    }
+
+    /**
+     * Returns word view of |src| indexed like its backing array if it has one,
+     * like the buffer otherwise - reused while the same array or buffer is
+     * converted.
+     */
+    private ChromaInterleaver.WordBuffer getSrcWords(ByteBuffer src) {
+        Object key = src.hasArray() ? src.array() : src;
+        if (mSrc != key) {
+            mSrc = key;
+            mSrcWords = src.hasArray() ?
+                    new ChromaInterleaver.WordBuffer(src.array()) :
+                    new ChromaInterleaver.WordBuffer(src);
+        }
+        return mSrcWords;
+    }
+
+    /**
+     * Returns word view of |dst|, reused while the same array is the destination.
+     */
+    private ChromaInterleaver.WordBuffer getDstWords(byte[] dst) {
+        if (mDst != dst) {
+            mDst = dst;
+            mDstWords = new ChromaInterleaver.WordBuffer(dst);
+        }
+        return mDstWords;
+    }
+}
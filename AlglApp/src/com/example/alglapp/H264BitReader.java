@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bit reader for H.264 NAL unit payloads with fixed length and Exp-Golomb
+ * codes (H.264 sections 7.2 and 9.1).
+ *
+ * Emulation prevention bytes (0x03 following two zero bytes) are skipped on
+ * the fly, so NAL units are read in place - from a codec output buffer or a
+ * memory mapped file - without copying them to an RBSP buffer first.
+ */
+public class H264BitReader {
+    private ByteBuffer mData;
+    private int mPosition;
+    private int mEnd;
+    private int mZeroCount;     // Number of consecutive zero bytes read.
+    private int mCurrentByte;
+    private int mBitsLeft;      // Number of unread bits in the current byte.
+    private boolean mOverrun;
+
+    /**
+     * Starts reading a NAL unit.
+     *
+     * @param data   buffer containing the NAL unit
+     * @param offset offset of the NAL unit header in the buffer
+     * @param length NAL unit size excluding the start code
+     */
+    public void init(ByteBuffer data, int offset, int length) {
+        mData = data;
+        mPosition = offset;
+        mEnd = offset + length;
+        mZeroCount = 0;
+        mBitsLeft = 0;
+        mOverrun = false;
+    }
+
+    public int readBit() {
+        if (mBitsLeft == 0) {
+            mCurrentByte = nextByte();
+            mBitsLeft = 8;
+        }
+        mBitsLeft--;
+        return (mCurrentByte >> mBitsLeft) & 1;
+    }
+
+    public boolean readFlag() {
+        return readBit() != 0;
+    }
+
+    /**
+     * Reads an unsigned fixed length code - u(n).
+     */
+    public int readBits(int bits) {
+        int value = 0;
+        while (bits-- > 0) {
+            value = (value << 1) | readBit();
+        }
+        return value;
+    }
+
+    public void skipBits(int bits) {
+        while (bits-- > 0) {
+            readBit();
+        }
+    }
+
+    /**
+     * Reads an unsigned Exp-Golomb code - ue(v).
+     */
+    public int readUe() {
+        int leadingZeroBits = 0;
+        while (readBit() == 0) {
+            if (++leadingZeroBits > 30 || mOverrun) {
+                mOverrun = true;
+                return 0;
+            }
+        }
+        if (leadingZeroBits == 0) {
+            return 0;
+        }
+        return (1 << leadingZeroBits) - 1 + readBits(leadingZeroBits);
+    }
+
+    /**
+     * Reads a signed Exp-Golomb code - se(v).
+     */
+    public int readSe() {
+        int codeNum = readUe();
+        return (codeNum & 1) != 0 ? (codeNum + 1) >> 1 : -(codeNum >> 1);
+    }
+
+    /**
+     * Tells if more bits were read than the NAL unit contains.
+     */
+    public boolean isOverrun() {
+        return mOverrun;
+    }
+
+    private int nextByte() {
+        while (mPosition < mEnd) {
+            int value = mData.get(mPosition++) & 0xFF;
+            if (mZeroCount >= 2 && value == 0x03) {
+                // Emulation prevention byte.
+                mZeroCount = 0;
+                continue;
+            }
+            mZeroCount = (value == 0) ? mZeroCount + 1 : 0;
+            return value;
+        }
+        mOverrun = true;
+        return 0;
+    }
+}
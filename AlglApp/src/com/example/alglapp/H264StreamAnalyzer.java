@@ -0,0 +1,583 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Analyzer of H.264 Annex-B access units: parses SPS, PPS and slice headers
+ * up to slice_qp_delta and reports per frame slice type, slice QP, IDR flag
+ * and NAL unit size breakdown, as well as totals for the whole stream.
+ *
+ * Each analyze() call takes one access unit - a single encoder output buffer
+ * or a frame of AnnexBReader. Codec config buffers only update the parameter
+ * sets. The analyzer reads data in place with absolute gets and does not
+ * allocate after the parameter sets have been seen, so it can run inline
+ * in the codec output path.
+ */
+public class H264StreamAnalyzer {
+    public static final int SLICE_TYPE_P = 0;
+    public static final int SLICE_TYPE_B = 1;
+    public static final int SLICE_TYPE_I = 2;
+    public static final int SLICE_TYPE_SP = 3;
+    public static final int SLICE_TYPE_SI = 4;
+    private static final String[] SLICE_TYPE_NAMES = { "P", "B", "I", "SP", "SI" };
+    // NAL unit types.
+    private static final int NAL_SLICE = 1;
+    private static final int NAL_SLICE_IDR = 5;
+    private static final int NAL_SEI = 6;
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+    private static final int MAX_SPS_COUNT = 32;
+    private static final int MAX_PPS_COUNT = 256;
+
+    /**
+     * Sequence parameter set fields needed to parse slice headers.
+     */
+    private static class Sps {
+        public int profileIdc;
+        public int levelIdc;
+        public int chromaArrayType;
+        public boolean separateColourPlane;
+        public int log2MaxFrameNum;
+        public int picOrderCntType;
+        public int log2MaxPicOrderCntLsb;
+        public boolean deltaPicOrderAlwaysZero;
+        public boolean frameMbsOnly;
+        public int width;
+        public int height;
+    }
+
+    /**
+     * Picture parameter set fields needed to parse slice headers.
+     */
+    private static class Pps {
+        public int spsId;
+        public boolean entropyCodingMode;
+        public boolean bottomFieldPicOrderInFramePresent;
+        public int numRefIdxL0Default;
+        public int numRefIdxL1Default;
+        public boolean weightedPred;
+        public int weightedBipredIdc;
+        public int picInitQp;
+        public boolean deblockingFilterControlPresent;
+        public boolean redundantPicCntPresent;
+    }
+
+    // Last frame.
+    public boolean idr;
+    public int sliceType;           // Slice type of the first slice or -1 if there are no slices.
+    public int sliceCount;
+    public int qp;                  // QP of the first slice.
+    public int minQp;
+    public int maxQp;
+    public int sliceBytes;          // NAL unit bytes including start codes.
+    public int parameterSetBytes;
+    public int seiBytes;
+    public int otherBytes;
+
+    // Stream totals.
+    public int frameCount;
+    public int idrFrameCount;
+    public final int[] sliceTypeFrameCount = new int[SLICE_TYPE_NAMES.length];
+    public int totalSliceCount;
+    public long totalSliceQp;
+    public int streamMinQp = Integer.MAX_VALUE;
+    public int streamMaxQp = Integer.MIN_VALUE;
+    public long totalSliceBytes;
+    public long totalParameterSetBytes;
+    public long totalSeiBytes;
+    public long totalOtherBytes;
+    public int invalidNalCount;     // NAL units with unsupported or broken headers.
+
+    // Frame size from the latest SPS, 0 until an SPS is seen.
+    public int width;
+    public int height;
+
+    private final H264BitReader mReader = new H264BitReader();
+    private final Sps[] mSps = new Sps[MAX_SPS_COUNT];
+    private final Pps[] mPps = new Pps[MAX_PPS_COUNT];
+
+    /**
+     * Returns short name of the slice type, e.g. "I".
+     */
+    public static String getSliceTypeName(int sliceType) {
+        if (sliceType < 0 || sliceType >= SLICE_TYPE_NAMES.length) {
+            return "-";
+        }
+        return SLICE_TYPE_NAMES[sliceType];
+    }
+
+    /**
+     * Analyzes an access unit.
+     *
+     * @param data   buffer containing the access unit in Annex-B format
+     * @param offset offset of the access unit in the buffer
+     * @param length access unit size
+     * @return true if the access unit contains at least one slice.
+     */
+    public boolean analyze(ByteBuffer data, int offset, int length) {
+        idr = false;
+        sliceType = -1;
+        sliceCount = 0;
+        qp = -1;
+        minQp = Integer.MAX_VALUE;
+        maxQp = Integer.MIN_VALUE;
+        sliceBytes = 0;
+        parameterSetBytes = 0;
+        seiBytes = 0;
+        otherBytes = 0;
+
+        int end = offset + length;
+        int zeros = 0;
+        int nalStart = -1;      // NAL unit header position.
+        int spanStart = offset; // Start code position.
+        for (int i = offset; i < end; i++) {
+            int value = data.get(i) & 0xFF;
+            if (value == 0) {
+                zeros++;
+                continue;
+            }
+            if (value == 1 && zeros >= 2) {
+                int startCode = i - Math.min(zeros, 3);
+                if (nalStart >= 0) {
+                    processNal(data, nalStart, i - zeros - nalStart, startCode - spanStart);
+                } else if (startCode > offset) {
+                    otherBytes += startCode - offset;
+                }
+                spanStart = startCode;
+                nalStart = i + 1;
+            }
+            zeros = 0;
+        }
+        if (nalStart >= 0) {
+            processNal(data, nalStart, end - zeros - nalStart, end - spanStart);
+        } else if (length > 0) {
+            // No start code - a single NAL unit.
+            processNal(data, offset, length, length);
+        }
+
+        totalSliceBytes += sliceBytes;
+        totalParameterSetBytes += parameterSetBytes;
+        totalSeiBytes += seiBytes;
+        totalOtherBytes += otherBytes;
+        if (sliceCount == 0) {
+            minQp = -1;
+            maxQp = -1;
+            return false;
+        }
+        frameCount++;
+        if (idr) {
+            idrFrameCount++;
+        }
+        if (sliceType >= 0) {
+            sliceTypeFrameCount[sliceType]++;
+        }
+        return true;
+    }
+
+    /**
+     * Returns average slice QP of the stream.
+     */
+    public double getAverageQp() {
+        return totalSliceCount == 0 ? 0 : (double)totalSliceQp / totalSliceCount;
+    }
+
+    /**
+     * Returns a one line summary of the stream statistics.
+     */
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append("Frames: ").append(frameCount);
+        summary.append(". IDR: ").append(idrFrameCount);
+        for (int i = 0; i < SLICE_TYPE_NAMES.length; i++) {
+            if (sliceTypeFrameCount[i] > 0) {
+                summary.append(". ").append(SLICE_TYPE_NAMES[i]).append(": ")
+                        .append(sliceTypeFrameCount[i]);
+            }
+        }
+        if (totalSliceCount > 0) {
+            summary.append(". QP min/avg/max: ").append(streamMinQp).append('/')
+                    .append(String.format(Locale.US, "%.1f", getAverageQp())).append('/')
+                    .append(streamMaxQp);
+        }
+        summary.append(". Bytes: slices ").append(totalSliceBytes);
+        summary.append(", parameter sets ").append(totalParameterSetBytes);
+        summary.append(", SEI ").append(totalSeiBytes);
+        summary.append(", other ").append(totalOtherBytes);
+        return summary.toString();
+    }
+
+    private void processNal(ByteBuffer data, int nalStart, int nalSize, int spanSize) {
+        if (nalSize <= 0) {
+            otherBytes += spanSize;
+            return;
+        }
+        int nalType = data.get(nalStart) & 0x1F;
+        mReader.init(data, nalStart, nalSize);
+        switch (nalType) {
+            case NAL_SLICE:
+            case NAL_SLICE_IDR:
+                sliceBytes += spanSize;
+                parseSliceHeader();
+                break;
+            case NAL_SPS:
+                parameterSetBytes += spanSize;
+                parseSps();
+                break;
+            case NAL_PPS:
+                parameterSetBytes += spanSize;
+                parsePps();
+                break;
+            case NAL_SEI:
+                seiBytes += spanSize;
+                break;
+            default:
+                otherBytes += spanSize;
+                break;
+        }
+    }
+
+    /**
+     * Parses SPS - H.264 section 7.3.2.1.1.
+     */
+    private void parseSps() {
+        H264BitReader br = mReader;
+        br.skipBits(8);  // NAL unit header
+        int profileIdc = br.readBits(8);
+        br.skipBits(8);  // constraint_set flags and reserved_zero_2bits
+        int levelIdc = br.readBits(8);
+        int spsId = br.readUe();
+        if (spsId >= MAX_SPS_COUNT) {
+            invalidNalCount++;
+            return;
+        }
+        int chromaFormatIdc = 1;
+        boolean separateColourPlane = false;
+        if (profileIdc == 100 || profileIdc == 110 || profileIdc == 122 || profileIdc == 244 ||
+                profileIdc == 44 || profileIdc == 83 || profileIdc == 86 || profileIdc == 118 ||
+                profileIdc == 128 || profileIdc == 138 || profileIdc == 139 ||
+                profileIdc == 134 || profileIdc == 135) {
+            chromaFormatIdc = br.readUe();
+            if (chromaFormatIdc == 3) {
+                separateColourPlane = br.readFlag();
+            }
+            br.readUe();    // bit_depth_luma_minus8
+            br.readUe();    // bit_depth_chroma_minus8
+            br.skipBits(1); // qpprime_y_zero_transform_bypass_flag
+            if (br.readFlag()) {
+                // seq_scaling_matrix_present_flag
+                int listCount = (chromaFormatIdc != 3) ? 8 : 12;
+                for (int i = 0; i < listCount; i++) {
+                    if (br.readFlag()) {
+                        skipScalingList(i < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+        int log2MaxFrameNum = br.readUe() + 4;
+        int picOrderCntType = br.readUe();
+        int log2MaxPicOrderCntLsb = 0;
+        boolean deltaPicOrderAlwaysZero = false;
+        if (picOrderCntType == 0) {
+            log2MaxPicOrderCntLsb = br.readUe() + 4;
+        } else if (picOrderCntType == 1) {
+            deltaPicOrderAlwaysZero = br.readFlag();
+            br.readSe();    // offset_for_non_ref_pic
+            br.readSe();    // offset_for_top_to_bottom_field
+            int cycleLength = br.readUe();
+            for (int i = 0; i < cycleLength && !br.isOverrun(); i++) {
+                br.readSe();
+            }
+        }
+        br.readUe();        // max_num_ref_frames
+        br.skipBits(1);     // gaps_in_frame_num_value_allowed_flag
+        int widthInMbs = br.readUe() + 1;
+        int heightInMapUnits = br.readUe() + 1;
+        boolean frameMbsOnly = br.readFlag();
+        if (!frameMbsOnly) {
+            br.skipBits(1); // mb_adaptive_frame_field_flag
+        }
+        br.skipBits(1);     // direct_8x8_inference_flag
+        int cropLeft = 0;
+        int cropRight = 0;
+        int cropTop = 0;
+        int cropBottom = 0;
+        if (br.readFlag()) {
+            cropLeft = br.readUe();
+            cropRight = br.readUe();
+            cropTop = br.readUe();
+            cropBottom = br.readUe();
+        }
+        if (br.isOverrun()) {
+            invalidNalCount++;
+            return;
+        }
+
+        Sps sps = mSps[spsId];
+        if (sps == null) {
+            sps = new Sps();
+            mSps[spsId] = sps;
+        }
+        sps.profileIdc = profileIdc;
+        sps.levelIdc = levelIdc;
+        sps.separateColourPlane = separateColourPlane;
+        sps.chromaArrayType = separateColourPlane ? 0 : chromaFormatIdc;
+        sps.log2MaxFrameNum = log2MaxFrameNum;
+        sps.picOrderCntType = picOrderCntType;
+        sps.log2MaxPicOrderCntLsb = log2MaxPicOrderCntLsb;
+        sps.deltaPicOrderAlwaysZero = deltaPicOrderAlwaysZero;
+        sps.frameMbsOnly = frameMbsOnly;
+        // Frame cropping units - section 7.4.2.1.1.
+        int cropUnitX = 1;
+        int cropUnitY = frameMbsOnly ? 1 : 2;
+        if (sps.chromaArrayType != 0) {
+            cropUnitX = (chromaFormatIdc == 3) ? 1 : 2;
+            cropUnitY *= (chromaFormatIdc == 1) ? 2 : 1;
+        }
+        sps.width = widthInMbs * 16 - cropUnitX * (cropLeft + cropRight);
+        sps.height = (frameMbsOnly ? 1 : 2) * heightInMapUnits * 16 -
+                cropUnitY * (cropTop + cropBottom);
+        width = sps.width;
+        height = sps.height;
+    }
+
+    /**
+     * Parses PPS - H.264 section 7.3.2.2. Fields following
+     * redundant_pic_cnt_present_flag do not affect the slice header and are skipped.
+     */
+    private void parsePps() {
+        H264BitReader br = mReader;
+        br.skipBits(8);  // NAL unit header
+        int ppsId = br.readUe();
+        int spsId = br.readUe();
+        if (ppsId >= MAX_PPS_COUNT || spsId >= MAX_SPS_COUNT) {
+            invalidNalCount++;
+            return;
+        }
+        boolean entropyCodingMode = br.readFlag();
+        boolean bottomFieldPicOrderInFramePresent = br.readFlag();
+        int numSliceGroups = br.readUe() + 1;
+        if (numSliceGroups > 1) {
+            // Slice groups (FMO) are only allowed in Baseline and Extended profiles
+            // and are not produced by the encoders under test.
+            invalidNalCount++;
+            return;
+        }
+        int numRefIdxL0Default = br.readUe() + 1;
+        int numRefIdxL1Default = br.readUe() + 1;
+        boolean weightedPred = br.readFlag();
+        int weightedBipredIdc = br.readBits(2);
+        int picInitQp = 26 + br.readSe();
+        br.readSe();    // pic_init_qs_minus26
+        br.readSe();    // chroma_qp_index_offset
+        boolean deblockingFilterControlPresent = br.readFlag();
+        br.skipBits(1); // constrained_intra_pred_flag
+        boolean redundantPicCntPresent = br.readFlag();
+        if (br.isOverrun()) {
+            invalidNalCount++;
+            return;
+        }
+
+        Pps pps = mPps[ppsId];
+        if (pps == null) {
+            pps = new Pps();
+            mPps[ppsId] = pps;
+        }
+        pps.spsId = spsId;
+        pps.entropyCodingMode = entropyCodingMode;
+        pps.bottomFieldPicOrderInFramePresent = bottomFieldPicOrderInFramePresent;
+        pps.numRefIdxL0Default = numRefIdxL0Default;
+        pps.numRefIdxL1Default = numRefIdxL1Default;
+        pps.weightedPred = weightedPred;
+        pps.weightedBipredIdc = weightedBipredIdc;
+        pps.picInitQp = picInitQp;
+        pps.deblockingFilterControlPresent = deblockingFilterControlPresent;
+        pps.redundantPicCntPresent = redundantPicCntPresent;
+    }
+
+    /**
+     * Parses slice header up to slice_qp_delta - H.264 section 7.3.3.
+     */
+    private void parseSliceHeader() {
+        H264BitReader br = mReader;
+        br.skipBits(1);     // forbidden_zero_bit
+        int nalRefIdc = br.readBits(2);
+        int nalType = br.readBits(5);
+        boolean idrSlice = (nalType == NAL_SLICE_IDR);
+        br.readUe();        // first_mb_in_slice
+        int type = br.readUe() % 5;
+        int ppsId = br.readUe();
+        Pps pps = (ppsId < MAX_PPS_COUNT) ? mPps[ppsId] : null;
+        Sps sps = (pps != null) ? mSps[pps.spsId] : null;
+        if (sps == null) {
+            invalidNalCount++;
+            return;
+        }
+
+        if (sps.separateColourPlane) {
+            br.skipBits(2); // colour_plane_id
+        }
+        br.skipBits(sps.log2MaxFrameNum);   // frame_num
+        boolean fieldPic = false;
+        if (!sps.frameMbsOnly) {
+            fieldPic = br.readFlag();
+            if (fieldPic) {
+                br.skipBits(1); // bottom_field_flag
+            }
+        }
+        if (idrSlice) {
+            br.readUe();    // idr_pic_id
+        }
+        if (sps.picOrderCntType == 0) {
+            br.skipBits(sps.log2MaxPicOrderCntLsb);
+            if (pps.bottomFieldPicOrderInFramePresent && !fieldPic) {
+                br.readSe();    // delta_pic_order_cnt_bottom
+            }
+        } else if (sps.picOrderCntType == 1 && !sps.deltaPicOrderAlwaysZero) {
+            br.readSe();        // delta_pic_order_cnt[0]
+            if (pps.bottomFieldPicOrderInFramePresent && !fieldPic) {
+                br.readSe();    // delta_pic_order_cnt[1]
+            }
+        }
+        if (pps.redundantPicCntPresent) {
+            br.readUe();        // redundant_pic_cnt
+        }
+        if (type == SLICE_TYPE_B) {
+            br.skipBits(1);     // direct_spatial_mv_pred_flag
+        }
+        int numRefIdxL0Active = pps.numRefIdxL0Default;
+        int numRefIdxL1Active = pps.numRefIdxL1Default;
+        if (type == SLICE_TYPE_P || type == SLICE_TYPE_SP || type == SLICE_TYPE_B) {
+            if (br.readFlag()) {
+                // num_ref_idx_active_override_flag
+                numRefIdxL0Active = br.readUe() + 1;
+                if (type == SLICE_TYPE_B) {
+                    numRefIdxL1Active = br.readUe() + 1;
+                }
+            }
+        }
+        // ref_pic_list_modification()
+        if (type != SLICE_TYPE_I && type != SLICE_TYPE_SI) {
+            skipRefPicListModification();
+            if (type == SLICE_TYPE_B) {
+                skipRefPicListModification();
+            }
+        }
+        if ((pps.weightedPred && (type == SLICE_TYPE_P || type == SLICE_TYPE_SP)) ||
+                (pps.weightedBipredIdc == 1 && type == SLICE_TYPE_B)) {
+            // pred_weight_table()
+            br.readUe();        // luma_log2_weight_denom
+            if (sps.chromaArrayType != 0) {
+                br.readUe();    // chroma_log2_weight_denom
+            }
+            skipPredWeights(numRefIdxL0Active, sps.chromaArrayType != 0);
+            if (type == SLICE_TYPE_B) {
+                skipPredWeights(numRefIdxL1Active, sps.chromaArrayType != 0);
+            }
+        }
+        if (nalRefIdc != 0) {
+            // dec_ref_pic_marking()
+            if (idrSlice) {
+                br.skipBits(2); // no_output_of_prior_pics_flag, long_term_reference_flag
+            } else if (br.readFlag()) {
+                // adaptive_ref_pic_marking_mode_flag
+                int operation;
+                do {
+                    operation = br.readUe();
+                    if (operation == 1 || operation == 3) {
+                        br.readUe();    // difference_of_pic_nums_minus1
+                    }
+                    if (operation == 2) {
+                        br.readUe();    // long_term_pic_num
+                    }
+                    if (operation == 3 || operation == 6) {
+                        br.readUe();    // long_term_frame_idx
+                    }
+                    if (operation == 4) {
+                        br.readUe();    // max_long_term_frame_idx_plus1
+                    }
+                } while (operation != 0 && !br.isOverrun());
+            }
+        }
+        if (pps.entropyCodingMode && type != SLICE_TYPE_I && type != SLICE_TYPE_SI) {
+            br.readUe();        // cabac_init_idc
+        }
+        int sliceQp = pps.picInitQp + br.readSe();
+        if (br.isOverrun()) {
+            invalidNalCount++;
+            return;
+        }
+
+        if (sliceCount == 0) {
+            sliceType = type;
+            qp = sliceQp;
+        }
+        sliceCount++;
+        idr |= idrSlice;
+        minQp = Math.min(minQp, sliceQp);
+        maxQp = Math.max(maxQp, sliceQp);
+        totalSliceCount++;
+        totalSliceQp += sliceQp;
+        streamMinQp = Math.min(streamMinQp, sliceQp);
+        streamMaxQp = Math.max(streamMaxQp, sliceQp);
+    }
+
+    private void skipRefPicListModification() {
+        H264BitReader br = mReader;
+        if (!br.readFlag()) {
+            return;
+        }
+        int modification;
+        do {
+            modification = br.readUe();
+            if (modification == 0 || modification == 1 || modification == 2) {
+                br.readUe();    // abs_diff_pic_num_minus1 or long_term_pic_num
+            }
+        } while (modification != 3 && !br.isOverrun());
+    }
+
+    private void skipPredWeights(int numRefIdxActive, boolean chroma) {
+        H264BitReader br = mReader;
+        for (int i = 0; i < numRefIdxActive && !br.isOverrun(); i++) {
+            if (br.readFlag()) {
+                br.readSe();    // luma_weight
+                br.readSe();    // luma_offset
+            }
+            if (chroma && br.readFlag()) {
+                for (int j = 0; j < 2; j++) {
+                    br.readSe();    // chroma_weight
+                    br.readSe();    // chroma_offset
+                }
+            }
+        }
+    }
+
+    private void skipScalingList(int size) {
+        H264BitReader br = mReader;
+        int lastScale = 8;
+        int nextScale = 8;
+        for (int j = 0; j < size; j++) {
+            if (nextScale != 0) {
+                int deltaScale = br.readSe();
+                nextScale = (lastScale + deltaScale + 256) % 256;
+            }
+            lastScale = (nextScale == 0) ? lastScale : nextScale;
+        }
+    }
+}
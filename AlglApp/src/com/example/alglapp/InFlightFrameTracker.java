@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+/**
+ * Frames queued to a codec and not yet returned, keyed by presentation timestamp.
+ *
+ * Every frame records the time it was offered to the codec (enqueue time) and
+ * the time it was queued to a codec input buffer (queue time). Output buffers
+ * are matched by presentation timestamp, so per frame latency stays correct
+ * when the codec reorders frames or skips them. A frame which is still in flight
+ * after |capacity| newer frames were queued, or when the output EOS is reached,
+ * is counted as dropped. Output buffers without a matching frame are counted
+ * as unmatched.
+ *
+ * Frames are kept in a linear probing hash table and a ring in queue order,
+ * both preallocated - add() and remove() do not allocate. Not thread safe.
+ */
+public class InFlightFrameTracker {
+    private final int mCapacity;
+    private final int mHashShift;
+    private final int mMask;
+    // Hash table slots. Sequence number 0 marks a free slot.
+    private final long[] mPts;
+    private final long[] mSequence;
+    private final long[] mEnqueueTimeUs;
+    private final long[] mQueueTimeUs;
+    // Frames in queue order. Entries of frames which were already removed
+    // are skipped when the head is advanced.
+    private final long[] mOrderPts;
+    private final long[] mOrderSequence;
+    private long mHead;
+    private long mTail;
+    private long mNextSequence = 1;
+    private int mSize;
+    private int mDroppedFrames;
+    private int mUnmatchedFrames;
+    // Times of the frame returned by the last successful remove() call.
+    private long mLastEnqueueTimeUs;
+    private long mLastQueueTimeUs;
+
+    /**
+     * @param capacity  Maximum number of frames in flight.
+     */
+    public InFlightFrameTracker(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        mCapacity = capacity;
+        // Table size is a power of two at least twice the capacity, so probe
+        // sequences stay short.
+        int bits = 1;
+        while ((1 << bits) < 2 * capacity) {
+            bits++;
+        }
+        mHashShift = 64 - bits;
+        mMask = (1 << bits) - 1;
+        mPts = new long[1 << bits];
+        mSequence = new long[1 << bits];
+        mEnqueueTimeUs = new long[1 << bits];
+        mQueueTimeUs = new long[1 << bits];
+        mOrderPts = new long[capacity];
+        mOrderSequence = new long[capacity];
+    }
+
+    private int home(long pts) {
+        return (int)((pts * 0x9E3779B97F4A7C15L) >>> mHashShift);
+    }
+
+    /**
+     * Adds a frame queued to the codec. If |capacity| frames are already in flight
+     * the oldest one is counted as dropped.
+     */
+    public void add(long presentationTimeUs, long enqueueTimeUs, long queueTimeUs) {
+        advanceHead();
+        if (mTail - mHead == mCapacity) {
+            // The oldest frame is still in flight - the codec is not going to return it.
+            int ring = (int)(mHead % mCapacity);
+            removeSlot(findSlot(mOrderPts[ring], mOrderSequence[ring]));
+            mDroppedFrames++;
+            advanceHead();
+        }
+
+        long sequence = mNextSequence++;
+        int slot = home(presentationTimeUs);
+        while (mSequence[slot] != 0) {
+            slot = (slot + 1) & mMask;
+        }
+        mPts[slot] = presentationTimeUs;
+        mSequence[slot] = sequence;
+        mEnqueueTimeUs[slot] = enqueueTimeUs;
+        mQueueTimeUs[slot] = queueTimeUs;
+        int ring = (int)(mTail % mCapacity);
+        mOrderPts[ring] = presentationTimeUs;
+        mOrderSequence[ring] = sequence;
+        mTail++;
+        mSize++;
+    }
+
+    /**
+     * Removes the oldest frame with the given presentation timestamp. Times of
+     * the frame are returned by getEnqueueTimeUs() and getQueueTimeUs().
+     *
+     * @return  false if no such frame is in flight.
+     */
+    public boolean remove(long presentationTimeUs) {
+        int found = -1;
+        for (int slot = home(presentationTimeUs); mSequence[slot] != 0;
+                slot = (slot + 1) & mMask) {
+            if (mPts[slot] == presentationTimeUs &&
+                    (found < 0 || mSequence[slot] < mSequence[found])) {
+                found = slot;
+            }
+        }
+        if (found < 0) {
+            mUnmatchedFrames++;
+            return false;
+        }
+        mLastEnqueueTimeUs = mEnqueueTimeUs[found];
+        mLastQueueTimeUs = mQueueTimeUs[found];
+        removeSlot(found);
+        advanceHead();
+        return true;
+    }
+
+    /**
+     * Counts all frames in flight as dropped - called when the codec output
+     * reached EOS.
+     */
+    public void flush() {
+        mDroppedFrames += mSize;
+        for (int i = 0; i <= mMask; i++) {
+            mSequence[i] = 0;
+        }
+        mHead = mTail;
+        mSize = 0;
+    }
+
+    public long getEnqueueTimeUs() {
+        return mLastEnqueueTimeUs;
+    }
+
+    public long getQueueTimeUs() {
+        return mLastQueueTimeUs;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    public int getUnmatchedFrames() {
+        return mUnmatchedFrames;
+    }
+
+    private int findSlot(long pts, long sequence) {
+        for (int slot = home(pts); mSequence[slot] != 0; slot = (slot + 1) & mMask) {
+            if (mSequence[slot] == sequence) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Skips ring entries of frames which are no longer in flight.
+     */
+    private void advanceHead() {
+        while (mHead < mTail) {
+            int ring = (int)(mHead % mCapacity);
+            if (findSlot(mOrderPts[ring], mOrderSequence[ring]) >= 0) {
+                break;
+            }
+            mHead++;
+        }
+    }
+
+    /**
+     * Frees a hash table slot, shifting back following entries of the probe
+     * sequence so lookups never need tombstones.
+     */
+    private void removeSlot(int slot) {
+        mSize--;
+        int free = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mMask;
+            if (mSequence[next] == 0) {
+                break;
+            }
+            int home = home(mPts[next]);
+            // Entry can move to the free slot if its home is not in (free, next].
+            boolean movable = (free <= next) ?
+                    (home <= free || home > next) : (home <= free && home > next);
+            if (movable) {
+                mPts[free] = mPts[next];
+                mSequence[free] = mSequence[next];
+                mEnqueueTimeUs[free] = mEnqueueTimeUs[next];
+                mQueueTimeUs[free] = mQueueTimeUs[next];
+                free = next;
+            }
+        }
+        mSequence[free] = 0;
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Key frame aligned editing of IVF files: extracting a segment, splitting
+ * a file into segments and concatenating segments, e.g. produced by
+ * parallel encodes, back into a single file.
+ *
+ * Frame positions come from the IvfReader frame index and frame payloads
+ * are copied file to file with FileChannel.transferTo(), so frame data never
+ * passes through the Java heap. Only the 32 byte file header and, when
+ * timestamps have to be rebased, the 12 byte frame headers are rewritten.
+ * Output timestamps start at 0 and continue across concatenated segments.
+ * Codec configuration sidecar of the first source is copied to the output.
+ */
+public class IvfEditor {
+    private static final int FRAME_HEADER_SIZE = 12;
+    private static final String FILE_EXTENSION = ".ivf";
+
+    /**
+     * A range of frames of an open IVF file.
+     */
+    private static class Segment {
+        public IvfReader ivf;
+        public FileChannel channel;
+        public int startFrame;
+        public int frameCount;
+
+        public Segment(IvfReader ivf, FileChannel channel, int startFrame, int frameCount) {
+            this.ivf = ivf;
+            this.channel = channel;
+            this.startFrame = startFrame;
+            this.frameCount = frameCount;
+        }
+    }
+
+    private IvfEditor() {
+    }
+
+    /**
+     * Finds key frames at which the file can be split into segments of at
+     * least |minSegmentFrames| frames. The first split point is always frame 0.
+     *
+     * @param ivf              IVF file reader
+     * @param minSegmentFrames minimum number of frames in a segment
+     * @return indices of the first frames of the segments.
+     */
+    public static int[] findSplitPoints(IvfReader ivf, int minSegmentFrames) {
+        int frameCount = ivf.getFrameCount();
+        int[] splitPoints = new int[Math.max(1, frameCount)];
+        int splitCount = 1;
+        int segmentStart = 0;
+        for (int i = 1; i < frameCount; i++) {
+            if (i - segmentStart >= minSegmentFrames && ivf.isKeyFrame(i)) {
+                splitPoints[splitCount++] = i;
+                segmentStart = i;
+            }
+        }
+        int[] result = new int[splitCount];
+        System.arraycopy(splitPoints, 0, result, 0, splitCount);
+        return result;
+    }
+
+    /**
+     * Copies a range of frames to a new IVF file. The range has to start at a key frame.
+     *
+     * @param srcFilename  name of the source IVF file
+     * @param startFrame   first frame of the range
+     * @param frameCount   number of frames in the range
+     * @param dstFilename  name of the output IVF file
+     */
+    public static void extractSegment(String srcFilename, int startFrame, int frameCount,
+            String dstFilename) throws IOException {
+        IvfReader ivf = new IvfReader(srcFilename, false, true);
+        FileInputStream input = new FileInputStream(srcFilename);
+        try {
+            writeSegments(new Segment[] {
+                    new Segment(ivf, input.getChannel(), startFrame, frameCount) },
+                    dstFilename);
+        } finally {
+            input.close();
+            ivf.close();
+        }
+    }
+
+    /**
+     * Splits the IVF file at key frames into segments of at least |minSegmentFrames|
+     * frames. Segment files are named after the source file with "_<segment index>"
+     * suffix, e.g. "video.ivf" is split to "video_0.ivf", "video_1.ivf", ...
+     *
+     * @param srcFilename      name of the source IVF file
+     * @param minSegmentFrames minimum number of frames in a segment
+     * @return names of the segment files.
+     */
+    public static ArrayList<String> splitAtKeyFrames(String srcFilename, int minSegmentFrames)
+            throws IOException {
+        String baseName = srcFilename;
+        if (baseName.endsWith(FILE_EXTENSION)) {
+            baseName = baseName.substring(0, baseName.length() - FILE_EXTENSION.length());
+        }
+        ArrayList<String> segmentFilenames = new ArrayList<String>();
+        IvfReader ivf = new IvfReader(srcFilename, false, true);
+        FileInputStream input = new FileInputStream(srcFilename);
+        try {
+            int[] splitPoints = findSplitPoints(ivf, minSegmentFrames);
+            for (int i = 0; i < splitPoints.length; i++) {
+                int segmentEnd = (i + 1 < splitPoints.length) ?
+                        splitPoints[i + 1] : ivf.getFrameCount();
+                String segmentFilename = baseName + "_" + i + FILE_EXTENSION;
+                writeSegments(new Segment[] {
+                        new Segment(ivf, input.getChannel(),
+                                splitPoints[i], segmentEnd - splitPoints[i]) },
+                        segmentFilename);
+                segmentFilenames.add(segmentFilename);
+            }
+        } finally {
+            input.close();
+            ivf.close();
+        }
+        return segmentFilenames;
+    }
+
+    /**
+     * Concatenates IVF files into a single file. All files must have the same
+     * codec, frame size and timebase, and each file has to start at a key frame.
+     *
+     * @param srcFilenames names of the source IVF files in playback order
+     * @param dstFilename  name of the output IVF file
+     */
+    public static void concatenate(List<String> srcFilenames, String dstFilename)
+            throws IOException {
+        Segment[] segments = new Segment[srcFilenames.size()];
+        ArrayList<FileInputStream> inputs = new ArrayList<FileInputStream>();
+        try {
+            for (int i = 0; i < segments.length; i++) {
+                String srcFilename = srcFilenames.get(i);
+                IvfReader ivf = new IvfReader(srcFilename, false, true);
+                FileInputStream input = new FileInputStream(srcFilename);
+                inputs.add(input);
+                segments[i] = new Segment(ivf, input.getChannel(), 0, ivf.getFrameCount());
+            }
+            writeSegments(segments, dstFilename);
+        } finally {
+            for (FileInputStream input : inputs) {
+                input.close();
+            }
+            for (Segment segment : segments) {
+                if (segment != null) {
+                    segment.ivf.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes segments one after another to a new IVF file with timestamps
+     * rebased to a continuous timeline starting at 0.
+     */
+    private static void writeSegments(Segment[] segments, String dstFilename)
+            throws IOException {
+        if (segments.length == 0) {
+            throw new IOException("No segments to write to " + dstFilename);
+        }
+        IvfReader first = segments[0].ivf;
+        int totalFrameCount = 0;
+        for (Segment segment : segments) {
+            IvfReader ivf = segment.ivf;
+            if (segment.startFrame < 0 || segment.frameCount <= 0 ||
+                    segment.startFrame + segment.frameCount > ivf.getFrameCount()) {
+                throw new IOException("Invalid frame range " + segment.startFrame + " + " +
+                        segment.frameCount + " for " + ivf.getFrameCount() + " frames");
+            }
+            if (!ivf.getFourcc().equals(first.getFourcc()) ||
+                    ivf.getWidth() != first.getWidth() || ivf.getHeight() != first.getHeight() ||
+                    ivf.getTimebaseScale() != first.getTimebaseScale() ||
+                    ivf.getTimebaseRate() != first.getTimebaseRate()) {
+                throw new IOException("IVF segments have different stream parameters");
+            }
+            if (!ivf.isKeyFrame(segment.startFrame)) {
+                throw new IOException("Segment does not start at a key frame: frame " +
+                        segment.startFrame);
+            }
+            totalFrameCount += segment.frameCount;
+        }
+
+        FileOutputStream output = new FileOutputStream(dstFilename, false);
+        try {
+            FileChannel dst = output.getChannel();
+            writeFully(dst, ByteBuffer.wrap(IvfWriter.makeIvfHeader(totalFrameCount,
+                    first.getFourcc(), first.getWidth(), first.getHeight(),
+                    first.getTimebaseScale(), first.getTimebaseRate())));
+
+            long nextPts = 0;
+            for (Segment segment : segments) {
+                IvfReader ivf = segment.ivf;
+                int lastFrame = segment.startFrame + segment.frameCount - 1;
+                long firstPts = ivf.getFramePts(segment.startFrame);
+                long lastPts = ivf.getFramePts(lastFrame);
+                long ptsOffset = nextPts - firstPts;
+                if (ptsOffset == 0) {
+                    // Frame headers are kept as is - copy the whole range at once.
+                    long start = ivf.getFrameHeaderOffset(segment.startFrame);
+                    long end = ivf.getFrameOffset(lastFrame) + ivf.getFrameSize(lastFrame);
+                    transfer(segment.channel, start, end - start, dst);
+                } else {
+                    for (int i = segment.startFrame; i <= lastFrame; i++) {
+                        int frameSize = ivf.getFrameSize(i);
+                        writeFully(dst, ByteBuffer.wrap(IvfWriter.makeIvfFrameHeader(
+                                frameSize, ivf.getFramePts(i) + ptsOffset)));
+                        transfer(segment.channel, ivf.getFrameOffset(i), frameSize, dst);
+                    }
+                }
+                // Next segment starts one frame duration after the last frame.
+                long frameDuration = 1;
+                if (segment.frameCount > 1) {
+                    frameDuration = Math.max(1, (lastPts - firstPts) / (segment.frameCount - 1));
+                }
+                nextPts = lastPts + ptsOffset + frameDuration;
+            }
+        } finally {
+            output.close();
+        }
+
+        // Codec configuration sidecar.
+        ByteBuffer codecConfig = first.getCodecConfig();
+        File configFile = new File(IvfReader.getCodecConfigFilename(dstFilename));
+        if (codecConfig == null) {
+            configFile.delete();
+        } else {
+            FileOutputStream config = new FileOutputStream(configFile, false);
+            try {
+                writeFully(config.getChannel(), codecConfig);
+            } finally {
+                config.close();
+            }
+        }
+    }
+
+    /**
+     * Copies |count| bytes starting at |position| of the source file to the
+     * current position of the destination file.
+     */
+    private static void transfer(FileChannel src, long position, long count, FileChannel dst)
+            throws IOException {
+        while (count > 0) {
+            long bytesTransferred = src.transferTo(position, count, dst);
+            if (bytesTransferred <= 0) {
+                throw new IOException("Failed to copy frame data at offset " + position);
+            }
+            position += bytesTransferred;
+            count -= bytesTransferred;
+        }
+    }
+
+    private static void writeFully(FileChannel dst, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            dst.write(data);
+        }
+    }
+}
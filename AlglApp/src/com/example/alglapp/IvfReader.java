@@ -18,20 +18,39 @@
 package com.example.alglapp;
 
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 
 /**
  * A simple reader for an IVF file.
  *
  * IVF format is a simple container format for VP8 encoded frames defined at
  * http://wiki.multimedia.cx/index.php?title=IVF.
+ * Files with VP9 (VP90) and H.264 (H264) fourcc are accepted as well, and codec
+ * configuration data written by IvfWriter to a sidecar file (filename + ".csd")
+ * is available through getCodecConfig().
  * This reader is capable of getting frame count, width and height
  * from the header, and access individual frames randomly by
  * frame number.
+ *
+ * Optionally the file can be memory mapped. In this mode frames are
+ * returned as read-only ByteBuffer slices of the mapping, or copied
+ * into a caller supplied buffer, without any per-frame allocation.
+ *
+ * Frame index (offsets, sizes, timestamps and key frame flags) is built
+ * in a single buffered pass over the file and can be persisted in a
+ * sidecar index file (filename + ".idx"), so later opens of the same
+ * file skip the scan. The sidecar is ignored and rebuilt if the IVF file
+ * size or modification time changes.
  */
 
-public class IvfReader {
+public class IvfReader implements EncodedStreamReader {
     private static final byte HEADER_SIZE = 32;
     private static final byte FOURCC_OFFSET = 8;
     private static final byte WIDTH_OFFSET = 12;
@@ -40,16 +59,45 @@ public class IvfReader {
     private static final byte FRAMERATE_NUM_OFFSET = 20;
     private static final byte FRAMECOUNT_OFFSET = 24;
     private static final byte FRAME_HEADER_SIZE = 12;
+    // Maximum size of a single file mapping - MappedByteBuffer is int indexed.
+    private static final long MAX_MAPPING_SIZE = Integer.MAX_VALUE;
+    // Read buffer size used for the frame index scan.
+    private static final int INDEX_SCAN_BUFFER_SIZE = 64 * 1024;
+    // Sidecar index file layout (little-endian):
+    //   "IVFX" signature, version, IVF file length, IVF modification time, frame count,
+    //   frame head offsets (long), frame sizes (int), frame pts (long), frame flags (byte).
+    private static final String INDEX_FILE_SUFFIX = ".idx";
+    // Codec configuration data sidecar file written by IvfWriter.
+    private static final String CODEC_CONFIG_FILE_SUFFIX = ".csd";
+    // Number of frame data bytes inspected for key frame detection.
+    private static final int KEY_FRAME_PROBE_SIZE = 64;
+    private static final int INDEX_VERSION = 2;
+    private static final int INDEX_HEADER_SIZE = 28;
+    private static final int INDEX_ENTRY_SIZE = 8 + 4 + 8 + 1;
+    private static final byte FRAME_FLAG_KEY = 1;
 
+    private String mFilename;
     private RandomAccessFile mIvfFile;
+    private FileChannel mIvfChannel;
     private boolean mHeaderValid;
+    private String mFourcc;
+    private ByteBuffer mCodecConfig;
     private int mWidth;
     private int mHeight;
     private int mFrameCount;
-    private int[] mFrameHeads;  // Head of frame header
+    private long[] mFrameHeads;  // Head of frame header
     private int[] mFrameSizes;  // Frame size excluding header
+    private long[] mFramePts;   // Frame timestamps in timebase units
+    private byte[] mFrameFlags; // FRAME_FLAG_* bits
+    private int mTimebaseScale;
+    private int mTimebaseRate;
     private double mTimestampScale;
     private double[] mFrameTimestamps; // in seconds
+    // Memory mapped file regions. Each frame is fully contained in a single
+    // region, so files larger than 2 GB are covered by several mappings.
+    private MappedByteBuffer[] mMappings;
+    private long[] mMappingOffsets;  // File offset of each mapping
+    private int[] mFrameMappings;    // Index of the mapping containing each frame
 
 
     /**
@@ -63,11 +111,46 @@ public class IvfReader {
      * @param filename   name of the IVF file
      */
     public IvfReader(String filename) throws IOException{
+        this(filename, false);
+    }
+
+    /**
+     * Initializes the IVF file reader with an option to memory map the file.
+     *
+     * @param filename   name of the IVF file
+     * @param mapFile    map the file into memory and serve frames from the mapping
+     */
+    public IvfReader(String filename, boolean mapFile) throws IOException{
+        this(filename, mapFile, false);
+    }
+
+    /**
+     * Initializes the IVF file reader with options to memory map the file
+     * and to use a persistent sidecar frame index.
+     *
+     * @param filename      name of the IVF file
+     * @param mapFile       map the file into memory and serve frames from the mapping
+     * @param useIndexFile  load frame index from the sidecar file if it is up to date,
+     *                      otherwise scan the file and write a new sidecar
+     */
+    public IvfReader(String filename, boolean mapFile, boolean useIndexFile) throws IOException{
+        mFilename = filename;
         mIvfFile = new RandomAccessFile(filename, "r");
+        mIvfChannel = mIvfFile.getChannel();
 
         mHeaderValid = verifyHeader();
         readHeaderData();
-        readFrameMetadata();
+        mCodecConfig = readCodecConfig(filename);
+        if (!useIndexFile || !readIndexFile()) {
+            readFrameMetadata();
+            if (useIndexFile) {
+                writeIndexFile();
+            }
+        }
+        computeFrameTimestamps();
+        if (mapFile) {
+            mapFrames();
+        }
     }
 
     /**
@@ -80,6 +163,21 @@ public class IvfReader {
         return mHeaderValid;
     }
 
+    /**
+     * Returns fourcc of the codec from the file header, e.g. "VP80" or "H264".
+     */
+    public String getFourcc(){
+        return mFourcc;
+    }
+
+    /**
+     * Returns read-only codec configuration data stored by IvfWriter in the
+     * sidecar file or null if there is none.
+     */
+    public ByteBuffer getCodecConfig(){
+        return mCodecConfig == null ? null : mCodecConfig.asReadOnlyBuffer();
+    }
+
     /**
      * Returns frame width according to header information.
      */
@@ -101,6 +199,38 @@ public class IvfReader {
         return mFrameCount;
     }
 
+    /**
+     * Tells if the file is memory mapped.
+     */
+    public boolean isMapped(){
+        return mMappings != null;
+    }
+
+    /**
+     * Returns size of the frame data excluding frame header.
+     *
+     * @param frameIndex index of the frame, greater-equal
+     * than 0 and less than frameCount.
+     */
+    public int getFrameSize(int frameIndex) {
+        if (frameIndex >= mFrameCount || frameIndex < 0){
+            return 0;
+        }
+        return mFrameSizes[frameIndex];
+    }
+
+    /**
+     * Returns size of the largest frame in the file - can be used to
+     * allocate a buffer suitable for any readFrame() call.
+     */
+    public int getMaxFrameSize() {
+        int maxFrameSize = 0;
+        for (int i = 0; i < mFrameCount; i++) {
+            maxFrameSize = Math.max(maxFrameSize, mFrameSizes[i]);
+        }
+        return maxFrameSize;
+    }
+
     /**
      * Returns frame data by index.
      *
@@ -108,21 +238,259 @@ public class IvfReader {
      * than 0 and less than frameCount.
      */
     public byte[] readFrame(int frameIndex) throws IOException {
-        if (frameIndex > mFrameCount || frameIndex < 0){
+        if (frameIndex >= mFrameCount || frameIndex < 0){
             return null;
         }
+        byte[] frame = new byte[mFrameSizes[frameIndex]];
+        readFrame(frameIndex, frame, 0);
+        return frame;
+    }
+
+    /**
+     * Copies frame data into a caller supplied array.
+     *
+     * @param frameIndex index of the frame to read, greater-equal
+     * than 0 and less than frameCount.
+     * @param dst        destination array
+     * @param offset     offset in the destination array
+     * @return           number of bytes copied or -1 if frame index is out of range.
+     */
+    public int readFrame(int frameIndex, byte[] dst, int offset) throws IOException {
+        if (frameIndex >= mFrameCount || frameIndex < 0){
+            return -1;
+        }
         int frameSize = mFrameSizes[frameIndex];
-        int frameHead = mFrameHeads[frameIndex];
+        if (dst.length - offset < frameSize) {
+            throw new IllegalArgumentException("Buffer is too small for frame " + frameIndex +
+                    ": " + (dst.length - offset) + " < " + frameSize);
+        }
+        if (isMapped()) {
+            ByteBuffer frame = getMappedFrame(frameIndex);
+            frame.get(dst, offset, frameSize);
+            return frameSize;
+        }
+        return readFrame(frameIndex, ByteBuffer.wrap(dst, offset, frameSize));
+    }
 
-        byte[] frame = new byte[frameSize];
-        mIvfFile.seek(frameHead + FRAME_HEADER_SIZE);
-        mIvfFile.read(frame);
+    /**
+     * Copies frame data into a caller supplied buffer starting at its current position.
+     * Buffer position is advanced by the frame size.
+     *
+     * @param frameIndex index of the frame to read, greater-equal
+     * than 0 and less than frameCount.
+     * @param dst        destination buffer
+     * @return           number of bytes copied or -1 if frame index is out of range.
+     */
+    public int readFrame(int frameIndex, ByteBuffer dst) throws IOException {
+        if (frameIndex >= mFrameCount || frameIndex < 0){
+            return -1;
+        }
+        int frameSize = mFrameSizes[frameIndex];
+        if (dst.remaining() < frameSize) {
+            throw new IllegalArgumentException("Buffer is too small for frame " + frameIndex +
+                    ": " + dst.remaining() + " < " + frameSize);
+        }
+        if (isMapped()) {
+            dst.put(getMappedFrame(frameIndex));
+            return frameSize;
+        }
+        readFrameData(frameIndex, frameSize, dst);
+        return frameSize;
+    }
 
-        return frame;
+    /**
+     * Copies the beginning of the frame data, e.g. the codec frame header, into a
+     * caller supplied buffer starting at its current position. At most
+     * dst.remaining() bytes are copied.
+     *
+     * @param frameIndex index of the frame to read, greater-equal
+     * than 0 and less than frameCount.
+     * @param dst        destination buffer
+     * @return           number of bytes copied or -1 if frame index is out of range.
+     */
+    public int readFramePrefix(int frameIndex, ByteBuffer dst) throws IOException {
+        if (frameIndex >= mFrameCount || frameIndex < 0){
+            return -1;
+        }
+        int length = Math.min(mFrameSizes[frameIndex], dst.remaining());
+        if (isMapped()) {
+            ByteBuffer frame = getMappedFrame(frameIndex);
+            frame.limit(frame.position() + length);
+            dst.put(frame);
+            return length;
+        }
+        readFrameData(frameIndex, length, dst);
+        return length;
+    }
+
+    /**
+     * Returns a read-only view of the frame data. The file must be opened
+     * in memory mapped mode. The view stays valid until the reader is closed.
+     *
+     * @param frameIndex index of the frame to read, greater-equal
+     * than 0 and less than frameCount.
+     */
+    public ByteBuffer getFrameBuffer(int frameIndex) {
+        if (frameIndex >= mFrameCount || frameIndex < 0){
+            return null;
+        }
+        if (!isMapped()) {
+            throw new IllegalStateException("IVF file is not memory mapped");
+        }
+        return getMappedFrame(frameIndex).slice();
+    }
+
+    /**
+     * Returns timebase scale (numerator of the timebase fraction) from the header.
+     */
+    public int getTimebaseScale() {
+        return mTimebaseScale;
+    }
+
+    /**
+     * Returns timebase rate (denominator of the timebase fraction) from the header.
+     */
+    public int getTimebaseRate() {
+        return mTimebaseRate;
+    }
+
+    /**
+     * Returns file offset of the frame header.
+     */
+    public long getFrameHeaderOffset(int frameIndex) {
+        if (frameIndex >= mFrameCount || frameIndex < 0){
+            return -1;
+        }
+        return mFrameHeads[frameIndex];
+    }
+
+    /**
+     * Returns frame timestamp in timebase units as stored in the frame header.
+     */
+    public long getFramePts(int frameIndex) {
+        if (frameIndex >= mFrameCount || frameIndex < 0){
+            return 0;
+        }
+        return mFramePts[frameIndex];
+    }
+
+    /**
+     * Returns file offset of the frame data (frame header excluded).
+     */
+    public long getFrameOffset(int frameIndex) {
+        if (frameIndex >= mFrameCount || frameIndex < 0){
+            return -1;
+        }
+        return mFrameHeads[frameIndex] + FRAME_HEADER_SIZE;
+    }
+
+    /**
+     * Tells if the frame is a key frame according to the frame data.
+     */
+    public boolean isKeyFrame(int frameIndex) {
+        if (frameIndex >= mFrameCount || frameIndex < 0){
+            return false;
+        }
+        return (mFrameFlags[frameIndex] & FRAME_FLAG_KEY) != 0;
+    }
+
+    /**
+     * Returns name of the sidecar frame index file for the IVF file.
+     */
+    public static String getIndexFilename(String filename) {
+        return filename + INDEX_FILE_SUFFIX;
+    }
+
+    /**
+     * Returns name of the sidecar codec configuration data file for the IVF file.
+     */
+    public static String getCodecConfigFilename(String filename) {
+        return filename + CODEC_CONFIG_FILE_SUFFIX;
+    }
+
+    /**
+     * Reads codec configuration data sidecar of the IVF file.
+     *
+     * @return codec configuration data or null if there is none.
+     */
+    static ByteBuffer readCodecConfig(String filename) throws IOException {
+        File configFile = new File(getCodecConfigFilename(filename));
+        if (!configFile.isFile()) {
+            return null;
+        }
+        RandomAccessFile config = new RandomAccessFile(configFile, "r");
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate((int)config.length());
+            FileChannel channel = config.getChannel();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            config.close();
+        }
+    }
+
+    /**
+     * Tells if the fourcc belongs to a codec, which can be stored in an IVF file.
+     */
+    static boolean isSupportedFourcc(String fourcc) {
+        return IvfWriter.FOURCC_VP8.equals(fourcc) || IvfWriter.FOURCC_VP9.equals(fourcc) ||
+                IvfWriter.FOURCC_H264.equals(fourcc);
+    }
+
+    /**
+     * Tells if the frame is a key frame according to the start of its data.
+     *
+     * @param fourcc     codec fourcc
+     * @param data       buffer with frame data
+     * @param offset     offset of the frame data in the buffer
+     * @param length     number of frame data bytes available in the buffer
+     */
+    static boolean isKeyFrameData(String fourcc, ByteBuffer data, int offset, int length) {
+        if (length <= 0) {
+            return false;
+        }
+        int firstByte = data.get(offset) & 0xFF;
+        if (IvfWriter.FOURCC_VP9.equals(fourcc)) {
+            // Uncompressed header: frame marker, profile, [reserved bit for profile 3],
+            // show_existing_frame, frame_type - zero for key frames.
+            int profile = ((firstByte >> 5) & 1) | (((firstByte >> 4) & 1) << 1);
+            int shift = (profile == 3) ? 1 : 0;
+            boolean showExistingFrame = ((firstByte >> (3 - shift)) & 1) != 0;
+            return !showExistingFrame && ((firstByte >> (2 - shift)) & 1) == 0;
+        }
+        if (IvfWriter.FOURCC_H264.equals(fourcc)) {
+            // Annex-B access unit - key frame contains IDR slice or starts with SPS.
+            int zeros = 0;
+            for (int i = offset; i < offset + length - 1; i++) {
+                int value = data.get(i) & 0xFF;
+                if (value == 0) {
+                    zeros++;
+                    continue;
+                }
+                if (value == 1 && zeros >= 2) {
+                    int nalType = data.get(i + 1) & 0x1F;
+                    if (nalType == 5 || nalType == 7) {
+                        return true;
+                    }
+                    if (nalType == 1) {
+                        return false;
+                    }
+                }
+                zeros = 0;
+            }
+            return false;
+        }
+        // VP8 frame tag - bit 0 of the first byte is zero for key frames.
+        return (firstByte & 0x01) == 0;
     }
 
     public double getFrameTimestamp(int frameIndex) {
-        if (frameIndex > mFrameCount || frameIndex < 0){
+        if (frameIndex >= mFrameCount || frameIndex < 0){
             return 0;
         }
         return mFrameTimestamps[frameIndex];
@@ -132,9 +500,83 @@ public class IvfReader {
      * Closes IVF file.
      */
     public void close() throws IOException{
+        mMappings = null;
         mIvfFile.close();
     }
 
+    /**
+     * Reads |length| bytes from the beginning of the frame data with positional reads.
+     * Positional reads do not move the file pointer, so a short read is simply retried
+     * from the updated position.
+     */
+    private void readFrameData(int frameIndex, int length, ByteBuffer dst) throws IOException {
+        int limit = dst.limit();
+        dst.limit(dst.position() + length);
+        long position = mFrameHeads[frameIndex] + FRAME_HEADER_SIZE;
+        try {
+            while (dst.hasRemaining()) {
+                int bytesRead = mIvfChannel.read(dst, position);
+                if (bytesRead < 0) {
+                    throw new IOException("Unexpected end of file in frame " + frameIndex);
+                }
+                position += bytesRead;
+            }
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    /**
+     * Returns a duplicate of the mapping with position and limit set to frame boundaries.
+     */
+    private ByteBuffer getMappedFrame(int frameIndex) {
+        int mappingIndex = mFrameMappings[frameIndex];
+        int start = (int)(mFrameHeads[frameIndex] + FRAME_HEADER_SIZE -
+                mMappingOffsets[mappingIndex]);
+        ByteBuffer frame = mMappings[mappingIndex].duplicate();
+        frame.limit(start + mFrameSizes[frameIndex]);
+        frame.position(start);
+        return frame;
+    }
+
+    /**
+     * Maps frame data into memory. Regions are grown frame by frame and a new
+     * region is started whenever the next frame would not fit into the current one.
+     */
+    private void mapFrames() throws IOException{
+        ArrayList<MappedByteBuffer> mappings = new ArrayList<MappedByteBuffer>();
+        ArrayList<Long> mappingOffsets = new ArrayList<Long>();
+        mFrameMappings = new int[mFrameCount];
+
+        int frameIndex = 0;
+        while (frameIndex < mFrameCount) {
+            long regionStart = mFrameHeads[frameIndex];
+            long regionEnd = regionStart;
+            while (frameIndex < mFrameCount) {
+                long frameEnd = mFrameHeads[frameIndex] + FRAME_HEADER_SIZE +
+                        mFrameSizes[frameIndex];
+                if (frameEnd - regionStart > MAX_MAPPING_SIZE) {
+                    if (regionEnd == regionStart) {
+                        throw new IOException("Frame " + frameIndex + " is too large to map");
+                    }
+                    break;
+                }
+                mFrameMappings[frameIndex] = mappings.size();
+                regionEnd = frameEnd;
+                frameIndex++;
+            }
+            mappings.add(mIvfChannel.map(FileChannel.MapMode.READ_ONLY,
+                    regionStart, regionEnd - regionStart));
+            mappingOffsets.add(regionStart);
+        }
+
+        mMappings = mappings.toArray(new MappedByteBuffer[mappings.size()]);
+        mMappingOffsets = new long[mappingOffsets.size()];
+        for (int i = 0; i < mMappingOffsets.length; i++) {
+            mMappingOffsets[i] = mappingOffsets.get(i);
+        }
+    }
+
     private boolean verifyHeader() throws IOException{
         mIvfFile.seek(0);
 
@@ -150,12 +592,11 @@ public class IvfReader {
 
         // Fourcc
         mIvfFile.seek(FOURCC_OFFSET);
-        boolean fourccMatch = ((mIvfFile.readByte() == (byte)'V') &&
-                (mIvfFile.readByte() == (byte)'P') &&
-                (mIvfFile.readByte() == (byte)'8') &&
-                (mIvfFile.readByte() == (byte)'0'));
+        byte[] fourcc = new byte[4];
+        mIvfFile.readFully(fourcc);
+        mFourcc = new String(fourcc, "US-ASCII");
 
-        return signatureMatch && fourccMatch;
+        return signatureMatch && isSupportedFourcc(mFourcc);
     }
 
     private void readHeaderData() throws IOException{
@@ -173,33 +614,193 @@ public class IvfReader {
 
         // timestamp scale
         mIvfFile.seek(FRAMERATE_DEN_OFFSET);
-        int rateDen = changeEndianness(mIvfFile.readInt());
+        mTimebaseRate = changeEndianness(mIvfFile.readInt());
         mIvfFile.seek(FRAMERATE_NUM_OFFSET);
-        int rateNum = changeEndianness(mIvfFile.readInt());
-        mTimestampScale = (double)rateNum / rateDen;
+        mTimebaseScale = changeEndianness(mIvfFile.readInt());
+        mTimestampScale = (double)mTimebaseScale / mTimebaseRate;
+    }
 
-        // allocate frame metadata
-        mFrameHeads = new int[mFrameCount];
-        mFrameSizes = new int[mFrameCount];
-        mFrameTimestamps = new double[mFrameCount];
+    private void allocateFrameMetadata(int frameCount) {
+        mFrameHeads = new long[frameCount];
+        mFrameSizes = new int[frameCount];
+        mFramePts = new long[frameCount];
+        mFrameFlags = new byte[frameCount];
     }
 
+    /**
+     * Builds frame index in a single sequential pass. Frame headers are parsed from
+     * a large read buffer, which is only refilled when the next header (and the first
+     * bytes of frame data used for key frame detection) are not buffered yet.
+     * Truncated files are indexed up to the last complete frame.
+     */
     private void readFrameMetadata() throws IOException{
-        int frameHead = HEADER_SIZE;
-        for(int i = 0; i < mFrameCount; i++){
-            mIvfFile.seek(frameHead);
-            int frameSize = changeEndianness(mIvfFile.readInt());
-            mFrameHeads[i] = frameHead;
-            mFrameSizes[i] = frameSize;
-            mIvfFile.seek(frameHead + 4);
-            int ptsLo = changeEndianness(mIvfFile.readInt());
-            mIvfFile.seek(frameHead + 8);
-            int ptsHi = changeEndianness(mIvfFile.readInt());
-            long ptsTotal = ((long)ptsHi << 32) | ((long)ptsLo & (long)0xFFFFFFFF);
-            mFrameTimestamps[i] = (double)ptsTotal * mTimestampScale;
+        allocateFrameMetadata(mFrameCount);
+        long fileLength = mIvfChannel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_SCAN_BUFFER_SIZE);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.limit(0);
+        long bufferHead = HEADER_SIZE;
+
+        long frameHead = HEADER_SIZE;
+        int frameCount = 0;
+        while (frameCount < mFrameCount) {
+            if (frameHead + FRAME_HEADER_SIZE > fileLength) {
+                break;
+            }
+            if (frameHead < bufferHead ||
+                    frameHead + FRAME_HEADER_SIZE + KEY_FRAME_PROBE_SIZE >
+                    bufferHead + buffer.limit()) {
+                bufferHead = frameHead;
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    if (mIvfChannel.read(buffer, bufferHead + buffer.position()) < 0) {
+                        break;
+                    }
+                }
+                buffer.flip();
+            }
+            int headerOffset = (int)(frameHead - bufferHead);
+            int frameSize = buffer.getInt(headerOffset);
+            if (frameSize < 0 || frameHead + FRAME_HEADER_SIZE + frameSize > fileLength) {
+                break;
+            }
+            mFrameHeads[frameCount] = frameHead;
+            mFrameSizes[frameCount] = frameSize;
+            mFramePts[frameCount] = buffer.getLong(headerOffset + 4);
+            int probeOffset = headerOffset + FRAME_HEADER_SIZE;
+            int probeLength = Math.min(frameSize, buffer.limit() - probeOffset);
+            if (isKeyFrameData(mFourcc, buffer, probeOffset, probeLength)) {
+                mFrameFlags[frameCount] = FRAME_FLAG_KEY;
+            }
+            frameCount++;
             // next frame
             frameHead += FRAME_HEADER_SIZE + frameSize;
         }
+        mFrameCount = frameCount;
+    }
+
+    private void computeFrameTimestamps() {
+        mFrameTimestamps = new double[mFrameCount];
+        for (int i = 0; i < mFrameCount; i++) {
+            mFrameTimestamps[i] = (double)mFramePts[i] * mTimestampScale;
+        }
+    }
+
+    /**
+     * Loads frame index from the sidecar file.
+     *
+     * @return true if the sidecar exists and matches current IVF file size and
+     * modification time.
+     */
+    private boolean readIndexFile() {
+        File ivfFile = new File(mFilename);
+        File indexFile = new File(getIndexFilename(mFilename));
+        if (!indexFile.isFile() || indexFile.length() < INDEX_HEADER_SIZE) {
+            return false;
+        }
+        RandomAccessFile index = null;
+        try {
+            index = new RandomAccessFile(indexFile, "r");
+            ByteBuffer buffer = ByteBuffer.allocate((int)index.length());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            FileChannel channel = index.getChannel();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    return false;
+                }
+            }
+            buffer.flip();
+
+            boolean signatureMatch = (buffer.get() == (byte)'I') &&
+                    (buffer.get() == (byte)'V') &&
+                    (buffer.get() == (byte)'F') &&
+                    (buffer.get() == (byte)'X');
+            if (!signatureMatch || buffer.getInt() != INDEX_VERSION ||
+                    buffer.getLong() != ivfFile.length() ||
+                    buffer.getLong() != ivfFile.lastModified()) {
+                return false;
+            }
+            int frameCount = buffer.getInt();
+            if (frameCount < 0 ||
+                    buffer.remaining() != (long)frameCount * INDEX_ENTRY_SIZE) {
+                return false;
+            }
+
+            allocateFrameMetadata(frameCount);
+            buffer.asLongBuffer().get(mFrameHeads);
+            buffer.position(buffer.position() + frameCount * 8);
+            buffer.asIntBuffer().get(mFrameSizes);
+            buffer.position(buffer.position() + frameCount * 4);
+            buffer.asLongBuffer().get(mFramePts);
+            buffer.position(buffer.position() + frameCount * 8);
+            buffer.get(mFrameFlags);
+            mFrameCount = frameCount;
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (index != null) {
+                try {
+                    index.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores frame index in the sidecar file. Failures are ignored - the index
+     * is an optimization only and the IVF file may be located in a read-only directory.
+     *
+     * The index is written to a temporary file which is then renamed over the
+     * sidecar, so readers of the same IVF file opened concurrently either see
+     * the previous or the complete new index, never a partially written one.
+     */
+    private void writeIndexFile() {
+        File ivfFile = new File(mFilename);
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_HEADER_SIZE + mFrameCount * INDEX_ENTRY_SIZE);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte)'I').put((byte)'V').put((byte)'F').put((byte)'X');
+        buffer.putInt(INDEX_VERSION);
+        buffer.putLong(ivfFile.length());
+        buffer.putLong(ivfFile.lastModified());
+        buffer.putInt(mFrameCount);
+        buffer.asLongBuffer().put(mFrameHeads, 0, mFrameCount);
+        buffer.position(buffer.position() + mFrameCount * 8);
+        buffer.asIntBuffer().put(mFrameSizes, 0, mFrameCount);
+        buffer.position(buffer.position() + mFrameCount * 4);
+        buffer.asLongBuffer().put(mFramePts, 0, mFrameCount);
+        buffer.position(buffer.position() + mFrameCount * 8);
+        buffer.put(mFrameFlags, 0, mFrameCount);
+        buffer.flip();
+
+        File indexFile = new File(getIndexFilename(mFilename));
+        File tempFile = null;
+        RandomAccessFile index = null;
+        boolean written = false;
+        try {
+            tempFile = File.createTempFile(indexFile.getName(), ".tmp",
+                    indexFile.getAbsoluteFile().getParentFile());
+            index = new RandomAccessFile(tempFile, "rw");
+            FileChannel channel = index.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            index.close();
+            index = null;
+            written = tempFile.renameTo(indexFile);
+        } catch (IOException e) {
+        } finally {
+            if (index != null) {
+                try {
+                    index.close();
+                } catch (IOException e) {
+                }
+            }
+            if (!written && tempFile != null) {
+                tempFile.delete();
+            }
+        }
     }
 
     private static short changeEndianness(short value){
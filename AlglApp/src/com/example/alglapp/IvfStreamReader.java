@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * A sequential reader for an IVF file, which may still be written.
+ *
+ * Unlike IvfReader this reader does not trust the frame count from the file
+ * header. Frame headers are walked as they land on disk, and if the next frame
+ * is not complete yet the reader polls the file until it is. IvfWriter marks
+ * the header of a file being written as in progress and stores the final frame
+ * count when the file is closed, so a header without the mark ends the stream
+ * once all of its frames were read - also for a stream closed with no frames.
+ * A file which does not exist yet is waited for as well.
+ *
+ * Frames are read to reusable buffers - readFrameBuffer() and skipFrame() do
+ * not allocate once the buffers have grown to the largest frame.
+ *
+ * The reader can also consume a non-seekable source such as a pipe, in which
+ * case end of stream is signalled by the end of the input stream.
+ */
+public class IvfStreamReader {
+    private static final int HEADER_SIZE = 32;
+    private static final int FOURCC_OFFSET = 8;
+    private static final int WIDTH_OFFSET = 12;
+    private static final int HEIGHT_OFFSET = 14;
+    private static final int FRAMERATE_DEN_OFFSET = 16;
+    private static final int FRAMERATE_NUM_OFFSET = 20;
+    private static final int FRAMECOUNT_OFFSET = 24;
+    private static final int FRAME_HEADER_SIZE = 12;
+    // Default file poll interval and maximum time to wait for new data.
+    private static final long DEFAULT_POLL_INTERVAL_MS = 5;
+    private static final long DEFAULT_TIMEOUT_MS = 10000;
+
+    private String mFilename;           // Followed file name, null for stream input.
+    private RandomAccessFile mIvfFile;  // Followed file, null for stream input.
+    private InputStream mIvfStream;     // Non-seekable input, null for file input.
+    private long mPollIntervalMs;
+    private long mTimeoutMs;
+    private long mPosition;             // File position of the next frame header.
+    private boolean mEndOfStream;
+
+    private boolean mHeaderValid;
+    private String mFourcc;
+    private int mWidth;
+    private int mHeight;
+    private double mTimestampScale;
+    private int mFramesRead;
+    private final byte[] mHeader = new byte[HEADER_SIZE];
+    private final byte[] mFrameHeader = new byte[FRAME_HEADER_SIZE];
+    private final byte[] mFrameCountBytes = new byte[8];
+
+    // Last frame returned by readFrame() or readFrameBuffer().
+    private long mFramePts;
+    private byte[] mFrameData = new byte[0];
+    private ByteBuffer mFrameBuffer = ByteBuffer.wrap(mFrameData);
+    // Frame read ahead by hasNextFrame().
+    private boolean mHasPendingFrame;
+    private byte[] mPendingData = new byte[0];
+    private ByteBuffer mPendingBuffer = ByteBuffer.wrap(mPendingData);
+    private int mPendingSize;
+    private long mPendingFramePts;
+
+    /**
+     * Initializes the reader following an IVF file, which may still be written
+     * or not created yet.
+     *
+     * @param filename       name of the IVF file
+     * @param pollIntervalMs interval between checks for new data
+     * @param timeoutMs      maximum time to wait for new data before failing
+     */
+    public IvfStreamReader(String filename, long pollIntervalMs, long timeoutMs)
+            throws IOException {
+        mFilename = filename;
+        mPollIntervalMs = pollIntervalMs;
+        mTimeoutMs = timeoutMs;
+        File file = new File(filename);
+        long waitStartMs = System.currentTimeMillis();
+        while (!file.exists()) {
+            if (System.currentTimeMillis() - waitStartMs > mTimeoutMs) {
+                throw new IOException("Timed out waiting for IVF file " + filename);
+            }
+            sleep();
+        }
+        mIvfFile = new RandomAccessFile(filename, "r");
+        readHeader();
+    }
+
+    /**
+     * Initializes the reader following an IVF file with default poll interval and timeout.
+     *
+     * @param filename   name of the IVF file
+     */
+    public IvfStreamReader(String filename) throws IOException {
+        this(filename, DEFAULT_POLL_INTERVAL_MS, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * Initializes the reader from a non-seekable input stream, e.g. a pipe.
+     * Reads block until data is available.
+     *
+     * @param stream     IVF input stream
+     */
+    public IvfStreamReader(InputStream stream) throws IOException {
+        mIvfStream = stream;
+        readHeader();
+    }
+
+    /**
+     * Tells if file header seems to be valid.
+     */
+    public boolean isHeaderValid() {
+        return mHeaderValid;
+    }
+
+    /**
+     * Returns fourcc of the codec from the file header.
+     */
+    public String getFourcc() {
+        return mFourcc;
+    }
+
+    /**
+     * Returns codec configuration data written by IvfWriter to the sidecar file
+     * or null if there is none yet. The sidecar is written before the first
+     * frame, so it is available once hasNextFrame() returned true.
+     */
+    public ByteBuffer getCodecConfig() throws IOException {
+        if (mFilename == null) {
+            return null;
+        }
+        return IvfReader.readCodecConfig(mFilename);
+    }
+
+    /**
+     * Returns frame width according to header information.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns frame height according to header information.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns number of frames returned by readFrame() so far.
+     */
+    public int getFramesRead() {
+        return mFramesRead;
+    }
+
+    /**
+     * Checks if one more frame can be read. Blocks until the next frame is
+     * complete or the end of stream is detected.
+     */
+    public boolean hasNextFrame() throws IOException {
+        if (!mHasPendingFrame && !mEndOfStream) {
+            mHasPendingFrame = readNextFrame();
+        }
+        return mHasPendingFrame;
+    }
+
+    /**
+     * Returns a copy of the next frame, blocking until it is complete.
+     *
+     * @return frame data or null at the end of stream.
+     */
+    public byte[] readFrame() throws IOException {
+        ByteBuffer frame = readFrameBuffer();
+        if (frame == null) {
+            return null;
+        }
+        byte[] data = new byte[frame.remaining()];
+        frame.get(data);
+        frame.rewind();
+        return data;
+    }
+
+    /**
+     * Returns the next frame, blocking until it is complete. The returned buffer
+     * is reused - it is valid until the next readFrameBuffer() or readFrame()
+     * call. Reading ahead with hasNextFrame() and skipFrame() does not modify it.
+     *
+     * @return frame data between position and limit or null at the end of stream.
+     */
+    public ByteBuffer readFrameBuffer() throws IOException {
+        if (!hasNextFrame()) {
+            return null;
+        }
+        // Swap the pending and current frame buffers.
+        byte[] data = mFrameData;
+        ByteBuffer buffer = mFrameBuffer;
+        mFrameData = mPendingData;
+        mFrameBuffer = mPendingBuffer;
+        mPendingData = data;
+        mPendingBuffer = buffer;
+        mFrameBuffer.clear();
+        mFrameBuffer.limit(mPendingSize);
+        mFramePts = mPendingFramePts;
+        mHasPendingFrame = false;
+        mFramesRead++;
+        return mFrameBuffer;
+    }
+
+    /**
+     * Skips the next frame, blocking until it is complete. The last frame
+     * returned by readFrameBuffer() and its timestamp are kept.
+     *
+     * @return false at the end of stream.
+     */
+    public boolean skipFrame() throws IOException {
+        if (!hasNextFrame()) {
+            return false;
+        }
+        mHasPendingFrame = false;
+        mFramesRead++;
+        return true;
+    }
+
+    /**
+     * Returns timestamp in seconds of the last frame returned by readFrame().
+     */
+    public double getFrameTimestamp() {
+        return (double)mFramePts * mTimestampScale;
+    }
+
+    /**
+     * Closes IVF file or stream.
+     */
+    public void close() throws IOException {
+        if (mIvfFile != null) {
+            mIvfFile.close();
+        }
+        if (mIvfStream != null) {
+            mIvfStream.close();
+        }
+    }
+
+    /**
+     * Reads the next frame to the pending frame buffer.
+     *
+     * @return false at the end of stream.
+     */
+    private boolean readNextFrame() throws IOException {
+        if (!readFully(mFrameHeader, FRAME_HEADER_SIZE, 0)) {
+            mEndOfStream = true;
+            return false;
+        }
+        int frameSize = readInt(mFrameHeader, 0);
+        if (frameSize < 0) {
+            throw new IOException("Invalid size " + frameSize + " of frame " + mFramesRead);
+        }
+        if (mPendingData.length < frameSize) {
+            mPendingData = new byte[frameSize];
+            mPendingBuffer = ByteBuffer.wrap(mPendingData);
+        }
+        // Do not consume the frame header from a file until the whole frame has landed.
+        if (!readFully(mPendingData, frameSize, FRAME_HEADER_SIZE)) {
+            // Truncated last frame.
+            mEndOfStream = true;
+            return false;
+        }
+        mPendingSize = frameSize;
+        mPendingFramePts = ((long)readInt(mFrameHeader, 8) << 32) |
+                ((long)readInt(mFrameHeader, 4) & 0xFFFFFFFFL);
+        if (mIvfFile != null) {
+            mPosition += FRAME_HEADER_SIZE + frameSize;
+        }
+        return true;
+    }
+
+    private void readHeader() throws IOException {
+        if (!readFully(mHeader, HEADER_SIZE, 0)) {
+            throw new IOException("IVF header is not available");
+        }
+        if (mIvfFile != null) {
+            mPosition = HEADER_SIZE;
+        }
+        boolean signatureMatch = mHeader[0] == 'D' && mHeader[1] == 'K' &&
+                mHeader[2] == 'I' && mHeader[3] == 'F';
+        mFourcc = new String(mHeader, FOURCC_OFFSET, 4, "US-ASCII");
+        mHeaderValid = signatureMatch && IvfReader.isSupportedFourcc(mFourcc);
+        mWidth = readShort(mHeader, WIDTH_OFFSET);
+        mHeight = readShort(mHeader, HEIGHT_OFFSET);
+        int rateDen = readInt(mHeader, FRAMERATE_DEN_OFFSET);
+        int rateNum = readInt(mHeader, FRAMERATE_NUM_OFFSET);
+        mTimestampScale = (double)rateNum / rateDen;
+    }
+
+    /**
+     * Reads |length| bytes located |skip| bytes after the current position.
+     * For the followed file the data is read only when all of it is available,
+     * and the current position is not changed.
+     *
+     * @return false if the end of stream was reached before the data was available.
+     */
+    private boolean readFully(byte[] buffer, int length, int skip) throws IOException {
+        if (mIvfStream != null) {
+            int offset = 0;
+            while (offset < length) {
+                int bytesRead = mIvfStream.read(buffer, offset, length - offset);
+                if (bytesRead < 0) {
+                    return false;
+                }
+                offset += bytesRead;
+            }
+            return true;
+        }
+
+        long start = mPosition + skip;
+        long waitStartMs = System.currentTimeMillis();
+        while (mIvfFile.length() < start + length) {
+            if (isWriterFinished()) {
+                // Re-check the length - the writer may have appended data before closing.
+                if (mIvfFile.length() >= start + length) {
+                    break;
+                }
+                return false;
+            }
+            if (System.currentTimeMillis() - waitStartMs > mTimeoutMs) {
+                throw new IOException("Timed out waiting for IVF data at offset " + start);
+            }
+            sleep();
+        }
+        mIvfFile.seek(start);
+        mIvfFile.readFully(buffer, 0, length);
+        return true;
+    }
+
+    /**
+     * Checks if the writer has finalized the file header with the total frame
+     * count and all of these frames were read.
+     */
+    private boolean isWriterFinished() throws IOException {
+        if (mIvfFile.length() < HEADER_SIZE) {
+            return false;
+        }
+        mIvfFile.seek(FRAMECOUNT_OFFSET);
+        mIvfFile.readFully(mFrameCountBytes, 0, 8);
+        int frameCount = readInt(mFrameCountBytes, 0);
+        boolean inProgress = readInt(mFrameCountBytes,
+                IvfWriter.IN_PROGRESS_OFFSET - FRAMECOUNT_OFFSET) == IvfWriter.IN_PROGRESS_MARK;
+        return !inProgress && mFramesRead >= frameCount;
+    }
+
+    private void sleep() throws IOException {
+        try {
+            Thread.sleep(mPollIntervalMs);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for IVF data");
+        }
+    }
+
+    private static int readShort(byte[] array, int index) {
+        return (array[index] & 0xFF) | ((array[index + 1] & 0xFF) << 8);
+    }
+
+    private static int readInt(byte[] array, int index) {
+        return (array[index] & 0xFF) |
+                ((array[index + 1] & 0xFF) << 8) |
+                ((array[index + 2] & 0xFF) << 16) |
+                ((array[index + 3] & 0xFF) << 24);
+    }
+}
@@ -17,25 +17,90 @@
 package com.example.alglapp;
 //package android.media.cts;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Writes an IVF file.
  *
  * IVF format is a simple container format for VP8 encoded frames defined at
  * http://wiki.multimedia.cx/index.php?title=IVF.
+ * The header fourcc identifies the codec, so VP9 and H.264 frames can be
+ * stored as well. Codec configuration data (e.g. H.264 SPS and PPS) is not
+ * a frame - it is written to a sidecar file (filename + ".csd").
+ *
+ * Optionally frames can be written behind the caller's back by a dedicated
+ * writer thread. In this mode writeFrame() only copies the frame into one of
+ * a bounded number of preallocated queue slots, and the writer thread stores
+ * frame header and data with a single gathering write. If all slots are in
+ * use writeFrame() blocks - number and duration of these stalls are reported
+ * as back-pressure statistics.
  */
 
-public class IvfWriter {
-    private static final byte HEADER_END = 32;
+public class IvfWriter implements EncodedStreamWriter {
+    private static final int FRAME_HEADER_SIZE = 12;
+    // Codec fourcc values.
+    public static final String FOURCC_VP8 = "VP80";
+    public static final String FOURCC_VP9 = "VP90";
+    public static final String FOURCC_H264 = "H264";
+    // Sync interval values for the write-behind mode.
+    public static final int SYNC_NEVER = -1;     // Never force data to storage.
+    public static final int SYNC_ON_CLOSE = 0;   // Force data to storage when file is closed.
+    // Value of the unused header field of a file which is still being written.
+    static final int IN_PROGRESS_OFFSET = 28;
+    static final int IN_PROGRESS_MARK = 0xFFFFFFFF;
+    // Interval of writer thread checks while waiting for a free queue slot.
+    private static final long SLOT_POLL_INTERVAL_MS = 100;
+
+    private String mFilename;
     private RandomAccessFile mOutputFile;
+    private FileChannel mOutputChannel;
+    private String mFourcc;
     private int mWidth;
     private int mHeight;
     private int mScale;
     private int mRate;
     private int mFrameCount;
     private final boolean writeIvfHeader = true;
+    // Frame header and gathering write buffers reused by synchronous writes.
+    private final ByteBuffer mFrameHeader;
+    private final ByteBuffer[] mFrameBuffers = new ByteBuffer[2];
+
+    // Write-behind mode - queue slots and writer thread.
+    private int mSyncIntervalFrames;
+    private ArrayBlockingQueue<FrameSlot> mFreeSlots;
+    private ArrayBlockingQueue<FrameSlot> mPendingSlots;
+    private final FrameSlot mEndOfStreamSlot = new FrameSlot(0);
+    private Thread mWriterThread;
+    private volatile IOException mWriterError;
+    // Back-pressure statistics.
+    private int mStallCount;       // number of writeFrame() calls waiting for a free slot
+    private long mStallTimeNs;     // total time writeFrame() calls spent waiting
+    private int mMaxQueueDepth;    // maximum number of frames waiting to be written
+    private volatile long mWriteTimeNs;  // total time spent in file writes
+
+    /**
+     * Queue slot holding a frame waiting to be written.
+     */
+    private static class FrameSlot {
+        FrameSlot(int capacity) {
+            header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            data = ByteBuffer.allocate(capacity);
+            buffers = new ByteBuffer[] { header, data };
+        }
+
+        ByteBuffer header;
+        ByteBuffer data;
+        final ByteBuffer[] buffers;
+    }
 
     /**
      * Initializes the IVF file writer.
@@ -53,15 +118,54 @@ public class IvfWriter {
     public IvfWriter(String filename,
                      int width, int height,
                      int scale, int rate) throws IOException {
+        this(filename, FOURCC_VP8, width, height, scale, rate, 0, SYNC_NEVER);
+    }
+
+    /**
+     * Initializes the IVF file writer with an optional write-behind queue.
+     *
+     * @param filename   name of the IVF file
+     * @param fourcc     codec fourcc, e.g. FOURCC_VP8
+     * @param width      frame width
+     * @param height     frame height
+     * @param scale      timebase scale (or numerator of the timebase fraction)
+     * @param rate       timebase rate (or denominator of the timebase fraction)
+     * @param queueDepth number of frames which can wait to be written by the writer
+     *                   thread. Zero means frames are written synchronously.
+     * @param syncIntervalFrames write-behind mode only - number of frames after which
+     *                   written data is forced to storage, SYNC_ON_CLOSE or SYNC_NEVER.
+     */
+    public IvfWriter(String filename, String fourcc,
+                     int width, int height,
+                     int scale, int rate,
+                     int queueDepth, int syncIntervalFrames) throws IOException {
+        if (fourcc.length() != 4) {
+            throw new IllegalArgumentException("Invalid fourcc " + fourcc);
+        }
+        mFilename = filename;
         mOutputFile = new RandomAccessFile(filename, "rw");
+        mOutputChannel = mOutputFile.getChannel();
+        mFourcc = fourcc;
         mWidth = width;
         mHeight = height;
         mScale = scale;
         mRate = rate;
         mFrameCount = 0;
+        mFrameHeader = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        mFrameHeader.order(ByteOrder.LITTLE_ENDIAN);
         mOutputFile.setLength(0);
         if (writeIvfHeader) {
-            mOutputFile.seek(HEADER_END);  // Skip the header for now, as framecount is unknown
+            // Write a provisional header with zero frame count - it lets readers following
+            // the file get stream dimensions. Frame count is written when the file is closed,
+            // until then the unused field marks the file as in progress.
+            byte[] header = makeIvfHeader(0, mFourcc, mWidth, mHeight, mScale, mRate);
+            lay32Bits(header, IN_PROGRESS_OFFSET, IN_PROGRESS_MARK);
+            mOutputFile.write(header);
+        }
+        // Drop codec configuration data of a previous stream.
+        new File(IvfReader.getCodecConfigFilename(mFilename)).delete();
+        if (queueDepth > 0) {
+            startWriterThread(queueDepth, syncIntervalFrames);
         }
     }
 
@@ -78,44 +182,339 @@ public class IvfWriter {
         this(filename, width, height, 1, 1000000);
     }
 
+    /**
+     * Initializes the IVF file writer with a microsecond timebase and
+     * an optional write-behind queue.
+     *
+     * @param filename   name of the IVF file
+     * @param fourcc     codec fourcc, e.g. FOURCC_VP8
+     * @param width      frame width
+     * @param height     frame height
+     * @param queueDepth number of frames which can wait to be written by the writer
+     *                   thread. Zero means frames are written synchronously.
+     */
+    public IvfWriter(String filename, String fourcc, int width, int height, int queueDepth)
+            throws IOException {
+        this(filename, fourcc, width, height, 1, 1000000, queueDepth, SYNC_ON_CLOSE);
+    }
+
+    /**
+     * Initializes the IVF file writer with a microsecond timebase and
+     * an optional write-behind queue.
+     *
+     * @param filename   name of the IVF file
+     * @param width      frame width
+     * @param height     frame height
+     * @param queueDepth number of frames which can wait to be written by the writer
+     *                   thread. Zero means frames are written synchronously.
+     */
+    public IvfWriter(String filename, int width, int height, int queueDepth)
+            throws IOException {
+        this(filename, FOURCC_VP8, width, height, queueDepth);
+    }
+
+    /**
+     * Returns IVF fourcc for the codec mime type.
+     *
+     * @param mime       codec mime type, e.g. "video/avc"
+     * @return           fourcc or null if the codec is not known.
+     */
+    public static String getFourcc(String mime) {
+        if ("video/x-vnd.on2.vp8".equals(mime)) {
+            return FOURCC_VP8;
+        } else if ("video/x-vnd.on2.vp9".equals(mime)) {
+            return FOURCC_VP9;
+        } else if ("video/avc".equals(mime)) {
+            return FOURCC_H264;
+        }
+        return null;
+    }
+
     /**
      * Finalizes the IVF header and closes the file.
      */
     public void close() throws IOException{
+        IOException writerError = null;
+        if (mWriterThread != null) {
+            try {
+                stopWriterThread();
+            } catch (IOException e) {
+                writerError = e;
+            }
+        }
         if (writeIvfHeader) {
             // Write header now
             mOutputFile.seek(0);
-            mOutputFile.write(makeIvfHeader(mFrameCount, mWidth, mHeight, mScale, mRate));
+            mOutputFile.write(makeIvfHeader(mFrameCount, mFourcc, mWidth, mHeight, mScale, mRate));
+            if (mWriterThread != null && mSyncIntervalFrames != SYNC_NEVER) {
+                mOutputChannel.force(true);
+            }
             mOutputFile.close();
         }
+        if (writerError != null) {
+            throw writerError;
+        }
+    }
+
+    /**
+     * Writes codec configuration data to the sidecar file. Configuration data
+     * received later, e.g. after a resolution change, replaces the previous one.
+     *
+     * @param config    codec configuration data between position and limit
+     */
+    public void writeCodecConfig(ByteBuffer config) throws IOException {
+        FileOutputStream configFile =
+                new FileOutputStream(IvfReader.getCodecConfigFilename(mFilename), false);
+        try {
+            FileChannel channel = configFile.getChannel();
+            ByteBuffer data = config.duplicate();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        } finally {
+            configFile.close();
+        }
     }
 
     /**
-     * Writes a single encoded VP8 frame with its frame header.
+     * Returns number of frames written so far.
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Writes a single encoded frame with its frame header.
      *
      * @param frame     actual contents of the encoded frame data
      * @param timeStamp timestamp of the frame (in accordance to specified timebase)
      */
     public void writeFrame(byte[] frame, long timeStamp) throws IOException {
+        writeFrame(ByteBuffer.wrap(frame), timeStamp);
+    }
+
+    /**
+     * Writes a single encoded frame with its frame header.
+     *
+     * Frame data is taken between position and limit of the buffer, buffer position
+     * is not modified. The buffer is not referenced after the call returns, so it can
+     * be a codec output buffer released right after this call.
+     *
+     * @param frame     actual contents of the encoded frame data
+     * @param timeStamp timestamp of the frame (in accordance to specified timebase)
+     */
+    public void writeFrame(ByteBuffer frame, long timeStamp) throws IOException {
+        int frameSize = frame.remaining();
+        if (mWriterThread != null) {
+            FrameSlot slot = acquireSlot(frameSize);
+            slot.data.put(frame.duplicate());
+            queueSlot(slot, frameSize, timeStamp);
+            return;
+        }
         if (writeIvfHeader) {
-            mOutputFile.write(makeIvfFrameHeader(frame.length, timeStamp));
+            mFrameHeader.clear();
+            mFrameHeader.putInt(frameSize);
+            mFrameHeader.putLong(timeStamp);
+            mFrameHeader.flip();
+            mFrameBuffers[0] = mFrameHeader;
+            mFrameBuffers[1] = frame.duplicate();
+            writeBuffers(mFrameBuffers);
+            mFrameBuffers[1] = null;
+        } else {
+            ByteBuffer data = frame.duplicate();
+            while (data.hasRemaining()) {
+                mOutputChannel.write(data);
+            }
+        }
+        mFrameCount++;
+    }
+
+    /**
+     * Tells if frames are written by the writer thread.
+     */
+    public boolean isWriteBehind() {
+        return mWriterThread != null;
+    }
+
+    /**
+     * Returns number of writeFrame() calls which had to wait for a free queue slot.
+     */
+    public int getStallCount() {
+        return mStallCount;
+    }
+
+    /**
+     * Returns total time in microseconds writeFrame() calls spent waiting
+     * for a free queue slot.
+     */
+    public long getStallTimeUs() {
+        return mStallTimeNs / 1000;
+    }
+
+    /**
+     * Returns maximum number of frames which were waiting to be written.
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * Returns total time in microseconds spent in file writes and syncs.
+     */
+    public long getWriteTimeUs() {
+        return mWriteTimeNs / 1000;
+    }
+
+    /**
+     * Returns a free queue slot with enough capacity for the frame, blocking if
+     * all slots are waiting to be written. Fails instead of blocking forever if
+     * the writer thread has stopped.
+     */
+    private FrameSlot acquireSlot(int frameSize) throws IOException {
+        checkWriterError();
+        FrameSlot slot = mFreeSlots.poll();
+        if (slot == null) {
+            long stallStartNs = System.nanoTime();
+            try {
+                while ((slot = mFreeSlots.poll(SLOT_POLL_INTERVAL_MS,
+                        TimeUnit.MILLISECONDS)) == null) {
+                    checkWriterError();
+                    if (!mWriterThread.isAlive()) {
+                        throw new IOException("IVF writer thread stopped");
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while waiting for IVF writer");
+            }
+            mStallCount++;
+            mStallTimeNs += System.nanoTime() - stallStartNs;
+            checkWriterError();
+        }
+        if (slot.data.capacity() < frameSize) {
+            // Grow slot buffer - happens only until the largest frame size is reached.
+            slot.data = ByteBuffer.allocate(Math.max(frameSize, 2 * slot.data.capacity()));
+            slot.buffers[1] = slot.data;
+        }
+        slot.data.clear();
+        return slot;
+    }
+
+    private void queueSlot(FrameSlot slot, int frameSize, long timeStamp) throws IOException {
+        slot.data.flip();
+        slot.header.clear();
+        slot.header.putInt(frameSize);
+        slot.header.putLong(timeStamp);
+        slot.header.flip();
+        try {
+            mPendingSlots.put(slot);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while queueing IVF frame");
         }
-        mOutputFile.write(frame);
+        mMaxQueueDepth = Math.max(mMaxQueueDepth, mPendingSlots.size());
         mFrameCount++;
     }
 
+    private void checkWriterError() throws IOException {
+        if (mWriterError != null) {
+            throw mWriterError;
+        }
+    }
+
+    private void writeBuffers(ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= mOutputChannel.write(buffers);
+        }
+    }
+
+    private void startWriterThread(int queueDepth, int syncIntervalFrames) {
+        mSyncIntervalFrames = syncIntervalFrames;
+        mFreeSlots = new ArrayBlockingQueue<FrameSlot>(queueDepth);
+        // One extra pending slot for the end of stream marker.
+        mPendingSlots = new ArrayBlockingQueue<FrameSlot>(queueDepth + 1);
+        int initialCapacity = Math.max(1024, mWidth * mHeight / 4);
+        for (int i = 0; i < queueDepth; i++) {
+            mFreeSlots.add(new FrameSlot(initialCapacity));
+        }
+        mWriterThread = new Thread("IvfWriter") {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        };
+        mWriterThread.start();
+    }
+
+    /**
+     * Writer thread loop. The thread runs until the end of stream slot is queued.
+     * After any failure, including an interrupt, it keeps recycling slots
+     * without writing them so the producer does not dead lock - the error is
+     * reported by the next writeFrame() or close() call.
+     */
+    private void runWriter() {
+        int framesWritten = 0;
+        while (true) {
+            FrameSlot slot;
+            try {
+                slot = mPendingSlots.take();
+            } catch (InterruptedException e) {
+                setWriterError(new IOException("IVF writer thread interrupted"));
+                continue;
+            }
+            if (slot == mEndOfStreamSlot) {
+                break;
+            }
+            if (mWriterError == null) {
+                long writeStartNs = System.nanoTime();
+                try {
+                    writeBuffers(slot.buffers);
+                    framesWritten++;
+                    if (mSyncIntervalFrames > 0 && (framesWritten % mSyncIntervalFrames) == 0) {
+                        mOutputChannel.force(false);
+                    }
+                } catch (IOException e) {
+                    setWriterError(e);
+                } catch (Throwable e) {
+                    setWriterError(new IOException("IVF writer thread failed", e));
+                }
+                mWriteTimeNs += System.nanoTime() - writeStartNs;
+            }
+            mFreeSlots.add(slot);
+        }
+    }
+
+    private void setWriterError(IOException error) {
+        if (mWriterError == null) {
+            mWriterError = error;
+        }
+    }
+
+    private void stopWriterThread() throws IOException {
+        try {
+            mPendingSlots.put(mEndOfStreamSlot);
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while stopping IVF writer");
+        }
+        checkWriterError();
+    }
+
     /**
      * Makes a 32 byte file header for IVF format.
      *
      * Timebase fraction is in format scale/rate, e.g. 1/1000
      *
      * @param frameCount total number of frames file contains
+     * @param fourcc     codec fourcc
      * @param width      frame width
      * @param height     frame height
      * @param scale      timebase scale (or numerator of the timebase fraction)
      * @param rate       timebase rate (or denominator of the timebase fraction)
      */
-    private static byte[] makeIvfHeader(int frameCount, int width, int height,
+    static byte[] makeIvfHeader(int frameCount, String fourcc, int width, int height,
             int scale, int rate) {
         byte[] ivfHeader = new byte[32];
         ivfHeader[0] = 'D';
@@ -124,10 +523,10 @@ public class IvfWriter {
         ivfHeader[3] = 'F';
         lay16Bits(ivfHeader, 4, 0);  // version
         lay16Bits(ivfHeader, 6, 32);  // header size
-        ivfHeader[8] = 'V';  // fourcc
-        ivfHeader[9] = 'P';
-        ivfHeader[10] = '8';
-        ivfHeader[11] = '0';
+        ivfHeader[8] = (byte)fourcc.charAt(0);  // fourcc
+        ivfHeader[9] = (byte)fourcc.charAt(1);
+        ivfHeader[10] = (byte)fourcc.charAt(2);
+        ivfHeader[11] = (byte)fourcc.charAt(3);
         lay16Bits(ivfHeader, 12, width);
         lay16Bits(ivfHeader, 14, height);
         lay32Bits(ivfHeader, 16, rate);  // scale/rate
@@ -143,7 +542,7 @@ public class IvfWriter {
      * @param size      frame size
      * @param timestamp presentation timestamp of the frame
      */
-    private static byte[] makeIvfFrameHeader(int size, long timestamp){
+    static byte[] makeIvfFrameHeader(int size, long timestamp){
         byte[] frameHeader = new byte[12];
         lay32Bits(frameHeader, 0, size);
         lay64bits(frameHeader, 4, timestamp);
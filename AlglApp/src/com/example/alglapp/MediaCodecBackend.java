@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.LinkedList;
+
+/**
+ * Codec backend running an android.media.MediaCodec component.
+ *
+ * In asynchronous mode (API 21+) the codec reports available buffers with
+ * MediaCodec.Callback calls on the looper of the thread which called
+ * configure(). Callbacks only queue buffer indices and notify the listener,
+ * so dequeue, queue and release calls can be made from any thread without
+ * a round trip through the looper.
+ *
+ * API 21 calls are guarded by Build.VERSION.SDK_INT checks, or made from
+ * CodecCallback, which is only created on API 21+.
+ */
+public class MediaCodecBackend implements AsyncCodecBackend {
+    private static final String TAG = "MediaCodecBackend";
+    private final String mName;
+    private MediaCodec mCodec;
+    // Buffers of the synchronous mode before API 21, when buffers can not be
+    // requested by index.
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+
+    // Asynchronous mode state. Available input buffer indices and output buffer
+    // indices with their info, guarded by mLock. Output format change is queued
+    // as INFO_OUTPUT_FORMAT_CHANGED index with null info to keep the order.
+    private boolean mAsync;
+    private Runnable mBufferListener;
+    private final Object mLock = new Object();
+    private final ArrayDeque<Integer> mInputIndices = new ArrayDeque<Integer>();
+    private final ArrayDeque<Integer> mOutputIndices = new ArrayDeque<Integer>();
+    // LinkedList - ArrayDeque does not take the null info.
+    private final LinkedList<MediaCodec.BufferInfo> mOutputInfos =
+            new LinkedList<MediaCodec.BufferInfo>();
+    private MediaFormat mOutputFormat;
+    // MediaCodec.CodecException reported by the callback.
+    private IllegalStateException mError;
+
+    public MediaCodecBackend(String name) {
+        mName = name;
+    }
+
+    /**
+     * Tells if asynchronous mode is supported by the platform.
+     */
+    public static boolean isAsyncModeSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    /**
+     * Switches the codec to asynchronous mode. Must be called before configure().
+     *
+     * @param listener called from the looper thread every time a buffer becomes
+     *                 available or an error occurs.
+     */
+    public void setAsyncMode(Runnable listener) {
+        if (!isAsyncModeSupported()) {
+            throw new UnsupportedOperationException("MediaCodec callbacks require API 21");
+        }
+        mAsync = true;
+        mBufferListener = listener;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public void configure(MediaFormat format, boolean encoder) throws Exception {
+        mCodec = MediaCodec.createByCodecName(mName);
+        if (mAsync && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mCodec.setCallback(new CodecCallback());
+        }
+        mCodec.configure(format, null, null, encoder ? MediaCodec.CONFIGURE_FLAG_ENCODE : 0);
+        mCodec.start();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            mInputBuffers = mCodec.getInputBuffers();
+            mOutputBuffers = mCodec.getOutputBuffers();
+        }
+    }
+
+    /**
+     * Queues buffer indices, format changes and errors reported by the codec
+     * and notifies the buffer listener.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private class CodecCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            synchronized (mLock) {
+                mInputIndices.add(index);
+                mLock.notifyAll();
+            }
+            mBufferListener.run();
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index,
+                MediaCodec.BufferInfo info) {
+            synchronized (mLock) {
+                mOutputIndices.add(index);
+                mOutputInfos.add(info);
+                mLock.notifyAll();
+            }
+            mBufferListener.run();
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            synchronized (mLock) {
+                mOutputIndices.add(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED);
+                mOutputInfos.add(null);
+                mOutputFormat = format;
+                mLock.notifyAll();
+            }
+            mBufferListener.run();
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, mName + " error: " + e + ", transient " + e.isTransient() +
+                    ", recoverable " + e.isRecoverable() +
+                    ", diagnostic info " + e.getDiagnosticInfo());
+            synchronized (mLock) {
+                mError = e;
+                mLock.notifyAll();
+            }
+            mBufferListener.run();
+        }
+    }
+
+    /**
+     * Tells if an input buffer reported by a callback is waiting to be dequeued.
+     */
+    @Override
+    public boolean hasInputBuffer() {
+        synchronized (mLock) {
+            return !mInputIndices.isEmpty() || mError != null;
+        }
+    }
+
+    /**
+     * Tells if an output buffer or format change reported by a callback is
+     * waiting to be dequeued.
+     */
+    @Override
+    public boolean hasOutputBuffer() {
+        synchronized (mLock) {
+            return !mOutputIndices.isEmpty() || mError != null;
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return mInputBuffers[index];
+        }
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return mOutputBuffers[index];
+        }
+        return mCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        if (!mAsync) {
+            return mCodec.dequeueInputBuffer(timeoutUs);
+        }
+        synchronized (mLock) {
+            waitForIndex(mInputIndices, timeoutUs);
+            Integer index = mInputIndices.poll();
+            return (index == null) ? MediaCodec.INFO_TRY_AGAIN_LATER : index;
+        }
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+            int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        if (!mAsync) {
+            int result = mCodec.dequeueOutputBuffer(info, timeoutUs);
+            if (result == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED && mOutputBuffers != null) {
+                mOutputBuffers = mCodec.getOutputBuffers();
+            }
+            return result;
+        }
+        synchronized (mLock) {
+            waitForIndex(mOutputIndices, timeoutUs);
+            Integer index = mOutputIndices.poll();
+            if (index == null) {
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+            MediaCodec.BufferInfo callbackInfo = mOutputInfos.poll();
+            if (callbackInfo != null) {
+                info.set(callbackInfo.offset, callbackInfo.size,
+                        callbackInfo.presentationTimeUs, callbackInfo.flags);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Waits until |indices| is not empty or the timeout expires - negative
+     * timeout waits indefinitely, like MediaCodec. Must be called with mLock
+     * held. Throws codec error reported by a callback.
+     */
+    private void waitForIndex(ArrayDeque<Integer> indices, long timeoutUs) {
+        long timeoutMs = (timeoutUs + 999) / 1000;
+        long deadlineMs = System.currentTimeMillis() + timeoutMs;
+        while (indices.isEmpty() && mError == null && (timeoutUs < 0 || timeoutMs > 0)) {
+            try {
+                // wait(0) has no deadline.
+                mLock.wait(timeoutUs < 0 ? 0 : timeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            timeoutMs = deadlineMs - System.currentTimeMillis();
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        if (mAsync) {
+            synchronized (mLock) {
+                return mOutputFormat;
+            }
+        }
+        return mCodec.getOutputFormat();
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public void setVideoBitrate(int bitrate) {
+        Bundle bitrateUpdate = new Bundle();
+        bitrateUpdate.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        mCodec.setParameters(bitrateUpdate);
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        Bundle syncFrame = new Bundle();
+        syncFrame.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mCodec.setParameters(syncFrame);
+    }
+
+    @Override
+    public void release() {
+        mCodec.stop();
+        mCodec.release();
+        synchronized (mLock) {
+            mInputIndices.clear();
+            mOutputIndices.clear();
+            mOutputInfos.clear();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+/**
+ * Separable polyphase scaler of 8 bit image planes for any up- or down-scale
+ * ratio.
+ *
+ * Filter tables are computed once per scaler, for every destination column
+ * and row they hold clamped source indices and integer coefficients with
+ * COEFF_BITS fractional bits summing to one. Downscale filters are stretched
+ * by the scale ratio so all source pixels contribute (no aliasing). A plane is
+ * filtered horizontally to an intermediate buffer with INTERMEDIATE_BITS
+ * fractional bits, then vertically to the destination. Both passes use integer
+ * arithmetic only, so the result is bit exact on every device and does not
+ * depend on the number of row bands.
+ *
+ * Source is a |srcWidth| x |srcHeight| crop rectangle of a plane, pixels
+ * outside of it are never read - edge pixels are repeated instead. A scaler
+ * keeps the intermediate buffer, concurrent scale() calls are serialized.
+ */
+public class PolyphaseScaler {
+    public static final int FILTER_BILINEAR = 0;
+    public static final int FILTER_BICUBIC = 1;
+    public static final int FILTER_LANCZOS3 = 2;
+
+    private static final int COEFF_BITS = 14;
+    private static final int INTERMEDIATE_BITS = 7;
+    private static final int HORIZONTAL_SHIFT = COEFF_BITS - INTERMEDIATE_BITS;
+    private static final int VERTICAL_SHIFT = COEFF_BITS + INTERMEDIATE_BITS;
+
+    /**
+     * Source indices and coefficients of every output pixel of one dimension.
+     * Output pixel i uses taps i * taps to (i + 1) * taps - 1.
+     */
+    private static class FilterTable {
+        final int taps;
+        final int[] indices;
+        final int[] coeffs;
+
+        FilterTable(int srcSize, int dstSize, int filter) {
+            double ratio = (double)srcSize / dstSize;
+            double filterScale = Math.max(1.0, ratio);
+            double support = getSupport(filter) * filterScale;
+            taps = Math.max(1, (int)Math.ceil(2 * support));
+            indices = new int[dstSize * taps];
+            coeffs = new int[dstSize * taps];
+            double[] weights = new double[taps];
+            for (int i = 0; i < dstSize; i++) {
+                // Pixel centers of both sizes are aligned.
+                double center = (i + 0.5) * ratio - 0.5;
+                int start = (int)Math.floor(center - support) + 1;
+                double sum = 0;
+                for (int t = 0; t < taps; t++) {
+                    weights[t] = getWeight(filter, (start + t - center) / filterScale);
+                    sum += weights[t];
+                }
+                int coeffSum = 0;
+                int largest = 0;
+                for (int t = 0; t < taps; t++) {
+                    int k = i * taps + t;
+                    indices[k] = Math.max(0, Math.min(srcSize - 1, start + t));
+                    coeffs[k] = (int)Math.round(weights[t] / sum * (1 << COEFF_BITS));
+                    coeffSum += coeffs[k];
+                    if (coeffs[k] > coeffs[i * taps + largest]) {
+                        largest = t;
+                    }
+                }
+                // Rounding error goes to the largest coefficient, so flat areas
+                // stay flat.
+                coeffs[i * taps + largest] += (1 << COEFF_BITS) - coeffSum;
+            }
+        }
+    }
+
+    private final int mSrcWidth;
+    private final int mSrcHeight;
+    private final int mDstWidth;
+    private final int mDstHeight;
+    private final int mFilter;
+    private final FilterTable mHorizontal;
+    private final FilterTable mVertical;
+    private final int[] mIntermediate;
+    // Vertical filter source rows as offsets in the intermediate buffer.
+    private final int[] mRowOffsets;
+
+    /**
+     * @param srcWidth   Width of the source crop rectangle.
+     * @param srcHeight  Height of the source crop rectangle.
+     * @param dstWidth   Destination plane width.
+     * @param dstHeight  Destination plane height.
+     * @param filter     One of the FILTER_ constants.
+     */
+    public PolyphaseScaler(int srcWidth, int srcHeight, int dstWidth, int dstHeight,
+            int filter) {
+        if (srcWidth <= 0 || srcHeight <= 0 || dstWidth <= 0 || dstHeight <= 0) {
+            throw new IllegalArgumentException("Invalid scaling " + srcWidth + " x " +
+                    srcHeight + " -> " + dstWidth + " x " + dstHeight);
+        }
+        if (filter < FILTER_BILINEAR || filter > FILTER_LANCZOS3) {
+            throw new IllegalArgumentException("Unsupported filter " + filter);
+        }
+        mSrcWidth = srcWidth;
+        mSrcHeight = srcHeight;
+        mDstWidth = dstWidth;
+        mDstHeight = dstHeight;
+        mFilter = filter;
+        mHorizontal = new FilterTable(srcWidth, dstWidth, filter);
+        mVertical = new FilterTable(srcHeight, dstHeight, filter);
+        mIntermediate = new int[srcHeight * dstWidth];
+        mRowOffsets = new int[mVertical.indices.length];
+        for (int k = 0; k < mRowOffsets.length; k++) {
+            mRowOffsets[k] = mVertical.indices[k] * dstWidth;
+        }
+    }
+
+    /**
+     * Returns true if the scaler converts planes of the given sizes with the filter.
+     */
+    public boolean matches(int srcWidth, int srcHeight, int dstWidth, int dstHeight,
+            int filter) {
+        return mSrcWidth == srcWidth && mSrcHeight == srcHeight &&
+                mDstWidth == dstWidth && mDstHeight == dstHeight && mFilter == filter;
+    }
+
+    /**
+     * Scales the source crop rectangle of a plane to the destination plane.
+     *
+     * @param src        Source plane.
+     * @param srcOffset  Offset of the source plane in |src|.
+     * @param srcStride  Row stride of the source plane.
+     * @param cropLeft   Left column of the crop rectangle.
+     * @param cropTop    Top row of the crop rectangle.
+     * @param dst        Destination plane.
+     * @param dstOffset  Offset of the destination plane in |dst|.
+     * @param dstStride  Row stride of the destination plane.
+     * @param executor   Runs both passes in row bands, or null to scale serially.
+     *                   Each pass waits for all bands, so the vertical pass sees
+     *                   the whole intermediate buffer.
+     */
+    public synchronized void scale(final byte[] src, int srcOffset, final int srcStride,
+            int cropLeft, int cropTop, final byte[] dst, final int dstOffset,
+            final int dstStride, RowBandExecutor executor) {
+        final int srcStart = srcOffset + cropTop * srcStride + cropLeft;
+        RowBandExecutor.RowTask horizontal = new RowBandExecutor.RowTask() {
+            @Override
+            public void processRows(int start, int end) {
+                filterRows(src, srcStart, srcStride, start, end);
+            }
+        };
+        RowBandExecutor.RowTask vertical = new RowBandExecutor.RowTask() {
+            @Override
+            public void processRows(int start, int end) {
+                filterColumns(dst, dstOffset, dstStride, start, end);
+            }
+        };
+        if (executor == null) {
+            horizontal.processRows(0, mSrcHeight);
+            vertical.processRows(0, mDstHeight);
+        } else {
+            executor.run(mSrcHeight, mDstWidth, horizontal);
+            executor.run(mDstHeight, mDstWidth, vertical);
+        }
+    }
+
+    /**
+     * Horizontal pass of source rows |start| to |end| (exclusive).
+     */
+    private void filterRows(byte[] src, int srcStart, int srcStride, int start, int end) {
+        int taps = mHorizontal.taps;
+        int[] indices = mHorizontal.indices;
+        int[] coeffs = mHorizontal.coeffs;
+        int round = 1 << (HORIZONTAL_SHIFT - 1);
+        for (int y = start; y < end; y++) {
+            int row = srcStart + y * srcStride;
+            int out = y * mDstWidth;
+            for (int x = 0, k = 0; x < mDstWidth; x++) {
+                int sum = round;
+                for (int t = 0; t < taps; t++, k++) {
+                    sum += (src[row + indices[k]] & 0xff) * coeffs[k];
+                }
+                mIntermediate[out + x] = sum >> HORIZONTAL_SHIFT;
+            }
+        }
+    }
+
+    /**
+     * Vertical pass of destination rows |start| to |end| (exclusive). Every
+     * pixel is summed over all taps at once, so no row of partial sums is kept.
+     */
+    private void filterColumns(byte[] dst, int dstOffset, int dstStride, int start, int end) {
+        int taps = mVertical.taps;
+        int[] rowOffsets = mRowOffsets;
+        int[] coeffs = mVertical.coeffs;
+        int[] intermediate = mIntermediate;
+        int round = 1 << (VERTICAL_SHIFT - 1);
+        for (int y = start; y < end; y++) {
+            int k = y * taps;
+            int out = dstOffset + y * dstStride;
+            int x = 0;
+            // Four pixels at a time share the tap rows and coefficients.
+            for (; x + 4 <= mDstWidth; x += 4) {
+                int sum0 = round;
+                int sum1 = round;
+                int sum2 = round;
+                int sum3 = round;
+                for (int t = 0; t < taps; t++) {
+                    int in = rowOffsets[k + t] + x;
+                    int coeff = coeffs[k + t];
+                    sum0 += intermediate[in] * coeff;
+                    sum1 += intermediate[in + 1] * coeff;
+                    sum2 += intermediate[in + 2] * coeff;
+                    sum3 += intermediate[in + 3] * coeff;
+                }
+                dst[out + x] = clip(sum0 >> VERTICAL_SHIFT);
+                dst[out + x + 1] = clip(sum1 >> VERTICAL_SHIFT);
+                dst[out + x + 2] = clip(sum2 >> VERTICAL_SHIFT);
+                dst[out + x + 3] = clip(sum3 >> VERTICAL_SHIFT);
+            }
+            for (; x < mDstWidth; x++) {
+                int sum = round;
+                for (int t = 0; t < taps; t++) {
+                    sum += intermediate[rowOffsets[k + t] + x] * coeffs[k + t];
+                }
+                dst[out + x] = clip(sum >> VERTICAL_SHIFT);
+            }
+        }
+    }
+
+    private static byte clip(int value) {
+        return (byte)(value < 0 ? 0 : (value > 255 ? 255 : value));
+    }
+
+    private static double getSupport(int filter) {
+        switch (filter) {
+            case FILTER_BILINEAR:
+                return 1.0;
+            case FILTER_BICUBIC:
+                return 2.0;
+            default:
+                return 3.0;
+        }
+    }
+
+    private static double getWeight(int filter, double x) {
+        x = Math.abs(x);
+        switch (filter) {
+            case FILTER_BILINEAR:
+                return Math.max(0.0, 1.0 - x);
+            case FILTER_BICUBIC: {
+                // Keys cubic convolution, a = -0.5.
+                double a = -0.5;
+                if (x < 1.0) {
+                    return ((a + 2) * x - (a + 3)) * x * x + 1;
+                } else if (x < 2.0) {
+                    return ((a * x - 5 * a) * x + 8 * a) * x - 4 * a;
+                }
+                return 0.0;
+            }
+            default: {
+                if (x < 1e-9) {
+                    return 1.0;
+                } else if (x < 3.0) {
+                    double px = Math.PI * x;
+                    return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+                }
+                return 0.0;
+            }
+        }
+    }
+}
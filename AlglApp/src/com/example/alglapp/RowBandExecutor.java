@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs per row image processing in parallel bands of consecutive rows.
+ *
+ * Rows are split to one band per thread. The calling thread processes the
+ * first band itself while the other bands run on the pool threads, and returns
+ * when all bands are done. Work with less than |minBytes| of output, or less
+ * than two rows per thread, is run serially on the calling thread, where
+ * thread handoff would cost more than it saves. Bands must write disjoint
+ * output, so the result does not depend on the number of threads.
+ *
+ * Pool threads are daemon threads, an executor may be shared by all tests for
+ * the lifetime of the process.
+ */
+public class RowBandExecutor {
+    /**
+     * Processing of a range of rows.
+     */
+    public interface RowTask {
+        /**
+         * Processes rows |start| (inclusive) to |end| (exclusive).
+         */
+        public void processRows(int start, int end);
+    }
+
+    private final int mThreadCount;
+    private final int mMinBytes;
+    private final ExecutorService mExecutor;
+
+    /**
+     * @param threadCount  Number of threads including the calling one - 1 makes
+     *                     all work serial.
+     * @param minBytes     Smallest output size in bytes processed in parallel.
+     */
+    public RowBandExecutor(int threadCount, int minBytes) {
+        mThreadCount = Math.max(1, threadCount);
+        mMinBytes = minBytes;
+        mExecutor = (mThreadCount > 1) ?
+                Executors.newFixedThreadPool(mThreadCount - 1, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "RowBandExecutor");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }) : null;
+    }
+
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /**
+     * Processes |rows| rows of |rowBytes| output bytes each.
+     */
+    public void run(int rows, int rowBytes, final RowTask task) {
+        int bands = Math.min(mThreadCount, rows / 2);
+        if (bands <= 1 || (long)rows * rowBytes < mMinBytes) {
+            task.processRows(0, rows);
+            return;
+        }
+        ArrayList<Future<Void>> results = new ArrayList<Future<Void>>(bands - 1);
+        for (int i = 1; i < bands; i++) {
+            final int start = (int)((long)rows * i / bands);
+            final int end = (int)((long)rows * (i + 1) / bands);
+            results.add(mExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    task.processRows(start, end);
+                    return null;
+                }
+            }));
+        }
+        RuntimeException error = null;
+        try {
+            task.processRows(0, rows / bands);
+        } catch (RuntimeException e) {
+            error = e;
+        }
+        // All bands are waited for even after a failure, so no band writes to
+        // the output after run() returned.
+        boolean interrupted = false;
+        for (Future<Void> result : results) {
+            while (true) {
+                try {
+                    result.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = new RuntimeException("Row band failed", e.getCause());
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Stops pool threads.
+     */
+    public void release() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Deterministic in-process stand-in for a hardware video codec, so the codec
+ * test loops can run and be profiled without codec components.
+ *
+ * The codec is a simple lossy DPCM codec. Key frames predict every sample from
+ * the reconstructed sample on the left (or above for the first column), inter
+ * frames predict it from the co-located sample of the previous reconstructed
+ * frame. Prediction residual is quantized with a per frame step, which is
+ * adjusted after every encoded frame to follow the target bitrate, and stored
+ * as zero run length / value pairs of variable length integers.
+ *
+ * Encoded frame layout:
+ *   byte 0      frame type - 0 for key frame, 1 for inter frame
+ *   byte 1      quantizer step
+ *   bytes 2-5   frame width and height, 16 bit little endian
+ *   residual    (zero run, zigzag value) varint pairs for Y, U and V samples.
+ *
+ * Encoder accepts YUV420 planar or NV12 input, decoder outputs YUV420 planar.
+ * Frame is returned to the caller no earlier than the configured latency after
+ * it was queued, and at most queue depth frames can be queued at a time - the
+ * codec keeps the input buffer of a frame until the frame is output.
+ * Calls are serialized, so dequeue calls may run on other threads than the
+ * rest, as with DequeueThreadBackend. Input buffers are only returned when
+ * frames are output, so dequeueInputBuffer() does not wait, and
+ * dequeueOutputBuffer() only waits for a queued frame to become ready.
+ */
+public class StandInCodecBackend implements VideoCodecBackend {
+    public static final String ENCODER_NAME = "standin.video.encoder";
+    public static final String DECODER_NAME = "standin.video.decoder";
+    public static final String NAME_PREFIX = "standin.";
+    // Format key for the minimum time in microseconds between queueing an input frame
+    // and getting its output.
+    public static final String KEY_FRAME_LATENCY_US = "standin-latency-us";
+    // Format key for the number of input and output buffers.
+    public static final String KEY_QUEUE_DEPTH = "standin-queue-depth";
+    public static final int DEFAULT_QUEUE_DEPTH = 4;
+
+    private static final int FRAME_TYPE_KEY = 0;
+    private static final int FRAME_TYPE_INTER = 1;
+    private static final int HEADER_SIZE = 6;
+    private static final int MIN_QUANTIZER_STEP = 1;
+    private static final int MAX_QUANTIZER_STEP = 64;
+    private static final int INITIAL_QUANTIZER_STEP = 8;
+
+    private final String mName;
+    private boolean mEncoder;
+    private String mMime;
+    private int mWidth;
+    private int mHeight;
+    private int mFrameSize;
+    private boolean mSemiPlanarInput;
+    private long mLatencyNs;
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    private final ArrayDeque<Integer> mFreeInputBuffers = new ArrayDeque<Integer>();
+    private final ArrayDeque<Integer> mFreeOutputBuffers = new ArrayDeque<Integer>();
+    // Input buffers dequeued by the client and not queued back yet.
+    private boolean[] mClientInputBuffers;
+    // Queued frames in decoding order.
+    private final ArrayDeque<QueuedFrame> mQueuedFrames = new ArrayDeque<QueuedFrame>();
+    private final ArrayDeque<QueuedFrame> mFreeFrames = new ArrayDeque<QueuedFrame>();
+    private boolean mFormatReported;
+    // Frame data - planar input frame for the encoder, bitstream for the decoder.
+    private byte[] mInput;
+    // Encoded bitstream for the encoder, planar output frame for the decoder.
+    private byte[] mOutput;
+    // Reconstructed previous frame, used as inter prediction reference.
+    private byte[] mReference;
+    private boolean mHasReference;
+    // Encoder rate control.
+    private int mBitrate;
+    private int mFrameRate;
+    private int mKeyFrameInterval;
+    private int mQuantizerStep;
+    private int mFramesSinceKeyFrame;
+    private boolean mForceKeyFrame;
+
+    private static class QueuedFrame {
+        int inputIndex;
+        int size;
+        long presentationTimeUs;
+        int flags;
+        long readyTimeNs;
+    }
+
+    public StandInCodecBackend(String name) {
+        mName = name;
+    }
+
+    /**
+     * Tells if the codec name belongs to the stand-in codec.
+     */
+    public static boolean isStandInCodec(String name) {
+        return name.startsWith(NAME_PREFIX);
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public synchronized void configure(MediaFormat format, boolean encoder) throws Exception {
+        mEncoder = encoder;
+        mMime = format.getString(MediaFormat.KEY_MIME);
+        mWidth = format.getInteger(MediaFormat.KEY_WIDTH);
+        mHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+        mFrameSize = mWidth * mHeight * 3 / 2;
+        if (format.containsKey(KEY_FRAME_LATENCY_US)) {
+            mLatencyNs = format.getLong(KEY_FRAME_LATENCY_US) * 1000;
+        }
+        int queueDepth = DEFAULT_QUEUE_DEPTH;
+        if (format.containsKey(KEY_QUEUE_DEPTH)) {
+            queueDepth = format.getInteger(KEY_QUEUE_DEPTH);
+        }
+        if (encoder) {
+            int colorFormat = format.getInteger(MediaFormat.KEY_COLOR_FORMAT);
+            if (colorFormat != CodecCapabilities.COLOR_FormatYUV420Planar &&
+                    colorFormat != CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
+                throw new IllegalArgumentException("Unsupported color format 0x" +
+                        Integer.toHexString(colorFormat));
+            }
+            mSemiPlanarInput = (colorFormat == CodecCapabilities.COLOR_FormatYUV420SemiPlanar);
+            mBitrate = format.getInteger(MediaFormat.KEY_BIT_RATE);
+            mFrameRate = format.getInteger(MediaFormat.KEY_FRAME_RATE);
+            // Zero or negative interval lets the encoder choose - only the first
+            // frame and requested frames are key frames then.
+            mKeyFrameInterval = 0;
+            if (format.containsKey(MediaFormat.KEY_I_FRAME_INTERVAL)) {
+                mKeyFrameInterval = format.getInteger(MediaFormat.KEY_I_FRAME_INTERVAL) *
+                        mFrameRate;
+            }
+            mQuantizerStep = INITIAL_QUANTIZER_STEP;
+            mForceKeyFrame = true;
+        }
+
+        // Worst case residual takes 1 byte of zero run and 2 bytes of value per sample.
+        int maxEncodedSize = HEADER_SIZE + 3 * mFrameSize;
+        int inputSize = encoder ? mFrameSize : maxEncodedSize;
+        int outputSize = encoder ? maxEncodedSize : mFrameSize;
+        mInput = new byte[inputSize];
+        mOutput = new byte[outputSize];
+        mReference = new byte[mFrameSize];
+        mHasReference = false;
+        mInputBuffers = new ByteBuffer[queueDepth];
+        mOutputBuffers = new ByteBuffer[queueDepth];
+        mClientInputBuffers = new boolean[queueDepth];
+        for (int i = 0; i < queueDepth; i++) {
+            mInputBuffers[i] = ByteBuffer.allocateDirect(inputSize);
+            mOutputBuffers[i] = ByteBuffer.allocateDirect(outputSize);
+            mFreeInputBuffers.add(i);
+            mFreeOutputBuffers.add(i);
+            mFreeFrames.add(new QueuedFrame());
+        }
+        mFormatReported = false;
+    }
+
+    @Override
+    public synchronized ByteBuffer getInputBuffer(int index) {
+        return mInputBuffers[index];
+    }
+
+    @Override
+    public synchronized ByteBuffer getOutputBuffer(int index) {
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public synchronized int dequeueInputBuffer(long timeoutUs) {
+        // Input buffers are only returned by dequeueOutputBuffer(), so there is
+        // nothing to wait for - DequeueThreadBackend asks again after an output.
+        Integer index = mFreeInputBuffers.poll();
+        if (index == null) {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        mClientInputBuffers[index] = true;
+        return index;
+    }
+
+    @Override
+    public synchronized void queueInputBuffer(int index, int offset, int size,
+            long presentationTimeUs, int flags) {
+        if (index < 0 || index >= mClientInputBuffers.length || !mClientInputBuffers[index]) {
+            throw new IllegalStateException("Input buffer " + index + " is not owned by client");
+        }
+        mClientInputBuffers[index] = false;
+        QueuedFrame frame = mFreeFrames.poll();
+        frame.inputIndex = index;
+        frame.size = size;
+        frame.presentationTimeUs = presentationTimeUs;
+        frame.flags = flags;
+        frame.readyTimeNs = System.nanoTime() + mLatencyNs;
+        mInputBuffers[index].limit(offset + size);
+        mInputBuffers[index].position(offset);
+        mQueuedFrames.add(frame);
+    }
+
+    @Override
+    public synchronized int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        if (!mFormatReported) {
+            mFormatReported = true;
+            return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        QueuedFrame frame = mQueuedFrames.peek();
+        if (frame == null || mFreeOutputBuffers.isEmpty()) {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        long waitNs = frame.readyTimeNs - System.nanoTime();
+        if (waitNs > 0) {
+            // Negative timeout waits indefinitely, like MediaCodec. Frames are
+            // only queued behind this one, so it stays the next one out.
+            long sleepNs = (timeoutUs < 0) ? waitNs : Math.min(waitNs, timeoutUs * 1000);
+            long deadlineNs = System.nanoTime() + sleepNs;
+            try {
+                // wait() lets other threads queue and release buffers meanwhile.
+                while (sleepNs > 0) {
+                    wait(sleepNs / 1000000, (int)(sleepNs % 1000000));
+                    sleepNs = deadlineNs - System.nanoTime();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (System.nanoTime() < frame.readyTimeNs) {
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+        }
+        mQueuedFrames.poll();
+
+        int outputIndex = mFreeOutputBuffers.poll();
+        ByteBuffer input = mInputBuffers[frame.inputIndex];
+        int flags = frame.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+        int size = 0;
+        if (frame.size > 0) {
+            input.get(mInput, 0, frame.size);
+            boolean keyFrame;
+            if (mEncoder) {
+                if (mSemiPlanarInput) {
+                    deinterleaveChroma();
+                }
+                size = encodeFrame();
+                keyFrame = (mOutput[0] == FRAME_TYPE_KEY);
+            } else {
+                keyFrame = decodeFrame(frame.size);
+                size = mFrameSize;
+            }
+            if (keyFrame) {
+                flags |= MediaCodec.BUFFER_FLAG_SYNC_FRAME;
+            }
+        }
+        ByteBuffer output = mOutputBuffers[outputIndex];
+        output.clear();
+        output.put(mOutput, 0, size);
+        output.rewind();
+        info.set(0, size, frame.presentationTimeUs, flags);
+
+        mFreeInputBuffers.add(frame.inputIndex);
+        mFreeFrames.add(frame);
+        return outputIndex;
+    }
+
+    @Override
+    public synchronized MediaFormat getOutputFormat() {
+        MediaFormat format = MediaFormat.createVideoFormat(mMime, mWidth, mHeight);
+        if (!mEncoder) {
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                    CodecCapabilities.COLOR_FormatYUV420Planar);
+        }
+        return format;
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index) {
+        mFreeOutputBuffers.add(index);
+    }
+
+    @Override
+    public synchronized void setVideoBitrate(int bitrate) {
+        mBitrate = bitrate;
+    }
+
+    @Override
+    public synchronized void requestSyncFrame() {
+        mForceKeyFrame = true;
+    }
+
+    @Override
+    public synchronized void release() {
+        mInputBuffers = null;
+        mOutputBuffers = null;
+        mQueuedFrames.clear();
+    }
+
+    /**
+     * Converts NV12 chroma of the input frame to U and V planes in place.
+     */
+    private void deinterleaveChroma() {
+        int ySize = mWidth * mHeight;
+        int uvSize = ySize / 4;
+        System.arraycopy(mInput, ySize, mOutput, 0, 2 * uvSize);
+        for (int i = 0; i < uvSize; i++) {
+            mInput[ySize + i] = mOutput[2 * i];
+            mInput[ySize + uvSize + i] = mOutput[2 * i + 1];
+        }
+    }
+
+    /**
+     * Encodes planar frame from mInput to mOutput and updates the reference frame.
+     *
+     * @return encoded frame size.
+     */
+    private int encodeFrame() {
+        boolean keyFrame = mForceKeyFrame || !mHasReference ||
+                (mKeyFrameInterval > 0 && mFramesSinceKeyFrame >= mKeyFrameInterval);
+        mForceKeyFrame = false;
+        mFramesSinceKeyFrame = keyFrame ? 1 : mFramesSinceKeyFrame + 1;
+        int step = mQuantizerStep;
+        writeHeader(keyFrame ? FRAME_TYPE_KEY : FRAME_TYPE_INTER, step);
+
+        int pos = HEADER_SIZE;
+        int run = 0;
+        int ySize = mWidth * mHeight;
+        int uvWidth = mWidth / 2;
+        for (int i = 0; i < mFrameSize; i++) {
+            int prediction;
+            if (keyFrame) {
+                prediction = intraPrediction(i, ySize, uvWidth);
+            } else {
+                prediction = mReference[i] & 0xff;
+            }
+            int residual = (mInput[i] & 0xff) - prediction;
+            int q = (residual >= 0) ? (residual + step / 2) / step : -((step / 2 - residual) / step);
+            mReference[i] = (byte)clamp255(prediction + q * step);
+            if (q == 0) {
+                run++;
+                continue;
+            }
+            pos = writeVarint(mOutput, pos, run);
+            pos = writeVarint(mOutput, pos, (q << 1) ^ (q >> 31));
+            run = 0;
+        }
+        if (run > 0) {
+            pos = writeVarint(mOutput, pos, run);
+        }
+        mHasReference = true;
+
+        // Move the quantizer step towards the frame size matching the target bitrate.
+        int targetSize = Math.max(1, mBitrate / 8 / Math.max(1, mFrameRate));
+        int stepChange = Math.max(1, mQuantizerStep / 8);
+        if (pos > targetSize) {
+            mQuantizerStep = Math.min(MAX_QUANTIZER_STEP, mQuantizerStep + stepChange);
+        } else if (pos < targetSize * 7 / 8) {
+            mQuantizerStep = Math.max(MIN_QUANTIZER_STEP, mQuantizerStep - stepChange);
+        }
+        return pos;
+    }
+
+    /**
+     * Decodes frame of |size| bytes from mInput to planar frame in mOutput.
+     *
+     * @return true if the frame is a key frame.
+     */
+    private boolean decodeFrame(int size) {
+        if (size < HEADER_SIZE) {
+            throw new IllegalStateException("Frame is too short: " + size);
+        }
+        boolean keyFrame = (mInput[0] == FRAME_TYPE_KEY);
+        int step = mInput[1] & 0xff;
+        int width = (mInput[2] & 0xff) | ((mInput[3] & 0xff) << 8);
+        int height = (mInput[4] & 0xff) | ((mInput[5] & 0xff) << 8);
+        if (width != mWidth || height != mHeight) {
+            throw new IllegalStateException("Frame size " + width + " x " + height +
+                    " does not match configured " + mWidth + " x " + mHeight);
+        }
+        if (!keyFrame && !mHasReference) {
+            throw new IllegalStateException("Inter frame without a preceding key frame");
+        }
+
+        int[] pos = { HEADER_SIZE };
+        int ySize = mWidth * mHeight;
+        int uvWidth = mWidth / 2;
+        int nextNonZero = readZeroRun(size, pos, 0);
+        for (int i = 0; i < mFrameSize; i++) {
+            int prediction;
+            if (keyFrame) {
+                prediction = intraPrediction(i, ySize, uvWidth);
+            } else {
+                prediction = mReference[i] & 0xff;
+            }
+            int q = 0;
+            if (i == nextNonZero) {
+                int value = readVarint(mInput, size, pos);
+                q = (value >>> 1) ^ -(value & 1);
+                nextNonZero = readZeroRun(size, pos, i + 1);
+            }
+            mReference[i] = (byte)clamp255(prediction + q * step);
+        }
+        mHasReference = true;
+        System.arraycopy(mReference, 0, mOutput, 0, mFrameSize);
+        return keyFrame;
+    }
+
+    /**
+     * Returns index of the next non zero sample after a zero run starting at |start|.
+     */
+    private int readZeroRun(int size, int[] pos, int start) {
+        if (pos[0] >= size) {
+            return mFrameSize;
+        }
+        return start + readVarint(mInput, size, pos);
+    }
+
+    /**
+     * Predicts sample |i| of the current frame from reconstructed neighbours
+     * in mReference.
+     */
+    private int intraPrediction(int i, int ySize, int uvWidth) {
+        int planeStart = 0;
+        int width = mWidth;
+        if (i >= ySize) {
+            planeStart = ySize + ((i - ySize) / (ySize / 4)) * (ySize / 4);
+            width = uvWidth;
+        }
+        int x = (i - planeStart) % width;
+        if (x > 0) {
+            return mReference[i - 1] & 0xff;
+        }
+        if (i - planeStart >= width) {
+            return mReference[i - width] & 0xff;
+        }
+        return 128;
+    }
+
+    private void writeHeader(int frameType, int step) {
+        mOutput[0] = (byte)frameType;
+        mOutput[1] = (byte)step;
+        mOutput[2] = (byte)mWidth;
+        mOutput[3] = (byte)(mWidth >> 8);
+        mOutput[4] = (byte)mHeight;
+        mOutput[5] = (byte)(mHeight >> 8);
+    }
+
+    private static int writeVarint(byte[] data, int pos, int value) {
+        while ((value & ~0x7f) != 0) {
+            data[pos++] = (byte)((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        data[pos++] = (byte)value;
+        return pos;
+    }
+
+    private static int readVarint(byte[] data, int size, int[] pos) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            if (pos[0] >= size) {
+                throw new IllegalStateException("Truncated frame");
+            }
+            int b = data[pos[0]++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    private static int clamp255(int v) {
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Video encoder or decoder used by the codec test loops.
+ *
+ * Methods follow the synchronous buffer index API of MediaCodec - return
+ * values of the dequeue calls and buffer flags are MediaCodec constants
+ * (INFO_TRY_AGAIN_LATER, BUFFER_FLAG_END_OF_STREAM etc).
+ */
+public interface VideoCodecBackend {
+    /**
+     * Returns codec name.
+     */
+    public String getName();
+
+    /**
+     * Configures and starts the codec.
+     *
+     * @param format  input format for an encoder or output format for a decoder
+     * @param encoder flag if the codec is an encoder
+     */
+    public void configure(MediaFormat format, boolean encoder) throws Exception;
+
+    /**
+     * Returns input buffer with the index returned by dequeueInputBuffer().
+     */
+    public ByteBuffer getInputBuffer(int index);
+
+    /**
+     * Returns output buffer with the index returned by dequeueOutputBuffer().
+     */
+    public ByteBuffer getOutputBuffer(int index);
+
+    /**
+     * Returns index of an input buffer available for filling, or
+     * INFO_TRY_AGAIN_LATER if none became available within the timeout.
+     */
+    public int dequeueInputBuffer(long timeoutUs);
+
+    /**
+     * Submits filled input buffer to the codec.
+     */
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+            int flags);
+
+    /**
+     * Returns index of an output buffer and fills |info| with its metadata, or
+     * one of INFO_TRY_AGAIN_LATER, INFO_OUTPUT_FORMAT_CHANGED and
+     * INFO_OUTPUT_BUFFERS_CHANGED.
+     */
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+    /**
+     * Returns output format. Valid after INFO_OUTPUT_FORMAT_CHANGED.
+     */
+    public MediaFormat getOutputFormat();
+
+    /**
+     * Returns output buffer to the codec.
+     */
+    public void releaseOutputBuffer(int index);
+
+    /**
+     * Changes encoder target bitrate in bits/second.
+     */
+    public void setVideoBitrate(int bitrate);
+
+    /**
+     * Asks the encoder to make the next frame a sync frame.
+     */
+    public void requestSyncFrame();
+
+    /**
+     * Stops the codec and frees its resources.
+     */
+    public void release();
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * VP8 boolean entropy decoder as specified in RFC 6386 section 7.
+ *
+ * Data is read with absolute gets from a ByteBuffer, so frames can be decoded
+ * straight from a memory mapped file. The decoder can be re-initialized for
+ * every partition without allocations.
+ */
+public class Vp8BoolDecoder {
+    private ByteBuffer mData;
+    private int mPosition;
+    private int mEnd;
+    private int mValue;         // Two byte window of the arithmetic coded value.
+    private int mRange;
+    private int mBitCount;      // Number of bits shifted out of the window's low byte.
+    private int mOverrunBytes;  // Number of bytes read past the end of data.
+
+    /**
+     * Starts decoding of a partition.
+     *
+     * @param data   buffer containing the partition
+     * @param offset offset of the partition in the buffer
+     * @param length partition size
+     */
+    public void init(ByteBuffer data, int offset, int length) {
+        mData = data;
+        mPosition = offset;
+        mEnd = offset + length;
+        mOverrunBytes = 0;
+        mValue = (nextByte() << 8) | nextByte();
+        mRange = 255;
+        mBitCount = 0;
+    }
+
+    /**
+     * Decodes a boolean value with the given probability of being zero.
+     *
+     * @param probability probability of zero value scaled to 0..255
+     * @return 0 or 1.
+     */
+    public int readBool(int probability) {
+        int split = 1 + (((mRange - 1) * probability) >> 8);
+        int bigSplit = split << 8;
+        int bit;
+        if (mValue >= bigSplit) {
+            bit = 1;
+            mRange -= split;
+            mValue -= bigSplit;
+        } else {
+            bit = 0;
+            mRange = split;
+        }
+        while (mRange < 128) {
+            mValue <<= 1;
+            mRange <<= 1;
+            if (++mBitCount == 8) {
+                mBitCount = 0;
+                mValue |= nextByte();
+            }
+        }
+        return bit;
+    }
+
+    /**
+     * Decodes a one bit flag coded with even probability - L(1) in RFC 6386.
+     */
+    public boolean readFlag() {
+        return readBool(128) != 0;
+    }
+
+    /**
+     * Decodes an unsigned literal, most significant bit first - L(n) in RFC 6386.
+     */
+    public int readLiteral(int bits) {
+        int value = 0;
+        while (bits-- > 0) {
+            value = (value << 1) | readBool(128);
+        }
+        return value;
+    }
+
+    /**
+     * Decodes a magnitude literal followed by a sign bit.
+     */
+    public int readSignedLiteral(int bits) {
+        int value = readLiteral(bits);
+        return readFlag() ? -value : value;
+    }
+
+    /**
+     * Decodes a flag and, if it is set, a signed literal. Returns 0 if the flag is not set.
+     */
+    public int readOptionalSignedLiteral(int bits) {
+        return readFlag() ? readSignedLiteral(bits) : 0;
+    }
+
+    /**
+     * Tells if the decoder has read past the end of the partition, i.e. the
+     * partition was truncated.
+     */
+    public boolean isOverrun() {
+        // The decoder keeps two bytes in its window, so it may legitimately
+        // pre-load two bytes past the last one used.
+        return mOverrunBytes > 2;
+    }
+
+    private int nextByte() {
+        if (mPosition < mEnd) {
+            return mData.get(mPosition++) & 0xFF;
+        }
+        mOverrunBytes++;
+        return 0;
+    }
+}
@@ -18,9 +18,12 @@ package com.example.alglapp;
 //package com.example.android.vp8activity;
 //package com.google.android.xts.media;
 
+import android.media.MediaCodecInfo.CodecCapabilities;
 import android.util.Log;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 //import com.google.android.xts.media.R;
@@ -73,16 +76,20 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
     //private static final String INPUT_YUV = "/sdcard/foreman_cif.yuv";
     //private static final String OUTPUT_YUV = "/sdcard/foreman_cif_out.yuv";
 
-    // YUV stream properties.
-    private static final int WIDTH = 320;
-    private static final int HEIGHT = 240;
+    //private static final String ENCODED_IVF_BASE = "foreman";
+    //private static final String INPUT_YUV = "foreman_cif.y4m";
+
+    // YUV stream properties. Y4M input sequence carries its own geometry
+    // and frame rate, which replace these values in setUp().
+    private int mWidth = 320;
+    private int mHeight = 240;
     private static final int WIDTH_HANGOUTS = 320;
     private static final int HEIGHT_HANGOUTS = 180;
-    //private static final int WIDTH = 640;
-    //private static final int HEIGHT = 480;
-    //private static final int WIDTH = 1280;
-    //private static final int HEIGHT = 720;
-    private static final int FPS = 30;
+    //private int mWidth = 640;
+    //private int mHeight = 480;
+    //private int mWidth = 1280;
+    //private int mHeight = 720;
+    private int mFps = 30;
     // Default encoding bitrates.
     private static final int BITRATE_180P = 200000;
     private static final int BITRATE_QVGA = 400000;
@@ -104,8 +111,6 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
     private static final double MAX_BITRATE_VARIATION = 0.15;
     // Maximum allowed dynamic bitrate variation from the target value.
     private static final double MAX_DYNAMIC_BITRATE_VARIATION = 0.25;
-    // Maximum allowed total encoder and decoder frame delay in ms.
-    private static final int MAX_DELAY_VALUE_MS = 2 * 1000 / FPS;
     // Maximum allowed average PSNR difference of HW encoder comparing to reference SW encoder.
     private static final double MAX_AVERAGE_PSNR_DIFFERENCE = 1.5;
     // Maximum allowed minimum PSNR difference of HW encoder comparing to reference SW encoder.
@@ -123,6 +128,22 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
     private static final int MIN_VP8_SDK_VERSION = android.os.Build.VERSION_CODES.KITKAT;
     // Current SDK version
     private static final int CURRENT_VP8_SDK_VERSION = android.os.Build.VERSION.SDK_INT;
+    // Folder with libvpx VP8 test vectors (vp80-00-comprehensive-*.ivf) and their
+    // per frame MD5 files (*.ivf.md5).
+    private static final String TEST_VECTORS_DIR = "vp8_test_vectors";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Y4M input sequence carries its own geometry and frame rate.
+        if (Y4mReader.isY4mFile(INPUT_YUV)) {
+            Y4mReader y4m = new Y4mReader(SDCARD_DIR + File.separator + INPUT_YUV);
+            mWidth = y4m.getWidth();
+            mHeight = y4m.getHeight();
+            mFps = (int)Math.round(y4m.getFrameRate());
+            y4m.close();
+        }
+    }
 
     /**
      * Helper function to return encoder scale values used for all simulcast tests.
@@ -161,9 +182,9 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
                 INPUT_YUV,
                 ENCODED_IVF_BASE,
                 encodeSeconds,
-                WIDTH,
-                HEIGHT,
-                FPS,
+                mWidth,
+                mHeight,
+                mFps,
                 BITRATE_MODE,
                 BITRATE_QVGA,
                 //BITRATE_VGA,
@@ -177,12 +198,12 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
         //params.frameRateSet[0] = 10;
         params.syncFrameInterval = 3000;
         //params.bitrateSet[0] = 1425000;
-/*        params.frameRateSet = new int[encodeSeconds * FPS];
+/*        params.frameRateSet = new int[encodeSeconds * mFps];
         Random rand = new Random(System.currentTimeMillis());
-        params.frameRateSet[0] = FPS;
+        params.frameRateSet[0] = mFps;
         for (int i = 1; i < params.frameRateSet.length ; i++) {
-            int fpsDiff = (int) Math.round( (0.6 * (2 * rand.nextFloat() - 0.9) * FPS));
-            params.frameRateSet[i] = FPS + fpsDiff;
+            int fpsDiff = (int) Math.round( (0.6 * (2 * rand.nextFloat() - 0.9) * mFps));
+            params.frameRateSet[i] = mFps + fpsDiff;
         }
 */
         ArrayList<BufferInfo> bufInfoEnc = encode(params);
@@ -196,7 +217,7 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
         ArrayList<BufferInfo> bufInfoDec = decode(params);
         //averageCodecTimeUs(0, bufInfoDec);
         computeDecodingStatistics(params.inputYuvFilename, R.raw.football_qvga,
-                 params.outputYuvFilename, WIDTH, HEIGHT);
+                 params.outputYuvFilename, mWidth, mHeight);
         //deleteTemporaryFiles(params);
         Log.d(TAG, "testBasic PASSED");
     }
@@ -218,9 +239,9 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
                 INPUT_YUV,
                 ENCODED_IVF_BASE,
                 encodeSeconds,
-                WIDTH,
-                HEIGHT,
-                FPS,
+                mWidth,
+                mHeight,
+                mFps,
                 BITRATE_MODE,
                 BITRATE_QVGA,
                 //BITRATE_VGA,
@@ -233,9 +254,9 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
                 INPUT_YUV,
                 ENCODED_IVF_BASE,
                 encodeSeconds,
-                WIDTH,
-                HEIGHT,
-                FPS,
+                mWidth,
+                mHeight,
+                mFps,
                 BITRATE_MODE,
                 BITRATE_QVGA,
                 //BITRATE_VGA,
@@ -262,7 +283,7 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
                     bufInfoDec =  decode(decParams);
                     averageCodecTimeUs(0, bufInfoDec);
                     computeDecodingStatistics(decParams.inputYuvFilename, R.raw.football_qvga,
-                            decParams.outputYuvFilename, WIDTH, HEIGHT);
+                            decParams.outputYuvFilename, mWidth, mHeight);
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -289,7 +310,7 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
         }
         int encodeSeconds = 9;  // Encoding sequence duration in seconds for each bitrate.
         int[] scaleValues = getVideoScaleValues();
-        scaleValues = supportedScaleValues(WIDTH, HEIGHT, scaleValues, true);
+        scaleValues = supportedScaleValues(mWidth, mHeight, scaleValues, true);
         int numCodecs = scaleValues.length;
         int[] bitrateList = new int[numCodecs];
 
@@ -303,16 +324,16 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
                     ENCODED_IVF_BASE,
                     encodeSeconds,
                     scaleValues,
-                    WIDTH,
-                    HEIGHT,
-                    FPS,
+                    mWidth,
+                    mHeight,
+                    mFps,
                     BITRATE_MODE,
                     bitrateList,
                     syncMode);
 
             // Encodes 3 streams simultaneously
             ArrayList<ArrayList<BufferInfo>> bufInfos = encodeSimulcast(
-                    WIDTH, HEIGHT, params);
+                    mWidth, mHeight, params);
 
             // Check average bitrate value - should be within 15% of the target value.
             ArrayList<Vp8EncodingStatistics> statistics =
@@ -354,7 +375,7 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
         testSimulcastBitrate(true);
     }
 
-    public  void FIXME_testSimulcastBitrateAsync() throws Exception {
+    public  void testSimulcastBitrateAsync() throws Exception {
         testSimulcastBitrate(false);
     }
 
@@ -381,9 +402,9 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
                     INPUT_YUV,
                     ENCODED_IVF_BASE,
                     encodeSeconds,
-                    WIDTH,
-                    HEIGHT,
-                    FPS,
+                    mWidth,
+                    mHeight,
+                    mFps,
                     BITRATE_MODE,
                     BITRATE_QVGA,
                     true);
@@ -405,7 +426,7 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
                 bufInfo = decode(params);
                 Vp8DecodingStatistics decodingStatistics = computeDecodingStatisticsEx(
                         params.inputYuvFilename, R.raw.football_qvga,
-                        params.outputYuvFilename, WIDTH, HEIGHT,
+                        params.outputYuvFilename, mWidth, mHeight,
                         params.decodingRateDecimator);
                 psnr[tsLayers - 1][maxDecodedLayer - 1] = decodingStatistics.mAveragePSNR;
             }
@@ -465,15 +486,17 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
             return;
         }
         int encodeSeconds = 9;
+        // Maximum allowed total encoder and decoder frame delay in ms.
+        int maxDelayValueMs = 2 * 1000 / mFps;
 
         Log.d(TAG, "---------- testCodecDelay------------");
         CodecStreamParameters params = getDefaultCodecStreamParameters(
                 INPUT_YUV,
                 ENCODED_IVF_BASE,
                 encodeSeconds,
-                WIDTH,
-                HEIGHT,
-                FPS,
+                mWidth,
+                mHeight,
+                mFps,
                 BITRATE_MODE,
                 BITRATE_QVGA,
                 true);
@@ -486,8 +509,8 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
         deleteTemporaryFiles(params);
 
         Log.d(TAG, "Encoder delay: " + encoderDelayMs + " ms. Decoder delay: "
-                + decoderDelayMs + " ms. Limit: " + MAX_DELAY_VALUE_MS + " ms.");
-        assertTrue("High codec delay", encoderDelayMs + decoderDelayMs <= MAX_DELAY_VALUE_MS);
+                + decoderDelayMs + " ms. Limit: " + maxDelayValueMs + " ms.");
+        assertTrue("High codec delay", encoderDelayMs + decoderDelayMs <= maxDelayValueMs);
         Log.d(TAG, "testCodecDelay PASSED");
     }
 
@@ -506,7 +529,7 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
         }
         int encodeSeconds = 9;
         Log.d(TAG, "---------- testRequestSyncFrame ------------");
-        testSyncFrame(SYNC_FRAME_INTERVAL, FPS, encodeSeconds);
+        testSyncFrame(SYNC_FRAME_INTERVAL, mFps, encodeSeconds);
         Log.d(TAG, "testRequestSyncFrame PASSED");
     }
 
@@ -525,7 +548,7 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
         }
         int encodeSeconds = 9;
         Log.d(TAG, "---------- testConfiguredSyncFrame -----------");
-        testSyncFrame(FPS, 0, encodeSeconds);
+        testSyncFrame(mFps, 0, encodeSeconds);
         Log.d(TAG, "testConfiguredSyncFrame PASSED");
     }
 
@@ -535,9 +558,9 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
                 INPUT_YUV,
                 ENCODED_IVF_BASE,
                 encodeSeconds,
-                WIDTH,
-                HEIGHT,
-                FPS,
+                mWidth,
+                mHeight,
+                mFps,
                 BITRATE_MODE,
                 BITRATE_QVGA,
                 true);
@@ -560,9 +583,9 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
         // Get the number of expected key frames from configuration
         int expectedKeyFrames;
         if (syncFrameIntervalRequest > 0) {  // sync frames are forced
-            expectedKeyFrames = encodeSeconds * FPS / syncFrameIntervalRequest;
+            expectedKeyFrames = encodeSeconds * mFps / syncFrameIntervalRequest;
         } else {
-            expectedKeyFrames = encodeSeconds * FPS / syncFrameIntervalConfigured;
+            expectedKeyFrames = encodeSeconds * mFps / syncFrameIntervalConfigured;
         }
 
         // First check if we got expected number of key frames.
@@ -576,12 +599,12 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
         // Average value should be within +/- 1 frame of the target value,
         // maximum value should not be greater than target value + 3,
         // and minimum value should not be less that target value - 3.
-        if (Math.abs(statistics.mAverageKeyFrameInterval - FPS) >
+        if (Math.abs(statistics.mAverageKeyFrameInterval - mFps) >
             MAX_AVERAGE_KEYFRAME_INTERVAL_VARIATION
-            || (statistics.mMaximumKeyFrameInterval - FPS > MAX_KEYFRAME_INTERVAL_VARIATION)
-            || (FPS - statistics.mMinimumKeyFrameInterval > MAX_KEYFRAME_INTERVAL_VARIATION)) {
+            || (statistics.mMaximumKeyFrameInterval - mFps > MAX_KEYFRAME_INTERVAL_VARIATION)
+            || (mFps - statistics.mMinimumKeyFrameInterval > MAX_KEYFRAME_INTERVAL_VARIATION)) {
             throw new RuntimeException(
-                    "Key frame intervals are different from the expected " + FPS);
+                    "Key frame intervals are different from the expected " + mFps);
         }
 
         // Finally check average bitrate value - should be within 15% of the target value.
@@ -609,9 +632,9 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
                 INPUT_YUV,
                 ENCODED_IVF_BASE,
                 encodeSeconds,
-                WIDTH,
-                HEIGHT,
-                FPS,
+                mWidth,
+                mHeight,
+                mFps,
                 BITRATE_MODE,
                 bitrateValues[0],
                 true);
@@ -620,11 +643,11 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
         int stepSeconds = encodeSeconds / bitrateValues.length;
 
         // Fill the bitrates values in encoding parameter structure.
-        params.bitrateSet = new int[encodeSeconds * FPS];
+        params.bitrateSet = new int[encodeSeconds * mFps];
         for (int i = 0; i < bitrateValues.length ; i++) {
             Arrays.fill(params.bitrateSet,
-                    i * encodeSeconds * FPS / bitrateValues.length,
-                    (i + 1) * encodeSeconds * FPS / bitrateValues.length,
+                    i * encodeSeconds * mFps / bitrateValues.length,
+                    (i + 1) * encodeSeconds * mFps / bitrateValues.length,
                     bitrateValues[i]);
         }
 
@@ -668,19 +691,19 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
                 INPUT_YUV,
                 ENCODED_IVF_BASE,
                 encodeSeconds,
-                WIDTH,
-                HEIGHT,
-                FPS,
+                mWidth,
+                mHeight,
+                mFps,
                 BITRATE_MODE,
                 BITRATE_QVGA,
                 true);
 
         // Fill the bitrates values in encoding parameter structure.
-        params.frameRateSet = new int[encodeSeconds * FPS];
+        params.frameRateSet = new int[encodeSeconds * mFps];
         for (int i = 0; i < framerateValues.length ; i++) {
             Arrays.fill(params.frameRateSet,
-                    i * encodeSeconds * FPS / framerateValues.length,
-                    (i + 1) * encodeSeconds * FPS / framerateValues.length,
+                    i * encodeSeconds * mFps / framerateValues.length,
+                    (i + 1) * encodeSeconds * mFps / framerateValues.length,
                     framerateValues[i]);
         }
 
@@ -696,7 +719,7 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
             bitrateActualValues[i] = 0;
             framerateActualValues[i] = 0;
             int durationSecond = (encodeSeconds / framerateValues.length) *
-                    (FPS / framerateValues[i]);
+                    (mFps / framerateValues[i]);
             for (int j = startSecond; j < startSecond + durationSecond; j++) {
                 framerateActualValues[i] += statistics.mFrames.get(j);
                 bitrateActualValues[i] += statistics.mBitrates.get(j);
@@ -739,7 +762,7 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
         }
         int encodeSeconds = 9;
         int[] scaleValues = getVideoScaleValues();
-        scaleValues = supportedScaleValues(WIDTH, HEIGHT, scaleValues, true);
+        scaleValues = supportedScaleValues(mWidth, mHeight, scaleValues, true);
 
         int numCodecs = scaleValues.length;
 
@@ -762,9 +785,9 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
                 ENCODED_IVF_BASE,
                 encodeSeconds,
                 scaleValues,
-                WIDTH,
-                HEIGHT,
-                FPS,
+                mWidth,
+                mHeight,
+                mFps,
                 BITRATE_MODE,
                 BITRATE_LIST,
                 true);
@@ -780,7 +803,7 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
         for (int i = 0; i < numCodecs; i++) {
             params.get(i).forceSwCodec = true;
         }
-        ArrayList<ArrayList<BufferInfo>> bufInfos = encodeSimulcast( WIDTH, HEIGHT, params);
+        ArrayList<ArrayList<BufferInfo>> bufInfos = encodeSimulcast( mWidth, mHeight, params);
 
         ArrayList<Vp8EncodingStatistics>  encodingStatistics =
                 computeSimulcastEncodingStatistics(bufInfos);
@@ -797,12 +820,15 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
             psnrSwCodecAverage[i] = decodingStatistics.mAveragePSNR;
             psnrSwCodecMin[i] = decodingStatistics.mMinimumPSNR;
         }
+        for (int i = 0; i < numCodecs; i++) {
+            computeMacroblockStatistics(i, params.get(i).encodedIvfFilename);
+        }
 
         // Run platform specific codec next
         for (int i = 0; i < numCodecs; i++) {
             params.get(i).forceSwCodec = false;
         }
-        bufInfos = encodeSimulcast(WIDTH, HEIGHT, params);
+        bufInfos = encodeSimulcast(mWidth, mHeight, params);
 
         encodingStatistics = computeSimulcastEncodingStatistics(bufInfos);
         for (int i = 0; i < numCodecs; i++) {
@@ -818,6 +844,9 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
             psnrHwCodecAverage[i] = decodingStatistics.mAveragePSNR;
             psnrHwCodecMin[i] = decodingStatistics.mMinimumPSNR;
         }
+        for (int i = 0; i < numCodecs; i++) {
+            computeMacroblockStatistics(i, params.get(i).encodedIvfFilename);
+        }
         deleteTemporaryFiles(params);
 
         // Compare average and minimum PSNR of platform codec with reference sw codec -
@@ -894,7 +923,7 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
                 scaleValues,
                 WIDTH_HANGOUTS,
                 HEIGHT_HANGOUTS,
-                FPS,
+                mFps,
                 BITRATE_MODE,
                 bitrateList,
                 true);
@@ -923,7 +952,7 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
         for (int i = 0; i < numCodecs; i++) {
             params.get(i).forceSwCodec = true;
         }
-        ArrayList<ArrayList<BufferInfo>> bufInfos = encodeSimulcast( WIDTH, HEIGHT, params);
+        ArrayList<ArrayList<BufferInfo>> bufInfos = encodeSimulcast( mWidth, mHeight, params);
 
         ArrayList<Vp8EncodingStatistics>  encodingStatistics =
                 computeSimulcastEncodingStatistics(bufInfos);
@@ -948,7 +977,7 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
             params.get(i).forceSwCodec = false;
             ArrayList<CodecStreamParameters> paramsList = new ArrayList<CodecStreamParameters>();
             paramsList.add(params.get(i));
-            bufInfos = encodeSimulcast(WIDTH, HEIGHT, paramsList);
+            bufInfos = encodeSimulcast(mWidth, mHeight, paramsList);
 
             encodingStatistics = computeSimulcastEncodingStatistics(bufInfos);
             bitrateHwCodec[i] = encodingStatistics.get(0).mAverageBitrate;
@@ -1061,7 +1090,7 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
                 encodeScaleValues,
                 WIDTH_HANGOUTS,
                 HEIGHT_HANGOUTS,
-                FPS,
+                mFps,
                 BITRATE_MODE,
                 bitrateList,
                 true);
@@ -1073,7 +1102,7 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
                 decodeScaleValues,
                 WIDTH_HANGOUTS,
                 HEIGHT_HANGOUTS,
-                FPS,
+                mFps,
                 BITRATE_MODE,
                 bitrateList,
                 true);
@@ -1102,7 +1131,7 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
         }
 
         ArrayList<ArrayList<BufferInfo>> bufInfos = encodeAndDecode(
-                WIDTH, HEIGHT, streamMapping, encoderParams, decoderParams);
+                mWidth, mHeight, streamMapping, encoderParams, decoderParams);
 
         ArrayList<Vp8EncodingStatistics>  encodingStatistics =
                 computeSimulcastEncodingStatistics(bufInfos);
@@ -1128,7 +1157,7 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
             decoderParams.get(i).forceSwCodec = false;
         }
 
-        bufInfos = encodeAndDecode(WIDTH, HEIGHT, streamMapping, encoderParams, decoderParams);
+        bufInfos = encodeAndDecode(mWidth, mHeight, streamMapping, encoderParams, decoderParams);
         encodingStatistics = computeSimulcastEncodingStatistics(bufInfos);
         for (int i = 0; i < numEncoders; i++) {
             bitrateHwCodec[i] = encodingStatistics.get(i).mAverageBitrate;
@@ -1186,5 +1215,525 @@ public class Vp8CodecTest extends Vp8CodecTestBase {
         }
         Log.d(TAG, "testHangouts PASSED");
     }
-}
 
+    /**
+     * Runs encoding and decoding with the in-process stand-in codec.
+     *
+     * Checks the codec loops work without device codecs and the stand-in codec
+     * output is reasonable. Codec latency is set to a real-time frame duration
+     * to exercise codec input back-pressure.
+     */
+    public void testStandInCodec() throws Exception {
+        int encodeSeconds = 3;
+        // Minimum average PSNR of the stand-in codec output.
+        double minAveragePsnr = 25;
+        Log.d(TAG, "---------- testStandInCodec ------------");
+        CodecStreamParameters params = getDefaultCodecStreamParameters(
+                INPUT_YUV,
+                ENCODED_IVF_BASE,
+                encodeSeconds,
+                mWidth,
+                mHeight,
+                mFps,
+                BITRATE_MODE,
+                BITRATE_QVGA,
+                true);
+        params.useStandInCodec = true;
+        params.standInLatencyUs = 1000000 / mFps;
+
+        ArrayList<BufferInfo> bufInfoEnc = encode(params);
+        computeEncodingStatistics(bufInfoEnc);
+        averageCodecTimeUs(0, bufInfoEnc);
+        ArrayList<BufferInfo> bufInfoDec = decode(params);
+        averageCodecTimeUs(0, bufInfoDec);
+        Vp8DecodingStatistics statistics = computeDecodingStatistics(params.inputYuvFilename,
+                R.raw.football_qvga, params.outputYuvFilename, mWidth, mHeight);
+        deleteTemporaryFiles(params);
+
+        assertEquals("Frame count", bufInfoEnc.size(), bufInfoDec.size());
+        assertTrue("Low stand-in codec PSNR " + statistics.mAveragePSNR,
+                statistics.mAveragePSNR >= minAveragePsnr);
+        Log.d(TAG, "testStandInCodec PASSED");
+    }
+
+    /**
+     * Check Java VP8 decoder is bit exact with libvpx.
+     *
+     * Decodes every IVF file in the test vector folder with one and with
+     * multiple threads and compares MD5 of the decoded frames with the values
+     * from the matching .md5 file. The test is skipped with a warning if the
+     * folder is absent, and fails if the folder has no vectors.
+     */
+    public void testJavaDecoderTestVectors() throws Exception {
+        File dir = new File(SDCARD_DIR + File.separator + TEST_VECTORS_DIR);
+        File[] files = dir.listFiles();
+        if (files == null) {
+            Log.w(TAG, "testJavaDecoderTestVectors SKIPPED - bit exactness is NOT checked. " +
+                    "Copy libvpx vp80-*.ivf test vectors and their .md5 files to " +
+                    dir.getPath());
+            return;
+        }
+        Arrays.sort(files);
+        int threads = Runtime.getRuntime().availableProcessors();
+        int vectorCount = 0;
+        Log.d(TAG, "---------- testJavaDecoderTestVectors ------------");
+        for (File file : files) {
+            File md5File = new File(file.getPath() + ".md5");
+            if (!file.getName().endsWith(".ivf") || !md5File.isFile()) {
+                continue;
+            }
+            ArrayList<String> expectedMd5 = new ArrayList<String>();
+            BufferedReader reader = new BufferedReader(new FileReader(md5File));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.length() > 0) {
+                        expectedMd5.add(line.split("\\s+")[0]);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+
+            ArrayList<String> md5 = computeJavaDecoderFrameMd5(file.getPath(), 1);
+            ArrayList<String> md5Threaded = computeJavaDecoderFrameMd5(file.getPath(), threads);
+            Log.d(TAG, file.getName() + ": " + md5.size() + " frames");
+            assertEquals(file.getName() + " frame count", expectedMd5.size(), md5.size());
+            for (int i = 0; i < md5.size(); i++) {
+                assertEquals(file.getName() + " frame #" + i, expectedMd5.get(i), md5.get(i));
+                assertEquals(file.getName() + " frame #" + i + " with " + threads + " threads",
+                        expectedMd5.get(i), md5Threaded.get(i));
+            }
+            vectorCount++;
+        }
+        assertTrue("No test vectors with .md5 files in " + dir.getPath(), vectorCount > 0);
+        Log.d(TAG, "testJavaDecoderTestVectors PASSED. Vectors: " + vectorCount);
+    }
+
+    /**
+     * Check in-flight frame tracker matches reordered output frames by timestamp
+     * and detects dropped and unmatched frames.
+     */
+    public void testInFlightFrameTracker() throws Exception {
+        int capacity = 4;
+        long frameDurationUs = 1000000 / mFps;
+        InFlightFrameTracker tracker = new InFlightFrameTracker(capacity);
+
+        // Queue frames 0..2 and return them in B-frame order 0, 2, 1.
+        for (int i = 0; i < 3; i++) {
+            tracker.add(i * frameDurationUs, 100 * i, 100 * i + 10);
+        }
+        int[] outputOrder = { 0, 2, 1 };
+        for (int i : outputOrder) {
+            assertTrue(tracker.remove(i * frameDurationUs));
+            assertEquals(100 * i, tracker.getEnqueueTimeUs());
+            assertEquals(100 * i + 10, tracker.getQueueTimeUs());
+        }
+        assertEquals(0, tracker.size());
+
+        // Frame 3 is never returned - it is dropped once |capacity| newer frames
+        // are queued.
+        for (int i = 3; i < 3 + capacity + 1; i++) {
+            tracker.add(i * frameDurationUs, 100 * i, 100 * i + 10);
+            if (i > 3) {
+                assertTrue(tracker.remove(i * frameDurationUs));
+            }
+        }
+        assertEquals(1, tracker.getDroppedFrames());
+        assertEquals(0, tracker.size());
+
+        // Output with unknown timestamp, and frames left at EOS.
+        assertFalse(tracker.remove(-1));
+        assertEquals(1, tracker.getUnmatchedFrames());
+        tracker.add(100 * frameDurationUs, 0, 0);
+        tracker.add(101 * frameDurationUs, 0, 0);
+        tracker.flush();
+        assertEquals(3, tracker.getDroppedFrames());
+        assertEquals(0, tracker.size());
+        Log.d(TAG, "testInFlightFrameTracker PASSED");
+    }
+
+    /**
+     * Check reading encoder input frames does not allocate in steady state, both
+     * for planar and for semi-planar input which is converted while reading.
+     */
+    public void testInputFrameAllocations() throws Exception {
+        int frameCount = 1000;
+        Log.d(TAG, "---------- testInputFrameAllocations ------------");
+        CodecStreamParameters params = getDefaultCodecStreamParameters(
+                INPUT_YUV,
+                ENCODED_IVF_BASE,
+                1,
+                mWidth,
+                mHeight,
+                mFps,
+                BITRATE_MODE,
+                BITRATE_QVGA,
+                true);
+        int[] colorFormats = {
+                CodecCapabilities.COLOR_FormatYUV420Planar,
+                CodecCapabilities.COLOR_FormatYUV420SemiPlanar };
+        for (int colorFormat : colorFormats) {
+            int allocations = countInputFrameAllocations(params.inputYuvFilename,
+                    R.raw.football_qvga, mWidth, mHeight, colorFormat, frameCount);
+            Log.d(TAG, "Color format 0x" + Integer.toHexString(colorFormat) +
+                    ". Allocations for " + frameCount + " frames: " + allocations);
+            assertEquals("Allocations for color format 0x" + Integer.toHexString(colorFormat),
+                    0, allocations);
+        }
+        Log.d(TAG, "testInputFrameAllocations PASSED");
+    }
+
+    /**
+     * Compare single pass decoder output conversion with the two step path.
+     *
+     * Converts planar, NV12, NV21 and QCOM NV12 32m frames with aligned stride,
+     * slice height and buffer size for common resolutions, checks both paths
+     * give the same result and logs throughput of both.
+     */
+    public void testFrameConversionBenchmark() throws Exception {
+        int frames = 300;
+        int[][] resolutions = { { 320, 240 }, { 640, 480 }, { 1280, 720 }, { 1920, 1080 } };
+        // Layout, stride, slice height and buffer size alignment. Planar and NV12
+        // as typical hw decoders align them - 128 byte rows, 32 row planes, NV21
+        // as sw decoders do - 16 byte rows and planes, and QCOM NV12 32m
+        // (COLOR_QCOM_FORMATYUV420PackedSemiPlanar32m) - 128 byte rows, 32 row
+        // luma plane, buffer padded to 4 KB pages.
+        int[][] layouts = {
+                { FrameConverter.LAYOUT_PLANAR, 128, 32, 1 },
+                { FrameConverter.LAYOUT_NV12, 128, 32, 1 },
+                { FrameConverter.LAYOUT_NV21, 16, 16, 1 },
+                { FrameConverter.LAYOUT_NV12, 128, 32, 4096 } };
+        String[] layoutNames = { "planar", "NV12", "NV21", "QCOM NV12 32m" };
+        Log.d(TAG, "---------- testFrameConversionBenchmark ------------");
+        for (int[] resolution : resolutions) {
+            int width = resolution[0];
+            int height = resolution[1];
+            for (int i = 0; i < layouts.length; i++) {
+                int stride = (width + layouts[i][1] - 1) & ~(layouts[i][1] - 1);
+                int sliceHeight = (height + layouts[i][2] - 1) & ~(layouts[i][2] - 1);
+                int bufferSize = stride * sliceHeight * 3 / 2;
+                bufferSize = (bufferSize + layouts[i][3] - 1) & ~(layouts[i][3] - 1);
+                double[] framesPerSecond = benchmarkFrameConversion(layoutNames[i],
+                        layouts[i][0], width, height, stride, sliceHeight, bufferSize, frames);
+                Log.d(TAG, width + " x " + height + " " + layoutNames[i] +
+                        ". Single pass speedup: " + framesPerSecond[1] / framesPerSecond[0]);
+            }
+        }
+        Log.d(TAG, "testFrameConversionBenchmark PASSED");
+    }
+
+    /**
+     * Compare ChromaInterleaver kernels with the one sample at a time reference.
+     *
+     * Checks the kernels are bit exact for all sample counts up to 64, including
+     * odd ones handled by the scalar tail, then logs throughput of both at 720p
+     * for heap arrays, converted by the scalar loop, and for direct buffers,
+     * converted by the word kernels.
+     */
+    public void testChromaInterleaverBenchmark() throws Exception {
+        Log.d(TAG, "---------- testChromaInterleaverBenchmark ------------");
+        checkChromaInterleaver(64);
+        for (boolean direct : new boolean[] { false, true }) {
+            double[] framesPerSecond = benchmarkChromaInterleaver(1280, 720, 300, direct);
+            Log.d(TAG, (direct ? "Direct" : "Heap") + " buffers. Interleave speedup: " +
+                    framesPerSecond[1] / framesPerSecond[0] +
+                    ". De-interleave speedup: " + framesPerSecond[3] / framesPerSecond[2]);
+        }
+        Log.d(TAG, "testChromaInterleaverBenchmark PASSED");
+    }
+
+    /**
+     * Compare parallel row band frame conversion and scaling with the serial path.
+     *
+     * Runs every helper on frames up to 1080p split to at least 4 row bands,
+     * checks the output is identical to the serial one and logs time of both.
+     */
+    public void testParallelConversion() throws Exception {
+        int[][] resolutions = { { 320, 240 }, { 1280, 720 }, { 1920, 1080 } };
+        int threadCount = Math.max(4, Runtime.getRuntime().availableProcessors());
+        Log.d(TAG, "---------- testParallelConversion ------------");
+        for (int[] resolution : resolutions) {
+            double[] timeMs = checkParallelConversion(resolution[0], resolution[1], threadCount);
+            Log.d(TAG, resolution[0] + " x " + resolution[1] + ". Parallel speedup: " +
+                    timeMs[0] / timeMs[1]);
+        }
+        Log.d(TAG, "testParallelConversion PASSED");
+    }
+
+    /**
+     * Check polyphase scaler filters and measure per frame scaling speed.
+     *
+     * Verifies every filter, then scales 720p frames down to 540p and 360p
+     * and up to 1080p and logs frame rate of each.
+     */
+    public void testPolyphaseScaler() throws Exception {
+        int frames = 30;
+        int[] filters = { PolyphaseScaler.FILTER_BILINEAR, PolyphaseScaler.FILTER_BICUBIC,
+                PolyphaseScaler.FILTER_LANCZOS3 };
+        int[][] dstSizes = { { 960, 540 }, { 640, 360 }, { 1920, 1080 } };
+        Log.d(TAG, "---------- testPolyphaseScaler ------------");
+        for (int filter : filters) {
+            checkPolyphaseScaler(filter);
+            for (int[] dstSize : dstSizes) {
+                benchmarkPolyphaseScaler(1280, 720, dstSize[0], dstSize[1], filter, frames);
+            }
+        }
+        Log.d(TAG, "testPolyphaseScaler PASSED");
+    }
+
+    /**
+     * Check scaling the input to several resolutions in one pass.
+     *
+     * Scales QVGA input to itself, to 1:2 and 1:4 upscales - the latter
+     * reusing the 1:2 level - and to polyphase down- and up-scales at once,
+     * and compares every output with scaling each resolution separately.
+     */
+    public void testScaledImagePyramid() throws Exception {
+        Log.d(TAG, "---------- testScaledImagePyramid ------------");
+        CodecStreamParameters params = getDefaultCodecStreamParameters(
+                INPUT_YUV,
+                ENCODED_IVF_BASE,
+                1,
+                mWidth,
+                mHeight,
+                mFps,
+                BITRATE_MODE,
+                BITRATE_QVGA,
+                true);
+        int[][] dstSizes = { { mWidth, mHeight }, { 2 * mWidth, 2 * mHeight },
+                { 4 * mWidth, 3 * mHeight }, { mWidth / 2, mHeight / 2 },
+                { mWidth * 3 / 2, mHeight * 3 / 2 } };
+        checkScaledImagePyramid(params.inputYuvFilename, R.raw.football_qvga,
+                mWidth, mHeight, dstSizes);
+        Log.d(TAG, "testScaledImagePyramid PASSED");
+    }
+
+    /**
+     * Check decoding of an IVF file while it is being encoded.
+     *
+     * The decoder is started first and follows the encoded file frame by frame
+     * as the encoder writes it. Checks every encoded frame is decoded and the
+     * decoded stream quality.
+     */
+    public void testFollowEncodedIvf() throws Exception {
+        if (CURRENT_VP8_SDK_VERSION < MIN_VP8_SDK_VERSION) {
+            return;
+        }
+        int encodeSeconds = 3;
+        Log.d(TAG, "---------- testFollowEncodedIvf ------------");
+        CodecStreamParameters encParams = getDefaultCodecStreamParameters(
+                INPUT_YUV,
+                ENCODED_IVF_BASE,
+                encodeSeconds,
+                mWidth,
+                mHeight,
+                mFps,
+                BITRATE_MODE,
+                BITRATE_QVGA,
+                true);
+        final CodecStreamParameters decParams = getDefaultCodecStreamParameters(
+                INPUT_YUV,
+                ENCODED_IVF_BASE,
+                encodeSeconds,
+                mWidth,
+                mHeight,
+                mFps,
+                BITRATE_MODE,
+                BITRATE_QVGA,
+                true);
+        decParams.followEncodedIvf = true;
+        // The decoder would follow a file left by a previous test instead of waiting
+        // for the new one.
+        new File(encParams.encodedIvfFilename).delete();
+
+        final ArrayList<ArrayList<BufferInfo>> decoded = new ArrayList<ArrayList<BufferInfo>>();
+        final Throwable[] decodeError = new Throwable[1];
+        Thread decodeThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    decoded.add(decode(decParams));
+                } catch (Throwable e) {
+                    decodeError[0] = e;
+                }
+            }
+        });
+        decodeThread.start();
+        ArrayList<BufferInfo> bufInfoEnc;
+        try {
+            bufInfoEnc = encode(encParams);
+        } finally {
+            decodeThread.join();
+        }
+        if (decodeError[0] != null) {
+            throw new RuntimeException("Decoding of the followed IVF file failed",
+                    decodeError[0]);
+        }
+        ArrayList<BufferInfo> bufInfoDec = decoded.get(0);
+        averageCodecTimeUs(0, bufInfoDec);
+        computeDecodingStatistics(decParams.inputYuvFilename, R.raw.football_qvga,
+                decParams.outputYuvFilename, mWidth, mHeight);
+        assertEquals("Frame count", bufInfoEnc.size(), bufInfoDec.size());
+        Log.d(TAG, "testFollowEncodedIvf PASSED");
+    }
+
+    /**
+     * Check IVF files are split at key frames and concatenated back losslessly.
+     *
+     * Encodes 4 seconds with a key frame requested every second, splits the
+     * stream into one second segments and concatenates them back. Checks frame
+     * payloads and the rebuilt timeline, covering both the whole segment copy
+     * and the timestamp rebasing path.
+     */
+    public void testIvfSplitAndConcatenate() throws Exception {
+        if (CURRENT_VP8_SDK_VERSION < MIN_VP8_SDK_VERSION) {
+            return;
+        }
+        int encodeSeconds = 4;
+        Log.d(TAG, "---------- testIvfSplitAndConcatenate ------------");
+        CodecStreamParameters params = getDefaultCodecStreamParameters(
+                INPUT_YUV,
+                ENCODED_IVF_BASE,
+                encodeSeconds,
+                mWidth,
+                mHeight,
+                mFps,
+                BITRATE_MODE,
+                BITRATE_QVGA,
+                true);
+        params.syncForceFrameInterval = mFps;
+        encode(params);
+        int segments = checkIvfSplitAndConcatenate(params.encodedIvfFilename, mFps);
+        deleteTemporaryFiles(params);
+        assertTrue("Stream was not split, segments: " + segments, segments >= 2);
+        Log.d(TAG, "testIvfSplitAndConcatenate PASSED");
+    }
+
+    /**
+     * Check encoding statistics computed from an encoded file.
+     *
+     * Encodes 3 seconds with a key frame requested every second and compares
+     * key frame and bitrate statistics parsed from the IVF file frame headers
+     * with the statistics of encoder output buffers. Checks quantizer indices
+     * of all frames are valid.
+     */
+    public void testOfflineEncodingStatistics() throws Exception {
+        if (CURRENT_VP8_SDK_VERSION < MIN_VP8_SDK_VERSION) {
+            return;
+        }
+        int encodeSeconds = 3;
+        Log.d(TAG, "---------- testOfflineEncodingStatistics ------------");
+        CodecStreamParameters params = getDefaultCodecStreamParameters(
+                INPUT_YUV,
+                ENCODED_IVF_BASE,
+                encodeSeconds,
+                mWidth,
+                mHeight,
+                mFps,
+                BITRATE_MODE,
+                BITRATE_QVGA,
+                true);
+        params.syncForceFrameInterval = mFps;
+        ArrayList<BufferInfo> bufInfoEnc = encode(params);
+        checkOfflineEncodingStatistics(bufInfoEnc, params.encodedIvfFilename);
+        deleteTemporaryFiles(params);
+        Log.d(TAG, "testOfflineEncodingStatistics PASSED");
+    }
+
+    /**
+     * Check inline H.264 analysis of encoder output.
+     *
+     * Encodes 3 seconds to an H.264 elementary stream and compares slice type
+     * and QP of every frame analyzed while encoding with the analysis of the
+     * stored stream. The test is skipped if the tested codec is not H.264.
+     */
+    public void testAvcStreamAnalysis() throws Exception {
+        if (!isAvcCodec()) {
+            Log.d(TAG, "testAvcStreamAnalysis SKIPPED - codec is not video/avc");
+            return;
+        }
+        int encodeSeconds = 3;
+        Log.d(TAG, "---------- testAvcStreamAnalysis ------------");
+        CodecStreamParameters params = getDefaultCodecStreamParameters(
+                INPUT_YUV,
+                ENCODED_IVF_BASE,
+                encodeSeconds,
+                mWidth,
+                mHeight,
+                mFps,
+                BITRATE_MODE,
+                BITRATE_QVGA,
+                true);
+        params.encodedIvfFilename = SDCARD_DIR + File.separator + ENCODED_IVF_BASE +
+                "_" + mWidth + "x" + mHeight + ".h264";
+        params.syncForceFrameInterval = mFps;
+        ArrayList<BufferInfo> bufInfoEnc = encode(params);
+        checkAvcStreamAnalysis(bufInfoEnc, params.encodedIvfFilename, mWidth, mHeight, mFps);
+        deleteTemporaryFiles(params);
+        Log.d(TAG, "testAvcStreamAnalysis PASSED");
+    }
+
+    /**
+     * Check Java VP8 decoder output matches the MediaCodec decoder.
+     *
+     * Encodes 3 seconds, decodes the stream with MediaCodec, and with the Java
+     * decoder both by decode() and by decodeParallel() next to a MediaCodec
+     * decoder. Compares MD5 of every frame of all outputs with the MediaCodec
+     * output. The test is skipped if the tested codec is not VP8.
+     */
+    public void testJavaDecoderOutput() throws Exception {
+        if (CURRENT_VP8_SDK_VERSION < MIN_VP8_SDK_VERSION) {
+            return;
+        }
+        if (isAvcCodec()) {
+            Log.d(TAG, "testJavaDecoderOutput SKIPPED - codec is not VP8");
+            return;
+        }
+        int encodeSeconds = 3;
+        Log.d(TAG, "---------- testJavaDecoderOutput ------------");
+        ArrayList<CodecStreamParameters> params = new ArrayList<CodecStreamParameters>();
+        String[] outputSuffixes = { "", "_java", "_parallel", "_parallel_java" };
+        for (String suffix : outputSuffixes) {
+            CodecStreamParameters streamParams = getDefaultCodecStreamParameters(
+                    INPUT_YUV,
+                    ENCODED_IVF_BASE,
+                    encodeSeconds,
+                    mWidth,
+                    mHeight,
+                    mFps,
+                    BITRATE_MODE,
+                    BITRATE_QVGA,
+                    true);
+            streamParams.outputYuvFilename = streamParams.outputYuvFilename.replace(
+                    ".yuv", suffix + ".yuv");
+            streamParams.useJavaDecoder = suffix.endsWith("_java");
+            params.add(streamParams);
+        }
+        ArrayList<BufferInfo> bufInfoEnc = encode(params.get(0));
+
+        ArrayList<ArrayList<BufferInfo>> bufInfoDec = new ArrayList<ArrayList<BufferInfo>>();
+        bufInfoDec.add(decode(params.get(0)));
+        bufInfoDec.add(decode(params.get(1)));
+        bufInfoDec.addAll(decodeParallel(
+                new ArrayList<CodecStreamParameters>(params.subList(2, 4))));
+
+        ArrayList<String> expectedMd5 =
+                computeYuvFrameMd5(params.get(0).outputYuvFilename, mWidth, mHeight);
+        assertEquals("MediaCodec decoded frames", bufInfoEnc.size(), expectedMd5.size());
+        for (int i = 1; i < params.size(); i++) {
+            String output = params.get(i).outputYuvFilename;
+            ArrayList<String> md5 = computeYuvFrameMd5(output, mWidth, mHeight);
+            assertEquals("Decoded frames of " + output, expectedMd5.size(), md5.size());
+            assertEquals("Buffer infos of " + output, expectedMd5.size(),
+                    bufInfoDec.get(i).size());
+            for (int frame = 0; frame < md5.size(); frame++) {
+                assertEquals("MD5 of frame #" + frame + " of " + output,
+                        expectedMd5.get(frame), md5.get(frame));
+            }
+        }
+        deleteTemporaryFiles(params);
+        Log.d(TAG, "testJavaDecoderOutput PASSED");
+    }
+}
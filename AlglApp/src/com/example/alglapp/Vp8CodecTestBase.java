@@ -19,13 +19,14 @@ package com.example.alglapp;
 //package com.google.android.xts.media;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo.CodecCapabilities;
 import android.media.MediaCodecList;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.os.Bundle;
+import android.os.Debug;
 import android.os.Environment;
 import android.os.Looper;
 import android.os.Handler;
@@ -40,10 +41,19 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.ArrayList;
+import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Verification test for vp8 encoder and decoder.
@@ -60,6 +70,7 @@ public class Vp8CodecTestBase extends AndroidTestCase {
     //private static final String VPX_SW_DECODER_NAME = "OMX.google.vp8.decoder";
     //private static final String VPX_SW_ENCODER_NAME = "OMX.google.vp8.encoder";
     private static final String VP8_MIME = "video/avc";
+    private static final String AVC_MIME = "video/avc";
     private static final String VPX_SW_DECODER_NAME = "OMX.google.h264.decoder";
     private static final String VPX_SW_ENCODER_NAME = "OMX.google.h264.encoder";
     private static final String OMX_SW_CODEC_PREFIX = "OMX.google";
@@ -68,9 +79,32 @@ public class Vp8CodecTestBase extends AndroidTestCase {
 
     // Default timeout for MediaCodec buffer dequeue - 1000 ms.
     protected static final long DEFAULT_TIMEOUT_US = 1000000;
+    // Maximum number of frames tracked in flight through a codec - frames still in
+    // the codec after this number of newer frames are counted as dropped.
+    private static final int MAX_FRAMES_IN_FLIGHT = 64;
     // Default sync frame interval in frames (zero means allow the encoder to auto-select
     // key frame interval).
     private static final int SYNC_FRAME_INTERVAL = 0;
+    // Default number of encoded frames which can be queued for the IVF writer thread.
+    private static final int IVF_WRITE_QUEUE_DEPTH = 8;
+    // Arrays for frame conversion and codec output copies, shared by all codec loops.
+    private static final FrameBufferPool sFrameBufferPool = new FrameBufferPool();
+    // Smallest output of a frame conversion or scaling call which is split to
+    // parallel row bands - 128 KB.
+    private static final int PARALLEL_CONVERSION_MIN_BYTES = 128 * 1024;
+    // Row band threads for frame conversion and scaling, shared by all tests.
+    private static volatile RowBandExecutor sRowBandExecutor = new RowBandExecutor(
+            Runtime.getRuntime().availableProcessors(), PARALLEL_CONVERSION_MIN_BYTES);
+    // Filter of imageScale() for scale ratios other than 1:1, 1:2 and 1:4.
+    private static final int SCALING_FILTER = PolyphaseScaler.FILTER_BICUBIC;
+    // Polyphase scalers with precomputed filter tables, reused for every frame
+    // of the same size.
+    private static final ArrayList<PolyphaseScaler> sScalers = new ArrayList<PolyphaseScaler>();
+    // Granularity of pooled codec output copies, so encoded frames of similar
+    // size share the same pooled arrays - 64 KB.
+    private static final int OUTPUT_BUFFER_SIZE_ALIGNMENT = 65536;
+    // Frame rate written to Y4M output if stream parameters do not set one.
+    private static final int DEFAULT_FRAME_RATE = 30;
     // Video bitrate type - should be set to OMX_Video_ControlRateConstant from OMX_Video.h
     protected static final int VIDEO_ControlRateVariable = 1;
     protected static final int VIDEO_ControlRateConstant = 2;
@@ -189,6 +223,34 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         return codecProperties;
     }
 
+    /**
+     * Returns properties of the codec for the stream - the stand-in codec if the
+     * stream parameters ask for it, the codec found by getVp8CodecProperties() otherwise.
+     */
+    protected CodecProperties getCodecProperties(boolean isEncoder,
+            CodecStreamParameters params) throws Exception {
+        if (params.useStandInCodec) {
+            String name = isEncoder ?
+                    StandInCodecBackend.ENCODER_NAME : StandInCodecBackend.DECODER_NAME;
+            return new CodecProperties(name, CodecCapabilities.COLOR_FormatYUV420Planar);
+        }
+        return getVp8CodecProperties(isEncoder, params.forceSwCodec);
+    }
+
+    /**
+     * Adds stand-in codec latency and queue depth to the codec format.
+     */
+    private static void setStandInCodecParameters(MediaFormat format,
+            CodecStreamParameters params) {
+        if (!params.useStandInCodec) {
+            return;
+        }
+        format.setLong(StandInCodecBackend.KEY_FRAME_LATENCY_US, params.standInLatencyUs);
+        if (params.standInQueueDepth > 0) {
+            format.setInteger(StandInCodecBackend.KEY_QUEUE_DEPTH, params.standInQueueDepth);
+        }
+    }
+
     /**
      * Parameters for encoded and decoded video stream.
      */
@@ -241,6 +303,24 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         boolean runInLooperThread;
         // Decoding rate decimator - used to test base temporal layer decoding
         int decodingRateDecimator;
+        // Flag if decoder should follow encoded IVF file while it is still being written
+        // instead of relying on the frame count from the IVF header.
+        boolean followEncodedIvf;
+        // Number of encoded frames queued for the IVF writer thread, so storage
+        // latency does not stall the encoder. Zero means synchronous IVF writes.
+        int ivfWriteQueueDepth;
+        // Flag if VP8 IVF input should be decoded by the Java Vp8Decoder instead of
+        // MediaCodec, so decoding does not depend on the device codecs.
+        boolean useJavaDecoder;
+        // Number of threads used by the Java decoder. Zero means one thread per core.
+        int javaDecoderThreads;
+        // Flag if the in-process StandInCodecBackend should be used instead of the
+        // device codec, so the codec loops can run without codec components.
+        boolean useStandInCodec;
+        // Stand-in codec delay in microseconds between frame input and output.
+        long standInLatencyUs;
+        // Stand-in codec number of input and output buffers. Zero means default.
+        int standInQueueDepth;
     }
 
     /**
@@ -288,13 +368,13 @@ public class Vp8CodecTestBase extends AndroidTestCase {
             params.temporalLayers = 0;
             params.syncFrameInterval = SYNC_FRAME_INTERVAL;
             params.syncForceFrameInterval = 0;
+            params.ivfWriteQueueDepth = IVF_WRITE_QUEUE_DEPTH;
             if (syncEncoding) {
                 params.timeoutDequeue = DEFAULT_TIMEOUT_US;
                 params.runInLooperThread = false;
             } else {
                 params.timeoutDequeue = 0;
                 params.runInLooperThread = true;
-                continue; // FIXME add support for async
             }
             outputParameters.add(params);
         }
@@ -336,65 +416,104 @@ public class Vp8CodecTestBase extends AndroidTestCase {
     }
 
 
+    /**
+     * Replaces the executor running frame conversion and scaling in row bands.
+     *
+     * @return  Previous executor, which is not released.
+     */
+    protected static RowBandExecutor setRowBandExecutor(RowBandExecutor executor) {
+        RowBandExecutor previous = sRowBandExecutor;
+        sRowBandExecutor = executor;
+        return previous;
+    }
+
     /**
      * Converts (interleaves) YUV420 planar to NV12 (if hw) or NV21 (if sw).
      * Assumes packed, macroblock-aligned frame with no cropping
      * (visible/coded row length == stride).  Swap U/V if |sw|.
+     * Result is written to |nv| supplied by the caller.
+     * Bands of chroma rows and their luma rows are converted in parallel.
      */
-    private static byte[] YUV420ToNV(int width, int height, byte[] yuv, boolean sw) {
-        byte[] nv = new byte[yuv.length];
-        // Y plane we just copy.
-        System.arraycopy(yuv, 0, nv, 0, width * height);
-
+    private static byte[] YUV420ToNV(final int width, final int height, final byte[] yuv,
+            final byte[] nv, boolean sw) {
+        final int ySize = width * height;
+        final int chromaWidth = width / 2;
+        final int chromaHeight = height / 2;
+        final ChromaInterleaver.WordBuffer src = new ChromaInterleaver.WordBuffer(yuv);
+        final ChromaInterleaver.WordBuffer dst = new ChromaInterleaver.WordBuffer(nv);
         // U & V plane we interleave.
-        int u_offset = width * height;
-        int v_offset = u_offset + u_offset / 4;
-        int nv_offset = width * height;
-        if (sw) {
-            for (int i = 0; i < width * height / 4; i++) {
-                nv[nv_offset++] = yuv[v_offset++];
-                nv[nv_offset++] = yuv[u_offset++];
+        final int u_offset = sw ? ySize + ySize / 4 : ySize;
+        final int v_offset = sw ? ySize : ySize + ySize / 4;
+        sRowBandExecutor.run(chromaHeight, 3 * width, new RowBandExecutor.RowTask() {
+            @Override
+            public void processRows(int start, int end) {
+                // Y plane we just copy.
+                int lumaEnd = (end == chromaHeight) ? height : 2 * end;
+                System.arraycopy(yuv, 2 * start * width, nv, 2 * start * width,
+                        (lumaEnd - 2 * start) * width);
+                ChromaInterleaver.interleave(src, u_offset + start * chromaWidth,
+                        v_offset + start * chromaWidth, dst, ySize + start * width,
+                        (end - start) * chromaWidth);
             }
-        }
-        else {
-            for (int i = 0; i < width * height / 4; i++) {
-                nv[nv_offset++] = yuv[u_offset++];
-                nv[nv_offset++] = yuv[v_offset++];
-            }
-        }
+        });
         return nv;
     }
 
     /**
      * Converts (de-interleaves) NV12 to YUV420 planar.
      * Stride may be greater than width, slice height may be greater than height.
+     * Result is written to |yuv| supplied by the caller.
+     * Bands of chroma rows and their luma rows are converted in parallel.
      */
-    private static byte[] NV12ToYUV420(int width, int height,
-            int stride, int sliceHeight, byte[] nv12) {
-        byte[] yuv = new byte[width * height * 3 / 2];
-
-        // Y plane we just copy.
-        for (int i = 0; i < height; i++) {
-            System.arraycopy(nv12, i * stride, yuv, i * width, width);
-        }
-
-        // U & V plane - de-interleave.
-        int u_offset = width * height;
-        int v_offset = u_offset + u_offset / 4;
-        int nv_offset;
-        for (int i = 0; i < height / 2; i++) {
-            nv_offset = stride * (sliceHeight + i);
-            for (int j = 0; j < width / 2; j++) {
-                yuv[u_offset++] = nv12[nv_offset++];
-                yuv[v_offset++] = nv12[nv_offset++];
+    private static byte[] NV12ToYUV420(final int width, final int height,
+            final int stride, final int sliceHeight, final byte[] nv12, final byte[] yuv) {
+        final int chromaWidth = width / 2;
+        final int chromaHeight = height / 2;
+        final int u_offset = width * height;
+        final int v_offset = u_offset + u_offset / 4;
+        final ChromaInterleaver.WordBuffer src = new ChromaInterleaver.WordBuffer(nv12);
+        final ChromaInterleaver.WordBuffer dst = new ChromaInterleaver.WordBuffer(yuv);
+        sRowBandExecutor.run(chromaHeight, 3 * width, new RowBandExecutor.RowTask() {
+            @Override
+            public void processRows(int start, int end) {
+                // Y plane we just copy.
+                int lumaEnd = (end == chromaHeight) ? height : 2 * end;
+                for (int i = 2 * start; i < lumaEnd; i++) {
+                    System.arraycopy(nv12, i * stride, yuv, i * width, width);
+                }
+                // U & V plane - de-interleave.
+                for (int i = start; i < end; i++) {
+                    ChromaInterleaver.deinterleave(src, stride * (sliceHeight + i),
+                            dst, u_offset + i * chromaWidth, v_offset + i * chromaWidth,
+                            chromaWidth);
+                }
             }
-        }
+        });
         return yuv;
     }
 
+    /**
+     * Up-scales a plane 1:2 - bands of destination row pairs are scaled in parallel.
+     */
+    private static void imageUpscale1To2(final byte[] src, final int srcByteOffset,
+            final int srcStride, final byte[] dst, final int dstByteOffset,
+            final int dstWidth, final int dstHeight) {
+        sRowBandExecutor.run(dstHeight / 2, 2 * dstWidth, new RowBandExecutor.RowTask() {
+            @Override
+            public void processRows(int start, int end) {
+                imageUpscale1To2(src, srcByteOffset, srcStride,
+                        dst, dstByteOffset, dstWidth, dstHeight, start, end);
+            }
+        });
+    }
+
+    /**
+     * Up-scales destination row pairs |start| (inclusive) to |end| (exclusive)
+     * of a plane 1:2. Row pair i is interpolated from source rows i and i + 1.
+     */
     private static void imageUpscale1To2(byte[] src, int srcByteOffset, int srcStride,
-            byte[] dst, int dstByteOffset, int dstWidth, int dstHeight) {
-        for (int i = 0; i < dstHeight/2 - 1; i++) {
+            byte[] dst, int dstByteOffset, int dstWidth, int dstHeight, int start, int end) {
+        for (int i = start; i < Math.min(end, dstHeight/2 - 1); i++) {
             int dstOffset0 = 2 * i * dstWidth + dstByteOffset;
             int dstOffset1 = dstOffset0 + dstWidth;
             int srcOffset0 = i * srcStride + srcByteOffset;
@@ -417,6 +536,9 @@ public class Vp8CodecTestBase extends AndroidTestCase {
             dst[dstOffset1++] = (byte)((pixel00 + pixel10 + 1) / 2);
             dst[dstOffset1++] = (byte)((pixel00 + pixel10 + 1) / 2);
         }
+        if (end < dstHeight/2) {
+            return;
+        }
 
         // last row
         int dstOffset0 = (dstHeight - 2) * dstWidth + dstByteOffset;
@@ -439,27 +561,26 @@ public class Vp8CodecTestBase extends AndroidTestCase {
     }
 
     /**
-    * Up-scale image.
+    * Scale image.
     * Scale factor is defined by source and destination width ratio.
-    * Only 1:1 with height crop, 1:2 and 1:4 up-scaling is supported for now.
+    * 1:1 with height crop, 1:2 and 1:4 up-scaling is done by pixel interpolation.
     * For 640x480 -> 1280x720 conversion only top 640x360 part of the original
-    * image is scaled.
+    * image is scaled. Any other ratio - including downscaling - is done by the
+    * polyphase scaler using the whole image. Result is written to |dst| supplied
+    * by the caller.
     */
     private static byte[] imageScale(byte[] src, int srcWidth, int srcHeight,
-            int dstWidth, int dstHeight) throws Exception {
+            byte[] dst, int dstWidth, int dstHeight) throws Exception {
         int srcYSize = srcWidth * srcHeight;
         int dstYSize = dstWidth * dstHeight;
-        byte[] dst = null;
         if (dstWidth == srcWidth && dstHeight < srcHeight) {
             // 1:1 scale with height crop
-            dst = new byte[dstWidth * dstHeight * 3 / 2];
             System.arraycopy(src, 0, dst, 0, dstYSize);  // Y
             System.arraycopy(src, srcYSize, dst, dstYSize, dstYSize / 4);  // U
             System.arraycopy(src, srcYSize + srcYSize/4, dst, dstYSize + dstYSize/4, dstYSize / 4);
         }
         else if (dstWidth == 2 * srcWidth && dstHeight <= 2 * srcHeight) {
             // 1:2 upscale
-            dst = new byte[dstWidth * dstHeight * 3 / 2];
             imageUpscale1To2(src, 0, srcWidth,
                     dst, 0, dstWidth, dstHeight);                                 // Y
             imageUpscale1To2(src, srcYSize, srcWidth / 2,
@@ -470,86 +591,376 @@ public class Vp8CodecTestBase extends AndroidTestCase {
             // 1:4 upscale - in two steps
             int midWidth = 2 * srcWidth;
             int midHeight = 2 * srcHeight;
-            byte[] midBuffer = imageScale(src, srcWidth, srcHeight, midWidth, midHeight);
-            dst = imageScale(midBuffer, midWidth, midHeight, dstWidth, dstHeight);
+            byte[] midBuffer = sFrameBufferPool.acquire(midWidth * midHeight * 3 / 2);
+            imageScale(src, srcWidth, srcHeight, midBuffer, midWidth, midHeight);
+            imageScale(midBuffer, midWidth, midHeight, dst, dstWidth, dstHeight);
+            sFrameBufferPool.release(midBuffer);
 
         } else {
-            throw new RuntimeException("Can not find proper scaling function");
+            scaleYUV420(src, srcWidth, srcHeight, 0, 0, srcWidth, srcHeight,
+                    dst, dstWidth, dstHeight, SCALING_FILTER);
         }
         return dst;
     }
 
     /**
-     * Packs YUV420 frame by moving it to a smaller size buffer with stride and slice
-     * height equal to the original frame width and height.
-     */
-    private static byte[] PackYUV420(int width, int height,
-            int stride, int sliceHeight, byte[] src) {
-        byte[] dst = new byte[width * height * 3 / 2];
-        // Y copy.
-        for (int i = 0; i < height; i++) {
-            System.arraycopy(src, i * stride, dst, i * width, width);
-        }
-        // U and V copy.
-        int u_src_offset = stride * sliceHeight;
-        int v_src_offset = u_src_offset + u_src_offset / 4;
-        int u_dst_offset = width * height;
-        int v_dst_offset = u_dst_offset + u_dst_offset / 4;
-        for (int i = 0; i < height / 2; i++) {
-            System.arraycopy(src, u_src_offset + i * (stride / 2),
-                    dst, u_dst_offset + i * (width / 2), width / 2);
-            System.arraycopy(src, v_src_offset + i * (stride / 2),
-                    dst, v_dst_offset + i * (width / 2), width / 2);
+     * Returns a polyphase scaler for the given plane sizes and filter, creating
+     * it on first use.
+     */
+    protected static PolyphaseScaler getScaler(int srcWidth, int srcHeight,
+            int dstWidth, int dstHeight, int filter) {
+        synchronized (sScalers) {
+            for (PolyphaseScaler scaler : sScalers) {
+                if (scaler.matches(srcWidth, srcHeight, dstWidth, dstHeight, filter)) {
+                    return scaler;
+                }
+            }
+            PolyphaseScaler scaler =
+                    new PolyphaseScaler(srcWidth, srcHeight, dstWidth, dstHeight, filter);
+            sScalers.add(scaler);
+            return scaler;
         }
+    }
+
+    /**
+     * Scales a crop rectangle of a packed YUV420 planar frame to a packed
+     * |dstWidth| x |dstHeight| frame with the polyphase scaler. Crop rectangle
+     * position and size are in luma pixels and must be even.
+     */
+    protected static byte[] scaleYUV420(byte[] src, int srcWidth, int srcHeight,
+            int cropLeft, int cropTop, int cropWidth, int cropHeight,
+            byte[] dst, int dstWidth, int dstHeight, int filter) {
+        int srcYSize = srcWidth * srcHeight;
+        int dstYSize = dstWidth * dstHeight;
+        RowBandExecutor executor = sRowBandExecutor;
+        getScaler(cropWidth, cropHeight, dstWidth, dstHeight, filter).scale(
+                src, 0, srcWidth, cropLeft, cropTop,
+                dst, 0, dstWidth, executor);                                      // Y
+        PolyphaseScaler chromaScaler = getScaler(cropWidth / 2, cropHeight / 2,
+                dstWidth / 2, dstHeight / 2, filter);
+        chromaScaler.scale(src, srcYSize, srcWidth / 2, cropLeft / 2, cropTop / 2,
+                dst, dstYSize, dstWidth / 2, executor);                           // U
+        chromaScaler.scale(src, srcYSize * 5 / 4, srcWidth / 2, cropLeft / 2, cropTop / 2,
+                dst, dstYSize * 5 / 4, dstWidth / 2, executor);                   // V
+        return dst;
+    }
+
+    /**
+     * Packs YUV420 frame by moving it to a smaller size buffer with stride and slice
+     * height equal to the original frame width and height. Result is written to
+     * |dst| supplied by the caller.
+     * Bands of chroma rows and their luma rows are copied in parallel.
+     */
+    private static byte[] PackYUV420(final int width, final int height,
+            final int stride, final int sliceHeight, final byte[] src, final byte[] dst) {
+        final int chromaHeight = height / 2;
+        final int u_src_offset = stride * sliceHeight;
+        final int v_src_offset = u_src_offset + u_src_offset / 4;
+        final int u_dst_offset = width * height;
+        final int v_dst_offset = u_dst_offset + u_dst_offset / 4;
+        sRowBandExecutor.run(chromaHeight, 3 * width, new RowBandExecutor.RowTask() {
+            @Override
+            public void processRows(int start, int end) {
+                // Y copy.
+                int lumaEnd = (end == chromaHeight) ? height : 2 * end;
+                for (int i = 2 * start; i < lumaEnd; i++) {
+                    System.arraycopy(src, i * stride, dst, i * width, width);
+                }
+                // U and V copy.
+                for (int i = start; i < end; i++) {
+                    System.arraycopy(src, u_src_offset + i * (stride / 2),
+                            dst, u_dst_offset + i * (width / 2), width / 2);
+                    System.arraycopy(src, v_src_offset + i * (stride / 2),
+                            dst, v_dst_offset + i * (width / 2), width / 2);
+                }
+            }
+        });
         return dst;
     }
 
-    private void cacheScaledImage(
+    /**
+     * Returns size of the pooled array used to copy codec output of |size| bytes.
+     */
+    private static int roundUpOutputBufferSize(int size) {
+        return (size + OUTPUT_BUFFER_SIZE_ALIGNMENT - 1) & ~(OUTPUT_BUFFER_SIZE_ALIGNMENT - 1);
+    }
+
+    /**
+     * Saves decoded frame to a yuv file converting it to packed YUV420 planar
+     * format if necessary.
+     *
+     * Packed YUV420 planar output is written straight from the output buffer.
+     * Other layouts are converted by |converter| in a single pass to an array
+     * from the frame buffer pool.
+     */
+    private static void saveDecodedFrame(YuvFrameWriter yuv, MediaCodecOutput out,
+            int frameWidth, int frameHeight, FrameConverter converter) throws Exception {
+        int frameSize = frameWidth * frameHeight * 3 / 2;
+        int writeLength = Math.min(frameSize, out.size);
+        boolean packingRequired = writeLength < out.size &&
+                (out.stride > frameWidth || out.sliceHeight > frameHeight);
+        int layout = FrameConverter.getLayout(out.colorFormat);
+        if (layout == FrameConverter.LAYOUT_PLANAR && !packingRequired) {
+            ByteBuffer frame = out.data.duplicate();
+            frame.limit(frame.position() + writeLength);
+            yuv.writeFrame(frame);
+            return;
+        }
+        if (layout < 0) {
+            throw new RuntimeException("Unsupported decoder color format 0x" +
+                    Integer.toHexString(out.colorFormat));
+        }
+
+        byte[] frame = sFrameBufferPool.acquire(frameSize);
+        converter.toPackedI420(out.data, layout, frameWidth, frameHeight,
+                out.stride, out.sliceHeight, frame);
+        yuv.writeFrame(frame, 0, frameSize);
+        sFrameBufferPool.release(frame);
+    }
+
+    /**
+     * One resolution of the scaled image pyramid. A level is scaled from its
+     * parent level, the source frame is the root with no parent.
+     */
+    private static class ScaledLevel {
+        final int width;
+        final int height;
+        final ScaledLevel parent;
+        final int depth;
+        // Current frame of the level. Levels of the parent size share its frame.
+        byte[] frame;
+        final ArrayList<YuvFrameWriter> writers = new ArrayList<YuvFrameWriter>();
+
+        ScaledLevel(int width, int height, ScaledLevel parent) {
+            this.width = width;
+            this.height = height;
+            this.parent = parent;
+            this.depth = (parent == null) ? 0 : parent.depth + 1;
+        }
+
+        boolean isScaled() {
+            return parent != null && (width != parent.width || height != parent.height);
+        }
+    }
+
+    /**
+     * Creates scaled copies of the input of every stream whose resolution was
+     * not cached yet. Streams reading the same input are scaled in one pass.
+     */
+    private void cacheScaledImages(ArrayList<CodecStreamParameters> encodingParams,
+            int srcFrameWidth, int srcFrameHeight) throws Exception {
+        ArrayList<CodecStreamParameters> pending = new ArrayList<CodecStreamParameters>();
+        for (CodecStreamParameters params : encodingParams) {
+            Pair<Integer, Integer> dstDimension =
+                    new Pair<Integer, Integer>(params.frameWidth, params.frameHeight);
+            if (!mScaledImages.contains(dstDimension)) {
+                mScaledImages.add(dstDimension);
+                pending.add(params);
+            }
+        }
+        while (!pending.isEmpty()) {
+            CodecStreamParameters first = pending.get(0);
+            ArrayList<CodecStreamParameters> sameInput = new ArrayList<CodecStreamParameters>();
+            for (int i = pending.size() - 1; i >= 0; i--) {
+                CodecStreamParameters params = pending.get(i);
+                boolean sameFile = (first.inputYuvFilename == null) ?
+                        params.inputYuvFilename == null :
+                        first.inputYuvFilename.equals(params.inputYuvFilename);
+                if (sameFile && params.inputResourceId == first.inputResourceId) {
+                    sameInput.add(0, pending.remove(i));
+                }
+            }
+            String[] dstYuvFilenames = new String[sameInput.size()];
+            int[] dstFrameWidths = new int[sameInput.size()];
+            int[] dstFrameHeights = new int[sameInput.size()];
+            for (int i = 0; i < sameInput.size(); i++) {
+                dstYuvFilenames[i] = sameInput.get(i).scaledYuvFilename;
+                dstFrameWidths[i] = sameInput.get(i).frameWidth;
+                dstFrameHeights[i] = sameInput.get(i).frameHeight;
+            }
+            cacheScaledImages(first.inputYuvFilename, first.inputResourceId,
+                    srcFrameWidth, srcFrameHeight,
+                    dstYuvFilenames, dstFrameWidths, dstFrameHeights);
+        }
+    }
+
+    /**
+     * Scales a YUV420 input to several resolutions reading every input frame once.
+     *
+     * Resolutions form a pyramid: 1:4 levels are scaled from the 1:2 level, which
+     * is computed once per frame whether or not it is requested itself, other
+     * levels from the source. Levels of the same depth are scaled and written to
+     * their files in parallel, one pool thread per level, while the next source
+     * frame is read. Output files which already exist with the expected size are
+     * kept. Output frames are identical to scaling every resolution separately
+     * with imageScale().
+     */
+    private void cacheScaledImages(
             String srcYuvFilename, int srcResourceId,
             int srcFrameWidth, int srcFrameHeight,
-            String dstYuvFilename,
-            int dstFrameWidth, int dstFrameHeight,
-            int dstColor) throws Exception {
-        InputStream srcStream = OpenFileOrResourceId(srcYuvFilename, srcResourceId);
-        int srcFrameSize = srcFrameWidth * srcFrameHeight * 3 / 2;
-        byte[] srcFrame = new byte[srcFrameSize];
-        byte[] dstFrame = null;
-        Log.d(TAG, "Scale to " + dstFrameWidth + " x " + dstFrameHeight +
-                ". Clr: 0x" + Integer.toHexString(dstColor) + " -> " + dstYuvFilename);
-        // Check if scaling has already been done in previous tests
-        // and we have file of expected size on sdcard.
-        boolean runScaling = true;
-        int inputFrames = srcStream.available() / srcFrameSize;
-        int expectedFileSize = inputFrames * dstFrameWidth * dstFrameHeight * 3 / 2;
+            String[] dstYuvFilenames, int[] dstFrameWidths, int[] dstFrameHeights)
+            throws Exception {
+        YuvFrameSource srcYuv = OpenFileOrResourceId(srcYuvFilename, srcResourceId,
+                srcFrameWidth, srcFrameHeight);
+        int inputFrames = srcYuv.getFrameCount();
+        ScaledLevel source = new ScaledLevel(srcFrameWidth, srcFrameHeight, null);
+        ArrayList<ScaledLevel> levels = new ArrayList<ScaledLevel>();
+        int maxDepth = 0;
+        ExecutorService executor = null;
+        byte[][] srcFrames = new byte[2][];
         try {
-            FileInputStream existingDstFile =  new FileInputStream(dstYuvFilename);
-            int outputFileSize = existingDstFile.available();
-            existingDstFile.close();
-            if (outputFileSize == expectedFileSize) {
-                Log.d(TAG, "No scalig required - output file already exist.");
-                runScaling = false;
+            for (int i = 0; i < dstYuvFilenames.length; i++) {
+                int dstFrameWidth = dstFrameWidths[i];
+                int dstFrameHeight = dstFrameHeights[i];
+                Log.d(TAG, "Scale to " + dstFrameWidth + " x " + dstFrameHeight +
+                        " -> " + dstYuvFilenames[i]);
+                // Check if scaling has already been done in previous tests
+                // and we have file of expected size on sdcard.
+                int expectedFileSize = inputFrames * dstFrameWidth * dstFrameHeight * 3 / 2;
+                try {
+                    FileInputStream existingDstFile =  new FileInputStream(dstYuvFilenames[i]);
+                    int outputFileSize = existingDstFile.available();
+                    existingDstFile.close();
+                    if (outputFileSize == expectedFileSize) {
+                        Log.d(TAG, "No scalig required - output file already exist.");
+                        continue;
+                    }
+                } catch (Exception e) {
+                }
+
+                ScaledLevel parent = source;
+                if (dstFrameWidth == 4 * srcFrameWidth && dstFrameHeight <= 4 * srcFrameHeight) {
+                    // 1:4 upscale - from the 1:2 level.
+                    parent = getScaledLevel(levels, 2 * srcFrameWidth, 2 * srcFrameHeight,
+                            source);
+                }
+                ScaledLevel level = getScaledLevel(levels, dstFrameWidth, dstFrameHeight, parent);
+                level.writers.add(new YuvFrameWriter(dstYuvFilenames[i]));
+                maxDepth = Math.max(maxDepth, level.depth);
+            }
+            if (levels.isEmpty()) {
+                return;
             }
-        } catch (Exception e) {
-        }
 
-        if (runScaling) {
-            FileOutputStream dstFile = new FileOutputStream(dstYuvFilename, false);
-            while (true) {
-                int bytesRead = srcStream.read(srcFrame);
-                if (bytesRead != srcFrame.length) {
-                    break;
+            long startNs = System.nanoTime();
+            for (ScaledLevel level : levels) {
+                if (level.isScaled()) {
+                    level.frame = sFrameBufferPool.acquire(level.width * level.height * 3 / 2);
                 }
-                if (dstFrameWidth == srcFrameWidth && dstFrameHeight == srcFrameHeight) {
-                    dstFrame = srcFrame;
-                } else {
-                    dstFrame = imageScale(srcFrame, srcFrameWidth, srcFrameHeight,
-                            dstFrameWidth, dstFrameHeight);
+            }
+            srcFrames[0] = sFrameBufferPool.acquire(srcYuv.getFrameSize());
+            srcFrames[1] = sFrameBufferPool.acquire(srcYuv.getFrameSize());
+            executor = Executors.newFixedThreadPool(levels.size());
+            srcYuv.readFrame(0, srcFrames[0], 0);
+            for (int frameIndex = 0; frameIndex < inputFrames; frameIndex++) {
+                source.frame = srcFrames[frameIndex % 2];
+                for (int depth = 1; depth <= maxDepth; depth++) {
+                    ArrayList<Future<Void>> results = new ArrayList<Future<Void>>();
+                    for (final ScaledLevel level : levels) {
+                        if (level.depth != depth) {
+                            continue;
+                        }
+                        results.add(executor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws Exception {
+                                ScaledLevel parent = level.parent;
+                                if (level.isScaled()) {
+                                    imageScale(parent.frame, parent.width, parent.height,
+                                            level.frame, level.width, level.height);
+                                } else {
+                                    level.frame = parent.frame;
+                                }
+                                for (YuvFrameWriter writer : level.writers) {
+                                    writer.writeFrame(level.frame, 0, level.frame.length);
+                                }
+                                return null;
+                            }
+                        }));
+                    }
+                    Exception error = null;
+                    if (depth == 1 && frameIndex + 1 < inputFrames) {
+                        // Source frame of the previous iteration is no longer used.
+                        try {
+                            srcYuv.readFrame(frameIndex + 1, srcFrames[(frameIndex + 1) % 2], 0);
+                        } catch (Exception e) {
+                            error = e;
+                        }
+                    }
+                    // All levels of the depth are waited for even after a failure,
+                    // so no level task uses a writer or frame after they are released.
+                    boolean interrupted = false;
+                    for (Future<Void> result : results) {
+                        while (true) {
+                            try {
+                                result.get();
+                                break;
+                            } catch (InterruptedException e) {
+                                interrupted = true;
+                            } catch (ExecutionException e) {
+                                if (error == null) {
+                                    error = e;
+                                }
+                                break;
+                            }
+                        }
+                    }
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (error != null) {
+                        throw error;
+                    }
+                }
+            }
+            Log.d(TAG, "Scaled " + inputFrames + " frames to " + levels.size() +
+                    " resolutions in " + (System.nanoTime() - startNs) / 1000000 + " ms");
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+                // Pooled frames go back to the pool only after every level task
+                // has finished with them.
+                boolean interrupted = false;
+                while (true) {
+                    try {
+                        if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                            break;
+                        }
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            for (ScaledLevel level : levels) {
+                for (YuvFrameWriter writer : level.writers) {
+                    writer.close();
+                }
+                if (level.isScaled()) {
+                    sFrameBufferPool.release(level.frame);
                 }
-                dstFile.write(dstFrame);
             }
-            dstFile.close();
+            sFrameBufferPool.release(srcFrames[0]);
+            sFrameBufferPool.release(srcFrames[1]);
+            srcYuv.close();
+        }
+    }
+
+    /**
+     * Returns the pyramid level of the given size, adding it as a child of
+     * |parent| if there is none yet.
+     */
+    private static ScaledLevel getScaledLevel(ArrayList<ScaledLevel> levels,
+            int width, int height, ScaledLevel parent) {
+        for (ScaledLevel level : levels) {
+            if (level.width == width && level.height == height) {
+                return level;
+            }
         }
-        srcStream.close();
+        ScaledLevel level = new ScaledLevel(width, height, parent);
+        levels.add(level);
+        return level;
     }
 
     private boolean isResolutionSupported(int width, int height, boolean isEncoder) {
@@ -592,14 +1003,255 @@ public class Vp8CodecTestBase extends AndroidTestCase {
     }
 
     /**
-     * Helper function to return InputStream from either filename (if set)
-     * or resource id (if filename is not set).
+     * Helper function to return YuvFrameSource from either filename (if set)
+     * or resource id (if filename is not set). Resource is read in place from
+     * the apk if it is stored uncompressed, otherwise it is copied to the cache
+     * directory once. Y4M file geometry must match the expected one.
      */
-    private InputStream OpenFileOrResourceId(String filename, int resourceId) throws Exception {
+    private YuvFrameSource OpenFileOrResourceId(String filename, int resourceId,
+            int width, int height) throws Exception {
+        if (Y4mReader.isY4mFile(filename)) {
+            Y4mReader y4m = new Y4mReader(filename);
+            if (y4m.getWidth() != width || y4m.getHeight() != height) {
+                y4m.close();
+                throw new Exception(filename + " frame size " + y4m.getWidth() + " x " +
+                        y4m.getHeight() + " does not match " + width + " x " + height);
+            }
+            return y4m;
+        }
         if (filename != null) {
-            return new FileInputStream(filename);
+            return new YuvFrameSource(filename, width, height);
+        }
+        try {
+            AssetFileDescriptor assetFd = mResources.openRawResourceFd(resourceId);
+            if (assetFd != null) {
+                return new YuvFrameSource(assetFd, width, height, false);
+            }
+        } catch (Resources.NotFoundException e) {
+            // Compressed resource can not be opened as a file descriptor.
+        }
+
+        File cachedFile = new File(mContext.getCacheDir(), "raw_" + resourceId + ".yuv");
+        if (!cachedFile.exists()) {
+            Log.d(TAG, "Copy resource 0x" + Integer.toHexString(resourceId) + " to " +
+                    cachedFile);
+            File tempFile = new File(cachedFile.getPath() + ".tmp");
+            InputStream resourceStream = mResources.openRawResource(resourceId);
+            FileOutputStream tempStream = new FileOutputStream(tempFile, false);
+            byte[] buffer = new byte[65536];
+            int bytesRead;
+            while ((bytesRead = resourceStream.read(buffer)) != -1) {
+                tempStream.write(buffer, 0, bytesRead);
+            }
+            tempStream.close();
+            resourceStream.close();
+            if (!tempFile.renameTo(cachedFile)) {
+                throw new Exception("Can not create " + cachedFile);
+            }
+        }
+        return new YuvFrameSource(cachedFile.getPath(), width, height);
+    }
+
+    /**
+     * Helper function to create a writer for decoded frames. Y4M file is written
+     * if the file name has .y4m extension, raw YUV file otherwise.
+     */
+    private YuvFrameWriter createYuvFrameWriter(CodecStreamParameters params,
+            int width, int height) throws Exception {
+        if (!Y4mReader.isY4mFile(params.outputYuvFilename)) {
+            return new YuvFrameWriter(params.outputYuvFilename);
+        }
+        int frameRate = DEFAULT_FRAME_RATE;
+        if (params.frameRateSet != null && params.frameRateSet.length > 0) {
+            frameRate = params.frameRateSet[0];
+        }
+        return new Y4mWriter(params.outputYuvFilename, width, height,
+                frameRate, Math.max(1, params.decodingRateDecimator));
+    }
+
+    /**
+     * Source of codec input data, which writes a frame straight into a dequeued
+     * codec input buffer. The same frame may be requested again if the codec
+     * did not accept the input.
+     */
+    protected interface CodecInputSource {
+        /**
+         * Writes current frame to |buffer| starting at its position.
+         *
+         * @param bufferIndex  index of the codec input buffer - a source may keep
+         *                     per buffer state, e.g. views of the buffer.
+         * @return number of bytes written.
+         */
+        public int fillInputBuffer(int bufferIndex, ByteBuffer buffer) throws Exception;
+    }
+
+    /**
+     * Encoder input source reading raw YUV420 planar frames from a file.
+     * Frames are read straight into the codec input buffer and are converted
+     * to NV12 (if hw) or NV21 (if sw) there if the encoder needs it.
+     * Chroma scratch arrays come from the frame buffer pool, so reading a frame
+     * does not allocate.
+     */
+    protected static class YuvInputSource implements CodecInputSource {
+        private YuvFrameSource mSource;
+        private boolean mPlanar;
+        private boolean mSwapUV;
+        private int mFrameIndex;
+        private byte[] mChroma;
+        private ByteBuffer mChromaBuffer;
+        private ChromaInterleaver.WordBuffer mChromaWords;
+        // Word views of codec input buffers by buffer index.
+        private ByteBuffer[] mInputBuffers = new ByteBuffer[0];
+        private ChromaInterleaver.WordBuffer[] mInputWords = new ChromaInterleaver.WordBuffer[0];
+
+        public YuvInputSource(YuvFrameSource source, int colorFormat, boolean sw) {
+            int width = source.getWidth();
+            int height = source.getHeight();
+            mSource = source;
+            mPlanar = (colorFormat == CodecCapabilities.COLOR_FormatYUV420Planar);
+            mSwapUV = sw;
+            mFrameIndex = -1;
+            if (!mPlanar) {
+                mChroma = sFrameBufferPool.acquire(width * height / 2);
+                mChromaBuffer = ByteBuffer.wrap(mChroma);
+                mChromaWords = new ChromaInterleaver.WordBuffer(mChroma);
+            }
+        }
+
+        /**
+         * Moves to the next frame.
+         *
+         * @return false if the end of file was reached.
+         */
+        public boolean nextFrame() {
+            mFrameIndex++;
+            return mFrameIndex < mSource.getFrameCount();
+        }
+
+        /**
+         * Moves back to the beginning of file - nextFrame() will return the first frame.
+         */
+        public void rewind() {
+            mFrameIndex = -1;
+        }
+
+        @Override
+        public int fillInputBuffer(int bufferIndex, ByteBuffer buffer) throws Exception {
+            if (mPlanar) {
+                mSource.readFrame(mFrameIndex, buffer);
+                return mSource.getFrameSize();
+            }
+            // Y plane is read as is, U & V planes are interleaved straight
+            // into the codec buffer.
+            int ySize = mSource.getWidth() * mSource.getHeight();
+            int uvSize = ySize / 4;
+            mSource.readFrameData(mFrameIndex, 0, ySize, buffer);
+            mChromaBuffer.clear();
+            mSource.readFrameData(mFrameIndex, ySize, 2 * uvSize, mChromaBuffer);
+            int u_offset = mSwapUV ? uvSize : 0;
+            int v_offset = mSwapUV ? 0 : uvSize;
+            int chromaStart = buffer.position();
+            ChromaInterleaver.interleave(mChromaWords, u_offset, v_offset,
+                    getInputWords(bufferIndex, buffer), chromaStart, uvSize);
+            buffer.position(chromaStart + 2 * uvSize);
+            return mSource.getFrameSize();
+        }
+
+        /**
+         * Returns word view of the codec input buffer, created once per buffer index
+         * while the codec returns the same buffer object for the index.
+         */
+        private ChromaInterleaver.WordBuffer getInputWords(int bufferIndex, ByteBuffer buffer) {
+            if (bufferIndex >= mInputBuffers.length) {
+                int length = Math.max(bufferIndex + 1, 2 * mInputBuffers.length);
+                mInputBuffers = Arrays.copyOf(mInputBuffers, length);
+                mInputWords = Arrays.copyOf(mInputWords, length);
+            }
+            if (mInputBuffers[bufferIndex] != buffer) {
+                mInputBuffers[bufferIndex] = buffer;
+                mInputWords[bufferIndex] = new ChromaInterleaver.WordBuffer(buffer);
+            }
+            return mInputWords[bufferIndex];
+        }
+
+        public void close() throws Exception {
+            mSource.close();
+            sFrameBufferPool.release(mChroma);
+            mChroma = null;
+            mChromaBuffer = null;
+            mChromaWords = null;
+            mInputBuffers = null;
+            mInputWords = null;
+        }
+    }
+
+    /**
+     * Decoder input source reading encoded frames from an IVF or elementary
+     * stream file straight into the codec input buffer.
+     */
+    protected static class EncodedInputSource implements CodecInputSource {
+        private EncodedStreamReader mReader;
+        private int mFrameIndex;
+
+        public EncodedInputSource(EncodedStreamReader reader) {
+            mReader = reader;
+        }
+
+        /**
+         * Sets index of the frame to write to the next input buffer.
+         */
+        public void setFrameIndex(int frameIndex) {
+            mFrameIndex = frameIndex;
+        }
+
+        @Override
+        public int fillInputBuffer(int bufferIndex, ByteBuffer buffer) throws Exception {
+            return mReader.readFrame(mFrameIndex, buffer);
+        }
+    }
+
+    /**
+     * Helper function to create a writer for encoded frames. H.264 elementary
+     * stream is written if the file name has .h264 or .264 extension, IVF file
+     * with the fourcc of the codec mime type otherwise.
+     */
+    private EncodedStreamWriter createEncodedStreamWriter(CodecStreamParameters params)
+            throws Exception {
+        if (AnnexBReader.isAnnexBFile(params.encodedIvfFilename)) {
+            return new AnnexBWriter(params.encodedIvfFilename);
         }
-        return mResources.openRawResource(resourceId);
+        return new IvfWriter(params.encodedIvfFilename, IvfWriter.getFourcc(VP8_MIME),
+                params.frameWidth, params.frameHeight, params.ivfWriteQueueDepth);
+    }
+
+    /**
+     * Helper function to open encoded frames written by createEncodedStreamWriter().
+     * Frames are served from a memory mapping of the file.
+     */
+    private EncodedStreamReader openEncodedStream(CodecStreamParameters params)
+            throws Exception {
+        if (AnnexBReader.isAnnexBFile(params.encodedIvfFilename)) {
+            int frameRate = DEFAULT_FRAME_RATE;
+            if (params.frameRateSet != null && params.frameRateSet.length > 0) {
+                frameRate = params.frameRateSet[0];
+            }
+            return new AnnexBReader(params.encodedIvfFilename,
+                    params.frameWidth, params.frameHeight, frameRate, true);
+        }
+        return new IvfReader(params.encodedIvfFilename, true, true);
+    }
+
+    /**
+     * Sets codec configuration data as decoder format "csd-0" buffer.
+     */
+    private static void setCodecConfig(MediaFormat format, ByteBuffer config) {
+        if (config == null || !config.hasRemaining()) {
+            return;
+        }
+        ByteBuffer csd = ByteBuffer.allocate(config.remaining());
+        csd.put(config.duplicate());
+        csd.flip();
+        format.setByteBuffer("csd-0", csd);
     }
 
     /**
@@ -608,14 +1260,22 @@ public class Vp8CodecTestBase extends AndroidTestCase {
     protected class MediaCodecOutput {
         public long inPresentationTimeUs;
         public long outPresentationTimeUs;
-        public int inputRtcTimeUs;
-        public int outputRtcTimeUs;
+        public long inputRtcTimeUs;     // Time the frame was offered to the codec.
+        public long queueRtcTimeUs;     // Time the frame was queued to codec input buffer.
+        public long outputRtcTimeUs;    // Time the output buffer was dequeued.
         public int colorFormat;
         public int stride;
         public int sliceHeight;
         public boolean outputGenerated;
         public int flags;
-        public byte[] buffer;
+        public int size;            // Size of output data.
+        public byte[] buffer;       // Pooled copy of output data, may be longer than |size|.
+                                    // Null for direct output or if output data is disabled.
+        public ByteBuffer data;     // View of the output data - codec output buffer for
+                                    // direct output, |buffer| otherwise.
+        public int bufferIndex = -1; // Index of codec output buffer owned by the caller.
+        public int sliceType = -1;  // H.264 slice type of the first slice if analyzed.
+        public int qp = -1;         // H.264 QP of the first slice if analyzed.
     }
 
     /**
@@ -626,14 +1286,18 @@ public class Vp8CodecTestBase extends AndroidTestCase {
      * Function feedInput() is used to send raw video frame to the codec input. When codec
      * is configured to run in async mode the function will run in a looper thread.
      * Output frame can be retrieved by calling getOutput() function.
+     *
+     * On API 21+ MediaCodec codecs in async mode use MediaCodec callbacks instead - the
+     * looper thread only receives buffer ready callbacks, and feedInput() / getOutput()
+     * run in the callee's thread using buffers reported by the callbacks. Other codecs
+     * are switched to the same callback mode with dequeue threads of a
+     * DequeueThreadBackend when the caller waits for their buffers.
      */
-    protected class MediaCodecAsync extends Thread /* FIXME implements MediaCodec.NotificationCallback */ {
+    protected class MediaCodecAsync extends Thread {
         private int mId;
         private String mIdString;
-        private MediaCodec mCodec;
+        private VideoCodecBackend mCodec;
         private MediaFormat mFormat;
-        private ByteBuffer[] mInputBuffers;
-        private ByteBuffer[] mOutputBuffers;
         private int mInputFrameIndex;
         private int mOutputFrameIndex;
         private int mInputBufIndex;
@@ -642,6 +1306,9 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         private long mInPresentationTimeUs;
         private long mOutPresentationTimeUs;
         private boolean mAsync;
+        // Flag if codec buffers are reported by MediaCodec callbacks or dequeue
+        // threads, so codec calls are made in the callee's thread.
+        private boolean mCallbackMode;
         private boolean mIsEncoder;
         // Flag indicating if input frame was consumed by the encoder in feedInput() call.
         private boolean mConsumedInput;
@@ -651,10 +1318,11 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         // with looper thread has been allocated.
         private final Object mThreadEvent = new Object();
         // Object used to signal that MediaCodec buffer dequeue notification callback
-        // was received.
-        private final Object mCallbackEvent = new Object();
+        // was received. Shared by all codecs of a CodecBufferWaiter.
+        private volatile Object mCallbackEvent = new Object();
         private Handler mHandler;
-        private boolean mCallbackReceived;
+        // Total time the caller waited for this codec to become ready.
+        private long mBufferWaitTimeUs;
         // Frame width, height, stride, slice height and color format received
         // during INFO_OUTPUT_FORMAT_CHANGED message
         private int mWidth;
@@ -664,18 +1332,20 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         private int mColorFormat;
         // Profiling variables
         private long mStartRtcTimeNs; // codec start time in ns
-        private ArrayList<Integer> mInputRtcTimeUs;  // time at which frame was fed to codec
+        private InFlightFrameTracker mFramesInFlight; // input times of frames in the codec
         // Enable reading data from codec output
         public boolean mOutputDataEnable = true;
+        // Return codec output buffer view instead of a copy. Caller owns the
+        // buffer until it is returned to the codec by releaseOutput() call.
+        public boolean mOutputBufferDirect = false;
+        // Optional H.264 analyzer run on every output buffer before it is released.
+        public H264StreamAnalyzer mStreamAnalyzer = null;
 
 
-        /* FIXME @Override */
-        public void onCodecNotify(MediaCodec codec) {
+        private void onCodecNotify() {
             synchronized (mCallbackEvent) {
-                mCallbackReceived = true;
-                mCallbackEvent.notify();
+                mCallbackEvent.notifyAll();
             }
-            return;
         }
 
         private synchronized void requestStart() throws Exception {
@@ -700,7 +1370,7 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         }
 
         private void runCallable(final Callable<?> callable) throws Exception {
-            if (mAsync) {
+            if (mAsync && !mCallbackMode) {
                 final Exception[] exception = new Exception[1];
                 final CountDownLatch countDownLatch = new CountDownLatch(1);
                 mHandler.post( new Runnable() {
@@ -751,32 +1421,30 @@ public class Vp8CodecTestBase extends AndroidTestCase {
             mInPresentationTimeUs = 0;
             mOutPresentationTimeUs = 0;
             mStartRtcTimeNs = -1;
-            mInputRtcTimeUs = new ArrayList<Integer>();
+            mFramesInFlight = new InFlightFrameTracker(MAX_FRAMES_IN_FLIGHT);
 
             mWidth = format.getInteger(MediaFormat.KEY_WIDTH);
             mStride = mWidth;
             mHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
             mSliceHeight = mHeight;
             mColorFormat = format.getInteger(MediaFormat.KEY_COLOR_FORMAT);
-            int flags;
-            if (mIsEncoder) {
-                mIdString = "Enc" + mId;
-                flags = MediaCodec.CONFIGURE_FLAG_ENCODE;
-            } else {
-                mIdString = "Dec" + mId;
-                flags = 0;
-            }
+            mIdString = (mIsEncoder ? "Enc" : "Dec") + mId;
 
-            mCodec = MediaCodec.createByCodecName(name);
-            mCodec.configure(mFormat, null, null, flags);
-            mCodec.start();
-            if (mAsync) {
-                /* FIXME mCodec.setNotificationCallback(this); */
+            if (StandInCodecBackend.isStandInCodec(name)) {
+                mCodec = new StandInCodecBackend(name);
+            } else {
+                MediaCodecBackend codec = new MediaCodecBackend(name);
+                if (mAsync && MediaCodecBackend.isAsyncModeSupported()) {
+                    codec.setAsyncMode(new Runnable() {
+                        @Override
+                        public void run() {
+                            onCodecNotify();
+                        }
+                    });
+                }
+                mCodec = codec;
             }
-            mInputBuffers = mCodec.getInputBuffers();
-            mOutputBuffers = mCodec.getOutputBuffers();
-            Log.d(TAG, "Input buffers: " + mInputBuffers.length +
-                ". Output buffers: " + mOutputBuffers.length);
+            mCodec.configure(mFormat, mIsEncoder);
         }
 
 
@@ -795,26 +1463,32 @@ public class Vp8CodecTestBase extends AndroidTestCase {
                     return null;
                 }
             } );
+            // Codec is created in the looper thread, so callbacks are delivered there.
+            mCallbackMode = mAsync && (mCodec instanceof MediaCodecBackend) &&
+                    MediaCodecBackend.isAsyncModeSupported();
         }
 
-        private void feedInputInternal(final byte[] frame, final int timestamp,
-                final boolean inputEOS) {
+        private void feedInputInternal(final ByteBuffer frame, final CodecInputSource source,
+                final long timestamp, final boolean inputEOS) throws Exception {
             if (mStartRtcTimeNs < 0) {
                 mStartRtcTimeNs = SystemClock.elapsedRealtimeNanos();
             }
-            int inputRtcTimeUs =
-                    (int)((SystemClock.elapsedRealtimeNanos() - mStartRtcTimeNs) / 1000);
+            long inputRtcTimeUs = (SystemClock.elapsedRealtimeNanos() - mStartRtcTimeNs) / 1000;
             mConsumedInput = false;
             // Feed input
             mInputBufIndex = mCodec.dequeueInputBuffer(mTimeout);
 
             if (mInputBufIndex >= 0) {
-                mInputRtcTimeUs.add(inputRtcTimeUs);
-                ByteBuffer frameBuffer = ByteBuffer.wrap(frame);
-                mInputBuffers[mInputBufIndex].clear();
-                mInputBuffers[mInputBufIndex].put(frameBuffer);
-                mInputBuffers[mInputBufIndex].rewind();
-                int frameLength = frame.length;
+                int frameLength = 0;
+                ByteBuffer inputBuffer = mCodec.getInputBuffer(mInputBufIndex);
+                inputBuffer.clear();
+                if (source == null) {
+                    frameLength = frame.remaining();
+                    inputBuffer.put(frame.duplicate());
+                } else if (!inputEOS || !mIsEncoder) {
+                    frameLength = source.fillInputBuffer(mInputBufIndex, inputBuffer);
+                }
+                inputBuffer.rewind();
                 int flags = 0;
                 if (inputEOS) {
                     Log.d(TAG, "---" + mIdString + " input EOS for frame # " + mInputFrameIndex);
@@ -832,6 +1506,11 @@ public class Vp8CodecTestBase extends AndroidTestCase {
                     mInputFrameIndex++;
                 }
 
+                if (frameLength > 0) {
+                    long queueRtcTimeUs =
+                            (SystemClock.elapsedRealtimeNanos() - mStartRtcTimeNs) / 1000;
+                    mFramesInFlight.add(mInPresentationTimeUs, inputRtcTimeUs, queueRtcTimeUs);
+                }
                 mCodec.queueInputBuffer(
                         mInputBufIndex,
                         0,  // offset
@@ -841,15 +1520,41 @@ public class Vp8CodecTestBase extends AndroidTestCase {
 
                 mConsumedInput = true;
             }
-            mCallbackReceived = false;
         }
 
-        public boolean feedInput(final byte[] encFrame, final int timestamp,
+        public boolean feedInput(final byte[] encFrame, final long timestamp,
+                final boolean inputEOS) throws Exception {
+            return feedInput(ByteBuffer.wrap(encFrame), timestamp, inputEOS);
+        }
+
+        /**
+         * Feeds frame data between position and limit of the buffer to the codec input.
+         * Buffer position is not modified, so the same buffer can be fed again
+         * if the codec did not consume it.
+         */
+        public boolean feedInput(final ByteBuffer frame, final long timestamp,
                 final boolean inputEOS) throws Exception {
             runCallable( new Callable<Void>() {
                 @Override
                 public Void call() throws Exception {
-                    feedInputInternal(encFrame, timestamp, inputEOS);
+                    feedInputInternal(frame, null, timestamp, inputEOS);
+                    return null;
+                }
+            } );
+            return mConsumedInput;
+        }
+
+        /**
+         * Feeds frame provided by the source to the codec input. The source writes
+         * the frame straight into the codec input buffer. Encoder source is not
+         * asked for data when input EOS is signalled.
+         */
+        public boolean feedInput(final CodecInputSource source, final long timestamp,
+                final boolean inputEOS) throws Exception {
+            runCallable( new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    feedInputInternal(null, source, timestamp, inputEOS);
                     return null;
                 }
             } );
@@ -866,9 +1571,7 @@ public class Vp8CodecTestBase extends AndroidTestCase {
             int result = mCodec.dequeueOutputBuffer(mBufferInfo, mTimeout);
             while (result == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED ||
                     result == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                if (result == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    mOutputBuffers = mCodec.getOutputBuffers();
-                } else if (result == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                if (result == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                     mFormat = mCodec.getOutputFormat();
                     Log.d(TAG, "Format changed: " + mFormat.toString());
                     mWidth = mFormat.getInteger(MediaFormat.KEY_WIDTH);
@@ -893,18 +1596,49 @@ public class Vp8CodecTestBase extends AndroidTestCase {
 
             if (result >= 0) {
                 int outputBufIndex = result;
-                mOutput.buffer = new byte[mBufferInfo.size];
-                if (mOutputDataEnable && mBufferInfo.size > 0) {
-                    mOutputBuffers[outputBufIndex].position(mBufferInfo.offset);
-                    mOutputBuffers[outputBufIndex].get(mOutput.buffer, 0, mBufferInfo.size);
+                ByteBuffer outputBuffer = mCodec.getOutputBuffer(outputBufIndex);
+                boolean releaseOutputBuffer = true;
+                mOutput.size = mBufferInfo.size;
+                mOutput.sliceType = -1;
+                mOutput.qp = -1;
+                if (mStreamAnalyzer != null && mBufferInfo.size > 0 &&
+                        mStreamAnalyzer.analyze(outputBuffer,
+                                mBufferInfo.offset, mBufferInfo.size)) {
+                    mOutput.sliceType = mStreamAnalyzer.sliceType;
+                    mOutput.qp = mStreamAnalyzer.qp;
+                }
+                if (mOutputDataEnable && mOutputBufferDirect) {
+                    ByteBuffer data = outputBuffer.duplicate();
+                    data.limit(mBufferInfo.offset + mBufferInfo.size);
+                    data.position(mBufferInfo.offset);
+                    mOutput.data = data;
+                    mOutput.bufferIndex = outputBufIndex;
+                    releaseOutputBuffer = false;
+                } else if (mOutputDataEnable) {
+                    // Copy to a pooled array, returned to the pool by releaseOutput().
+                    mOutput.buffer = sFrameBufferPool.acquire(
+                            roundUpOutputBufferSize(mBufferInfo.size));
+                    outputBuffer.position(mBufferInfo.offset);
+                    outputBuffer.get(mOutput.buffer, 0, mBufferInfo.size);
+                    mOutput.data = ByteBuffer.wrap(mOutput.buffer, 0, mBufferInfo.size);
                 }
                 //Log.v(TAG, mOutput.buffer[0] + " " + mOutput.buffer[1] + " " + mOutput.buffer[2] + " " + mOutput.buffer[3] + " " + mOutput.buffer[4] + " " + mOutput.buffer[5]);
                 mOutPresentationTimeUs = mBufferInfo.presentationTimeUs;
-                if (mInputRtcTimeUs.size() > 0) {
-                    mOutput.inputRtcTimeUs = mInputRtcTimeUs.remove(0);
-                }
                 mOutput.outputRtcTimeUs =
-                        (int)((SystemClock.elapsedRealtimeNanos() - mStartRtcTimeNs) / 1000);
+                        (SystemClock.elapsedRealtimeNanos() - mStartRtcTimeNs) / 1000;
+                // Codec config and empty EOS buffers do not carry an input frame.
+                if (mBufferInfo.size > 0 &&
+                        (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 &&
+                        mFramesInFlight.remove(mBufferInfo.presentationTimeUs)) {
+                    mOutput.inputRtcTimeUs = mFramesInFlight.getEnqueueTimeUs();
+                    mOutput.queueRtcTimeUs = mFramesInFlight.getQueueTimeUs();
+                } else {
+                    mOutput.inputRtcTimeUs = mOutput.outputRtcTimeUs;
+                    mOutput.queueRtcTimeUs = mOutput.outputRtcTimeUs;
+                }
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    mFramesInFlight.flush();
+                }
 
                 String logStr = mIdString + ". Frame # " + mOutputFrameIndex;
                 if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
@@ -926,7 +1660,9 @@ public class Vp8CodecTestBase extends AndroidTestCase {
                         ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) ) {
                     throw new RuntimeException("First frame is not a sync frame.");
                 }*/
-                mCodec.releaseOutputBuffer(outputBufIndex, false);
+                if (releaseOutputBuffer) {
+                    mCodec.releaseOutputBuffer(outputBufIndex);
+                }
 
                 if (mBufferInfo.size > 0) {
                     mOutputFrameIndex++;
@@ -940,7 +1676,6 @@ public class Vp8CodecTestBase extends AndroidTestCase {
                 }
                 mOutput.outputGenerated = true;
             }
-            mCallbackReceived = false;
         }
 
         public MediaCodecOutput getOutput() throws Exception {
@@ -954,51 +1689,123 @@ public class Vp8CodecTestBase extends AndroidTestCase {
             return mOutput;
         }
 
+        /**
+         * Returns codec output buffer obtained by getOutput() in direct output mode
+         * back to the codec, or the output copy back to the buffer pool. Output data
+         * must not be used after this call.
+         */
+        public void releaseOutput(final MediaCodecOutput output) throws Exception {
+            if (output.buffer != null) {
+                sFrameBufferPool.release(output.buffer);
+                output.buffer = null;
+                output.data = null;
+            }
+            if (output.bufferIndex < 0) {
+                return;
+            }
+            runCallable( new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    mCodec.releaseOutputBuffer(output.bufferIndex);
+                    return null;
+                }
+            } );
+            output.bufferIndex = -1;
+            output.data = null;
+        }
+
         public void forceSyncFrame() throws Exception {
-            final Bundle syncFrame = new Bundle();
-            syncFrame.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
             runCallable( new Callable<Void>() {
                 @Override
                 public Void call() throws Exception {
-                    mCodec.setParameters(syncFrame);
+                    mCodec.requestSyncFrame();
                     return null;
                 }
             } );
         }
 
-        public void updateBitrate(int bitrate) throws Exception {
-            final Bundle bitrateUpdate = new Bundle();
-            bitrateUpdate.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        public void updateBitrate(final int bitrate) throws Exception {
             runCallable( new Callable<Void>() {
                 @Override
                 public Void call() throws Exception {
-                    mCodec.setParameters(bitrateUpdate);
+                    mCodec.setVideoBitrate(bitrate);
                     return null;
                 }
             } );
         }
 
+        /**
+         * Tells if the codec has output, or has an input buffer if the last
+         * feedInput() call could not get one. Only known in callback mode - must
+         * be called with mCallbackEvent held.
+         */
+        private boolean isBufferReady() {
+            AsyncCodecBackend codec = (AsyncCodecBackend)mCodec;
+            return codec.hasOutputBuffer() || (!mConsumedInput && codec.hasInputBuffer());
+        }
+
+        /**
+         * Switches a codec which is not in callback mode to it - buffers are
+         * dequeued by DequeueThreadBackend threads, which notify mCallbackEvent,
+         * and the dequeue calls of this object no longer block. Must not be
+         * called while the caller owns an input buffer.
+         */
+        private void startDequeueThreads() {
+            if (mCallbackMode) {
+                return;
+            }
+            DequeueThreadBackend codec = new DequeueThreadBackend(mCodec, new Runnable() {
+                @Override
+                public void run() {
+                    onCodecNotify();
+                }
+            });
+            codec.start();
+            mCodec = codec;
+            mTimeout = 0;
+            mCallbackMode = true;
+        }
+
+        /**
+         * Waits until the codec has output, or has an input buffer if the last
+         * feedInput() call could not get one. A codec which neither reports
+         * buffers with callbacks nor blocks in the dequeue calls is switched to
+         * callback mode.
+         */
         public void waitForBufferEvent() throws Exception {
-            if (mAsync) {
+            long startNs = System.nanoTime();
+            if (!mCallbackMode && mTimeout == 0) {
+                startDequeueThreads();
+            }
+            if (mCallbackMode) {
                 synchronized (mCallbackEvent) {
-                    if (!mCallbackReceived) {
-                        mCallbackEvent.wait(1000); // wait 1 sec for a callback
+                    long deadlineMs = System.currentTimeMillis() + 1000; // wait 1 sec
+                    while (!isBufferReady()) {
+                        long waitMs = deadlineMs - System.currentTimeMillis();
                         // throw an exception if callback was not received
-                        if (!mCallbackReceived) {
+                        if (waitMs <= 0) {
                             throw new RuntimeException("MediaCodec callback was not received");
                         }
+                        mCallbackEvent.wait(waitMs);
                     }
                 }
-            } else {
-                Thread.sleep(2);
             }
+            // Codecs running with dequeue timeout have already waited in the dequeue calls.
+            mBufferWaitTimeUs += (System.nanoTime() - startNs) / 1000;
+        }
+
+        /**
+         * Returns total time spent in waitForBufferEvent() calls and in
+         * CodecBufferWaiter waits while this codec was idle.
+         */
+        public long getBufferWaitTimeUs() {
+            return mBufferWaitTimeUs;
         }
 
         public void deleteCodec() throws Exception {
             runCallable( new Callable<Void>() {
                 @Override
                 public Void call() throws Exception {
-                    mCodec.stop();
                     mCodec.release();
                     return null;
                 }
@@ -1006,6 +1813,70 @@ public class Vp8CodecTestBase extends AndroidTestCase {
             if (mAsync) {
                 requestStop(); // Stop looper thread
             }
+            Log.d(TAG, mIdString + " buffer wait time: " + mBufferWaitTimeUs / 1000 + " ms");
+            if (mFramesInFlight.getDroppedFrames() > 0 ||
+                    mFramesInFlight.getUnmatchedFrames() > 0) {
+                Log.d(TAG, mIdString + " dropped frames: " + mFramesInFlight.getDroppedFrames() +
+                        ". Unmatched output frames: " + mFramesInFlight.getUnmatchedFrames());
+            }
+        }
+    }
+
+    /**
+     * Waits for any codec of a multi-codec loop to become ready, instead of waiting
+     * for a single codec while others may already have buffers available.
+     *
+     * Codecs in callback mode share one event object, so a buffer callback from any
+     * of them wakes the waiter. Other codecs are switched to callback mode with
+     * dequeue threads, so a codec blocked in a dequeue call never delays a codec
+     * which is ready. Time spent waiting is added to the wait time of every idle
+     * codec.
+     */
+    protected class CodecBufferWaiter {
+        private final Object mEvent = new Object();
+        private final MediaCodecAsync[] mCodecs;
+
+        public CodecBufferWaiter(MediaCodecAsync[] codecs) {
+            mCodecs = codecs;
+            for (MediaCodecAsync codec : codecs) {
+                codec.mCallbackEvent = mEvent;
+                codec.startDequeueThreads();
+            }
+        }
+
+        /**
+         * Waits until any of the idle codecs has a buffer available.
+         *
+         * @param idle  Flags of the codecs which could not make progress in the last
+         *              feed/drain pass - other codecs are not waited for.
+         */
+        public void waitForAnyBufferEvent(boolean[] idle) throws Exception {
+            long startNs = System.nanoTime();
+            synchronized (mEvent) {
+                long deadlineMs = System.currentTimeMillis() + 1000; // wait 1 sec for a callback
+                while (!isAnyBufferReady(idle)) {
+                    long waitMs = deadlineMs - System.currentTimeMillis();
+                    if (waitMs <= 0) {
+                        throw new RuntimeException("MediaCodec callback was not received");
+                    }
+                    mEvent.wait(waitMs);
+                }
+            }
+            long waitTimeUs = (System.nanoTime() - startNs) / 1000;
+            for (int i = 0; i < mCodecs.length; i++) {
+                if (idle[i]) {
+                    mCodecs[i].mBufferWaitTimeUs += waitTimeUs;
+                }
+            }
+        }
+
+        private boolean isAnyBufferReady(boolean[] idle) {
+            for (int i = 0; i < mCodecs.length; i++) {
+                if (idle[i] && mCodecs[i].isBufferReady()) {
+                    return true;
+                }
+            }
+            return false;
         }
     }
 
@@ -1016,7 +1887,7 @@ public class Vp8CodecTestBase extends AndroidTestCase {
     public final static class BufferInfo {
         public void set(
                 int newSize, long newTimeUs, long newTimeUsDelta,
-                int newInputRtcTimeUs, int newOutputRtcTimeUs, int newFlags) {
+                long newInputRtcTimeUs, long newOutputRtcTimeUs, int newFlags) {
             size = newSize;
             presentationTimeUs = newTimeUs;
             presentationTimeUsDelta = newTimeUsDelta;
@@ -1028,9 +1899,11 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         public int size;
         public long presentationTimeUs;
         public long presentationTimeUsDelta;
-        public int inputRtcTimeUs;
-        public int outputRtcTimeUs;
+        public long inputRtcTimeUs;
+        public long outputRtcTimeUs;
         public int flags;
+        public int sliceType = -1;  // H.264 slice type of the first slice if analyzed.
+        public int qp = -1;         // H.264 QP of the first slice if analyzed.
     }
 
     /**
@@ -1047,27 +1920,50 @@ public class Vp8CodecTestBase extends AndroidTestCase {
      */
     protected ArrayList<BufferInfo> decode(
             CodecStreamParameters streamParams) throws Exception {
+        if (streamParams.useJavaDecoder) {
+            return decodeWithJavaDecoder(streamParams);
+        }
         ArrayList<BufferInfo> bufferInfos = new ArrayList<BufferInfo>();
-        CodecProperties properties = getVp8CodecProperties(false, streamParams.forceSwCodec);
-        // Open input/output.
-        IvfReader ivf = new IvfReader(streamParams.encodedIvfFilename);
-        int frameWidth = ivf.getWidth();
-        int frameHeight = ivf.getHeight();
-        int frameCount = ivf.getFrameCount();
+        CodecProperties properties = getCodecProperties(false, streamParams);
+        // Open input/output. Encoded file is memory mapped to avoid per frame allocations
+        // and IVF frame index is cached in a sidecar file for repeated decoding.
+        // An IVF file which is still being written is followed frame by frame.
+        EncodedStreamReader ivf = null;
+        EncodedInputSource ivfInput = null;
+        IvfStreamReader ivfStream = null;
+        ByteBuffer codecConfig;
+        int frameWidth;
+        int frameHeight;
+        int frameCount = 0;
+        if (streamParams.followEncodedIvf) {
+            ivfStream = new IvfStreamReader(streamParams.encodedIvfFilename);
+            frameWidth = ivfStream.getWidth();
+            frameHeight = ivfStream.getHeight();
+            assertTrue(ivfStream.hasNextFrame());
+            codecConfig = ivfStream.getCodecConfig();
+        } else {
+            ivf = openEncodedStream(streamParams);
+            ivfInput = new EncodedInputSource(ivf);
+            frameWidth = ivf.getWidth();
+            frameHeight = ivf.getHeight();
+            frameCount = ivf.getFrameCount();
+            assertTrue(frameCount > 0);
+            codecConfig = ivf.getCodecConfig();
+        }
         assertTrue(frameWidth > 0);
         assertTrue(frameHeight > 0);
-        assertTrue(frameCount > 0);
 
-        FileOutputStream yuv = null;
+        YuvFrameWriter yuv = null;
         if (streamParams.outputYuvFilename != null) {
-            yuv = new FileOutputStream(streamParams.outputYuvFilename, false);
+            yuv = createYuvFrameWriter(streamParams, frameWidth, frameHeight);
         }
 
         // Create decoder.
         MediaFormat format = MediaFormat.createVideoFormat(VP8_MIME,
-                                                           ivf.getWidth(),
-                                                           ivf.getHeight());
+                                                           frameWidth,
+                                                           frameHeight);
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT, properties.colorFormat);
+        setCodecConfig(format, codecConfig);
         Log.d(TAG, "Creating decoder " + properties.codecName +
                 ". Color format: 0x" + Integer.toHexString(properties.colorFormat) +
                 ". " + frameWidth + " x " + frameHeight);
@@ -1075,12 +1971,14 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         Log.d(TAG, "  In: " + streamParams.encodedIvfFilename +
                 ". Out:" + streamParams.outputYuvFilename);
 
+        setStandInCodecParameters(format, streamParams);
         MediaCodecAsync codec = new MediaCodecAsync();
         codec.createCodec(0, properties.codecName, format, streamParams.timeoutDequeue,
                 false, streamParams.runInLooperThread);
         if (yuv == null) {
             codec.mOutputDataEnable = false; // no need to memcpy output if it will not be saved
         }
+        codec.mOutputBufferDirect = true; // write decoded frames straight from codec buffers
 
         // decode loop
         int inputFrameIndex = 0;
@@ -1089,84 +1987,825 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         boolean consumedInputEOS = false; // EOS flag is consumed by encoder
         boolean inputConsumed = true;
         double presentationTimeUsCurrent = 0;
-        byte[] frame = null;
+        ByteBuffer frame = null;
+        FrameConverter converter = new FrameConverter();
         int frameIndexInc = Math.max(1,  streamParams.decodingRateDecimator);
 
-        while (!sawOutputEOS) {
+        while (!sawOutputEOS) {
+
+            // Read and feed input frame
+            if (!consumedInputEOS) {
+                // Read new input buffers - if previous input was consumed and no EOS
+                if (inputConsumed && !sawInputEOS) {
+                    if (ivfStream != null) {
+                        frame = ivfStream.readFrameBuffer();
+                        // timestamp - sec -> us
+                        presentationTimeUsCurrent = ivfStream.getFrameTimestamp() * 1e6;
+                        // Skip decimated frames and check EOS
+                        for (int i = 1; i < frameIndexInc; i++) {
+                            if (!ivfStream.skipFrame()) {
+                                break;
+                            }
+                        }
+                        if (!ivfStream.hasNextFrame()) {
+                            sawInputEOS = true;
+                        }
+                    } else {
+                        if (ivf.isMapped()) {
+                            frame = ivf.getFrameBuffer(inputFrameIndex);
+                        } else {
+                            ivfInput.setFrameIndex(inputFrameIndex);
+                        }
+                        // timestamp - sec -> us
+                        presentationTimeUsCurrent = ivf.getFrameTimestamp(inputFrameIndex) * 1e6;
+                        // Check EOS
+                        if (inputFrameIndex + frameIndexInc >= frameCount) {
+                            sawInputEOS = true;
+                        }
+                    }
+                }
+
+                if (frame != null) {
+                    inputConsumed = codec.feedInput(frame,
+                            (long)(presentationTimeUsCurrent + 0.5), sawInputEOS);
+                } else {
+                    inputConsumed = codec.feedInput(ivfInput,
+                            (long)(presentationTimeUsCurrent + 0.5), sawInputEOS);
+                }
+                if (inputConsumed) {
+                    inputFrameIndex += frameIndexInc;
+                    consumedInputEOS = sawInputEOS;
+                }
+            }
+
+
+            // Get output from the decoder
+            MediaCodecOutput out = codec.getOutput();
+            if (out.outputGenerated) {
+                // Detect output EOS
+                if ((out.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    sawOutputEOS = true;
+                }
+
+                if (out.size > 0) {
+                    // Save decoder output to yuv file.
+                    if (yuv != null) {
+                        saveDecodedFrame(yuv, out, frameWidth, frameHeight, converter);
+                    }
+
+                    // Update statistics - store presentation time delay in offset
+                    long presentationTimeUsDelta = out.inPresentationTimeUs -
+                            out.outPresentationTimeUs;
+                    BufferInfo bufferInfoCopy = new BufferInfo();
+                    bufferInfoCopy.set(out.size,
+                            out.outPresentationTimeUs, presentationTimeUsDelta,
+                            out.inputRtcTimeUs, out.outputRtcTimeUs, out.flags);
+                    bufferInfos.add(bufferInfoCopy);
+                }
+                codec.releaseOutput(out);
+            }
+
+            // If codec is not ready to accept input/output - wait for buffer ready callback
+            if ((!inputConsumed || consumedInputEOS) && !out.outputGenerated) {
+                codec.waitForBufferEvent();
+            }
+        }
+
+        codec.deleteCodec();
+        if (ivf != null) {
+            ivf.close();
+        }
+        if (ivfStream != null) {
+            ivfStream.close();
+        }
+        if (yuv != null) {
+            yuv.close();
+        }
+
+        return bufferInfos;
+    }
+
+    /**
+     * Decodes a VP8 IVF stream with the Java Vp8Decoder. Decoded frames are
+     * written in the same planar YUV format as MediaCodec output and buffer
+     * information is filled the same way as by decode().
+     *
+     * @param streamParams  Structure with codec stream parameters
+     * @return              Returns array of decoded frames information for each frame.
+     */
+    protected ArrayList<BufferInfo> decodeWithJavaDecoder(
+            CodecStreamParameters streamParams) throws Exception {
+        ArrayList<BufferInfo> bufferInfos = new ArrayList<BufferInfo>();
+        IvfReader ivf = new IvfReader(streamParams.encodedIvfFilename, true, true);
+        YuvFrameWriter yuv = null;
+        int threads = streamParams.javaDecoderThreads > 0 ? streamParams.javaDecoderThreads :
+                Runtime.getRuntime().availableProcessors();
+        Vp8Decoder decoder = new Vp8Decoder(threads);
+        try {
+            assertEquals(IvfWriter.FOURCC_VP8, ivf.getFourcc());
+            int frameWidth = ivf.getWidth();
+            int frameHeight = ivf.getHeight();
+            int frameCount = ivf.getFrameCount();
+            assertTrue(frameWidth > 0);
+            assertTrue(frameHeight > 0);
+            assertTrue(frameCount > 0);
+            if (streamParams.outputYuvFilename != null) {
+                yuv = createYuvFrameWriter(streamParams, frameWidth, frameHeight);
+            }
+            Log.d(TAG, "Decoding with Java VP8 decoder. " + frameWidth + " x " + frameHeight +
+                    ". Threads: " + threads);
+            Log.d(TAG, "  In: " + streamParams.encodedIvfFilename +
+                    ". Out:" + streamParams.outputYuvFilename);
+
+            int frameIndexInc = Math.max(1, streamParams.decodingRateDecimator);
+            byte[] outputFrame = null;
+            for (int i = 0; i < frameCount; i += frameIndexInc) {
+                ByteBuffer frame = ivf.getFrameBuffer(i);
+                long presentationTimeUs = (long)(ivf.getFrameTimestamp(i) * 1e6 + 0.5);
+                long inputRtcTimeUs = SystemClock.elapsedRealtimeNanos() / 1000;
+                if (!decoder.decodeFrame(frame, frame.position(), frame.remaining())) {
+                    throw new RuntimeException("Java VP8 decoder failed to decode frame #" + i +
+                            " of " + streamParams.encodedIvfFilename);
+                }
+                if (!decoder.isFrameShown()) {
+                    continue;
+                }
+                outputFrame = decoder.getI420Frame(outputFrame);
+                long outputRtcTimeUs = SystemClock.elapsedRealtimeNanos() / 1000;
+                if (yuv != null) {
+                    yuv.writeFrame(outputFrame, 0, outputFrame.length);
+                }
+                int flags = (i + frameIndexInc >= frameCount) ?
+                        MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0;
+                BufferInfo bufferInfo = new BufferInfo();
+                bufferInfo.set(outputFrame.length, presentationTimeUs, 0,
+                        inputRtcTimeUs, outputRtcTimeUs, flags);
+                bufferInfos.add(bufferInfo);
+            }
+        } finally {
+            decoder.release();
+            ivf.close();
+            if (yuv != null) {
+                yuv.close();
+            }
+        }
+        return bufferInfos;
+    }
+
+    /**
+     * Decodes streams flagged with useJavaDecoder by the Java decoder in pool threads,
+     * while the remaining streams are decoded by MediaCodec decoders at the same time.
+     * Buffer information is returned in the order of |streamParams|.
+     */
+    private ArrayList<ArrayList<BufferInfo>> decodeParallelWithJavaDecoder(
+            ArrayList<CodecStreamParameters> streamParams,
+            ArrayList<CodecStreamParameters> codecStreamParams) throws Exception {
+        int numJavaDecoders = streamParams.size() - codecStreamParams.size();
+        // Row threads of every decoder share the cores with the other decoders.
+        int threadsPerDecoder = Math.max(1,
+                Runtime.getRuntime().availableProcessors() / numJavaDecoders);
+        ExecutorService executor = Executors.newFixedThreadPool(numJavaDecoders);
+        ArrayList<ArrayList<BufferInfo>> bufferInfos = new ArrayList<ArrayList<BufferInfo>>();
+        try {
+            ArrayList<Future<ArrayList<BufferInfo>>> javaResults =
+                    new ArrayList<Future<ArrayList<BufferInfo>>>();
+            for (final CodecStreamParameters params : streamParams) {
+                if (!params.useJavaDecoder) {
+                    continue;
+                }
+                if (params.javaDecoderThreads == 0) {
+                    params.javaDecoderThreads = threadsPerDecoder;
+                }
+                javaResults.add(executor.submit(new Callable<ArrayList<BufferInfo>>() {
+                    @Override
+                    public ArrayList<BufferInfo> call() throws Exception {
+                        return decodeWithJavaDecoder(params);
+                    }
+                }));
+            }
+            ArrayList<ArrayList<BufferInfo>> codecResults = null;
+            if (!codecStreamParams.isEmpty()) {
+                codecResults = decodeParallel(codecStreamParams);
+            }
+            int javaIndex = 0;
+            int codecIndex = 0;
+            for (CodecStreamParameters params : streamParams) {
+                if (params.useJavaDecoder) {
+                    bufferInfos.add(javaResults.get(javaIndex++).get());
+                } else {
+                    bufferInfos.add(codecResults.get(codecIndex++));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return bufferInfos;
+    }
+
+    /**
+     * Reads frames of a YUV file with YuvInputSource into a direct buffer, the way
+     * encoding loops fill codec input buffers, and returns the number of objects
+     * allocated by the calling thread over |frameCount| frames. Allocations of
+     * the first few frames are not counted.
+     */
+    protected int countInputFrameAllocations(String inputYuvFilename, int inputResourceId,
+            int width, int height, int colorFormat, int frameCount) throws Exception {
+        int warmUpFrames = 10;
+        YuvInputSource source = new YuvInputSource(
+                OpenFileOrResourceId(inputYuvFilename, inputResourceId, width, height),
+                colorFormat, false);
+        ByteBuffer inputBuffer = ByteBuffer.allocateDirect(width * height * 3 / 2);
+        int allocations;
+        try {
+            for (int i = 0; i < warmUpFrames + frameCount; i++) {
+                if (i == warmUpFrames) {
+                    Debug.resetThreadAllocCount();
+                    Debug.startAllocCounting();
+                }
+                if (!source.nextFrame()) {
+                    source.rewind();
+                    source.nextFrame();
+                }
+                inputBuffer.clear();
+                source.fillInputBuffer(0, inputBuffer);
+            }
+            Debug.stopAllocCounting();
+            allocations = Debug.getThreadAllocCount();
+        } finally {
+            source.close();
+        }
+        return allocations;
+    }
+
+    /**
+     * Converts a synthetic decoder output frame held in a direct buffer to packed
+     * YUV420 planar |frames| times with the two step path - copy of the codec
+     * buffer followed by NV12ToYUV420() or PackYUV420() - and with the single pass
+     * FrameConverter. Checks both paths give the same frame and logs throughput.
+     *
+     * There is no two step converter for NV21, so NV21 frames are timed with
+     * NV12ToYUV420(), which does the same work, and its U and V planes are
+     * swapped before the frames are compared.
+     *
+     * @param layoutName  layout description for the log
+     * @param layout      one of the FrameConverter.LAYOUT_ constants
+     * @param bufferSize  size of the codec buffer holding the frame
+     * @return  Throughput in frames per second - two step path first, then single pass.
+     */
+    protected double[] benchmarkFrameConversion(String layoutName, int layout,
+            int width, int height, int stride, int sliceHeight, int bufferSize,
+            int frames) throws Exception {
+        assertTrue("Buffer of " + bufferSize + " bytes is too small for " + layoutName,
+                bufferSize >= FrameConverter.getRequiredSize(layout, width, height,
+                        stride, sliceHeight));
+        int frameSize = width * height * 3 / 2;
+        byte[] content = new byte[bufferSize];
+        new Random(width * height + layout).nextBytes(content);
+        ByteBuffer output = ByteBuffer.allocateDirect(bufferSize);
+        output.put(content);
+        output.flip();
+
+        byte[] frameCopy = new byte[bufferSize];
+        byte[] twoStepFrame = new byte[frameSize];
+        byte[] singlePassFrame = new byte[frameSize];
+        FrameConverter converter = new FrameConverter();
+        double[] framesPerSecond = new double[2];
+        // First round warms up both paths.
+        for (int round = 0; round < 2; round++) {
+            long startNs = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                output.duplicate().get(frameCopy);
+                if (layout == FrameConverter.LAYOUT_PLANAR) {
+                    PackYUV420(width, height, stride, sliceHeight, frameCopy, twoStepFrame);
+                } else {
+                    NV12ToYUV420(width, height, stride, sliceHeight, frameCopy, twoStepFrame);
+                }
+            }
+            long twoStepNs = System.nanoTime() - startNs;
+
+            startNs = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                converter.toPackedI420(output, layout, width, height,
+                        stride, sliceHeight, singlePassFrame);
+            }
+            long singlePassNs = System.nanoTime() - startNs;
+            framesPerSecond[0] = frames * 1e9 / Math.max(1, twoStepNs);
+            framesPerSecond[1] = frames * 1e9 / Math.max(1, singlePassNs);
+        }
+        if (layout == FrameConverter.LAYOUT_NV21) {
+            int ySize = width * height;
+            int chromaSize = ySize / 4;
+            byte[] u = Arrays.copyOfRange(twoStepFrame, ySize, ySize + chromaSize);
+            System.arraycopy(twoStepFrame, ySize + chromaSize, twoStepFrame, ySize, chromaSize);
+            System.arraycopy(u, 0, twoStepFrame, ySize + chromaSize, chromaSize);
+        }
+        assertTrue("Converted " + layoutName + " frames differ",
+                Arrays.equals(twoStepFrame, singlePassFrame));
+        Log.d(TAG, String.format(Locale.US,
+                "%d x %d %s, stride %d, slice height %d, buffer %d. " +
+                "Two step: %.1f fps, %.1f MB/s. Single pass: %.1f fps, %.1f MB/s",
+                width, height, layoutName, stride, sliceHeight, bufferSize,
+                framesPerSecond[0], framesPerSecond[0] * frameSize / 1e6,
+                framesPerSecond[1], framesPerSecond[1] * frameSize / 1e6));
+        return framesPerSecond;
+    }
+
+    /**
+     * Checks ChromaInterleaver kernels give the same result as the one sample at
+     * a time reference for every sample count up to |maxCount|, with aligned and
+     * unaligned offsets, on the array path of heap buffers and on the word path
+     * of direct source or destination buffers of both byte orders.
+     */
+    protected void checkChromaInterleaver(int maxCount) {
+        Random random = new Random(maxCount);
+        int size = 4 * maxCount + 64;
+        byte[] src = new byte[size];
+        byte[] expected = new byte[size];
+        byte[] actual = new byte[size];
+        ByteOrder[] orders = { ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN };
+        for (int count = 0; count <= maxCount; count++) {
+            // Planes start a few words apart.
+            int planeDistance = (count + 7) & ~7;
+            for (int align = 1; align <= 8; align += 7) {
+                for (ByteOrder srcOrder : orders) {
+                    for (ByteOrder dstOrder : orders) {
+                        // Source and destination buffer kinds - direct source and
+                        // heap destination, heap both, direct both.
+                        for (int kinds = 0; kinds < 3; kinds++) {
+                            random.nextBytes(src);
+                            random.nextBytes(expected);
+                            ByteBuffer srcBuffer = allocateBuffer(size, kinds != 1).order(srcOrder);
+                            srcBuffer.put(src);
+                            ByteBuffer dstBuffer = allocateBuffer(size, kinds == 2).order(dstOrder);
+                            ChromaInterleaver.WordBuffer srcWords =
+                                    new ChromaInterleaver.WordBuffer(srcBuffer);
+                            ChromaInterleaver.WordBuffer dstWords =
+                                    new ChromaInterleaver.WordBuffer(dstBuffer);
+                            dstBuffer.put(expected);
+
+                            int first = align * random.nextInt(3);
+                            int second = first + planeDistance + align * random.nextInt(2);
+                            int interleaved = align * random.nextInt(3);
+                            ChromaInterleaver.interleaveScalar(src, first, second,
+                                    expected, interleaved, count);
+                            ChromaInterleaver.interleave(srcWords, first, second,
+                                    dstWords, interleaved, count);
+                            dstBuffer.clear();
+                            dstBuffer.get(actual);
+                            assertTrue("Interleaved samples differ, count " + count +
+                                    ", alignment " + align, Arrays.equals(expected, actual));
+
+                            ChromaInterleaver.deinterleaveScalar(src, interleaved,
+                                    expected, first, second, count);
+                            ChromaInterleaver.deinterleave(srcWords, interleaved,
+                                    dstWords, first, second, count);
+                            dstBuffer.clear();
+                            dstBuffer.get(actual);
+                            assertTrue("De-interleaved samples differ, count " + count +
+                                    ", alignment " + align, Arrays.equals(expected, actual));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Interleaves U and V planes of a |width| x |height| frame to NV12 and
+     * de-interleaves them back |frames| times, one chroma row at a time, with
+     * a one sample at a time loop and with ChromaInterleaver. Checks both give
+     * the same planes and logs throughput.
+     *
+     * Planes are held in heap arrays, timed against the scalar reference, or in
+     * direct buffers, timed against a loop moving one sample at a time with
+     * ByteBuffer.get() and put().
+     *
+     * @return  Throughput in frames per second - reference interleave, kernel
+     *          interleave, reference de-interleave, kernel de-interleave.
+     */
+    protected double[] benchmarkChromaInterleaver(int width, int height, int frames,
+            boolean direct) {
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        int planeSize = chromaWidth * chromaHeight;
+        byte[] content = new byte[2 * planeSize];
+        new Random(width * height).nextBytes(content);
+        ByteBuffer planar = allocateBuffer(2 * planeSize, direct);
+        planar.put(content);
+        ByteBuffer[] nv12 = {
+                allocateBuffer(2 * planeSize, direct), allocateBuffer(2 * planeSize, direct) };
+        ByteBuffer[] yuv = {
+                allocateBuffer(2 * planeSize, direct), allocateBuffer(2 * planeSize, direct) };
+        ChromaInterleaver.WordBuffer planarWords = new ChromaInterleaver.WordBuffer(planar);
+        ChromaInterleaver.WordBuffer nv12Words = new ChromaInterleaver.WordBuffer(nv12[1]);
+        ChromaInterleaver.WordBuffer yuvWords = new ChromaInterleaver.WordBuffer(yuv[1]);
+        double[] framesPerSecond = new double[4];
+        // First round warms up all paths.
+        for (int round = 0; round < 2; round++) {
+            long[] durationNs = new long[4];
+            long startNs = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                for (int j = 0; j < chromaHeight; j++) {
+                    if (direct) {
+                        interleaveBytes(planar, j * chromaWidth, planeSize + j * chromaWidth,
+                                nv12[0], j * width, chromaWidth);
+                    } else {
+                        ChromaInterleaver.interleaveScalar(planar.array(), j * chromaWidth,
+                                planeSize + j * chromaWidth, nv12[0].array(), j * width,
+                                chromaWidth);
+                    }
+                }
+            }
+            durationNs[0] = System.nanoTime() - startNs;
+
+            startNs = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                for (int j = 0; j < chromaHeight; j++) {
+                    ChromaInterleaver.interleave(planarWords, j * chromaWidth,
+                            planeSize + j * chromaWidth, nv12Words, j * width, chromaWidth);
+                }
+            }
+            durationNs[1] = System.nanoTime() - startNs;
+
+            startNs = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                for (int j = 0; j < chromaHeight; j++) {
+                    if (direct) {
+                        deinterleaveBytes(nv12[0], j * width, yuv[0], j * chromaWidth,
+                                planeSize + j * chromaWidth, chromaWidth);
+                    } else {
+                        ChromaInterleaver.deinterleaveScalar(nv12[0].array(), j * width,
+                                yuv[0].array(), j * chromaWidth, planeSize + j * chromaWidth,
+                                chromaWidth);
+                    }
+                }
+            }
+            durationNs[2] = System.nanoTime() - startNs;
+
+            startNs = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                for (int j = 0; j < chromaHeight; j++) {
+                    ChromaInterleaver.deinterleave(nv12Words, j * width,
+                            yuvWords, j * chromaWidth, planeSize + j * chromaWidth, chromaWidth);
+                }
+            }
+            durationNs[3] = System.nanoTime() - startNs;
+            for (int i = 0; i < 4; i++) {
+                framesPerSecond[i] = frames * 1e9 / Math.max(1, durationNs[i]);
+            }
+        }
+        assertTrue("Interleaved planes differ", nv12[0].equals(nv12[1]));
+        assertTrue("De-interleaved planes differ", yuv[0].equals(yuv[1]));
+        planar.clear();
+        assertTrue("De-interleaved planes differ from the source", planar.equals(yuv[1]));
+        Log.d(TAG, String.format(Locale.US,
+                "%d x %d chroma, %s buffers. Interleave: reference %.1f fps, kernel %.1f fps. " +
+                "De-interleave: reference %.1f fps, kernel %.1f fps",
+                width, height, direct ? "direct" : "heap", framesPerSecond[0],
+                framesPerSecond[1], framesPerSecond[2], framesPerSecond[3]));
+        return framesPerSecond;
+    }
+
+    private static ByteBuffer allocateBuffer(int size, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    /**
+     * ChromaInterleaver.interleaveScalar() on buffers - absolute get() and put()
+     * of one sample at a time.
+     */
+    private static void interleaveBytes(ByteBuffer src, int firstOffset, int secondOffset,
+            ByteBuffer dst, int dstOffset, int count) {
+        for (int i = 0; i < count; i++) {
+            dst.put(dstOffset + 2 * i, src.get(firstOffset + i));
+            dst.put(dstOffset + 2 * i + 1, src.get(secondOffset + i));
+        }
+    }
+
+    /**
+     * ChromaInterleaver.deinterleaveScalar() on buffers - absolute get() and put()
+     * of one sample at a time.
+     */
+    private static void deinterleaveBytes(ByteBuffer src, int srcOffset,
+            ByteBuffer dst, int firstOffset, int secondOffset, int count) {
+        for (int i = 0; i < count; i++) {
+            dst.put(firstOffset + i, src.get(srcOffset + 2 * i));
+            dst.put(secondOffset + i, src.get(srcOffset + 2 * i + 1));
+        }
+    }
+
+    /**
+     * Runs frame conversion and scaling helpers on random |width| x |height|
+     * frames serially and split to row bands on |threadCount| threads, and
+     * checks both give identical frames. Every helper runs twice, the second
+     * run is timed. Bands are used for any frame size, the parallel size
+     * threshold is not applied.
+     *
+     * @return  Time of all helpers in milliseconds - serial first, then parallel.
+     */
+    protected double[] checkParallelConversion(int width, int height, int threadCount)
+            throws Exception {
+        int stride = (width + 127) & ~127;
+        int sliceHeight = (height + 31) & ~31;
+        int frameSize = width * height * 3 / 2;
+        Random random = new Random(width * height);
+        byte[] frame = new byte[frameSize];
+        byte[] alignedFrame = new byte[stride * sliceHeight * 3 / 2];
+        byte[] halfFrame = new byte[frameSize / 4];
+        byte[] quarterFrame = new byte[frameSize / 16];
+        random.nextBytes(frame);
+        random.nextBytes(alignedFrame);
+        random.nextBytes(halfFrame);
+        random.nextBytes(quarterFrame);
+
+        RowBandExecutor[] executors = {
+                new RowBandExecutor(1, 0), new RowBandExecutor(threadCount, 0) };
+        byte[][][] results = new byte[2][5][frameSize];
+        double[] timeMs = new double[2];
+        RowBandExecutor previous = sRowBandExecutor;
+        try {
+            for (int i = 0; i < 2; i++) {
+                setRowBandExecutor(executors[i]);
+                byte[][] result = results[i];
+                for (int run = 0; run < 2; run++) {
+                    long startNs = System.nanoTime();
+                    YUV420ToNV(width, height, frame, result[0], false);
+                    NV12ToYUV420(width, height, stride, sliceHeight, alignedFrame, result[1]);
+                    PackYUV420(width, height, stride, sliceHeight, alignedFrame, result[2]);
+                    imageScale(halfFrame, width / 2, height / 2, result[3], width, height);
+                    imageScale(quarterFrame, width / 4, height / 4, result[4], width, height);
+                    timeMs[i] = (System.nanoTime() - startNs) / 1e6;
+                }
+            }
+        } finally {
+            setRowBandExecutor(previous);
+            for (RowBandExecutor executor : executors) {
+                executor.release();
+            }
+        }
+        String[] names = { "YUV420ToNV", "NV12ToYUV420", "PackYUV420",
+                "1:2 imageScale", "1:4 imageScale" };
+        for (int i = 0; i < names.length; i++) {
+            assertTrue(names[i] + " " + width + " x " + height +
+                    ": parallel result differs from serial",
+                    Arrays.equals(results[0][i], results[1][i]));
+        }
+        Log.d(TAG, String.format(Locale.US,
+                "%d x %d. Serial: %.2f ms, %d threads: %.2f ms",
+                width, height, timeMs[0], threadCount, timeMs[1]));
+        return timeMs;
+    }
+
+    /**
+     * Checks the polyphase scaler with |filter|: scaling a crop rectangle to its
+     * own size copies it, flat planes stay flat for up- and down-scales, and
+     * scaling in row bands gives the same result as serial scaling.
+     */
+    protected void checkPolyphaseScaler(int filter) {
+        Random random = new Random(filter);
+        int width = 200;
+        int height = 120;
+        byte[] plane = new byte[width * height];
+        random.nextBytes(plane);
+
+        // Identity scale of a crop rectangle.
+        int cropLeft = 13;
+        int cropTop = 7;
+        int cropWidth = 150;
+        int cropHeight = 91;
+        byte[] copy = new byte[cropWidth * cropHeight];
+        new PolyphaseScaler(cropWidth, cropHeight, cropWidth, cropHeight, filter).scale(
+                plane, 0, width, cropLeft, cropTop, copy, 0, cropWidth, null);
+        for (int y = 0; y < cropHeight; y++) {
+            for (int x = 0; x < cropWidth; x++) {
+                assertEquals("Identity scale pixel " + x + ", " + y,
+                        plane[(cropTop + y) * width + cropLeft + x], copy[y * cropWidth + x]);
+            }
+        }
 
-            // Read and feed input frame
-            if (!consumedInputEOS) {
-                // Read new input buffers - if previous input was consumed and no EOS
-                if (inputConsumed && !sawInputEOS) {
-                    frame = ivf.readFrame(inputFrameIndex);
-                    // timestamp - sec -> us
-                    presentationTimeUsCurrent = ivf.getFrameTimestamp(inputFrameIndex) * 1e6;
-                    // Check EOS
-                    if (inputFrameIndex + frameIndexInc >= frameCount) {
-                        sawInputEOS = true;
-                    }
+        int[][] sizes = { { 100, 60 }, { 150, 90 }, { 67, 41 }, { 320, 200 }, { 533, 307 } };
+        byte[] flat = new byte[width * height];
+        Arrays.fill(flat, (byte)201);
+        RowBandExecutor executor = new RowBandExecutor(4, 0);
+        try {
+            for (int[] size : sizes) {
+                PolyphaseScaler scaler =
+                        new PolyphaseScaler(width, height, size[0], size[1], filter);
+                byte[] scaled = new byte[size[0] * size[1]];
+                scaler.scale(flat, 0, width, 0, 0, scaled, 0, size[0], null);
+                for (int i = 0; i < scaled.length; i++) {
+                    assertEquals("Flat plane scaled to " + size[0] + " x " + size[1],
+                            (byte)201, scaled[i]);
                 }
 
-                inputConsumed = codec.feedInput(frame,
-                        (int)(presentationTimeUsCurrent + 0.5), sawInputEOS);
-                if (inputConsumed) {
-                    inputFrameIndex += frameIndexInc;
-                    consumedInputEOS = sawInputEOS;
-                }
+                byte[] serial = new byte[size[0] * size[1]];
+                byte[] parallel = new byte[size[0] * size[1]];
+                scaler.scale(plane, 0, width, 0, 0, serial, 0, size[0], null);
+                scaler.scale(plane, 0, width, 0, 0, parallel, 0, size[0], executor);
+                assertTrue("Row band scaling to " + size[0] + " x " + size[1] +
+                        " differs from serial", Arrays.equals(serial, parallel));
             }
+        } finally {
+            executor.release();
+        }
+    }
 
+    /**
+     * Scales a random |srcWidth| x |srcHeight| YUV420 frame to |dstWidth| x
+     * |dstHeight| |frames| times with the polyphase scaler and logs throughput.
+     *
+     * @return  Throughput in frames per second.
+     */
+    protected double benchmarkPolyphaseScaler(int srcWidth, int srcHeight,
+            int dstWidth, int dstHeight, int filter, int frames) {
+        byte[] src = new byte[srcWidth * srcHeight * 3 / 2];
+        byte[] dst = new byte[dstWidth * dstHeight * 3 / 2];
+        new Random(srcWidth * srcHeight).nextBytes(src);
+        double framesPerSecond = 0;
+        // First round warms up.
+        for (int round = 0; round < 2; round++) {
+            long startNs = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                scaleYUV420(src, srcWidth, srcHeight, 0, 0, srcWidth, srcHeight,
+                        dst, dstWidth, dstHeight, filter);
+            }
+            framesPerSecond = frames * 1e9 / Math.max(1, System.nanoTime() - startNs);
+        }
+        Log.d(TAG, String.format(Locale.US, "%d x %d -> %d x %d, filter %d: %.1f fps",
+                srcWidth, srcHeight, dstWidth, dstHeight, filter, framesPerSecond));
+        return framesPerSecond;
+    }
 
-            // Get output from the decoder
-            MediaCodecOutput out = codec.getOutput();
-            if (out.outputGenerated) {
-                // Detect output EOS
-                if ((out.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    sawOutputEOS = true;
-                }
+    /**
+     * Scales an input to all |dstSizes| at once with the scaled image pyramid
+     * and checks every output frame is identical to the input frame scaled by
+     * imageScale() alone. Output files are deleted afterwards.
+     */
+    protected void checkScaledImagePyramid(String srcYuvFilename, int srcResourceId,
+            int srcWidth, int srcHeight, int[][] dstSizes) throws Exception {
+        String[] dstYuvFilenames = new String[dstSizes.length];
+        int[] dstWidths = new int[dstSizes.length];
+        int[] dstHeights = new int[dstSizes.length];
+        for (int i = 0; i < dstSizes.length; i++) {
+            dstWidths[i] = dstSizes[i][0];
+            dstHeights[i] = dstSizes[i][1];
+            dstYuvFilenames[i] = SDCARD_DIR + File.separator + "pyramid_" +
+                    dstWidths[i] + "x" + dstHeights[i] + ".yuv";
+            // Existing files of the expected size would not be scaled again.
+            new File(dstYuvFilenames[i]).delete();
+        }
+        cacheScaledImages(srcYuvFilename, srcResourceId, srcWidth, srcHeight,
+                dstYuvFilenames, dstWidths, dstHeights);
 
-                if (out.buffer.length > 0) {
-                    // Save decoder output to yuv file.
-                    if (yuv != null) {
-                        // Convert NV12 to YUV420 if necessary
-                        if (out.colorFormat != CodecCapabilities.COLOR_FormatYUV420Planar) {
-                            out.buffer = NV12ToYUV420(frameWidth, frameHeight,
-                                    out.stride, out.sliceHeight, out.buffer);
-                        }
-                        int writeLength = Math.min(frameWidth * frameHeight * 3 / 2,
-                                out.buffer.length);
-                        // Pack frame if necessary.
-                        if (writeLength < out.buffer.length &&
-                                (out.stride > frameWidth || out.sliceHeight > frameHeight)) {
-                            out.buffer = PackYUV420(frameWidth, frameHeight,
-                                    out.stride, out.sliceHeight, out.buffer);
-                        }
-                        yuv.write(out.buffer, 0, writeLength);
+        YuvFrameSource srcYuv = OpenFileOrResourceId(srcYuvFilename, srcResourceId,
+                srcWidth, srcHeight);
+        byte[] srcFrame = new byte[srcYuv.getFrameSize()];
+        try {
+            for (int i = 0; i < dstSizes.length; i++) {
+                YuvFrameSource dstYuv =
+                        new YuvFrameSource(dstYuvFilenames[i], dstWidths[i], dstHeights[i]);
+                byte[] expected = new byte[dstYuv.getFrameSize()];
+                byte[] actual = new byte[dstYuv.getFrameSize()];
+                try {
+                    assertEquals("Frames of " + dstYuvFilenames[i],
+                            srcYuv.getFrameCount(), dstYuv.getFrameCount());
+                    for (int frame = 0; frame < srcYuv.getFrameCount(); frame++) {
+                        srcYuv.readFrame(frame, srcFrame, 0);
+                        imageScale(srcFrame, srcWidth, srcHeight,
+                                expected, dstWidths[i], dstHeights[i]);
+                        dstYuv.readFrame(frame, actual, 0);
+                        assertTrue("Frame #" + frame + " of " + dstYuvFilenames[i] +
+                                " differs from imageScale()", Arrays.equals(expected, actual));
                     }
+                } finally {
+                    dstYuv.close();
+                    new File(dstYuvFilenames[i]).delete();
+                }
+            }
+        } finally {
+            srcYuv.close();
+        }
+    }
 
-                    // Update statistics - store presentation time delay in offset
-                    long presentationTimeUsDelta = out.inPresentationTimeUs -
-                            out.outPresentationTimeUs;
-                    BufferInfo bufferInfoCopy = new BufferInfo();
-                    bufferInfoCopy.set(out.buffer.length,
-                            out.outPresentationTimeUs, presentationTimeUsDelta,
-                            out.inputRtcTimeUs, out.outputRtcTimeUs, out.flags);
-                    bufferInfos.add(bufferInfoCopy);
+    /**
+     * Splits an IVF file at key frames with IvfEditor, concatenates the segments
+     * back and checks the result has all frames of the source with identical
+     * payloads and key frame flags. Timestamps have to start at 0 and keep the
+     * source frame durations within segments, and advance at segment boundaries.
+     * Segment and output files are deleted afterwards.
+     *
+     * Segments start at timestamp 0, so the first one is copied to the output
+     * at once and the others have their frame headers rebased.
+     *
+     * @return number of segments.
+     */
+    protected int checkIvfSplitAndConcatenate(String ivfFilename, int minSegmentFrames)
+            throws Exception {
+        String concatenatedFilename = ivfFilename + ".concat.ivf";
+        ArrayList<String> segmentFilenames =
+                IvfEditor.splitAtKeyFrames(ivfFilename, minSegmentFrames);
+        IvfReader src = null;
+        IvfReader dst = null;
+        try {
+            IvfEditor.concatenate(segmentFilenames, concatenatedFilename);
+            src = new IvfReader(ivfFilename);
+            dst = new IvfReader(concatenatedFilename);
+            int frameCount = src.getFrameCount();
+            Log.d(TAG, "Split " + frameCount + " frames to " + segmentFilenames.size() +
+                    " segments");
+            assertEquals("Frame count", frameCount, dst.getFrameCount());
+            assertEquals("First frame timestamp", 0, dst.getFramePts(0));
+
+            int[] splitPoints = IvfEditor.findSplitPoints(src, minSegmentFrames);
+            assertEquals("Segment count", splitPoints.length, segmentFilenames.size());
+            long maxFrameDuration = 1;
+            for (int i = 1; i < frameCount; i++) {
+                maxFrameDuration = Math.max(maxFrameDuration,
+                        src.getFramePts(i) - src.getFramePts(i - 1));
+            }
+            int segment = 0;
+            for (int i = 0; i < frameCount; i++) {
+                assertTrue("Payload of frame #" + i,
+                        Arrays.equals(src.readFrame(i), dst.readFrame(i)));
+                assertEquals("Key frame flag of frame #" + i,
+                        src.isKeyFrame(i), dst.isKeyFrame(i));
+                if (i == 0) {
+                    continue;
                 }
+                long duration = dst.getFramePts(i) - dst.getFramePts(i - 1);
+                if (segment + 1 < splitPoints.length && i == splitPoints[segment + 1]) {
+                    segment++;
+                    assertTrue("Timestamp of segment " + segment + " first frame #" + i,
+                            duration > 0 && duration <= maxFrameDuration);
+                } else {
+                    assertEquals("Timestamp of frame #" + i,
+                            src.getFramePts(i) - src.getFramePts(i - 1), duration);
+                }
+            }
+        } finally {
+            if (src != null) {
+                src.close();
+            }
+            if (dst != null) {
+                dst.close();
             }
+            for (String segmentFilename : segmentFilenames) {
+                deleteIvfFile(segmentFilename);
+            }
+            deleteIvfFile(concatenatedFilename);
+        }
+        return segmentFilenames.size();
+    }
 
-            // If codec is not ready to accept input/output - wait for buffer ready callback
-            if ((!inputConsumed || consumedInputEOS) && !out.outputGenerated) {
-                codec.waitForBufferEvent();
+    /**
+     * Decodes a VP8 IVF file with the Java decoder and returns MD5 of every shown
+     * frame in the format of libvpx test vector .md5 files.
+     */
+    protected ArrayList<String> computeJavaDecoderFrameMd5(String ivfFilename, int threads)
+            throws Exception {
+        ArrayList<String> md5 = new ArrayList<String>();
+        IvfReader ivf = new IvfReader(ivfFilename, true, true);
+        Vp8Decoder decoder = new Vp8Decoder(threads);
+        try {
+            assertEquals(IvfWriter.FOURCC_VP8, ivf.getFourcc());
+            for (int i = 0; i < ivf.getFrameCount(); i++) {
+                ByteBuffer frame = ivf.getFrameBuffer(i);
+                assertTrue("Can not decode frame #" + i + " of " + ivfFilename,
+                        decoder.decodeFrame(frame, frame.position(), frame.remaining()));
+                if (decoder.isFrameShown()) {
+                    md5.add(decoder.getFrameMd5());
+                }
             }
+        } finally {
+            decoder.release();
+            ivf.close();
         }
+        return md5;
+    }
 
-        codec.deleteCodec();
-        ivf.close();
-        if (yuv != null) {
+    /**
+     * Returns MD5 of every frame of a packed YUV420 planar file in the same
+     * format as computeJavaDecoderFrameMd5(), so decoder outputs can be compared.
+     */
+    protected ArrayList<String> computeYuvFrameMd5(String yuvFilename, int width, int height)
+            throws Exception {
+        ArrayList<String> md5 = new ArrayList<String>();
+        YuvFrameSource yuv = new YuvFrameSource(yuvFilename, width, height);
+        byte[] frame = new byte[yuv.getFrameSize()];
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        try {
+            for (int i = 0; i < yuv.getFrameCount(); i++) {
+                yuv.readFrame(i, frame, 0);
+                StringBuilder md5String = new StringBuilder();
+                for (byte b : digest.digest(frame)) {
+                    md5String.append(String.format(Locale.US, "%02x", b & 0xff));
+                }
+                md5.add(md5String.toString());
+            }
+        } finally {
             yuv.close();
         }
-
-        return bufferInfos;
+        return md5;
     }
 
     /**
@@ -1180,16 +2819,28 @@ public class Vp8CodecTestBase extends AndroidTestCase {
      */
     protected ArrayList<ArrayList<BufferInfo>> decodeParallel(
             ArrayList<CodecStreamParameters> streamParams) throws Exception {
+        ArrayList<CodecStreamParameters> codecStreamParams =
+                new ArrayList<CodecStreamParameters>();
+        for (CodecStreamParameters params : streamParams) {
+            if (!params.useJavaDecoder) {
+                codecStreamParams.add(params);
+            }
+        }
+        if (codecStreamParams.size() < streamParams.size()) {
+            return decodeParallelWithJavaDecoder(streamParams, codecStreamParams);
+        }
         int numCodecs = streamParams.size();
 
         // Create arrays of input/output, formats, bitrates etc
         ArrayList<ArrayList<BufferInfo>> bufferInfos =
                 new ArrayList<ArrayList<BufferInfo>>(numCodecs);
-        IvfReader[] ivf = new IvfReader[numCodecs];
+        EncodedStreamReader[] ivf = new EncodedStreamReader[numCodecs];
+        EncodedInputSource[] ivfInput = new EncodedInputSource[numCodecs];
         int frameWidth[] = new int[numCodecs];
         int frameHeight[] = new int[numCodecs];
         int frameCount[] = new int[numCodecs];
-        FileOutputStream[] yuv = new FileOutputStream[numCodecs];
+        YuvFrameWriter[] yuv = new YuvFrameWriter[numCodecs];
+        FrameConverter[] converter = new FrameConverter[numCodecs];
         MediaFormat[] format = new MediaFormat[numCodecs];
         MediaCodecAsync[] codec = new MediaCodecAsync[numCodecs];
         boolean[] sawOutputEOS = new boolean[numCodecs];
@@ -1199,19 +2850,21 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         boolean[] inputConsumed = new boolean[numCodecs];
         int[] inputFrameIndex = new int[numCodecs];
         double[] presentationTimeUsCurrent = new double[numCodecs];
-        byte[][] srcFrame = new byte[numCodecs][];
+        ByteBuffer[] srcFrame = new ByteBuffer[numCodecs];
         boolean sawOutputEOSTotal = false;
         boolean bufferConsumedTotal = false;
 
         for (int i = 0; i < numCodecs; i++) {
             CodecStreamParameters params = streamParams.get(i);
-            CodecProperties properties = getVp8CodecProperties(false, params.forceSwCodec);
+            CodecProperties properties = getCodecProperties(false, params);
 
             // Create buffer info storage
             bufferInfos.add(new ArrayList<BufferInfo>());
 
-            // Open input/output.
-            ivf[i] = new IvfReader(params.encodedIvfFilename);
+            // Open input/output. Encoded files are memory mapped, so all decoders share
+            // the page cache instead of allocating a new array for every frame.
+            ivf[i] = openEncodedStream(params);
+            ivfInput[i] = new EncodedInputSource(ivf[i]);
             frameWidth[i] = ivf[i].getWidth();
             frameHeight[i] = ivf[i].getHeight();
             frameCount[i] = ivf[i].getFrameCount();
@@ -1221,12 +2874,14 @@ public class Vp8CodecTestBase extends AndroidTestCase {
 
             yuv[i] = null;
             if (params.outputYuvFilename != null) {
-                yuv[i] = new FileOutputStream(params.outputYuvFilename, false);
+                yuv[i] = createYuvFrameWriter(params, frameWidth[i], frameHeight[i]);
             }
+            converter[i] = new FrameConverter();
 
             // Create decoder.
             format[i] = MediaFormat.createVideoFormat(VP8_MIME, frameWidth[i], frameHeight[i]);
             format[i].setInteger(MediaFormat.KEY_COLOR_FORMAT, properties.colorFormat);
+            setCodecConfig(format[i], ivf[i].getCodecConfig());
             Log.d(TAG, "Creating decoder #" + i + ": " + properties.codecName +
                     ". Color format: 0x" + Integer.toHexString(properties.colorFormat) +
                     ". " + frameWidth[i] + " x " + frameHeight[i]);
@@ -1234,13 +2889,17 @@ public class Vp8CodecTestBase extends AndroidTestCase {
             Log.d(TAG, "  Input  ivf: " + params.encodedIvfFilename);
             Log.d(TAG, "  Output yuv: " + params.outputYuvFilename);
 
+            setStandInCodecParameters(format[i], params);
             codec[i] = new MediaCodecAsync();
             codec[i].createCodec(i, properties.codecName, format[i],
                     params.timeoutDequeue, false, params.runInLooperThread);
+            codec[i].mOutputBufferDirect = true;
 
             inputConsumed[i] = true;
             srcFrame[i] = null;
         }
+        CodecBufferWaiter bufferWaiter = new CodecBufferWaiter(codec);
+        boolean[] idle = new boolean[numCodecs];
 
         // decode loop
         while (!sawOutputEOSTotal) {
@@ -1253,7 +2912,11 @@ public class Vp8CodecTestBase extends AndroidTestCase {
 
                 // Read new input buffers - if previous input was consumed and no EOS
                 if (inputConsumed[i] && !sawInputEOS[i]) {
-                    srcFrame[i] = ivf[i].readFrame(inputFrameIndex[i]);
+                    if (ivf[i].isMapped()) {
+                        srcFrame[i] = ivf[i].getFrameBuffer(inputFrameIndex[i]);
+                    } else {
+                        ivfInput[i].setFrameIndex(inputFrameIndex[i]);
+                    }
                     // timestamp - sec -> us
                     presentationTimeUsCurrent[i] =
                             ivf[i].getFrameTimestamp(inputFrameIndex[i]) * 1e6;
@@ -1263,8 +2926,13 @@ public class Vp8CodecTestBase extends AndroidTestCase {
                     }
                 }
 
-                inputConsumed[i] = codec[i].feedInput(srcFrame[i],
-                        (int)(presentationTimeUsCurrent[i] + 0.5), sawInputEOS[i]);
+                if (srcFrame[i] != null) {
+                    inputConsumed[i] = codec[i].feedInput(srcFrame[i],
+                            (long)(presentationTimeUsCurrent[i] + 0.5), sawInputEOS[i]);
+                } else {
+                    inputConsumed[i] = codec[i].feedInput(ivfInput[i],
+                            (long)(presentationTimeUsCurrent[i] + 0.5), sawInputEOS[i]);
+                }
 
                 if (inputConsumed[i]) {
                     inputFrameIndex[i]++;
@@ -1286,34 +2954,23 @@ public class Vp8CodecTestBase extends AndroidTestCase {
                     if ((out.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                         sawOutputEOS[i] = true;
                     }
-                    if (out.buffer.length > 0) {
+                    if (out.size > 0) {
                         // Save decoder output to yuv file.
                         if (yuv[i] != null) {
-                            // Convert NV12 to YUV420 if necessary
-                            if (out.colorFormat != CodecCapabilities.COLOR_FormatYUV420Planar) {
-                                out.buffer = NV12ToYUV420(frameWidth[i], frameHeight[i],
-                                        out.stride, out.sliceHeight, out.buffer);
-                            }
-                            int writeLength = Math.min(frameWidth[i] * frameHeight[i] * 3 / 2,
-                                    out.buffer.length);
-                            // Pack frame if necessary.
-                            if (writeLength < out.buffer.length && (out.stride > frameWidth[i] ||
-                                    out.sliceHeight > frameHeight[i])) {
-                                out.buffer = PackYUV420(frameWidth[i], frameHeight[i],
-                                        out.stride, out.sliceHeight, out.buffer);
-                            }
-                            yuv[i].write(out.buffer, 0, writeLength);
+                            saveDecodedFrame(yuv[i], out,
+                                    frameWidth[i], frameHeight[i], converter[i]);
                         }
 
                         // Update statistics - store presentation time delay in offset
                         long presentationTimeUsDelta = out.inPresentationTimeUs -
                                 out.outPresentationTimeUs;
                         BufferInfo bufferInfoCopy = new BufferInfo();
-                        bufferInfoCopy.set(out.buffer.length,
+                        bufferInfoCopy.set(out.size,
                                 out.outPresentationTimeUs, presentationTimeUsDelta,
                                 out.inputRtcTimeUs, out.outputRtcTimeUs, out.flags);
                         bufferInfos.get(i).add(bufferInfoCopy);
                     }
+                    codec[i].releaseOutput(out);
                 }
             }
 
@@ -1323,13 +2980,11 @@ public class Vp8CodecTestBase extends AndroidTestCase {
                 bufferConsumedTotal |= bufferConsumedCurrent;
             }
             if (!bufferConsumedTotal) {
-                // Pick the decoder to wait for
+                // Wait for any decoder which has not reached EOS yet
                 for (int i = 0; i < numCodecs; i++) {
-                    if (!bufferConsumed[i] && !sawOutputEOS[i]) {
-                        codec[i].waitForBufferEvent();
-                        break;
-                    }
+                    idle[i] = !sawOutputEOS[i];
                 }
+                bufferWaiter.waitForAnyBufferEvent(idle);
             }
 
             // Check if EOS happened for all decoders
@@ -1371,19 +3026,20 @@ public class Vp8CodecTestBase extends AndroidTestCase {
             CodecStreamParameters streamParams) throws Exception {
 
         ArrayList<BufferInfo> bufferInfos = new ArrayList<BufferInfo>();
-        CodecProperties properties = getVp8CodecProperties(true, streamParams.forceSwCodec);
+        CodecProperties properties = getCodecProperties(true, streamParams);
         Log.d(TAG, "Source reslution: " + streamParams.frameWidth + " x " +
                 streamParams.frameHeight);
         int bitrate = streamParams.bitrateSet[0];
         int framerate = streamParams.frameRateSet[0];
 
         // Open input/output
-        InputStream yuvStream = OpenFileOrResourceId(
-                streamParams.inputYuvFilename, streamParams.inputResourceId);
-        IvfWriter ivf = null;
+        YuvInputSource yuvInput = new YuvInputSource(
+                OpenFileOrResourceId(streamParams.inputYuvFilename, streamParams.inputResourceId,
+                        streamParams.frameWidth, streamParams.frameHeight),
+                properties.colorFormat, properties.isGoogleSwCodec());
+        EncodedStreamWriter ivf = null;
         if (streamParams.encodedIvfFilename != null) {
-            ivf = new IvfWriter(streamParams.encodedIvfFilename,
-                    streamParams.frameWidth, streamParams.frameHeight);
+            ivf = createEncodedStreamWriter(streamParams);
         }
 
         // Create a media format signifying desired output.
@@ -1415,12 +3071,17 @@ public class Vp8CodecTestBase extends AndroidTestCase {
                 ". Force keyFrame: " + streamParams.syncForceFrameInterval);
         Log.d(TAG, "  Format: " + format);
         Log.d(TAG, "  Output ivf:" + streamParams.encodedIvfFilename);
+        setStandInCodecParameters(format, streamParams);
         MediaCodecAsync codec = new MediaCodecAsync();
         codec.createCodec(0, properties.codecName, format,
                 streamParams.timeoutDequeue, true, streamParams.runInLooperThread);
         if (ivf == null) {
             codec.mOutputDataEnable = false; // no need to memcpy output if it will not be saved
         }
+        codec.mOutputBufferDirect = true; // write encoded frames straight from codec buffers
+        if (AVC_MIME.equals(VP8_MIME) && !streamParams.useStandInCodec) {
+            codec.mStreamAnalyzer = new H264StreamAnalyzer();
+        }
 
         // encode loop
         boolean sawInputEOS = false;  // no more data
@@ -1430,8 +3091,6 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         int inputFrameIndex = 0;
         int lastBitrate = bitrate;
         int lastFramerate = framerate;
-        int srcFrameSize = streamParams.frameWidth * streamParams.frameHeight * 3 / 2;
-        byte[] srcFrame = new byte[srcFrameSize];
         double frameDuration = 1000000.0 / framerate;
         double presentationTimeUsCurrent = 0;
 
@@ -1442,21 +3101,19 @@ public class Vp8CodecTestBase extends AndroidTestCase {
 
                 // Read new input buffers - if previous input was consumed and no EOS
                 if (inputConsumed && !sawInputEOS) {
-                    int bytesRead = yuvStream.read(srcFrame);
+                    boolean frameAvailable = yuvInput.nextFrame();
 
                     // Check EOS
                     if (streamParams.frameCount > 0 && inputFrameIndex >= streamParams.frameCount) {
                         sawInputEOS = true;
                     }
 
-                    if (!sawInputEOS && bytesRead == -1) {
+                    if (!sawInputEOS && !frameAvailable) {
                         if (streamParams.frameCount == 0) {
                             sawInputEOS = true;
                         } else {
-                            yuvStream.close();
-                            yuvStream = OpenFileOrResourceId(
-                                    streamParams.inputYuvFilename, streamParams.inputResourceId);
-                            bytesRead = yuvStream.read(srcFrame);
+                            yuvInput.rewind();
+                            yuvInput.nextFrame();
                         }
                     }
 
@@ -1489,17 +3146,12 @@ public class Vp8CodecTestBase extends AndroidTestCase {
                             frameDuration = 1000000.0 / newFramerate;
                         }
                     }
-
-                    // Convert YUV420 to NV12 if necessary
-                    if (properties.colorFormat != CodecCapabilities.COLOR_FormatYUV420Planar) {
-                        srcFrame = YUV420ToNV(streamParams.frameWidth, streamParams.frameHeight,
-                                srcFrame, properties.isGoogleSwCodec());
-                    }
-
                 }
 
-                inputConsumed = codec.feedInput(srcFrame,
-                        (int)(presentationTimeUsCurrent + 0.5), sawInputEOS);
+                // Frame is read (and converted to NV12 if necessary) straight
+                // into the encoder input buffer.
+                inputConsumed = codec.feedInput(yuvInput,
+                        (long)(presentationTimeUsCurrent + 0.5), sawInputEOS);
                 if (inputConsumed) {
                     inputFrameIndex++;
                     presentationTimeUsCurrent += frameDuration;
@@ -1515,21 +3167,29 @@ public class Vp8CodecTestBase extends AndroidTestCase {
                     sawOutputEOS = true;
                 }
 
-                if (out.buffer.length > 0) {
+                if (out.size > 0 && (out.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    // Codec config is not a frame - store it separately.
+                    if (ivf != null) {
+                        ivf.writeCodecConfig(out.data);
+                    }
+                } else if (out.size > 0) {
                     // Save frame
                     if (ivf != null) {
-                        ivf.writeFrame(out.buffer, out.outPresentationTimeUs);
+                        ivf.writeFrame(out.data, out.outPresentationTimeUs);
                     }
 
                     // Update statistics - store presentation time delay in offset
                     long presentationTimeUsDelta = out.inPresentationTimeUs -
                             out.outPresentationTimeUs;
                     BufferInfo bufferInfoCopy = new BufferInfo();
-                    bufferInfoCopy.set(out.buffer.length,
+                    bufferInfoCopy.set(out.size,
                             out.outPresentationTimeUs, presentationTimeUsDelta,
                             out.inputRtcTimeUs, out.outputRtcTimeUs, out.flags);
                     bufferInfos.add(bufferInfoCopy);
+                    bufferInfoCopy.sliceType = out.sliceType;
+                    bufferInfoCopy.qp = out.qp;
                 }
+                codec.releaseOutput(out);
             }
 
             // If codec is not ready to accept input/poutput - wait for buffer ready callback
@@ -1540,9 +3200,12 @@ public class Vp8CodecTestBase extends AndroidTestCase {
 
         codec.deleteCodec();
         if (ivf != null) {
-            ivf.close();
+            closeIvfWriter(0, ivf);
+        }
+        yuvInput.close();
+        if (codec.mStreamAnalyzer != null) {
+            Log.d(TAG, "H.264 stream: " + codec.mStreamAnalyzer.getSummary());
         }
-        yuvStream.close();
 
         return bufferInfos;
     }
@@ -1575,8 +3238,8 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         // Create arrays of input/output, formats, bitrates etc
         ArrayList<ArrayList<BufferInfo>> bufferInfos =
                 new ArrayList<ArrayList<BufferInfo>>(numEncoders);
-        InputStream yuvStream[] = new InputStream[numEncoders];
-        IvfWriter[] ivf = new IvfWriter[numEncoders];
+        YuvInputSource yuvInput[] = new YuvInputSource[numEncoders];
+        EncodedStreamWriter[] ivf = new EncodedStreamWriter[numEncoders];
         MediaFormat[] format = new MediaFormat[numEncoders];
         MediaCodecAsync[] codec = new MediaCodecAsync[numEncoders];
         int[] inputFrameIndex = new int[numEncoders];
@@ -1585,41 +3248,30 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         boolean[] inputConsumed = new boolean[numEncoders];
         boolean[] bufferConsumed = new boolean[numEncoders];
         boolean[] sawOutputEOS = new boolean[numEncoders];
-        byte[][] srcFrame = new byte[numEncoders][];
         boolean sawOutputEOSTotal = false;
         boolean bufferConsumedTotal = false;
         CodecProperties[] codecProperties = new CodecProperties[numEncoders];
         double frameDuration[] = new double[numEncoders];
         double presentationTimeUsCurrent[] = new double[numEncoders];
 
+        // Create scaled images of all streams in one pass over the input.
+        cacheScaledImages(encodingParams, srcFrameWidth, srcFrameHeight);
+
         for (int i = 0; i < numEncoders; i++) {
             CodecStreamParameters params = encodingParams.get(i);
-            CodecProperties properties = getVp8CodecProperties(true, params.forceSwCodec);
-
-            // Check if scaled image was created
-            Pair<Integer, Integer> dstDimension =
-                    new Pair<Integer, Integer>(params.frameWidth, params.frameHeight);
-            if (!mScaledImages.contains(dstDimension)) {
-                // resize image
-                cacheScaledImage(params.inputYuvFilename, params.inputResourceId,
-                        srcFrameWidth, srcFrameHeight,
-                        params.scaledYuvFilename,
-                        params.frameWidth, params.frameHeight, properties.colorFormat);
-                mScaledImages.add(dstDimension);
-            }
+            CodecProperties properties = getCodecProperties(true, params);
 
             // Create buffer info storage
             bufferInfos.add(new ArrayList<BufferInfo>());
 
             // Create YUV reader
-            yuvStream[i] = new FileInputStream(params.scaledYuvFilename);
+            yuvInput[i] = new YuvInputSource(
+                    new YuvFrameSource(params.scaledYuvFilename,
+                            params.frameWidth, params.frameHeight),
+                    properties.colorFormat, properties.isGoogleSwCodec());
 
-            // Create IVF writer
-            ivf[i] = new IvfWriter(params.encodedIvfFilename, params.frameWidth, params.frameHeight);
-
-            // Frame buffer
-            int frameSize = params.frameWidth * params.frameHeight * 3 / 2;
-            srcFrame[i] = new byte[frameSize];
+            // Create IVF or elementary stream writer
+            ivf[i] = createEncodedStreamWriter(params);
 
             // Create a media format signifying desired output.
             int bitrate = params.bitrateSet[0];
@@ -1658,13 +3310,17 @@ public class Vp8CodecTestBase extends AndroidTestCase {
             Log.d(TAG, "  Input  yuv:" + params.scaledYuvFilename);
             Log.d(TAG, "  Output ivf:" + params.encodedIvfFilename);
 
+            setStandInCodecParameters(format[i], params);
             codec[i] = new MediaCodecAsync();
             codec[i].createCodec(i, properties.codecName, format[i],
                     params.timeoutDequeue, true, params.runInLooperThread);
+            codec[i].mOutputBufferDirect = true;
             codecProperties[i] = new CodecProperties(properties.codecName, properties.colorFormat);
 
             inputConsumed[i] = true;
         }
+        CodecBufferWaiter bufferWaiter = new CodecBufferWaiter(codec);
+        boolean[] idle = new boolean[numEncoders];
 
         while (!sawOutputEOSTotal) {
             // Feed input buffer to all encoders
@@ -1677,33 +3333,25 @@ public class Vp8CodecTestBase extends AndroidTestCase {
                 CodecStreamParameters params = encodingParams.get(i);
                 // Read new input buffers - if previous input was consumed and no EOS
                 if (inputConsumed[i] && !sawInputEOS[i]) {
-                    int bytesRead = yuvStream[i].read(srcFrame[i]);
+                    boolean frameAvailable = yuvInput[i].nextFrame();
 
                     // Check EOS
                     if (params.frameCount > 0 && inputFrameIndex[i] >= params.frameCount) {
                         sawInputEOS[i] = true;
                     }
 
-                    if (!sawInputEOS[i] && bytesRead == -1) {
+                    if (!sawInputEOS[i] && !frameAvailable) {
                         if (params.frameCount == 0) {
                             sawInputEOS[i] = true;
                         } else {
-                            yuvStream[i].close();
-                            yuvStream[i] = new FileInputStream(params.scaledYuvFilename);
-                            bytesRead = yuvStream[i].read(srcFrame[i]);
+                            yuvInput[i].rewind();
+                            yuvInput[i].nextFrame();
                         }
                     }
-
-                    // Convert YUV420 to NV12 if necessary
-                    if (codecProperties[i].colorFormat !=
-                            CodecCapabilities.COLOR_FormatYUV420Planar) {
-                        srcFrame[i] = YUV420ToNV(params.frameWidth, params.frameHeight, srcFrame[i],
-                                codecProperties[i].isGoogleSwCodec());
-                    }
                 }
 
-                inputConsumed[i] = codec[i].feedInput(srcFrame[i],
-                        (int)(presentationTimeUsCurrent[i] + 0.5), sawInputEOS[i]);
+                inputConsumed[i] = codec[i].feedInput(yuvInput[i],
+                        (long)(presentationTimeUsCurrent[i] + 0.5), sawInputEOS[i]);
                 if (inputConsumed[i]) {
                     inputFrameIndex[i]++;
                     presentationTimeUsCurrent[i] += frameDuration[i];
@@ -1727,19 +3375,23 @@ public class Vp8CodecTestBase extends AndroidTestCase {
                         sawOutputEOS[i] = true;
                     }
 
-                    if (out.buffer.length > 0) {
+                    if (out.size > 0 && (out.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                        // Codec config is not a frame - store it separately.
+                        ivf[i].writeCodecConfig(out.data);
+                    } else if (out.size > 0) {
                         // Save frame
-                        ivf[i].writeFrame(out.buffer, out.outPresentationTimeUs);
+                        ivf[i].writeFrame(out.data, out.outPresentationTimeUs);
 
                         // Update statistics - store presentation time delay in offset
                         long presentationTimeUsDelta = out.inPresentationTimeUs -
                                 out.outPresentationTimeUs;
                         BufferInfo bufferInfoCopy = new BufferInfo();
-                        bufferInfoCopy.set(out.buffer.length,
+                        bufferInfoCopy.set(out.size,
                                 out.outPresentationTimeUs, presentationTimeUsDelta,
                                 out.inputRtcTimeUs, out.outputRtcTimeUs, out.flags);
                         bufferInfos.get(i).add(bufferInfoCopy);
                     }
+                    codec[i].releaseOutput(out);
                 }
             }
 
@@ -1749,13 +3401,11 @@ public class Vp8CodecTestBase extends AndroidTestCase {
                 bufferConsumedTotal |= bufferConsumedCurrent;
             }
             if (!bufferConsumedTotal) {
-                // Pick the encoder to wait for
+                // Wait for any encoder which has not reached EOS yet
                 for (int i = 0; i < numEncoders; i++) {
-                    if (!bufferConsumed[i] && !sawOutputEOS[i]) {
-                        codec[i].waitForBufferEvent();
-                        break;
-                    }
+                    idle[i] = !sawOutputEOS[i];
                 }
+                bufferWaiter.waitForAnyBufferEvent(idle);
             }
 
             // Check if EOS happened for all encoders
@@ -1767,8 +3417,8 @@ public class Vp8CodecTestBase extends AndroidTestCase {
 
         for (int i = 0; i < numEncoders; i++) {
             codec[i].deleteCodec();
-            ivf[i].close();
-            yuvStream[i].close();
+            closeIvfWriter(i, ivf[i]);
+            yuvInput[i].close();
         }
         return bufferInfos;
     }
@@ -1805,9 +3455,10 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         // Create arrays of input/output, formats, bitrates etc
         ArrayList<ArrayList<BufferInfo>> bufferInfos =
                 new ArrayList<ArrayList<BufferInfo>>(numEncoders);
-        InputStream yuvInput[] = new InputStream[numEncoders];
-        IvfWriter[] ivf = new IvfWriter[numEncoders];
-        FileOutputStream[] yuvOutput = new FileOutputStream[numDecoders];
+        YuvInputSource yuvInput[] = new YuvInputSource[numEncoders];
+        EncodedStreamWriter[] ivf = new EncodedStreamWriter[numEncoders];
+        YuvFrameWriter[] yuvOutput = new YuvFrameWriter[numDecoders];
+        FrameConverter[] converter = new FrameConverter[numDecoders];
 
         MediaFormat[] formatEncoder = new MediaFormat[numEncoders];
         MediaFormat[] formatDecoder = new MediaFormat[numDecoders];
@@ -1828,7 +3479,6 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         boolean[] decoderConsumedInputEOS = new boolean[numDecoders];
         boolean[] decoderGeneratedOutputEOS = new boolean[numDecoders];
 
-        byte[][] inputYuvFrame = new byte[numEncoders][];
         boolean sawOutputEOSTotal = false;
         CodecProperties[] encoderProperties = new CodecProperties[numEncoders];
         double frameDuration[] = new double[numEncoders];
@@ -1836,36 +3486,25 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         int[] frameWidth = new int[numDecoders];
         int[] frameHeight = new int[numDecoders];
 
+        // Create scaled images of all streams in one pass over the input.
+        cacheScaledImages(encodingParams, srcFrameWidth, srcFrameHeight);
+
         // Create encoders
         for (int i = 0; i < numEncoders; i++) {
             CodecStreamParameters params = encodingParams.get(i);
-            CodecProperties properties = getVp8CodecProperties(true, params.forceSwCodec);
-
-            // Check if scaled image was created
-            Pair<Integer, Integer> dstDimension =
-                    new Pair<Integer, Integer>(params.frameWidth, params.frameHeight);
-            if (!mScaledImages.contains(dstDimension)) {
-                // resize image
-                cacheScaledImage(params.inputYuvFilename, params.inputResourceId,
-                        srcFrameWidth, srcFrameHeight,
-                        params.scaledYuvFilename,
-                        params.frameWidth, params.frameHeight, properties.colorFormat);
-                mScaledImages.add(dstDimension);
-            }
+            CodecProperties properties = getCodecProperties(true, params);
 
             // Create buffer info storage
             bufferInfos.add(new ArrayList<BufferInfo>());
 
             // Create YUV reader
-            yuvInput[i] = new FileInputStream(params.scaledYuvFilename);
-
-            // Create IVF writer
-            ivf[i] = new IvfWriter(params.encodedIvfFilename,
-                    params.frameWidth, params.frameHeight);
+            yuvInput[i] = new YuvInputSource(
+                    new YuvFrameSource(params.scaledYuvFilename,
+                            params.frameWidth, params.frameHeight),
+                    properties.colorFormat, properties.isGoogleSwCodec());
 
-            // Frame buffer
-            int frameSize = params.frameWidth * params.frameHeight * 3 / 2;
-            inputYuvFrame[i] = new byte[frameSize];
+            // Create IVF or elementary stream writer
+            ivf[i] = createEncodedStreamWriter(params);
 
             // Create a media format signifying desired output.
             int bitrate = params.bitrateSet[0];
@@ -1904,6 +3543,7 @@ public class Vp8CodecTestBase extends AndroidTestCase {
             Log.d(TAG, "  Input  yuv:" + params.scaledYuvFilename);
             Log.d(TAG, "  Output ivf:" + params.encodedIvfFilename);
 
+            setStandInCodecParameters(formatEncoder[i], params);
             encoder[i] = new MediaCodecAsync();
             encoder[i].createCodec(i, properties.codecName, formatEncoder[i],
                     params.timeoutDequeue, true, false);
@@ -1916,16 +3556,18 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         // Create decoders
         for (int i = 0; i < numDecoders; i++) {
             CodecStreamParameters params = decodingParams.get(i);
-            CodecProperties properties = getVp8CodecProperties(false, params.forceSwCodec);
+            CodecProperties properties = getCodecProperties(false, params);
+
+            // Create decoder.
+            frameWidth[i] = params.frameWidth;
+            frameHeight[i] = params.frameHeight;
 
             yuvOutput[i] = null;
             if (params.outputYuvFilename != null) {
-                yuvOutput[i] = new FileOutputStream(params.outputYuvFilename, false);
+                yuvOutput[i] = createYuvFrameWriter(params, frameWidth[i], frameHeight[i]);
             }
+            converter[i] = new FrameConverter();
 
-            // Create decoder.
-            frameWidth[i] = params.frameWidth;
-            frameHeight[i] = params.frameHeight;
             formatDecoder[i] = MediaFormat.createVideoFormat(VP8_MIME, frameWidth[i], frameHeight[i]);
             formatDecoder[i].setInteger(MediaFormat.KEY_COLOR_FORMAT, properties.colorFormat);
             Log.d(TAG, "Creating decoder #" + i + ": " + properties.codecName +
@@ -1934,15 +3576,18 @@ public class Vp8CodecTestBase extends AndroidTestCase {
             Log.d(TAG, "  Format: " + formatDecoder[i]);
             Log.d(TAG, "  Output yuv: " + params.outputYuvFilename);
 
+            setStandInCodecParameters(formatDecoder[i], params);
             decoder[i] = new MediaCodecAsync();
             decoder[i].createCodec(i, properties.codecName, formatDecoder[i],
                     params.timeoutDequeue, false, false);
+            decoder[i].mOutputBufferDirect = true;
         }
 
         // Run encode - decode loop
         while (!sawOutputEOSTotal) {
 
-            // Read input yuv frames from file
+            // Move to the next input yuv frames - frames are read from file
+            // straight into encoder input buffers.
             for (int i = 0; i < numEncoders; i++) {
                 if (encoderSawInputEOS[i]) {
                     continue;
@@ -1951,26 +3596,19 @@ public class Vp8CodecTestBase extends AndroidTestCase {
                     continue;  // previous input was not cоnsumed by encoder yet
                 }
                 CodecStreamParameters params = encodingParams.get(i);
-                int bytesRead = yuvInput[i].read(inputYuvFrame[i]);
+                boolean frameAvailable = yuvInput[i].nextFrame();
                 // Check EOS
                 if (params.frameCount > 0 && encoderInputFrameIndex[i] >= params.frameCount) {
                     encoderSawInputEOS[i] = true;
                 }
-                if (!encoderSawInputEOS[i] && bytesRead == -1) {
+                if (!encoderSawInputEOS[i] && !frameAvailable) {
                     if (params.frameCount == 0) {
                         encoderSawInputEOS[i] = true;
                     } else {
-                        yuvInput[i].close();
-                        yuvInput[i] = new FileInputStream(params.scaledYuvFilename);
-                        bytesRead = yuvInput[i].read(inputYuvFrame[i]);
+                        yuvInput[i].rewind();
+                        yuvInput[i].nextFrame();
                     }
                 }
-                // Convert YUV420 to NV12 if necessary
-                if (encoderProperties[i].colorFormat !=
-                        CodecCapabilities.COLOR_FormatYUV420Planar) {
-                    inputYuvFrame[i] = YUV420ToNV(params.frameWidth, params.frameHeight,
-                            inputYuvFrame[i], encoderProperties[i].isGoogleSwCodec());
-                }
             }
 
             // Feed input buffer to all encoders
@@ -1978,8 +3616,8 @@ public class Vp8CodecTestBase extends AndroidTestCase {
                 if (encoderConsumedInputEOS[i]) {
                     continue;
                 }
-                encoderConsumedInput[i] = encoder[i].feedInput(inputYuvFrame[i],
-                        (int)(presentationTimeUsCurrent[i] + 0.5), encoderSawInputEOS[i]);
+                encoderConsumedInput[i] = encoder[i].feedInput(yuvInput[i],
+                        (long)(presentationTimeUsCurrent[i] + 0.5), encoderSawInputEOS[i]);
                 if (encoderConsumedInput[i]) {
                     encoderInputFrameIndex[i]++;
                     presentationTimeUsCurrent[i] += frameDuration[i];
@@ -1998,6 +3636,10 @@ public class Vp8CodecTestBase extends AndroidTestCase {
                 if (!encoderCanGenerateOutput[i]) {
                     continue;
                 }
+                // Decoders have consumed the previous output - recycle its buffer.
+                if (encoderOutput[i] != null) {
+                    encoder[i].releaseOutput(encoderOutput[i]);
+                }
                 encoderOutput[i] = encoder[i].getOutput();
                 encoderGeneratedOutput[i] = encoderOutput[i].outputGenerated;
                 if (encoderGeneratedOutput[i]) {
@@ -2005,16 +3647,21 @@ public class Vp8CodecTestBase extends AndroidTestCase {
                     if ((encoderOutput[i].flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                         encoderGeneratedOutputEOS[i] = true;
                     }
-                    if (encoderOutput[i].buffer.length > 0) {
+                    if (encoderOutput[i].size > 0 &&
+                            (encoderOutput[i].flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                        // Codec config is not a frame - store it separately. Decoders
+                        // still receive it in band below.
+                        ivf[i].writeCodecConfig(encoderOutput[i].data);
+                    } else if (encoderOutput[i].size > 0) {
                         // Save ivf output
-                        ivf[i].writeFrame(encoderOutput[i].buffer,
+                        ivf[i].writeFrame(encoderOutput[i].data,
                                 encoderOutput[i].outPresentationTimeUs);
 
                         // Update statistics - store presentation time delay in offset
                         long presentationTimeUsDelta = encoderOutput[i].inPresentationTimeUs -
                                 encoderOutput[i].outPresentationTimeUs;
                         BufferInfo bufferInfoCopy = new BufferInfo();
-                        bufferInfoCopy.set(encoderOutput[i].buffer.length,
+                        bufferInfoCopy.set(encoderOutput[i].size,
                                 encoderOutput[i].outPresentationTimeUs, presentationTimeUsDelta,
                                 encoderOutput[i].inputRtcTimeUs, encoderOutput[i].outputRtcTimeUs,
                                 encoderOutput[i].flags);
@@ -2035,8 +3682,8 @@ public class Vp8CodecTestBase extends AndroidTestCase {
                 if (!encoderGeneratedOutput[j]) {
                     continue;  // no output from encoder available yet
                 }
-                decoderConsumedInput[i] = decoder[i].feedInput(encoderOutput[j].buffer,
-                        (int)(encoderOutput[j].outPresentationTimeUs + 0.5),
+                decoderConsumedInput[i] = decoder[i].feedInput(encoderOutput[j].data,
+                        encoderOutput[j].outPresentationTimeUs,
                         encoderGeneratedOutputEOS[j]);
                 if (decoderConsumedInput[i]) {
                     decoderConsumedInputEOS[i] = encoderGeneratedOutputEOS[j];
@@ -2055,27 +3702,12 @@ public class Vp8CodecTestBase extends AndroidTestCase {
                     if ((decoderOutput.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                         decoderGeneratedOutputEOS[i] = true;
                     }
-                    if (decoderOutput.buffer.length > 0 && yuvOutput[i] != null) {
+                    if (decoderOutput.size > 0 && yuvOutput[i] != null) {
                         // Save decoder output to yuv file.
-                        // Convert NV12 to YUV420 if necessary
-                        if (decoderOutput.colorFormat !=
-                                CodecCapabilities.COLOR_FormatYUV420Planar) {
-                            decoderOutput.buffer = NV12ToYUV420(frameWidth[i], frameHeight[i],
-                                    decoderOutput.stride, decoderOutput.sliceHeight,
-                                    decoderOutput.buffer);
-                        }
-                        int writeLength = Math.min(frameWidth[i] * frameHeight[i] * 3 / 2,
-                                decoderOutput.buffer.length);
-                        // Pack frame if necessary.
-                        if (writeLength < decoderOutput.buffer.length &&
-                                (decoderOutput.stride > frameWidth[i] ||
-                                 decoderOutput.sliceHeight > frameHeight[i])) {
-                            decoderOutput.buffer = PackYUV420(frameWidth[i], frameHeight[i],
-                                    decoderOutput.stride, decoderOutput.sliceHeight,
-                                    decoderOutput.buffer);
-                        }
-                        yuvOutput[i].write(decoderOutput.buffer, 0, writeLength);
+                        saveDecodedFrame(yuvOutput[i], decoderOutput,
+                                frameWidth[i], frameHeight[i], converter[i]);
                     }
+                    decoder[i].releaseOutput(decoderOutput);
                     // Check if requested number of frames has been generated, but no
                     // frame with EOS flag was detected to prevent possible dead loop
                     // for codecs with incorrect EOS handling.
@@ -2098,8 +3730,11 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         }
 
         for (int i = 0; i < numEncoders; i++) {
+            if (encoderOutput[i] != null) {
+                encoder[i].releaseOutput(encoderOutput[i]);
+            }
             encoder[i].deleteCodec();
-            ivf[i].close();
+            closeIvfWriter(i, ivf[i]);
             yuvInput[i].close();
         }
         for (int i = 0; i < numDecoders; i++) {
@@ -2112,14 +3747,31 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         return bufferInfos;
     }
 
+    /**
+     * Closes encoded stream writer and logs back-pressure statistics of IVF
+     * write-behind queue.
+     */
+    private void closeIvfWriter(int id, EncodedStreamWriter writer) throws Exception {
+        writer.close();
+        if (!(writer instanceof IvfWriter)) {
+            return;
+        }
+        IvfWriter ivf = (IvfWriter)writer;
+        if (ivf.isWriteBehind()) {
+            Log.d(TAG, "IVF writer #" + id + ". Stalls: " + ivf.getStallCount() +
+                    ". Stall time: " + ivf.getStallTimeUs() + " us" +
+                    ". Max queue depth: " + ivf.getMaxQueueDepth() +
+                    ". Write time: " + ivf.getWriteTimeUs() + " us");
+        }
+    }
+
     /**
      * Delete temporary ivf and yuv output files
      */
     public void deleteTemporaryFiles(CodecStreamParameters params) {
-        // Delete ivf
+        // Delete ivf, its frame index and codec config
         if (params.encodedIvfFilename != null) {
-            File ivfFile = new File(params.encodedIvfFilename);
-            ivfFile.delete();
+            deleteIvfFile(params.encodedIvfFilename);
         }
         // Delete output yuv
         if (params.outputYuvFilename != null) {
@@ -2134,6 +3786,15 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         }
     }
 
+    /**
+     * Deletes an IVF file with its frame index and codec config sidecars.
+     */
+    private static void deleteIvfFile(String ivfFilename) {
+        new File(ivfFilename).delete();
+        new File(IvfReader.getIndexFilename(ivfFilename)).delete();
+        new File(IvfReader.getCodecConfigFilename(ivfFilename)).delete();
+    }
+
     /**
      * Some encoding statistics.
      */
@@ -2152,6 +3813,10 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         public int mAverageKeyFrameInterval; // Average key frame interval.
         public int mMaximumKeyFrameInterval; // Maximum key frame interval.
         public int mMinimumKeyFrameInterval; // Minimum key frame interval.
+        // Quantizer statistics - only available if computed from the encoded file.
+        public int mAverageQIndex;          // Average frame quantizer index.
+        public int mMinimumQIndex;          // Minimum frame quantizer index.
+        public int mMaximumQIndex;          // Maximum frame quantizer index.
     }
 
     /**
@@ -2250,6 +3915,309 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         return computeEncodingStatistics(0, bufferInfos);
     }
 
+    /**
+     * Converts frame headers of an encoded file to buffer infos as if they were
+     * captured at encode time.
+     */
+    protected ArrayList<BufferInfo> getBufferInfos(Vp8StreamIndex index) {
+        ArrayList<BufferInfo> bufferInfos = new ArrayList<BufferInfo>(index.getFrameCount());
+        for (int i = 0; i < index.getFrameCount(); i++) {
+            BufferInfo bufferInfo = new BufferInfo();
+            int flags = index.isKeyFrame(i) ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+            bufferInfo.set(index.getFrameSize(i), index.getFrameTimestampUs(i), 0, 0, 0, flags);
+            bufferInfos.add(bufferInfo);
+        }
+        return bufferInfos;
+    }
+
+    /**
+     * Calculates encoding statistics from frame headers of an encoded file.
+     * Besides bitrate and key frame statistics frame quantizer statistics are computed.
+     */
+    protected Vp8EncodingStatistics computeEncodingStatistics(int encoderId,
+            Vp8StreamIndex index) {
+        Vp8EncodingStatistics statistics =
+                computeEncodingStatistics(encoderId, getBufferInfos(index));
+        int frames = 0;
+        long totalQIndex = 0;
+        statistics.mMinimumQIndex = Vp8FrameHeader.MAX_QINDEX;
+        statistics.mMaximumQIndex = 0;
+        for (int i = 0; i < index.getFrameCount(); i++) {
+            if (!index.isValid(i)) {
+                continue;
+            }
+            int qIndex = index.getQIndex(i);
+            totalQIndex += qIndex;
+            statistics.mMinimumQIndex = Math.min(statistics.mMinimumQIndex, qIndex);
+            statistics.mMaximumQIndex = Math.max(statistics.mMaximumQIndex, qIndex);
+            frames++;
+        }
+        if (frames > 0) {
+            statistics.mAverageQIndex = (int)((totalQIndex + frames / 2) / frames);
+        }
+        Log.d(TAG, "  QIndex: Max: " + statistics.mMaximumQIndex +
+                ". Min: " + statistics.mMinimumQIndex +
+                ". Avg: " + statistics.mAverageQIndex);
+        return statistics;
+    }
+
+    /**
+     * Calculates encoding statistics of an existing IVF file.
+     */
+    protected Vp8EncodingStatistics computeEncodingStatistics(int encoderId,
+            String ivfFilename) throws Exception {
+        return computeEncodingStatistics(encoderId, Vp8StreamIndex.build(ivfFilename));
+    }
+
+    /**
+     * Calculates encoding statistics of all IVF files in a directory. Files are
+     * indexed in parallel, statistics are returned in file name order.
+     */
+    protected ArrayList<Vp8EncodingStatistics> computeDirectoryEncodingStatistics(
+            String directory) throws Exception {
+        File[] files = new File(directory).listFiles();
+        ArrayList<String> ivfFilenames = new ArrayList<String>();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isFile() && file.getName().toLowerCase(Locale.US).endsWith(".ivf")) {
+                    ivfFilenames.add(file.getPath());
+                }
+            }
+        }
+        ArrayList<Vp8EncodingStatistics> statistics = new ArrayList<Vp8EncodingStatistics>();
+        if (ivfFilenames.isEmpty()) {
+            return statistics;
+        }
+
+        int threads = Math.min(ivfFilenames.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<Future<Vp8StreamIndex>> indices = new ArrayList<Future<Vp8StreamIndex>>();
+            for (final String ivfFilename : ivfFilenames) {
+                indices.add(executor.submit(new Callable<Vp8StreamIndex>() {
+                    @Override
+                    public Vp8StreamIndex call() throws Exception {
+                        return Vp8StreamIndex.build(ivfFilename);
+                    }
+                }));
+            }
+            for (int i = 0; i < ivfFilenames.size(); i++) {
+                Log.d(TAG, "Encoded file " + ivfFilenames.get(i));
+                statistics.add(computeEncodingStatistics(i, indices.get(i).get()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return statistics;
+    }
+
+    /**
+     * Checks encoding statistics computed offline from an encoded IVF file
+     * match the statistics computed from encoder output buffer infos, and every
+     * parsed frame header has a valid quantizer index. The file is also copied
+     * twice to a temporary directory, and statistics of the directory are
+     * checked against the file statistics.
+     */
+    protected void checkOfflineEncodingStatistics(ArrayList<BufferInfo> bufferInfos,
+            String ivfFilename) throws Exception {
+        Vp8EncodingStatistics online = computeEncodingStatistics(0, bufferInfos);
+        Vp8StreamIndex index = Vp8StreamIndex.build(ivfFilename);
+        Vp8EncodingStatistics offline = computeEncodingStatistics(0, index);
+        assertEquals("Frame count", bufferInfos.size(), index.getFrameCount());
+        for (int i = 0; i < index.getFrameCount(); i++) {
+            assertTrue("Invalid header of frame #" + i, index.isValid(i));
+            int qIndex = index.getQIndex(i);
+            assertTrue("QIndex " + qIndex + " of frame #" + i,
+                    qIndex >= 0 && qIndex <= Vp8FrameHeader.MAX_QINDEX);
+        }
+        assertEncodingStatisticsEqual("Offline", online, offline);
+
+        File directory = new File(SDCARD_DIR + File.separator + "ivf_statistics");
+        directory.mkdirs();
+        try {
+            for (String name : new String[] { "0.ivf", "1.ivf" }) {
+                copyFile(ivfFilename, new File(directory, name).getPath());
+            }
+            ArrayList<Vp8EncodingStatistics> statistics =
+                    computeDirectoryEncodingStatistics(directory.getPath());
+            assertEquals("Directory files", 2, statistics.size());
+            for (Vp8EncodingStatistics fileStatistics : statistics) {
+                assertEncodingStatisticsEqual("Directory", offline, fileStatistics);
+                assertEquals("Average QIndex",
+                        offline.mAverageQIndex, fileStatistics.mAverageQIndex);
+                assertEquals("Minimum QIndex",
+                        offline.mMinimumQIndex, fileStatistics.mMinimumQIndex);
+                assertEquals("Maximum QIndex",
+                        offline.mMaximumQIndex, fileStatistics.mMaximumQIndex);
+            }
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    private static void assertEncodingStatisticsEqual(String message,
+            Vp8EncodingStatistics expected, Vp8EncodingStatistics actual) {
+        assertEquals(message + " key frames", expected.mKeyFrames, actual.mKeyFrames);
+        assertEquals(message + " bitrates", expected.mBitrates, actual.mBitrates);
+        assertEquals(message + " frames per second", expected.mFrames, actual.mFrames);
+        assertEquals(message + " average bitrate",
+                expected.mAverageBitrate, actual.mAverageBitrate);
+    }
+
+    private static void copyFile(String srcFilename, String dstFilename) throws Exception {
+        FileInputStream src = new FileInputStream(srcFilename);
+        FileOutputStream dst = new FileOutputStream(dstFilename, false);
+        try {
+            long size = src.getChannel().size();
+            long position = 0;
+            while (position < size) {
+                position += src.getChannel().transferTo(position, size - position,
+                        dst.getChannel());
+            }
+        } finally {
+            src.close();
+            dst.close();
+        }
+    }
+
+    /**
+     * Analyzes macroblock modes, reference frames, segments and skip flags of
+     * a VP8 IVF file and logs key and inter frame totals. Groups of frames
+     * starting at key frames are analyzed in parallel.
+     *
+     * @param streamId    stream index used in the log
+     * @param ivfFilename name of the IVF file
+     * @return per frame statistics, or null if the file does not contain VP8.
+     */
+    protected Vp8MacroblockAnalyzer.FrameStatistics[] computeMacroblockStatistics(
+            int streamId, String ivfFilename) throws Exception {
+        IvfReader ivf = new IvfReader(ivfFilename, true, true);
+        Vp8MacroblockAnalyzer.FrameStatistics[] statistics;
+        try {
+            if (!IvfWriter.FOURCC_VP8.equals(ivf.getFourcc())) {
+                return null;
+            }
+            statistics = Vp8MacroblockAnalyzer.analyzeFile(ivf,
+                    Runtime.getRuntime().availableProcessors());
+        } finally {
+            ivf.close();
+        }
+
+        Vp8MacroblockAnalyzer.FrameStatistics keyFrames =
+                new Vp8MacroblockAnalyzer.FrameStatistics();
+        Vp8MacroblockAnalyzer.FrameStatistics interFrames =
+                new Vp8MacroblockAnalyzer.FrameStatistics();
+        for (Vp8MacroblockAnalyzer.FrameStatistics frame : statistics) {
+            if (!frame.valid) {
+                Log.w(TAG, "Stream #" + streamId + ". Can not parse frame # " + frame.frameIndex);
+                continue;
+            }
+            Log.v(TAG, "Frame # " + frame.frameIndex + (frame.keyFrame ? " Key. " : ". ") +
+                    frame.getSummary());
+            (frame.keyFrame ? keyFrames : interFrames).add(frame);
+        }
+        Log.d(TAG, "Stream #" + streamId + " macroblocks. Key frames: " + keyFrames.getSummary());
+        Log.d(TAG, "Stream #" + streamId + " macroblocks. Inter frames: " +
+                interFrames.getSummary());
+        return statistics;
+    }
+
+    /**
+     * Analyzes slice types, slice QPs and NAL unit sizes of a stored H.264
+     * elementary stream.
+     *
+     * @param filename   name of the elementary stream file
+     * @param width      frame width if the stream has no SPS
+     * @param height     frame height if the stream has no SPS
+     * @param frameRate  frame rate
+     * @return analyzer holding stream totals.
+     */
+    protected H264StreamAnalyzer analyzeAvcStream(String filename,
+            int width, int height, int frameRate) throws Exception {
+        return analyzeAvcStream(filename, width, height, frameRate, null);
+    }
+
+    /**
+     * Analyzes a stored H.264 elementary stream and stores slice type and QP
+     * of the first slice of every frame in |frameInfos|, if not null.
+     */
+    protected H264StreamAnalyzer analyzeAvcStream(String filename,
+            int width, int height, int frameRate, ArrayList<BufferInfo> frameInfos)
+            throws Exception {
+        H264StreamAnalyzer analyzer = new H264StreamAnalyzer();
+        AnnexBReader stream = new AnnexBReader(filename, width, height, frameRate, true);
+        try {
+            ByteBuffer config = stream.getCodecConfig();
+            if (config != null) {
+                analyzer.analyze(config, config.position(), config.remaining());
+            }
+            for (int i = 0; i < stream.getFrameCount(); i++) {
+                ByteBuffer frame = stream.getFrameBuffer(i);
+                boolean analyzed = analyzer.analyze(frame, 0, frame.remaining());
+                if (frameInfos != null) {
+                    BufferInfo frameInfo = new BufferInfo();
+                    frameInfo.set(frame.remaining(),
+                            (long)(stream.getFrameTimestamp(i) * 1e6 + 0.5), 0, 0, 0, 0);
+                    frameInfo.sliceType = analyzed ? analyzer.sliceType : -1;
+                    frameInfo.qp = analyzed ? analyzer.qp : -1;
+                    frameInfos.add(frameInfo);
+                }
+                if (analyzed) {
+                    Log.v(TAG, "Frame # " + i + ". " +
+                            H264StreamAnalyzer.getSliceTypeName(analyzer.sliceType) +
+                            (analyzer.idr ? " IDR" : "") +
+                            ". Slices: " + analyzer.sliceCount +
+                            ". QP: " + analyzer.minQp + " - " + analyzer.maxQp +
+                            ". Slice bytes: " + analyzer.sliceBytes +
+                            ". Other bytes: " + (analyzer.parameterSetBytes +
+                                    analyzer.seiBytes + analyzer.otherBytes));
+                }
+            }
+        } finally {
+            stream.close();
+        }
+        Log.d(TAG, "H.264 stream " + filename + ": " + analyzer.getSummary());
+        return analyzer;
+    }
+
+    /**
+     * Tells if the tested codec is H.264, so encoded frames are analyzed by
+     * H264StreamAnalyzer.
+     */
+    protected static boolean isAvcCodec() {
+        return AVC_MIME.equals(VP8_MIME);
+    }
+
+    /**
+     * Checks slice type and QP of every frame analyzed inline during encoding
+     * match the analysis of the stored H.264 elementary stream.
+     *
+     * @param bufferInfos  encoder output buffer infos returned by encode()
+     * @param filename     name of the elementary stream file written by encode()
+     */
+    protected void checkAvcStreamAnalysis(ArrayList<BufferInfo> bufferInfos, String filename,
+            int width, int height, int frameRate) throws Exception {
+        ArrayList<BufferInfo> frameInfos = new ArrayList<BufferInfo>();
+        H264StreamAnalyzer analyzer =
+                analyzeAvcStream(filename, width, height, frameRate, frameInfos);
+        assertEquals("Frame count", bufferInfos.size(), frameInfos.size());
+        assertEquals("Analyzed frame count", frameInfos.size(), analyzer.frameCount);
+        for (int i = 0; i < frameInfos.size(); i++) {
+            BufferInfo encoded = bufferInfos.get(i);
+            BufferInfo stored = frameInfos.get(i);
+            assertTrue("Frame #" + i + " was not analyzed", encoded.sliceType >= 0);
+            assertEquals("Slice type of frame #" + i, encoded.sliceType, stored.sliceType);
+            assertEquals("QP of frame #" + i, encoded.qp, stored.qp);
+        }
+    }
+
     protected ArrayList<Vp8EncodingStatistics> computeSimulcastEncodingStatistics(
             ArrayList<ArrayList<BufferInfo>> bufferInfos) {
         int numCodecs = bufferInfos.size();
@@ -2281,14 +4249,14 @@ public class Vp8CodecTestBase extends AndroidTestCase {
      * generated either by encoder or decoder.
      */
     protected void averageCodecTimeUs(int id, ArrayList<BufferInfo> bufferInfos) {
-        int maximumLatencyUs = 0;
-        int averageLatencyUs = 0;
-        int averageCodecUs = 0;
-        int lastCodecTimeUs = bufferInfos.get(0).outputRtcTimeUs;
+        long maximumLatencyUs = 0;
+        long averageLatencyUs = 0;
+        long averageCodecUs = 0;
+        long lastCodecTimeUs = bufferInfos.get(0).outputRtcTimeUs;
         int totalFrames = bufferInfos.size();
         for (BufferInfo bufferInfo : bufferInfos) {
-            int currentLatencyUs = bufferInfo.outputRtcTimeUs - bufferInfo.inputRtcTimeUs;
-            int currentDecodeUs = bufferInfo.outputRtcTimeUs - lastCodecTimeUs;
+            long currentLatencyUs = bufferInfo.outputRtcTimeUs - bufferInfo.inputRtcTimeUs;
+            long currentDecodeUs = bufferInfo.outputRtcTimeUs - lastCodecTimeUs;
             averageLatencyUs += currentLatencyUs;
             averageCodecUs += currentDecodeUs;
             maximumLatencyUs = Math.max(maximumLatencyUs, currentLatencyUs);
@@ -2350,9 +4318,16 @@ public class Vp8CodecTestBase extends AndroidTestCase {
             int height,
             int rateDecimator) throws Exception {
         Vp8DecodingStatistics statistics = new Vp8DecodingStatistics();
-        InputStream referenceStream =
-                OpenFileOrResourceId(referenceYuvFilename, referenceYuvRawId);
-        InputStream decodedStream = new FileInputStream(decodedYuvFilename);
+        // Reference sequence wraps around if the decoded one is longer.
+        YuvFrameSource referenceYuv =
+                OpenFileOrResourceId(referenceYuvFilename, referenceYuvRawId, width, height);
+        referenceYuv.setLooping(true);
+        YuvFrameSource decodedYuv;
+        if (Y4mReader.isY4mFile(decodedYuvFilename)) {
+            decodedYuv = new Y4mReader(decodedYuvFilename, true);
+        } else {
+            decodedYuv = new YuvFrameSource(decodedYuvFilename, width, height, true);
+        }
 
         int ySize = width * height;
         int uvSize = width * height / 4;
@@ -2360,6 +4335,11 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         byte[] yDec = new byte[ySize];
         byte[] uvRef = new byte[uvSize];
         byte[] uvDec = new byte[uvSize];
+        ByteBuffer yRefBuffer = ByteBuffer.wrap(yRef);
+        ByteBuffer yDecBuffer = ByteBuffer.wrap(yDec);
+        ByteBuffer uvRefBuffer = ByteBuffer.wrap(uvRef);
+        ByteBuffer uvDecBuffer = ByteBuffer.wrap(uvDec);
+        int referenceFrameIndex = 0;
 
         int frames = 0;
         double averageYPSNR = 0;
@@ -2370,19 +4350,12 @@ public class Vp8CodecTestBase extends AndroidTestCase {
         double minimumVPSNR = Integer.MAX_VALUE;
         int minimumPSNRFrameIndex = 0;
 
-        while (true) {
+        while (frames < decodedYuv.getFrameCount()) {
             // Calculate Y PSNR.
-            int bytesReadDec = decodedStream.read(yDec);
-            if (bytesReadDec == -1) {
-                break;
-            }
-            int bytesReadRef = referenceStream.read(yRef);
-            if (bytesReadRef == -1) {
-                // Reference file wrapping up
-                referenceStream.close();
-                referenceStream = OpenFileOrResourceId(referenceYuvFilename, referenceYuvRawId);
-                bytesReadRef = referenceStream.read(yRef);
-            }
+            yDecBuffer.clear();
+            decodedYuv.readFrameData(frames, 0, ySize, yDecBuffer);
+            yRefBuffer.clear();
+            referenceYuv.readFrameData(referenceFrameIndex, 0, ySize, yRefBuffer);
 
             double curYPSNR = computePSNR(yRef, yDec);
             averageYPSNR += curYPSNR;
@@ -2390,16 +4363,20 @@ public class Vp8CodecTestBase extends AndroidTestCase {
             double curMinimumPSNR = curYPSNR;
 
             // Calculate U PSNR.
-            bytesReadRef = referenceStream.read(uvRef);
-            bytesReadDec = decodedStream.read(uvDec);
+            uvRefBuffer.clear();
+            referenceYuv.readFrameData(referenceFrameIndex, ySize, uvSize, uvRefBuffer);
+            uvDecBuffer.clear();
+            decodedYuv.readFrameData(frames, ySize, uvSize, uvDecBuffer);
             double curUPSNR = computePSNR(uvRef, uvDec);
             averageUPSNR += curUPSNR;
             minimumUPSNR = Math.min(minimumUPSNR, curUPSNR);
             curMinimumPSNR = Math.min(curMinimumPSNR, curUPSNR);
 
             // Calculate V PSNR.
-            bytesReadRef = referenceStream.read(uvRef);
-            bytesReadDec = decodedStream.read(uvDec);
+            uvRefBuffer.clear();
+            referenceYuv.readFrameData(referenceFrameIndex, ySize + uvSize, uvSize, uvRefBuffer);
+            uvDecBuffer.clear();
+            decodedYuv.readFrameData(frames, ySize + uvSize, uvSize, uvDecBuffer);
             double curVPSNR = computePSNR(uvRef, uvDec);
             averageVPSNR += curVPSNR;
             minimumVPSNR = Math.min(minimumVPSNR, curVPSNR);
@@ -2418,21 +4395,7 @@ public class Vp8CodecTestBase extends AndroidTestCase {
             frames++;
 
             // Skip reference frames if rate decimation is enabled
-            if (rateDecimator > 1) {
-                long bytesToSkip = (rateDecimator - 1) * (ySize + 2 * uvSize);
-                while (bytesToSkip > 0) {
-                    bytesReadRef = referenceStream.read(yRef);
-                    if (bytesReadRef == -1) {
-                        referenceStream.close();
-                        referenceStream =
-                                OpenFileOrResourceId(referenceYuvFilename, referenceYuvRawId);
-                        bytesReadRef = referenceStream.read(yRef);
-                    }
-                    bytesReadRef += referenceStream.read(uvRef);
-                    bytesReadRef += referenceStream.read(uvRef);
-                    bytesToSkip -= bytesReadRef;
-                }
-            }
+            referenceFrameIndex += Math.max(rateDecimator, 1);
         }
 
         averageYPSNR /= frames;
@@ -2451,8 +4414,8 @@ public class Vp8CodecTestBase extends AndroidTestCase {
                 statistics.mMinimumPSNR, minimumPSNRFrameIndex);
         Log.d(TAG, logStr);
 
-        referenceStream.close();
-        decodedStream.close();
+        referenceYuv.close();
+        decodedYuv.close();
         return statistics;
     }
 
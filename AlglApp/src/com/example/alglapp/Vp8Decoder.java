@@ -0,0 +1,1392 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Pure Java VP8 decoder (RFC 6386) producing planar I420 frames.
+ *
+ * Frame header, macroblock modes and motion vectors are parsed by
+ * Vp8MacroblockAnalyzer. The decoder reads DCT tokens, reconstructs
+ * macroblocks with intra or inter prediction and inverse WHT / DCT, applies
+ * the loop filter and updates reference frames. All arithmetic follows
+ * libvpx, so frame MD5 sums match the ones of the libvpx test vectors.
+ *
+ * Macroblock rows are processed by several threads in a wavefront - a
+ * macroblock is started when the row above has finished the macroblock above
+ * and to the right of it. Rows coded in the same DCT token partition stay on
+ * one thread, so reconstruction uses at most as many threads as the frame has
+ * token partitions. The loop filter runs afterwards in the same wavefront
+ * order on all threads.
+ */
+public class Vp8Decoder {
+    private static final int MAX_PARTITIONS = 8;
+    // Last, golden and altref reference frames and the frame being decoded.
+    private static final int PICTURE_COUNT = 4;
+    // Non-zero coefficient contexts per macroblock: 4 Y, 2 U, 2 V and Y2.
+    private static final int CONTEXTS_PER_MB = 9;
+    private static final int Y2_CONTEXT = 8;
+    private static final int Y2_BLOCK = 24;
+    private static final int NORMAL_LOOP_FILTER = 0;
+    private static final int PHASE_RECONSTRUCT = 0;
+    private static final int PHASE_LOOP_FILTER = 1;
+
+    // Block types of DCT coefficient probabilities - RFC 6386 section 13.3.
+    private static final int BLOCK_TYPE_Y_AFTER_Y2 = 0;
+    private static final int BLOCK_TYPE_Y2 = 1;
+    private static final int BLOCK_TYPE_UV = 2;
+    private static final int BLOCK_TYPE_Y_WITH_DC = 3;
+
+    // Indices of per segment dequantization factors.
+    private static final int Y1_DC = 0;
+    private static final int Y1_AC = 1;
+    private static final int Y2_DC = 2;
+    private static final int Y2_AC = 3;
+    private static final int UV_DC = 4;
+    private static final int UV_AC = 5;
+
+    // Coefficient band of every coefficient position. The extra entry is used
+    // after the last coefficient and is never read.
+    private static final int[] COEFF_BANDS = {
+        0, 1, 2, 3, 6, 4, 5, 6, 6, 6, 6, 6, 6, 6, 6, 7, 0
+    };
+    private static final int[] ZIGZAG = {
+        0, 1, 4, 8, 5, 2, 3, 6, 9, 12, 13, 10, 7, 11, 14, 15
+    };
+    // Probabilities of extra bits of DCT_CAT3 - DCT_CAT6 tokens.
+    private static final int[][] CAT_PROBS = {
+        { 173, 148, 140 },
+        { 176, 155, 140, 135 },
+        { 180, 157, 141, 134, 130 },
+        { 254, 254, 243, 230, 196, 177, 153, 140, 133, 130, 129 }
+    };
+    private static final int[] DC_QUANT = {
+        4, 5, 6, 7, 8, 9, 10, 10, 11, 12, 13, 14, 15, 16, 17, 17,
+        18, 19, 20, 20, 21, 21, 22, 22, 23, 23, 24, 25, 25, 26, 27, 28,
+        29, 30, 31, 32, 33, 34, 35, 36, 37, 37, 38, 39, 40, 41, 42, 43,
+        44, 45, 46, 46, 47, 48, 49, 50, 51, 52, 53, 54, 55, 56, 57, 58,
+        59, 60, 61, 62, 63, 64, 65, 66, 67, 68, 69, 70, 71, 72, 73, 74,
+        75, 76, 76, 77, 78, 79, 80, 81, 82, 83, 84, 85, 86, 87, 88, 89,
+        91, 93, 95, 96, 98, 100, 101, 102, 104, 106, 108, 110, 112, 114, 116, 118,
+        122, 124, 126, 128, 130, 132, 134, 136, 138, 140, 143, 145, 148, 151, 154, 157
+    };
+    private static final int[] AC_QUANT = {
+        4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19,
+        20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32, 33, 34, 35,
+        36, 37, 38, 39, 40, 41, 42, 43, 44, 45, 46, 47, 48, 49, 50, 51,
+        52, 53, 54, 55, 56, 57, 58, 60, 62, 64, 66, 68, 70, 72, 74, 76,
+        78, 80, 82, 84, 86, 88, 90, 92, 94, 96, 98, 100, 102, 104, 106, 108,
+        110, 112, 114, 116, 119, 122, 125, 128, 131, 134, 137, 140, 143, 146, 149, 152,
+        155, 158, 161, 164, 167, 170, 173, 177, 181, 185, 189, 193, 197, 201, 205, 209,
+        213, 217, 221, 225, 229, 234, 239, 245, 249, 254, 259, 264, 269, 274, 279, 284
+    };
+    // Six tap interpolation filters for 1/8 pixel positions.
+    private static final int[][] SIXTAP_FILTERS = {
+        { 0, 0, 128, 0, 0, 0 },
+        { 0, -6, 123, 12, -1, 0 },
+        { 2, -11, 108, 36, -8, 1 },
+        { 0, -9, 93, 50, -6, 0 },
+        { 3, -16, 77, 77, -16, 3 },
+        { 0, -6, 50, 93, -9, 0 },
+        { 1, -8, 36, 108, -11, 2 },
+        { 0, -1, 12, 123, -6, 0 }
+    };
+    // Inverse DCT constants: sqrt(2) * sin(PI / 8) and sqrt(2) * cos(PI / 8) - 1
+    // in 16 bit fixed point.
+    private static final int SIN_PI8_SQRT2 = 35468;
+    private static final int COS_PI8_SQRT2_MINUS1 = 20091;
+
+    /**
+     * Decoded frame planes of macroblock aligned size.
+     */
+    private static class Picture {
+        final byte[] y;
+        final byte[] u;
+        final byte[] v;
+
+        Picture(int width, int height) {
+            y = new byte[width * height];
+            u = new byte[width * height / 4];
+            v = new byte[width * height / 4];
+        }
+    }
+
+    private final int mThreadCount;
+    private final ExecutorService mExecutor;
+    private final RowDecoder[] mRowDecoders;
+    private final Vp8MacroblockAnalyzer mAnalyzer = new Vp8MacroblockAnalyzer();
+    private final Vp8MacroblockAnalyzer.FrameStatistics mStatistics =
+            new Vp8MacroblockAnalyzer.FrameStatistics();
+    private final Vp8BoolDecoder[] mPartitions = new Vp8BoolDecoder[MAX_PARTITIONS];
+    private final int[][] mDequantFactors = new int[Vp8FrameHeader.MAX_SEGMENTS][6];
+    private final Object mProgressLock = new Object();
+
+    private int mWidth;
+    private int mHeight;
+    private int mMbCols;
+    private int mMbRows;
+    private int mYStride;           // Luma plane width, a multiple of 16.
+    private int mUvStride;
+    private Picture[] mPictures;
+    private Picture mCurrent;
+    private Picture mLast;
+    private Picture mGolden;
+    private Picture mAltref;
+    private boolean mFrameShown;
+
+    // State of the frame being decoded.
+    private Vp8FrameHeader mHeader;
+    private boolean mBilinearFilter;
+    private boolean mFullPixel;
+    private int mPartitionCount;
+    private byte[] mAboveContexts;
+    private byte[] mCoeffFlags;     // Non-zero if the macroblock has DCT coefficients.
+    private int[] mRowProgress;     // Number of macroblocks done in every row.
+    private boolean mAborted;
+    private byte[] mMbModes;
+    private byte[] mMbRefs;
+    private byte[] mUvModes;
+    private byte[] mSkipFlags;
+    private byte[] mSegmentMap;
+    private byte[] mSubblockModes;
+    private int[] mBlockMvs;
+    private int[][][][] mCoeffProbs;
+
+    /**
+     * Creates a decoder.
+     *
+     * @param threadCount number of threads decoding macroblock rows
+     */
+    public Vp8Decoder(int threadCount) {
+        mThreadCount = Math.max(1, threadCount);
+        mExecutor = (mThreadCount > 1) ? Executors.newFixedThreadPool(mThreadCount) : null;
+        mRowDecoders = new RowDecoder[mThreadCount];
+        for (int i = 0; i < mThreadCount; i++) {
+            mRowDecoders[i] = new RowDecoder();
+        }
+        for (int i = 0; i < MAX_PARTITIONS; i++) {
+            mPartitions[i] = new Vp8BoolDecoder();
+        }
+    }
+
+    public Vp8Decoder() {
+        this(1);
+    }
+
+    /**
+     * Stops decoding threads.
+     */
+    public void release() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Decodes a frame.
+     *
+     * @param frame  buffer containing the frame
+     * @param offset offset of the frame in the buffer
+     * @param length frame size
+     * @return false if the frame is corrupted or no key frame was decoded yet.
+     */
+    public boolean decodeFrame(ByteBuffer frame, int offset, int length) throws Exception {
+        mFrameShown = false;
+        if (length <= 0 || !mAnalyzer.analyze(frame, offset, length, mStatistics)) {
+            return false;
+        }
+        Vp8FrameHeader header = mAnalyzer.getFrameHeader();
+        if (header.keyFrame) {
+            initKeyFrame(header.width, header.height);
+        } else if (mLast == null) {
+            return false;
+        }
+        if (!initPartitions(frame, offset, length, header)) {
+            return false;
+        }
+        initDequantization(header);
+        mHeader = header;
+        mBilinearFilter = header.version >= 1 && header.version <= 3;
+        mFullPixel = header.version == 3;
+        mMbModes = mAnalyzer.getMbModes();
+        mMbRefs = mAnalyzer.getMbRefs();
+        mUvModes = mAnalyzer.getUvModes();
+        mSkipFlags = mAnalyzer.getSkipFlags();
+        mSegmentMap = mAnalyzer.getSegmentMap();
+        mSubblockModes = mAnalyzer.getSubblockModes();
+        mBlockMvs = mAnalyzer.getBlockMvs();
+        mCoeffProbs = mAnalyzer.getCoeffProbs();
+        mCurrent = getFreePicture();
+        Arrays.fill(mAboveContexts, (byte)0);
+
+        // Rows of one token partition are decoded by the same thread, which
+        // requires the thread count to divide the partition count.
+        runPhase(PHASE_RECONSTRUCT,
+                Integer.highestOneBit(Math.min(mThreadCount, mPartitionCount)));
+        if (header.loopFilterLevel != 0) {
+            runPhase(PHASE_LOOP_FILTER, mThreadCount);
+        }
+
+        // Reference frame updates - section 9.7. Buffer copies are done in
+        // libvpx order, so golden frame may be copied from the updated altref.
+        if (header.copyBufferToAltref == 1) {
+            mAltref = mLast;
+        } else if (header.copyBufferToAltref == 2) {
+            mAltref = mGolden;
+        }
+        if (header.copyBufferToGolden == 1) {
+            mGolden = mLast;
+        } else if (header.copyBufferToGolden == 2) {
+            mGolden = mAltref;
+        }
+        if (header.refreshGoldenFrame) {
+            mGolden = mCurrent;
+        }
+        if (header.refreshAltrefFrame) {
+            mAltref = mCurrent;
+        }
+        if (header.refreshLastFrame) {
+            mLast = mCurrent;
+        }
+        mFrameShown = header.showFrame;
+        return true;
+    }
+
+    /**
+     * Tells if the last decoded frame is shown. Hidden frames (e.g. altref
+     * frames) only update reference frames.
+     */
+    public boolean isFrameShown() {
+        return mFrameShown;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the last decoded frame in I420 format cropped to the display size.
+     *
+     * @param frame array to reuse for the output, may be null
+     */
+    public byte[] getI420Frame(byte[] frame) {
+        int uvWidth = (mWidth + 1) / 2;
+        int uvHeight = (mHeight + 1) / 2;
+        int size = mWidth * mHeight + 2 * uvWidth * uvHeight;
+        if (frame == null || frame.length != size) {
+            frame = new byte[size];
+        }
+        int offset = 0;
+        for (int i = 0; i < mHeight; i++) {
+            System.arraycopy(mCurrent.y, i * mYStride, frame, offset, mWidth);
+            offset += mWidth;
+        }
+        for (int i = 0; i < uvHeight; i++) {
+            System.arraycopy(mCurrent.u, i * mUvStride, frame, offset, uvWidth);
+            offset += uvWidth;
+        }
+        for (int i = 0; i < uvHeight; i++) {
+            System.arraycopy(mCurrent.v, i * mUvStride, frame, offset, uvWidth);
+            offset += uvWidth;
+        }
+        return frame;
+    }
+
+    /**
+     * Returns MD5 sum of the last decoded frame in I420 format as a hex string,
+     * computed the same way as in libvpx test vector .md5 files.
+     */
+    public String getFrameMd5() throws Exception {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        int uvWidth = (mWidth + 1) / 2;
+        int uvHeight = (mHeight + 1) / 2;
+        for (int i = 0; i < mHeight; i++) {
+            md5.update(mCurrent.y, i * mYStride, mWidth);
+        }
+        for (int i = 0; i < uvHeight; i++) {
+            md5.update(mCurrent.u, i * mUvStride, uvWidth);
+        }
+        for (int i = 0; i < uvHeight; i++) {
+            md5.update(mCurrent.v, i * mUvStride, uvWidth);
+        }
+        StringBuilder md5String = new StringBuilder();
+        for (byte b : md5.digest()) {
+            md5String.append(String.format(Locale.US, "%02x", b & 0xff));
+        }
+        return md5String.toString();
+    }
+
+    private void initKeyFrame(int width, int height) {
+        int mbCols = mAnalyzer.getMbCols();
+        int mbRows = mAnalyzer.getMbRows();
+        mWidth = width;
+        mHeight = height;
+        if (mPictures == null || mbCols != mMbCols || mbRows != mMbRows) {
+            mMbCols = mbCols;
+            mMbRows = mbRows;
+            mYStride = mbCols * 16;
+            mUvStride = mbCols * 8;
+            mPictures = new Picture[PICTURE_COUNT];
+            for (int i = 0; i < PICTURE_COUNT; i++) {
+                mPictures[i] = new Picture(mYStride, mbRows * 16);
+            }
+            mAboveContexts = new byte[mbCols * CONTEXTS_PER_MB];
+            mCoeffFlags = new byte[mbCols * mbRows];
+            mRowProgress = new int[mbRows];
+        }
+        mLast = null;
+        mGolden = null;
+        mAltref = null;
+    }
+
+    private Picture getFreePicture() {
+        for (Picture picture : mPictures) {
+            if (picture != mLast && picture != mGolden && picture != mAltref) {
+                return picture;
+            }
+        }
+        throw new IllegalStateException("No free picture buffer");
+    }
+
+    /**
+     * Sets up DCT token partition decoders - section 9.5.
+     */
+    private boolean initPartitions(ByteBuffer frame, int offset, int length,
+            Vp8FrameHeader header) {
+        int count = header.partitionCount;
+        int sizesOffset = header.headerSize + header.firstPartitionSize;
+        int dataOffset = sizesOffset + 3 * (count - 1);
+        if (dataOffset > length) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            int size = length - dataOffset;
+            if (i < count - 1) {
+                int position = offset + sizesOffset + 3 * i;
+                size = (frame.get(position) & 0xFF) | ((frame.get(position + 1) & 0xFF) << 8) |
+                        ((frame.get(position + 2) & 0xFF) << 16);
+                if (size > length - dataOffset) {
+                    return false;
+                }
+            }
+            mPartitions[i].init(frame, offset + dataOffset, size);
+            dataOffset += size;
+        }
+        mPartitionCount = count;
+        return true;
+    }
+
+    /**
+     * Computes dequantization factors of all segments - section 14.1.
+     */
+    private void initDequantization(Vp8FrameHeader header) {
+        for (int segment = 0; segment < Vp8FrameHeader.MAX_SEGMENTS; segment++) {
+            int q = header.getSegmentQIndex(segment);
+            int[] factors = mDequantFactors[segment];
+            factors[Y1_DC] = DC_QUANT[clampQIndex(q + header.yDcDelta)];
+            factors[Y1_AC] = AC_QUANT[q];
+            factors[Y2_DC] = DC_QUANT[clampQIndex(q + header.y2DcDelta)] * 2;
+            factors[Y2_AC] = Math.max(8, AC_QUANT[clampQIndex(q + header.y2AcDelta)] * 155 / 100);
+            factors[UV_DC] = Math.min(132, DC_QUANT[clampQIndex(q + header.uvDcDelta)]);
+            factors[UV_AC] = AC_QUANT[clampQIndex(q + header.uvAcDelta)];
+        }
+    }
+
+    private static int clampQIndex(int q) {
+        return Math.max(0, Math.min(Vp8FrameHeader.MAX_QINDEX, q));
+    }
+
+    /**
+     * Runs reconstruction or loop filter of all macroblock rows. Thread t
+     * processes rows t, t + threadCount, ...
+     */
+    private void runPhase(final int phase, final int threadCount) throws Exception {
+        mAborted = false;
+        Arrays.fill(mRowProgress, 0);
+        if (threadCount == 1) {
+            processRows(phase, 0, 1);
+            return;
+        }
+        ArrayList<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            results.add(mExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    processRows(phase, thread, threadCount);
+                    return null;
+                }
+            }));
+        }
+        ExecutionException error = null;
+        for (Future<Void> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                // Remaining threads are aborted and finish shortly.
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void processRows(int phase, int thread, int threadCount) throws Exception {
+        RowDecoder rowDecoder = mRowDecoders[thread];
+        boolean done = false;
+        try {
+            for (int row = thread; row < mMbRows; row += threadCount) {
+                if (phase == PHASE_RECONSTRUCT) {
+                    rowDecoder.startRow(mPartitions[row % mPartitionCount]);
+                }
+                for (int col = 0; col < mMbCols; col++) {
+                    if (threadCount > 1 && row > 0 &&
+                            !waitForProgress(row - 1, Math.min(col + 2, mMbCols))) {
+                        return;
+                    }
+                    if (phase == PHASE_RECONSTRUCT) {
+                        rowDecoder.decodeMacroblock(row, col);
+                    } else {
+                        rowDecoder.filterMacroblock(row, col);
+                    }
+                    if (threadCount > 1) {
+                        setProgress(row, col + 1);
+                    }
+                }
+            }
+            done = true;
+        } finally {
+            if (!done && threadCount > 1) {
+                synchronized (mProgressLock) {
+                    mAborted = true;
+                    mProgressLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until |count| macroblocks of the row are done.
+     *
+     * @return false if another thread failed.
+     */
+    private boolean waitForProgress(int row, int count) throws InterruptedException {
+        synchronized (mProgressLock) {
+            while (mRowProgress[row] < count && !mAborted) {
+                mProgressLock.wait();
+            }
+            return !mAborted;
+        }
+    }
+
+    private void setProgress(int row, int count) {
+        synchronized (mProgressLock) {
+            mRowProgress[row] = count;
+            mProgressLock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns loop filter level of a macroblock - section 9.6.
+     */
+    private int getLoopFilterLevel(int mb) {
+        Vp8FrameHeader header = mHeader;
+        int level = header.getSegmentLoopFilterLevel(mSegmentMap[mb]);
+        if (header.loopFilterDeltaEnabled) {
+            int ref = mMbRefs[mb];
+            int mode = mMbModes[mb];
+            level += header.refFrameLoopFilterDeltas[ref];
+            if (ref == Vp8MacroblockAnalyzer.INTRA_FRAME) {
+                if (mode == Vp8MacroblockAnalyzer.B_PRED) {
+                    level += header.modeLoopFilterDeltas[0];
+                }
+            } else if (mode == Vp8MacroblockAnalyzer.ZEROMV) {
+                level += header.modeLoopFilterDeltas[1];
+            } else if (mode == Vp8MacroblockAnalyzer.SPLITMV) {
+                level += header.modeLoopFilterDeltas[3];
+            } else {
+                level += header.modeLoopFilterDeltas[2];
+            }
+            level = Math.max(0, Math.min(Vp8FrameHeader.MAX_LOOP_FILTER_LEVEL, level));
+        }
+        return level;
+    }
+
+    /**
+     * Decoding state and scratch buffers of one thread.
+     */
+    private class RowDecoder {
+        private final short[] mCoeffs = new short[25 * 16];
+        private final int[] mEobs = new int[25];
+        private final short[] mTransform = new short[16];
+        private final byte[] mLeftContexts = new byte[CONTEXTS_PER_MB];
+        // Intra prediction edges. For sub-blocks mEdge holds left pixels from
+        // bottom to top, above-left pixel and 8 above pixels.
+        private final int[] mAbove = new int[16];
+        private final int[] mLeft = new int[16];
+        private final int[] mEdge = new int[13];
+        private final int[] mPrediction = new int[16];
+        // Reference pixels and first pass output of inter prediction.
+        private final int[] mWindow = new int[21 * 21];
+        private final int[] mFiltered = new int[21 * 16];
+        private Vp8BoolDecoder mBd;
+
+        void startRow(Vp8BoolDecoder bd) {
+            mBd = bd;
+            Arrays.fill(mLeftContexts, (byte)0);
+        }
+
+        void decodeMacroblock(int row, int col) {
+            int mb = row * mMbCols + col;
+            int mode = mMbModes[mb];
+            boolean hasY2 = mode != Vp8MacroblockAnalyzer.B_PRED &&
+                    mode != Vp8MacroblockAnalyzer.SPLITMV;
+            boolean hasCoeffs = false;
+            if (mSkipFlags[mb] == 0) {
+                hasCoeffs = readTokens(mb, col, hasY2);
+            } else {
+                int above = col * CONTEXTS_PER_MB;
+                for (int i = 0; i < Y2_CONTEXT; i++) {
+                    mAboveContexts[above + i] = 0;
+                    mLeftContexts[i] = 0;
+                }
+                if (hasY2) {
+                    mAboveContexts[above + Y2_CONTEXT] = 0;
+                    mLeftContexts[Y2_CONTEXT] = 0;
+                }
+            }
+            mCoeffFlags[mb] = (byte)(hasCoeffs ? 1 : 0);
+            if (hasCoeffs && hasY2) {
+                inverseWht();
+            }
+
+            Picture picture = mCurrent;
+            int x = col * 16;
+            int y = row * 16;
+            if (mMbRefs[mb] == Vp8MacroblockAnalyzer.INTRA_FRAME) {
+                if (mode == Vp8MacroblockAnalyzer.B_PRED) {
+                    for (int b = 0; b < 16; b++) {
+                        int bx = x + (b & 3) * 4;
+                        int by = y + (b >> 2) * 4;
+                        predictSubblock(picture.y, bx, by, (b & 3) == 3 ? y - 1 : by - 1,
+                                mSubblockModes[mb * 16 + b]);
+                        if (hasCoeffs) {
+                            addResidual(picture.y, by * mYStride + bx, mYStride, b);
+                        }
+                    }
+                } else {
+                    predictIntraBlock(picture.y, mYStride, x, y, 16, mode, row > 0, col > 0);
+                    if (hasCoeffs) {
+                        addLumaResidual(picture.y, y * mYStride + x);
+                    }
+                }
+                int uvMode = mUvModes[mb];
+                predictIntraBlock(picture.u, mUvStride, x / 2, y / 2, 8, uvMode, row > 0, col > 0);
+                predictIntraBlock(picture.v, mUvStride, x / 2, y / 2, 8, uvMode, row > 0, col > 0);
+            } else {
+                predictInterMacroblock(mb, x, y);
+                if (hasCoeffs) {
+                    addLumaResidual(picture.y, y * mYStride + x);
+                }
+            }
+            if (hasCoeffs) {
+                int uvOffset = (y / 2) * mUvStride + x / 2;
+                for (int b = 0; b < 4; b++) {
+                    int blockOffset = uvOffset + (b >> 1) * 4 * mUvStride + (b & 1) * 4;
+                    addResidual(picture.u, blockOffset, mUvStride, 16 + b);
+                    addResidual(picture.v, blockOffset, mUvStride, 20 + b);
+                }
+                Arrays.fill(mCoeffs, (short)0);
+            }
+        }
+
+        /**
+         * Reads DCT coefficients of a macroblock - section 13.
+         *
+         * @return true if any block has coefficients.
+         */
+        private boolean readTokens(int mb, int col, boolean hasY2) {
+            int[] factors = mDequantFactors[mSegmentMap[mb]];
+            byte[] aboveContexts = mAboveContexts;
+            byte[] leftContexts = mLeftContexts;
+            int above = col * CONTEXTS_PER_MB;
+            int firstCoeff = 0;
+            int yType = BLOCK_TYPE_Y_WITH_DC;
+            int nonZero = 0;
+            if (hasY2) {
+                int ctx = aboveContexts[above + Y2_CONTEXT] + leftContexts[Y2_CONTEXT];
+                int eob = readCoefficients(mCoeffProbs[BLOCK_TYPE_Y2], ctx, 0,
+                        factors[Y2_DC], factors[Y2_AC], Y2_BLOCK);
+                mEobs[Y2_BLOCK] = eob;
+                byte flag = (byte)(eob > 0 ? 1 : 0);
+                aboveContexts[above + Y2_CONTEXT] = flag;
+                leftContexts[Y2_CONTEXT] = flag;
+                nonZero |= eob;
+                firstCoeff = 1;
+                yType = BLOCK_TYPE_Y_AFTER_Y2;
+            }
+            for (int b = 0; b < 16; b++) {
+                int a = above + (b & 3);
+                int l = b >> 2;
+                int eob = readCoefficients(mCoeffProbs[yType],
+                        aboveContexts[a] + leftContexts[l], firstCoeff,
+                        factors[Y1_DC], factors[Y1_AC], b);
+                mEobs[b] = eob;
+                byte flag = (byte)(eob > 0 ? 1 : 0);
+                aboveContexts[a] = flag;
+                leftContexts[l] = flag;
+                nonZero |= eob;
+            }
+            // U blocks use contexts 4 - 5 and V blocks contexts 6 - 7.
+            for (int b = 16; b < 24; b++) {
+                int plane = 4 + ((b - 16) >> 2) * 2;
+                int a = above + plane + (b & 1);
+                int l = plane + ((b >> 1) & 1);
+                int eob = readCoefficients(mCoeffProbs[BLOCK_TYPE_UV],
+                        aboveContexts[a] + leftContexts[l], 0,
+                        factors[UV_DC], factors[UV_AC], b);
+                mEobs[b] = eob;
+                byte flag = (byte)(eob > 0 ? 1 : 0);
+                aboveContexts[a] = flag;
+                leftContexts[l] = flag;
+                nonZero |= eob;
+            }
+            return nonZero != 0;
+        }
+
+        /**
+         * Reads dequantized coefficients of a block - section 13.2.
+         *
+         * @return 0 if the block has no coefficients, or the position following
+         *         the last decoded token.
+         */
+        private int readCoefficients(int[][][] probs, int ctx, int n, int dcFactor,
+                int acFactor, int block) {
+            Vp8BoolDecoder bd = mBd;
+            int[] p = probs[n][ctx];
+            if (bd.readBool(p[0]) == 0) {
+                return 0;
+            }
+            int offset = block * 16;
+            while (true) {
+                n++;
+                if (bd.readBool(p[1]) == 0) {
+                    // DCT_0 is never followed by DCT_EOB.
+                    p = probs[COEFF_BANDS[n]][0];
+                } else {
+                    int value;
+                    if (bd.readBool(p[2]) == 0) {
+                        value = 1;
+                        p = probs[COEFF_BANDS[n]][1];
+                    } else {
+                        if (bd.readBool(p[3]) == 0) {
+                            if (bd.readBool(p[4]) == 0) {
+                                value = 2;
+                            } else {
+                                value = 3 + bd.readBool(p[5]);
+                            }
+                        } else if (bd.readBool(p[6]) == 0) {
+                            if (bd.readBool(p[7]) == 0) {
+                                value = 5 + bd.readBool(159);
+                            } else {
+                                value = 7 + 2 * bd.readBool(165);
+                                value += bd.readBool(145);
+                            }
+                        } else {
+                            int bit1 = bd.readBool(p[8]);
+                            int bit0 = bd.readBool(p[9 + bit1]);
+                            int category = 2 * bit1 + bit0;
+                            value = 0;
+                            for (int prob : CAT_PROBS[category]) {
+                                value += value + bd.readBool(prob);
+                            }
+                            value += 3 + (8 << category);
+                        }
+                        p = probs[COEFF_BANDS[n]][2];
+                    }
+                    int position = ZIGZAG[n - 1];
+                    if (bd.readBool(128) != 0) {
+                        value = -value;
+                    }
+                    mCoeffs[offset + position] =
+                            (short)(value * (position > 0 ? acFactor : dcFactor));
+                    if (n == 16 || bd.readBool(p[0]) == 0) {
+                        return n;
+                    }
+                }
+                if (n == 16) {
+                    return 16;
+                }
+            }
+        }
+
+        /**
+         * Inverse Walsh-Hadamard transform of the Y2 block, which sets DC
+         * coefficients of luma blocks - section 14.3.
+         */
+        private void inverseWht() {
+            short[] input = mCoeffs;
+            short[] output = mTransform;
+            int in = Y2_BLOCK * 16;
+            for (int i = 0; i < 4; i++) {
+                int a1 = input[in + i] + input[in + 12 + i];
+                int b1 = input[in + 4 + i] + input[in + 8 + i];
+                int c1 = input[in + 4 + i] - input[in + 8 + i];
+                int d1 = input[in + i] - input[in + 12 + i];
+                output[i] = (short)(a1 + b1);
+                output[4 + i] = (short)(c1 + d1);
+                output[8 + i] = (short)(a1 - b1);
+                output[12 + i] = (short)(d1 - c1);
+            }
+            for (int i = 0; i < 4; i++) {
+                int a1 = output[4 * i] + output[4 * i + 3];
+                int b1 = output[4 * i + 1] + output[4 * i + 2];
+                int c1 = output[4 * i + 1] - output[4 * i + 2];
+                int d1 = output[4 * i] - output[4 * i + 3];
+                input[(4 * i) * 16] = (short)((a1 + b1 + 3) >> 3);
+                input[(4 * i + 1) * 16] = (short)((c1 + d1 + 3) >> 3);
+                input[(4 * i + 2) * 16] = (short)((a1 - b1 + 3) >> 3);
+                input[(4 * i + 3) * 16] = (short)((d1 - c1 + 3) >> 3);
+            }
+        }
+
+        private void addLumaResidual(byte[] plane, int offset) {
+            for (int b = 0; b < 16; b++) {
+                addResidual(plane, offset + (b >> 2) * 4 * mYStride + (b & 3) * 4, mYStride, b);
+            }
+        }
+
+        /**
+         * Adds inverse DCT of a block to the prediction - section 14.4.
+         * Luma blocks of macroblocks with Y2 have no DC token, so their
+         * DC-only case is mEobs == 0.
+         */
+        private void addResidual(byte[] plane, int offset, int stride, int block) {
+            short[] coeffs = mCoeffs;
+            int in = block * 16;
+            if (mEobs[block] <= 1) {
+                int dc = (coeffs[in] + 4) >> 3;
+                if (dc == 0) {
+                    return;
+                }
+                for (int r = 0; r < 4; r++, offset += stride) {
+                    for (int c = 0; c < 4; c++) {
+                        plane[offset + c] = clampPixel((plane[offset + c] & 0xFF) + dc);
+                    }
+                }
+                return;
+            }
+            short[] output = mTransform;
+            for (int i = 0; i < 4; i++) {
+                int i0 = coeffs[in + i];
+                int i4 = coeffs[in + 4 + i];
+                int i8 = coeffs[in + 8 + i];
+                int i12 = coeffs[in + 12 + i];
+                int a1 = i0 + i8;
+                int b1 = i0 - i8;
+                int c1 = ((i4 * SIN_PI8_SQRT2) >> 16) - (i12 + ((i12 * COS_PI8_SQRT2_MINUS1) >> 16));
+                int d1 = (i4 + ((i4 * COS_PI8_SQRT2_MINUS1) >> 16)) + ((i12 * SIN_PI8_SQRT2) >> 16);
+                output[i] = (short)(a1 + d1);
+                output[12 + i] = (short)(a1 - d1);
+                output[4 + i] = (short)(b1 + c1);
+                output[8 + i] = (short)(b1 - c1);
+            }
+            for (int r = 0; r < 4; r++, offset += stride) {
+                int i0 = output[4 * r];
+                int i1 = output[4 * r + 1];
+                int i2 = output[4 * r + 2];
+                int i3 = output[4 * r + 3];
+                int a1 = i0 + i2;
+                int b1 = i0 - i2;
+                int c1 = ((i1 * SIN_PI8_SQRT2) >> 16) - (i3 + ((i3 * COS_PI8_SQRT2_MINUS1) >> 16));
+                int d1 = (i1 + ((i1 * COS_PI8_SQRT2_MINUS1) >> 16)) + ((i3 * SIN_PI8_SQRT2) >> 16);
+                plane[offset] = clampPixel((plane[offset] & 0xFF) +
+                        (short)((a1 + d1 + 4) >> 3));
+                plane[offset + 1] = clampPixel((plane[offset + 1] & 0xFF) +
+                        (short)((b1 + c1 + 4) >> 3));
+                plane[offset + 2] = clampPixel((plane[offset + 2] & 0xFF) +
+                        (short)((b1 - c1 + 4) >> 3));
+                plane[offset + 3] = clampPixel((plane[offset + 3] & 0xFF) +
+                        (short)((a1 - d1 + 4) >> 3));
+            }
+        }
+
+        /**
+         * Predicts a 16x16 luma or 8x8 chroma block - section 12.2.
+         */
+        private void predictIntraBlock(byte[] plane, int stride, int x, int y, int size,
+                int mode, boolean haveAbove, boolean haveLeft) {
+            int[] above = mAbove;
+            int[] left = mLeft;
+            for (int i = 0; i < size; i++) {
+                above[i] = getEdgePixel(plane, stride, x + i, y - 1);
+                left[i] = getEdgePixel(plane, stride, x - 1, y + i);
+            }
+            int topLeft = getEdgePixel(plane, stride, x - 1, y - 1);
+            int dc = 128;
+            if (mode == Vp8MacroblockAnalyzer.DC_PRED && (haveAbove || haveLeft)) {
+                int shift = (size == 16) ? 3 : 2;
+                int sum = 0;
+                for (int i = 0; i < size; i++) {
+                    sum += (haveAbove ? above[i] : 0) + (haveLeft ? left[i] : 0);
+                }
+                shift += (haveAbove ? 1 : 0) + (haveLeft ? 1 : 0);
+                dc = (sum + (1 << (shift - 1))) >> shift;
+            }
+            int offset = y * stride + x;
+            for (int r = 0; r < size; r++, offset += stride) {
+                for (int c = 0; c < size; c++) {
+                    int value;
+                    switch (mode) {
+                        case Vp8MacroblockAnalyzer.V_PRED:
+                            value = above[c];
+                            break;
+                        case Vp8MacroblockAnalyzer.H_PRED:
+                            value = left[r];
+                            break;
+                        case Vp8MacroblockAnalyzer.TM_PRED:
+                            value = left[r] + above[c] - topLeft;
+                            break;
+                        default:
+                            value = dc;
+                            break;
+                    }
+                    plane[offset + c] = clampPixel(value);
+                }
+            }
+        }
+
+        /**
+         * Predicts a 4x4 luma sub-block - section 12.3.
+         *
+         * @param aboveRightY row of the 4 pixels above and to the right of the
+         *                    sub-block. Sub-blocks in the right column use the
+         *                    row above the macroblock.
+         */
+        private void predictSubblock(byte[] plane, int x, int y, int aboveRightY, int mode) {
+            int stride = mYStride;
+            int[] e = mEdge;
+            for (int i = 0; i < 4; i++) {
+                e[3 - i] = getEdgePixel(plane, stride, x - 1, y + i);
+                e[5 + i] = getEdgePixel(plane, stride, x + i, y - 1);
+                e[9 + i] = getEdgePixel(plane, stride, x + 4 + i, aboveRightY);
+            }
+            e[4] = getEdgePixel(plane, stride, x - 1, y - 1);
+            int[] p = mPrediction;
+            switch (mode) {
+                case Vp8MacroblockAnalyzer.B_DC_PRED: {
+                    int dc = 4;
+                    for (int i = 0; i < 4; i++) {
+                        dc += e[i] + e[5 + i];
+                    }
+                    Arrays.fill(p, dc >> 3);
+                    break;
+                }
+                case Vp8MacroblockAnalyzer.B_TM_PRED:
+                    for (int r = 0; r < 4; r++) {
+                        for (int c = 0; c < 4; c++) {
+                            p[r * 4 + c] = e[3 - r] + e[5 + c] - e[4];
+                        }
+                    }
+                    break;
+                case Vp8MacroblockAnalyzer.B_VE_PRED:
+                    for (int c = 0; c < 4; c++) {
+                        int value = avg3(e[4 + c], e[5 + c], e[6 + c]);
+                        p[c] = p[4 + c] = p[8 + c] = p[12 + c] = value;
+                    }
+                    break;
+                case Vp8MacroblockAnalyzer.B_HE_PRED:
+                    for (int r = 0; r < 4; r++) {
+                        int value = (r < 3) ? avg3(e[4 - r], e[3 - r], e[2 - r]) :
+                                avg3(e[1], e[0], e[0]);
+                        p[r * 4] = p[r * 4 + 1] = p[r * 4 + 2] = p[r * 4 + 3] = value;
+                    }
+                    break;
+                case Vp8MacroblockAnalyzer.B_LD_PRED:
+                    for (int r = 0; r < 4; r++) {
+                        for (int c = 0; c < 4; c++) {
+                            int i = 5 + r + c;
+                            p[r * 4 + c] = avg3(e[i], e[i + 1], e[Math.min(i + 2, 12)]);
+                        }
+                    }
+                    break;
+                case Vp8MacroblockAnalyzer.B_RD_PRED:
+                    for (int r = 0; r < 4; r++) {
+                        for (int c = 0; c < 4; c++) {
+                            int i = 3 - r + c;
+                            p[r * 4 + c] = avg3(e[i], e[i + 1], e[i + 2]);
+                        }
+                    }
+                    break;
+                case Vp8MacroblockAnalyzer.B_VR_PRED:
+                    p[12] = avg3(e[1], e[2], e[3]);
+                    p[8] = avg3(e[2], e[3], e[4]);
+                    p[13] = p[4] = avg3(e[3], e[4], e[5]);
+                    p[9] = p[0] = avg2(e[4], e[5]);
+                    p[14] = p[5] = avg3(e[4], e[5], e[6]);
+                    p[10] = p[1] = avg2(e[5], e[6]);
+                    p[15] = p[6] = avg3(e[5], e[6], e[7]);
+                    p[11] = p[2] = avg2(e[6], e[7]);
+                    p[7] = avg3(e[6], e[7], e[8]);
+                    p[3] = avg2(e[7], e[8]);
+                    break;
+                case Vp8MacroblockAnalyzer.B_VL_PRED:
+                    p[0] = avg2(e[5], e[6]);
+                    p[4] = avg3(e[5], e[6], e[7]);
+                    p[8] = p[1] = avg2(e[6], e[7]);
+                    p[5] = p[12] = avg3(e[6], e[7], e[8]);
+                    p[9] = p[2] = avg2(e[7], e[8]);
+                    p[13] = p[6] = avg3(e[7], e[8], e[9]);
+                    p[10] = p[3] = avg2(e[8], e[9]);
+                    p[14] = p[7] = avg3(e[8], e[9], e[10]);
+                    p[11] = avg3(e[9], e[10], e[11]);
+                    p[15] = avg3(e[10], e[11], e[12]);
+                    break;
+                case Vp8MacroblockAnalyzer.B_HD_PRED:
+                    p[12] = avg2(e[0], e[1]);
+                    p[13] = avg3(e[0], e[1], e[2]);
+                    p[8] = p[14] = avg2(e[1], e[2]);
+                    p[9] = p[15] = avg3(e[1], e[2], e[3]);
+                    p[10] = p[4] = avg2(e[2], e[3]);
+                    p[11] = p[5] = avg3(e[2], e[3], e[4]);
+                    p[6] = p[0] = avg2(e[3], e[4]);
+                    p[7] = p[1] = avg3(e[3], e[4], e[5]);
+                    p[2] = avg3(e[4], e[5], e[6]);
+                    p[3] = avg3(e[5], e[6], e[7]);
+                    break;
+                default:    // B_HU_PRED
+                    p[0] = avg2(e[3], e[2]);
+                    p[1] = avg3(e[3], e[2], e[1]);
+                    p[2] = p[4] = avg2(e[2], e[1]);
+                    p[3] = p[5] = avg3(e[2], e[1], e[0]);
+                    p[6] = p[8] = avg2(e[1], e[0]);
+                    p[7] = p[9] = avg3(e[1], e[0], e[0]);
+                    p[10] = p[11] = p[12] = p[13] = p[14] = p[15] = e[0];
+                    break;
+            }
+            int offset = y * stride + x;
+            for (int r = 0; r < 4; r++, offset += stride) {
+                for (int c = 0; c < 4; c++) {
+                    plane[offset + c] = clampPixel(p[r * 4 + c]);
+                }
+            }
+        }
+
+        /**
+         * Builds inter prediction of a macroblock - section 18.
+         */
+        private void predictInterMacroblock(int mb, int x, int y) {
+            Picture ref;
+            switch (mMbRefs[mb]) {
+                case Vp8MacroblockAnalyzer.LAST_FRAME:
+                    ref = mLast;
+                    break;
+                case Vp8MacroblockAnalyzer.GOLDEN_FRAME:
+                    ref = mGolden;
+                    break;
+                default:
+                    ref = mAltref;
+                    break;
+            }
+            Picture picture = mCurrent;
+            int height = mMbRows * 16;
+            int[] mvs = mBlockMvs;
+            int mvOffset = mb * 16;
+            if (mMbModes[mb] != Vp8MacroblockAnalyzer.SPLITMV) {
+                int mv = mvs[mvOffset];
+                int mvRow = Vp8MacroblockAnalyzer.getMvRow(mv);
+                int mvCol = Vp8MacroblockAnalyzer.getMvCol(mv);
+                predictBlock(ref.y, picture.y, mYStride, height, x, y, 16, 16, mvRow, mvCol);
+                // Chroma motion vector is the luma one halved with rounding away from zero.
+                int uvRow = (mvRow + (mvRow < 0 ? -1 : 1)) / 2;
+                int uvCol = (mvCol + (mvCol < 0 ? -1 : 1)) / 2;
+                if (mFullPixel) {
+                    uvRow &= ~7;
+                    uvCol &= ~7;
+                }
+                predictBlock(ref.u, picture.u, mUvStride, height / 2, x / 2, y / 2, 8, 8,
+                        uvRow, uvCol);
+                predictBlock(ref.v, picture.v, mUvStride, height / 2, x / 2, y / 2, 8, 8,
+                        uvRow, uvCol);
+                return;
+            }
+            for (int b = 0; b < 16; b++) {
+                int mv = mvs[mvOffset + b];
+                predictBlock(ref.y, picture.y, mYStride, height, x + (b & 3) * 4,
+                        y + (b >> 2) * 4, 4, 4, Vp8MacroblockAnalyzer.getMvRow(mv),
+                        Vp8MacroblockAnalyzer.getMvCol(mv));
+            }
+            // Every 4x4 chroma block uses the average motion vector of the four
+            // luma blocks it covers.
+            for (int i = 0; i < 2; i++) {
+                for (int j = 0; j < 2; j++) {
+                    int b = mvOffset + i * 8 + j * 2;
+                    int uvRow = 0;
+                    int uvCol = 0;
+                    for (int k = 0; k < 4; k++) {
+                        int mv = mvs[b + (k >> 1) * 4 + (k & 1)];
+                        uvRow += Vp8MacroblockAnalyzer.getMvRow(mv);
+                        uvCol += Vp8MacroblockAnalyzer.getMvCol(mv);
+                    }
+                    uvRow = (uvRow + (uvRow < 0 ? -4 : 4)) / 8;
+                    uvCol = (uvCol + (uvCol < 0 ? -4 : 4)) / 8;
+                    if (mFullPixel) {
+                        uvRow &= ~7;
+                        uvCol &= ~7;
+                    }
+                    int bx = x / 2 + j * 4;
+                    int by = y / 2 + i * 4;
+                    predictBlock(ref.u, picture.u, mUvStride, height / 2, bx, by, 4, 4,
+                            uvRow, uvCol);
+                    predictBlock(ref.v, picture.v, mUvStride, height / 2, bx, by, 4, 4,
+                            uvRow, uvCol);
+                }
+            }
+        }
+
+        /**
+         * Predicts a block from the reference plane with six tap or bilinear
+         * filter. Pixels outside of the reference plane replicate the nearest
+         * edge pixel, which gives the same result as the libvpx frame border
+         * extension combined with its motion vector clamping.
+         *
+         * @param mvRow vertical motion vector in 1/8 pixel units
+         * @param mvCol horizontal motion vector in 1/8 pixel units
+         */
+        private void predictBlock(byte[] src, byte[] dst, int stride, int height,
+                int x, int y, int w, int h, int mvRow, int mvCol) {
+            // Reference window covers 2 pixels before and 3 pixels after the block.
+            int sx = x + (mvCol >> 3) - 2;
+            int sy = y + (mvRow >> 3) - 2;
+            int fx = mvCol & 7;
+            int fy = mvRow & 7;
+            int ws = w + 5;
+            int[] window = mWindow;
+            boolean inside = sx >= 0 && sx + ws <= stride;
+            for (int r = 0; r < h + 5; r++) {
+                int row = Math.max(0, Math.min(height - 1, sy + r)) * stride;
+                if (inside) {
+                    for (int c = 0; c < ws; c++) {
+                        window[r * ws + c] = src[row + sx + c] & 0xFF;
+                    }
+                } else {
+                    for (int c = 0; c < ws; c++) {
+                        int col = Math.max(0, Math.min(stride - 1, sx + c));
+                        window[r * ws + c] = src[row + col] & 0xFF;
+                    }
+                }
+            }
+
+            int offset = y * stride + x;
+            if (fx == 0 && fy == 0) {
+                for (int r = 0; r < h; r++, offset += stride) {
+                    for (int c = 0; c < w; c++) {
+                        dst[offset + c] = (byte)window[(r + 2) * ws + c + 2];
+                    }
+                }
+                return;
+            }
+            int[] filtered = mFiltered;
+            if (mBilinearFilter) {
+                int h0 = 128 - 16 * fx;
+                int h1 = 16 * fx;
+                for (int r = 0; r <= h; r++) {
+                    for (int c = 0; c < w; c++) {
+                        int i = (r + 2) * ws + c + 2;
+                        filtered[r * w + c] = (window[i] * h0 + window[i + 1] * h1 + 64) >> 7;
+                    }
+                }
+                int v0 = 128 - 16 * fy;
+                int v1 = 16 * fy;
+                for (int r = 0; r < h; r++, offset += stride) {
+                    for (int c = 0; c < w; c++) {
+                        int i = r * w + c;
+                        dst[offset + c] = (byte)((filtered[i] * v0 + filtered[i + w] * v1 + 64) >> 7);
+                    }
+                }
+                return;
+            }
+            int[] hf = SIXTAP_FILTERS[fx];
+            for (int r = 0; r < h + 5; r++) {
+                for (int c = 0; c < w; c++) {
+                    int i = r * ws + c;
+                    int sum = window[i] * hf[0] + window[i + 1] * hf[1] + window[i + 2] * hf[2] +
+                            window[i + 3] * hf[3] + window[i + 4] * hf[4] + window[i + 5] * hf[5];
+                    filtered[r * w + c] = clamp255((sum + 64) >> 7);
+                }
+            }
+            int[] vf = SIXTAP_FILTERS[fy];
+            for (int r = 0; r < h; r++, offset += stride) {
+                for (int c = 0; c < w; c++) {
+                    int i = r * w + c;
+                    int sum = filtered[i] * vf[0] + filtered[i + w] * vf[1] +
+                            filtered[i + 2 * w] * vf[2] + filtered[i + 3 * w] * vf[3] +
+                            filtered[i + 4 * w] * vf[4] + filtered[i + 5 * w] * vf[5];
+                    dst[offset + c] = clampPixel((sum + 64) >> 7);
+                }
+            }
+        }
+
+        /**
+         * Applies the loop filter to the left and top edges of a macroblock and
+         * to its inner edges - section 15.
+         */
+        void filterMacroblock(int row, int col) {
+            int mb = row * mMbCols + col;
+            int level = getLoopFilterLevel(mb);
+            if (level == 0) {
+                return;
+            }
+            int sharpness = mHeader.sharpnessLevel;
+            int interiorLimit = level >> ((sharpness > 0 ? 1 : 0) + (sharpness > 4 ? 1 : 0));
+            if (sharpness > 0) {
+                interiorLimit = Math.min(interiorLimit, 9 - sharpness);
+            }
+            interiorLimit = Math.max(1, interiorLimit);
+            int mbEdgeLimit = (level + 2) * 2 + interiorLimit;
+            int subEdgeLimit = level * 2 + interiorLimit;
+            int hevThreshold = 0;
+            if (mHeader.keyFrame) {
+                hevThreshold = (level >= 40) ? 2 : (level >= 15) ? 1 : 0;
+            } else {
+                hevThreshold = (level >= 40) ? 3 : (level >= 20) ? 2 : (level >= 15) ? 1 : 0;
+            }
+            int mode = mMbModes[mb];
+            boolean filterInner = mode == Vp8MacroblockAnalyzer.B_PRED ||
+                    mode == Vp8MacroblockAnalyzer.SPLITMV || mCoeffFlags[mb] != 0;
+
+            Picture picture = mCurrent;
+            int ys = mYStride;
+            int uvs = mUvStride;
+            int y = row * 16 * ys + col * 16;
+            int uv = row * 8 * uvs + col * 8;
+            if (mHeader.filterType != NORMAL_LOOP_FILTER) {
+                if (col > 0) {
+                    filterSimpleEdge(picture.y, y, 1, ys, mbEdgeLimit);
+                }
+                if (filterInner) {
+                    for (int i = 4; i < 16; i += 4) {
+                        filterSimpleEdge(picture.y, y + i, 1, ys, subEdgeLimit);
+                    }
+                }
+                if (row > 0) {
+                    filterSimpleEdge(picture.y, y, ys, 1, mbEdgeLimit);
+                }
+                if (filterInner) {
+                    for (int i = 4; i < 16; i += 4) {
+                        filterSimpleEdge(picture.y, y + i * ys, ys, 1, subEdgeLimit);
+                    }
+                }
+                return;
+            }
+            if (col > 0) {
+                filterMbEdge(picture.y, y, 1, ys, 16, mbEdgeLimit, interiorLimit, hevThreshold);
+                filterMbEdge(picture.u, uv, 1, uvs, 8, mbEdgeLimit, interiorLimit, hevThreshold);
+                filterMbEdge(picture.v, uv, 1, uvs, 8, mbEdgeLimit, interiorLimit, hevThreshold);
+            }
+            if (filterInner) {
+                for (int i = 4; i < 16; i += 4) {
+                    filterSubblockEdge(picture.y, y + i, 1, ys, 16,
+                            subEdgeLimit, interiorLimit, hevThreshold);
+                }
+                filterSubblockEdge(picture.u, uv + 4, 1, uvs, 8,
+                        subEdgeLimit, interiorLimit, hevThreshold);
+                filterSubblockEdge(picture.v, uv + 4, 1, uvs, 8,
+                        subEdgeLimit, interiorLimit, hevThreshold);
+            }
+            if (row > 0) {
+                filterMbEdge(picture.y, y, ys, 1, 16, mbEdgeLimit, interiorLimit, hevThreshold);
+                filterMbEdge(picture.u, uv, uvs, 1, 8, mbEdgeLimit, interiorLimit, hevThreshold);
+                filterMbEdge(picture.v, uv, uvs, 1, 8, mbEdgeLimit, interiorLimit, hevThreshold);
+            }
+            if (filterInner) {
+                for (int i = 4; i < 16; i += 4) {
+                    filterSubblockEdge(picture.y, y + i * ys, ys, 1, 16,
+                            subEdgeLimit, interiorLimit, hevThreshold);
+                }
+                filterSubblockEdge(picture.u, uv + 4 * uvs, uvs, 1, 8,
+                        subEdgeLimit, interiorLimit, hevThreshold);
+                filterSubblockEdge(picture.v, uv + 4 * uvs, uvs, 1, 8,
+                        subEdgeLimit, interiorLimit, hevThreshold);
+            }
+        }
+    }
+
+    /**
+     * Returns an intra prediction edge pixel. Rows above the frame are 127,
+     * columns left of the frame are 129 and pixels right of the frame repeat
+     * the last pixel of the row.
+     */
+    private static int getEdgePixel(byte[] plane, int stride, int x, int y) {
+        if (y < 0) {
+            return 127;
+        }
+        if (x < 0) {
+            return 129;
+        }
+        return plane[y * stride + Math.min(x, stride - 1)] & 0xFF;
+    }
+
+    private static int avg2(int a, int b) {
+        return (a + b + 1) >> 1;
+    }
+
+    private static int avg3(int a, int b, int c) {
+        return (a + 2 * b + c + 2) >> 2;
+    }
+
+    private static int clamp255(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private static byte clampPixel(int value) {
+        return (byte)(value < 0 ? 0 : (value > 255 ? 255 : value));
+    }
+
+    private static int clampSigned(int value) {
+        return value < -128 ? -128 : (value > 127 ? 127 : value);
+    }
+
+    /**
+     * Tells if an edge is filtered by the normal loop filter - section 15.3.
+     */
+    private static boolean filterMask(byte[] s, int i, int step, int edgeLimit,
+            int interiorLimit) {
+        int p3 = s[i - 4 * step] & 0xFF;
+        int p2 = s[i - 3 * step] & 0xFF;
+        int p1 = s[i - 2 * step] & 0xFF;
+        int p0 = s[i - step] & 0xFF;
+        int q0 = s[i] & 0xFF;
+        int q1 = s[i + step] & 0xFF;
+        int q2 = s[i + 2 * step] & 0xFF;
+        int q3 = s[i + 3 * step] & 0xFF;
+        return Math.abs(p0 - q0) * 2 + (Math.abs(p1 - q1) >> 1) <= edgeLimit &&
+                Math.abs(p3 - p2) <= interiorLimit && Math.abs(p2 - p1) <= interiorLimit &&
+                Math.abs(p1 - p0) <= interiorLimit && Math.abs(q1 - q0) <= interiorLimit &&
+                Math.abs(q2 - q1) <= interiorLimit && Math.abs(q3 - q2) <= interiorLimit;
+    }
+
+    private static boolean isHighEdgeVariance(byte[] s, int i, int step, int threshold) {
+        int p1 = s[i - 2 * step] & 0xFF;
+        int p0 = s[i - step] & 0xFF;
+        int q0 = s[i] & 0xFF;
+        int q1 = s[i + step] & 0xFF;
+        return Math.abs(p1 - p0) > threshold || Math.abs(q1 - q0) > threshold;
+    }
+
+    /**
+     * Filters a macroblock edge with the normal loop filter.
+     *
+     * @param step  distance between pixels across the edge
+     * @param pitch distance between pixels along the edge
+     */
+    private static void filterMbEdge(byte[] s, int offset, int step, int pitch, int count,
+            int edgeLimit, int interiorLimit, int hevThreshold) {
+        for (int n = 0; n < count; n++, offset += pitch) {
+            if (!filterMask(s, offset, step, edgeLimit, interiorLimit)) {
+                continue;
+            }
+            int ps2 = (s[offset - 3 * step] & 0xFF) - 128;
+            int ps1 = (s[offset - 2 * step] & 0xFF) - 128;
+            int ps0 = (s[offset - step] & 0xFF) - 128;
+            int qs0 = (s[offset] & 0xFF) - 128;
+            int qs1 = (s[offset + step] & 0xFF) - 128;
+            int qs2 = (s[offset + 2 * step] & 0xFF) - 128;
+            int w = clampSigned(clampSigned(ps1 - qs1) + 3 * (qs0 - ps0));
+            if (isHighEdgeVariance(s, offset, step, hevThreshold)) {
+                int f1 = clampSigned(w + 4) >> 3;
+                int f2 = clampSigned(w + 3) >> 3;
+                s[offset] = (byte)(clampSigned(qs0 - f1) + 128);
+                s[offset - step] = (byte)(clampSigned(ps0 + f2) + 128);
+            } else {
+                int a = clampSigned((27 * w + 63) >> 7);
+                s[offset] = (byte)(clampSigned(qs0 - a) + 128);
+                s[offset - step] = (byte)(clampSigned(ps0 + a) + 128);
+                a = clampSigned((18 * w + 63) >> 7);
+                s[offset + step] = (byte)(clampSigned(qs1 - a) + 128);
+                s[offset - 2 * step] = (byte)(clampSigned(ps1 + a) + 128);
+                a = clampSigned((9 * w + 63) >> 7);
+                s[offset + 2 * step] = (byte)(clampSigned(qs2 - a) + 128);
+                s[offset - 3 * step] = (byte)(clampSigned(ps2 + a) + 128);
+            }
+        }
+    }
+
+    /**
+     * Filters an inner sub-block edge with the normal loop filter.
+     */
+    private static void filterSubblockEdge(byte[] s, int offset, int step, int pitch,
+            int count, int edgeLimit, int interiorLimit, int hevThreshold) {
+        for (int n = 0; n < count; n++, offset += pitch) {
+            if (!filterMask(s, offset, step, edgeLimit, interiorLimit)) {
+                continue;
+            }
+            int ps1 = (s[offset - 2 * step] & 0xFF) - 128;
+            int ps0 = (s[offset - step] & 0xFF) - 128;
+            int qs0 = (s[offset] & 0xFF) - 128;
+            int qs1 = (s[offset + step] & 0xFF) - 128;
+            boolean hev = isHighEdgeVariance(s, offset, step, hevThreshold);
+            int a = hev ? clampSigned(ps1 - qs1) : 0;
+            a = clampSigned(a + 3 * (qs0 - ps0));
+            int f1 = clampSigned(a + 4) >> 3;
+            int f2 = clampSigned(a + 3) >> 3;
+            s[offset] = (byte)(clampSigned(qs0 - f1) + 128);
+            s[offset - step] = (byte)(clampSigned(ps0 + f2) + 128);
+            if (!hev) {
+                a = (f1 + 1) >> 1;
+                s[offset + step] = (byte)(clampSigned(qs1 - a) + 128);
+                s[offset - 2 * step] = (byte)(clampSigned(ps1 + a) + 128);
+            }
+        }
+    }
+
+    /**
+     * Filters 16 pixels of a luma edge with the simple loop filter - section 15.2.
+     */
+    private static void filterSimpleEdge(byte[] s, int offset, int step, int pitch,
+            int edgeLimit) {
+        for (int n = 0; n < 16; n++, offset += pitch) {
+            int p1 = s[offset - 2 * step] & 0xFF;
+            int p0 = s[offset - step] & 0xFF;
+            int q0 = s[offset] & 0xFF;
+            int q1 = s[offset + step] & 0xFF;
+            if (Math.abs(p0 - q0) * 2 + (Math.abs(p1 - q1) >> 1) > edgeLimit) {
+                continue;
+            }
+            int a = clampSigned(clampSigned(p1 - q1) + 3 * (q0 - p0));
+            int f1 = clampSigned(a + 4) >> 3;
+            int f2 = clampSigned(a + 3) >> 3;
+            s[offset] = (byte)(clampSigned(q0 - 128 - f1) + 128);
+            s[offset - step] = (byte)(clampSigned(p0 - 128 + f2) + 128);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Parser of the VP8 frame header (RFC 6386 sections 9.1 - 9.6): the
+ * uncompressed data chunk and the beginning of the first partition up to
+ * and including the quantizer indices.
+ *
+ * Segmentation and loop filter delta parameters persist between frames and
+ * are only reset by key frames, so frames of a stream have to be parsed in
+ * decoding order with the same parser object. Parsing does not allocate.
+ * After a successful parse the first partition decoder is positioned right
+ * after the quantizer indices, where the rest of the frame header starts.
+ */
+public class Vp8FrameHeader {
+    public static final int MAX_SEGMENTS = 4;
+    public static final int MAX_QINDEX = 127;
+    public static final int MAX_LOOP_FILTER_LEVEL = 63;
+    private static final int FRAME_TAG_SIZE = 3;
+    private static final int KEY_FRAME_HEADER_SIZE = 10;
+    private static final int NUM_REF_LF_DELTAS = 4;
+    private static final int NUM_MODE_LF_DELTAS = 4;
+
+    // Uncompressed data chunk.
+    public boolean keyFrame;
+    public int version;
+    public boolean showFrame;
+    public int firstPartitionSize;
+    public int headerSize;              // Size of the uncompressed data chunk.
+    public int width;                   // Key frames only.
+    public int height;
+    public int horizontalScale;
+    public int verticalScale;
+
+    // First partition.
+    public int colorSpace;              // Key frames only.
+    public int clampingType;
+    public boolean segmentationEnabled;
+    public boolean updateSegmentMap;
+    public boolean updateSegmentFeatureData;
+    public boolean segmentAbsoluteValues; // Segment values replace frame values, else deltas.
+    public final int[] segmentQuantizer = new int[MAX_SEGMENTS];
+    public final int[] segmentLoopFilterLevel = new int[MAX_SEGMENTS];
+    public final int[] segmentTreeProbs = new int[MAX_SEGMENTS - 1];
+    public int filterType;
+    public int loopFilterLevel;
+    public int sharpnessLevel;
+    public boolean loopFilterDeltaEnabled;
+    public final int[] refFrameLoopFilterDeltas = new int[NUM_REF_LF_DELTAS];
+    public final int[] modeLoopFilterDeltas = new int[NUM_MODE_LF_DELTAS];
+    public int partitionCount;
+    public int qIndex;                  // Base quantizer index (y_ac_qi).
+    public int yDcDelta;
+    public int y2DcDelta;
+    public int y2AcDelta;
+    public int uvDcDelta;
+    public int uvAcDelta;
+
+    // Reference frame updates - sections 9.7 - 9.8. These fields follow the
+    // quantizer indices and are filled in by Vp8MacroblockAnalyzer.
+    public boolean refreshGoldenFrame;
+    public boolean refreshAltrefFrame;
+    public int copyBufferToGolden;      // 0 - none, 1 - last frame, 2 - altref frame.
+    public int copyBufferToAltref;      // 0 - none, 1 - last frame, 2 - golden frame.
+    public boolean signBiasGolden;
+    public boolean signBiasAltref;
+    public boolean refreshEntropyProbs;
+    public boolean refreshLastFrame;
+
+    private final Vp8BoolDecoder mDecoder = new Vp8BoolDecoder();
+
+    /**
+     * Parses frame header.
+     *
+     * @param frame  buffer containing the frame
+     * @param offset offset of the frame in the buffer
+     * @param length frame size or size of the available frame prefix
+     * @return false if the frame header is invalid or truncated.
+     */
+    public boolean parse(ByteBuffer frame, int offset, int length) {
+        if (length < FRAME_TAG_SIZE) {
+            return false;
+        }
+        int tag = (frame.get(offset) & 0xFF) | ((frame.get(offset + 1) & 0xFF) << 8) |
+                ((frame.get(offset + 2) & 0xFF) << 16);
+        keyFrame = (tag & 0x01) == 0;
+        version = (tag >> 1) & 0x07;
+        showFrame = ((tag >> 4) & 0x01) != 0;
+        firstPartitionSize = tag >>> 5;
+        headerSize = FRAME_TAG_SIZE;
+
+        if (keyFrame) {
+            if (length < KEY_FRAME_HEADER_SIZE ||
+                    (frame.get(offset + 3) & 0xFF) != 0x9d ||
+                    (frame.get(offset + 4) & 0xFF) != 0x01 ||
+                    (frame.get(offset + 5) & 0xFF) != 0x2a) {
+                return false;
+            }
+            int horizontal = (frame.get(offset + 6) & 0xFF) | ((frame.get(offset + 7) & 0xFF) << 8);
+            int vertical = (frame.get(offset + 8) & 0xFF) | ((frame.get(offset + 9) & 0xFF) << 8);
+            width = horizontal & 0x3fff;
+            horizontalScale = horizontal >> 14;
+            height = vertical & 0x3fff;
+            verticalScale = vertical >> 14;
+            headerSize = KEY_FRAME_HEADER_SIZE;
+            resetPersistentState();
+        }
+
+        // Only a part of the first partition may be available - the header
+        // fields parsed here take a few dozen bytes at most.
+        int partitionLength = Math.min(firstPartitionSize, length - headerSize);
+        if (partitionLength <= 0) {
+            return false;
+        }
+        Vp8BoolDecoder bd = mDecoder;
+        bd.init(frame, offset + headerSize, partitionLength);
+        if (keyFrame) {
+            colorSpace = bd.readLiteral(1);
+            clampingType = bd.readLiteral(1);
+        }
+
+        // Segmentation - section 9.3.
+        segmentationEnabled = bd.readFlag();
+        updateSegmentMap = false;
+        updateSegmentFeatureData = false;
+        if (segmentationEnabled) {
+            updateSegmentMap = bd.readFlag();
+            updateSegmentFeatureData = bd.readFlag();
+            if (updateSegmentFeatureData) {
+                segmentAbsoluteValues = bd.readFlag();
+                for (int i = 0; i < MAX_SEGMENTS; i++) {
+                    segmentQuantizer[i] = bd.readOptionalSignedLiteral(7);
+                }
+                for (int i = 0; i < MAX_SEGMENTS; i++) {
+                    segmentLoopFilterLevel[i] = bd.readOptionalSignedLiteral(6);
+                }
+            }
+            if (updateSegmentMap) {
+                for (int i = 0; i < MAX_SEGMENTS - 1; i++) {
+                    segmentTreeProbs[i] = bd.readFlag() ? bd.readLiteral(8) : 255;
+                }
+            }
+        }
+
+        // Loop filter - section 9.4.
+        filterType = bd.readLiteral(1);
+        loopFilterLevel = bd.readLiteral(6);
+        sharpnessLevel = bd.readLiteral(3);
+        loopFilterDeltaEnabled = bd.readFlag();
+        if (loopFilterDeltaEnabled && bd.readFlag()) {
+            for (int i = 0; i < NUM_REF_LF_DELTAS; i++) {
+                if (bd.readFlag()) {
+                    refFrameLoopFilterDeltas[i] = bd.readSignedLiteral(6);
+                }
+            }
+            for (int i = 0; i < NUM_MODE_LF_DELTAS; i++) {
+                if (bd.readFlag()) {
+                    modeLoopFilterDeltas[i] = bd.readSignedLiteral(6);
+                }
+            }
+        }
+
+        // DCT token partitions - section 9.5.
+        partitionCount = 1 << bd.readLiteral(2);
+
+        // Dequantization indices - section 9.6.
+        qIndex = bd.readLiteral(7);
+        yDcDelta = bd.readOptionalSignedLiteral(4);
+        y2DcDelta = bd.readOptionalSignedLiteral(4);
+        y2AcDelta = bd.readOptionalSignedLiteral(4);
+        uvDcDelta = bd.readOptionalSignedLiteral(4);
+        uvAcDelta = bd.readOptionalSignedLiteral(4);
+
+        return !bd.isOverrun();
+    }
+
+    /**
+     * Returns the first partition decoder positioned after the quantizer indices.
+     */
+    public Vp8BoolDecoder getFirstPartitionDecoder() {
+        return mDecoder;
+    }
+
+    /**
+     * Returns quantizer index of the segment, or the frame quantizer index if
+     * segmentation is disabled.
+     */
+    public int getSegmentQIndex(int segment) {
+        if (!segmentationEnabled) {
+            return qIndex;
+        }
+        int q = segmentAbsoluteValues ?
+                segmentQuantizer[segment] : qIndex + segmentQuantizer[segment];
+        return Math.max(0, Math.min(MAX_QINDEX, q));
+    }
+
+    /**
+     * Returns loop filter level of the segment, or the frame loop filter level if
+     * segmentation is disabled.
+     */
+    public int getSegmentLoopFilterLevel(int segment) {
+        if (!segmentationEnabled) {
+            return loopFilterLevel;
+        }
+        int level = segmentAbsoluteValues ? segmentLoopFilterLevel[segment] :
+                loopFilterLevel + segmentLoopFilterLevel[segment];
+        return Math.max(0, Math.min(MAX_LOOP_FILTER_LEVEL, level));
+    }
+
+    /**
+     * Resets parameters, which persist between frames, to the key frame defaults.
+     */
+    public void resetPersistentState() {
+        segmentAbsoluteValues = false;
+        for (int i = 0; i < MAX_SEGMENTS; i++) {
+            segmentQuantizer[i] = 0;
+            segmentLoopFilterLevel[i] = 0;
+        }
+        for (int i = 0; i < MAX_SEGMENTS - 1; i++) {
+            segmentTreeProbs[i] = 255;
+        }
+        for (int i = 0; i < NUM_REF_LF_DELTAS; i++) {
+            refFrameLoopFilterDeltas[i] = 0;
+        }
+        for (int i = 0; i < NUM_MODE_LF_DELTAS; i++) {
+            modeLoopFilterDeltas[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,1191 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Macroblock level VP8 bitstream analyzer.
+ *
+ * The first partition of a frame is decoded with the boolean decoder to get
+ * per macroblock segment id, skip flag, luma and chroma prediction modes,
+ * sub-block modes, reference frame and motion vectors (RFC 6386 sections
+ * 9.7 - 9.11, 16, 17 and 19.3). DCT token partitions are not touched and
+ * nothing is reconstructed, so analysis costs a small fraction of decoding.
+ * Vp8Decoder uses the per macroblock info and the DCT coefficient
+ * probabilities kept here to decode the token partitions.
+ *
+ * Mode, motion vector and coefficient probabilities persist between frames,
+ * so frames have to be analyzed in decoding order by the same analyzer
+ * object. Key frames reset all persistent state, which lets analyzeFile()
+ * process groups of frames starting at key frames in parallel.
+ */
+public class Vp8MacroblockAnalyzer {
+    // Macroblock luma modes - intra modes followed by inter modes.
+    public static final int DC_PRED = 0;
+    public static final int V_PRED = 1;
+    public static final int H_PRED = 2;
+    public static final int TM_PRED = 3;
+    public static final int B_PRED = 4;
+    public static final int NEARESTMV = 5;
+    public static final int NEARMV = 6;
+    public static final int ZEROMV = 7;
+    public static final int NEWMV = 8;
+    public static final int SPLITMV = 9;
+    public static final int MB_MODE_COUNT = 10;
+    public static final int UV_MODE_COUNT = 4;
+    // Sub-block modes - intra modes followed by split motion vector modes.
+    public static final int B_DC_PRED = 0;
+    public static final int B_TM_PRED = 1;
+    public static final int B_VE_PRED = 2;
+    public static final int B_HE_PRED = 3;
+    public static final int B_LD_PRED = 4;
+    public static final int B_RD_PRED = 5;
+    public static final int B_VR_PRED = 6;
+    public static final int B_VL_PRED = 7;
+    public static final int B_HD_PRED = 8;
+    public static final int B_HU_PRED = 9;
+    public static final int LEFT4X4 = 10;
+    public static final int ABOVE4X4 = 11;
+    public static final int ZERO4X4 = 12;
+    public static final int NEW4X4 = 13;
+    public static final int SUBBLOCK_MODE_COUNT = 14;
+    private static final int INTRA_BMODE_COUNT = 10;
+    // Reference frames.
+    public static final int INTRA_FRAME = 0;
+    public static final int LAST_FRAME = 1;
+    public static final int GOLDEN_FRAME = 2;
+    public static final int ALTREF_FRAME = 3;
+    public static final int REF_FRAME_COUNT = 4;
+    // Macroblock map entry layout.
+    public static final int MB_MAP_MODE_MASK = 0x0f;
+    public static final int MB_MAP_REF_SHIFT = 4;
+    public static final int MB_MAP_SEGMENT_SHIFT = 6;
+    public static final int MB_MAP_SKIP = 0x100;
+
+    // Probability tables and trees of RFC 6386.
+    private static final int[] KF_YMODE_TREE = { -B_PRED, 2, 4, 6, -DC_PRED, -V_PRED, -H_PRED, -TM_PRED };
+    private static final int[] YMODE_TREE = { -DC_PRED, 2, 4, 6, -V_PRED, -H_PRED, -TM_PRED, -B_PRED };
+    private static final int[] UV_MODE_TREE = { -DC_PRED, 2, -V_PRED, 4, -H_PRED, -TM_PRED };
+    private static final int[] BMODE_TREE = {
+        -B_DC_PRED, 2,
+        -B_TM_PRED, 4,
+        -B_VE_PRED, 6,
+        8, 12,
+        -B_HE_PRED, 10,
+        -B_RD_PRED, -B_VR_PRED,
+        -B_LD_PRED, 14,
+        -B_VL_PRED, 16,
+        -B_HD_PRED, -B_HU_PRED
+    };
+    private static final int[] MV_REF_TREE = { -ZEROMV, 2, -NEARESTMV, 4, -NEARMV, 6, -NEWMV, -SPLITMV };
+    private static final int[] SPLIT_MV_TREE = { -3, 2, -2, 4, -0, -1 };
+    private static final int[] SUB_MV_REF_TREE = { -LEFT4X4, 2, -ABOVE4X4, 4, -ZERO4X4, -NEW4X4 };
+    private static final int[] SMALL_MV_TREE = { 2, 8, 4, 6, -0, -1, -2, -3, 10, 12, -4, -5, -6, -7 };
+
+    private static final int[] KF_YMODE_PROBS = { 145, 156, 163, 128 };
+    private static final int[] KF_UV_MODE_PROBS = { 142, 114, 183 };
+    private static final int[] DEFAULT_YMODE_PROBS = { 112, 86, 140, 37 };
+    private static final int[] DEFAULT_UV_MODE_PROBS = { 162, 101, 204 };
+    private static final int[] BMODE_PROBS = { 120, 90, 79, 133, 87, 85, 80, 111, 151 };
+    private static final int[] SPLIT_MV_PROBS = { 110, 111, 150 };
+    private static final int[][] SUB_MV_REF_PROBS = {
+        { 147, 136, 18 },   // Normal
+        { 106, 145, 1 },    // Left is zero
+        { 179, 121, 1 },    // Above is zero
+        { 223, 1, 34 },     // Left and above are the same
+        { 208, 1, 1 },      // Left and above are zero
+    };
+    private static final int[][] MODE_CONTEXTS = {
+        { 7, 1, 1, 143 },
+        { 14, 18, 14, 107 },
+        { 135, 64, 57, 68 },
+        { 60, 56, 128, 65 },
+        { 159, 134, 128, 34 },
+        { 234, 188, 128, 28 },
+    };
+    // Split motion vector partitioning of sub-blocks - 16x8, 8x16, 8x8 and 4x4.
+    private static final int[][] SPLIT_MV_PARTITIONS = {
+        { 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 1, 1, 1, 1 },
+        { 0, 0, 1, 1, 0, 0, 1, 1, 0, 0, 1, 1, 0, 0, 1, 1 },
+        { 0, 0, 1, 1, 0, 0, 1, 1, 2, 2, 3, 3, 2, 2, 3, 3 },
+        { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15 },
+    };
+    private static final int[] SPLIT_MV_PARTITION_COUNT = { 2, 2, 4, 16 };
+    private static final int MV_PROB_COUNT = 19;
+    private static final int MVP_IS_SHORT = 0;
+    private static final int MVP_SIGN = 1;
+    private static final int MVP_SHORT = 2;
+    private static final int MVP_BITS = 9;
+    private static final int MV_LONG_BITS = 10;
+    private static final int[][] DEFAULT_MV_PROBS = {
+        { 162, 128, 225, 146, 172, 147, 214, 39, 156,
+          128, 129, 132, 75, 145, 178, 206, 239, 254, 254 },
+        { 164, 128, 204, 170, 119, 235, 140, 230, 228,
+          128, 130, 130, 74, 148, 180, 203, 236, 254, 254 },
+    };
+    private static final int[][] MV_UPDATE_PROBS = {
+        { 237, 246, 253, 253, 254, 254, 254, 254, 254,
+          254, 254, 254, 254, 254, 250, 250, 252, 254, 254 },
+        { 231, 243, 245, 253, 254, 254, 254, 254, 254,
+          254, 254, 254, 254, 254, 251, 251, 254, 254, 254 },
+    };
+    // Key frame sub-block mode probabilities indexed by above and left sub-block modes.
+    private static final int[][][] KF_BMODE_PROBS = {
+        { { 231, 120, 48, 89, 115, 113, 120, 152, 112 },
+          { 152, 179, 64, 126, 170, 118, 46, 70, 95 },
+          { 175, 69, 143, 80, 85, 82, 72, 155, 103 },
+          { 56, 58, 10, 171, 218, 189, 17, 13, 152 },
+          { 144, 71, 10, 38, 171, 213, 144, 34, 26 },
+          { 114, 26, 17, 163, 44, 195, 21, 10, 173 },
+          { 121, 24, 80, 195, 26, 62, 44, 64, 85 },
+          { 170, 46, 55, 19, 136, 160, 33, 206, 71 },
+          { 63, 20, 8, 114, 114, 208, 12, 9, 226 },
+          { 81, 40, 11, 96, 182, 84, 29, 16, 36 } },
+        { { 134, 183, 89, 137, 98, 101, 106, 165, 148 },
+          { 72, 187, 100, 130, 157, 111, 32, 75, 80 },
+          { 66, 102, 167, 99, 74, 62, 40, 234, 128 },
+          { 41, 53, 9, 178, 241, 141, 26, 8, 107 },
+          { 104, 79, 12, 27, 217, 255, 87, 17, 7 },
+          { 74, 43, 26, 146, 73, 166, 49, 23, 157 },
+          { 65, 38, 105, 160, 51, 52, 31, 115, 128 },
+          { 87, 68, 71, 44, 114, 51, 15, 186, 23 },
+          { 47, 41, 14, 110, 182, 183, 21, 17, 194 },
+          { 66, 45, 25, 102, 197, 189, 23, 18, 22 } },
+        { { 88, 88, 147, 150, 42, 46, 45, 196, 205 },
+          { 43, 97, 183, 117, 85, 38, 35, 179, 61 },
+          { 39, 53, 200, 87, 26, 21, 43, 232, 171 },
+          { 56, 34, 51, 104, 114, 102, 29, 93, 77 },
+          { 107, 54, 32, 26, 51, 1, 81, 43, 31 },
+          { 39, 28, 85, 171, 58, 165, 90, 98, 64 },
+          { 34, 22, 116, 206, 23, 34, 43, 166, 73 },
+          { 68, 25, 106, 22, 64, 171, 36, 225, 114 },
+          { 34, 19, 21, 102, 132, 188, 16, 76, 124 },
+          { 62, 18, 78, 95, 85, 57, 50, 48, 51 } },
+        { { 193, 101, 35, 159, 215, 111, 89, 46, 111 },
+          { 60, 148, 31, 172, 219, 228, 21, 18, 111 },
+          { 112, 113, 77, 85, 179, 255, 38, 120, 114 },
+          { 40, 42, 1, 196, 245, 209, 10, 25, 109 },
+          { 100, 80, 8, 43, 154, 1, 51, 26, 71 },
+          { 88, 43, 29, 140, 166, 213, 37, 43, 154 },
+          { 61, 63, 30, 155, 67, 45, 68, 1, 209 },
+          { 142, 78, 78, 16, 255, 128, 34, 197, 171 },
+          { 41, 40, 5, 102, 211, 183, 4, 1, 221 },
+          { 51, 50, 17, 168, 209, 192, 23, 25, 82 } },
+        { { 125, 98, 42, 88, 104, 85, 117, 175, 82 },
+          { 95, 84, 53, 89, 128, 100, 113, 101, 45 },
+          { 75, 79, 123, 47, 51, 128, 81, 171, 1 },
+          { 57, 17, 5, 71, 102, 57, 53, 41, 49 },
+          { 115, 21, 2, 10, 102, 255, 166, 23, 6 },
+          { 38, 33, 13, 121, 57, 73, 26, 1, 85 },
+          { 41, 10, 67, 138, 77, 110, 90, 47, 114 },
+          { 101, 29, 16, 10, 85, 128, 101, 196, 26 },
+          { 57, 18, 10, 102, 102, 213, 34, 20, 43 },
+          { 117, 20, 15, 36, 163, 128, 68, 1, 26 } },
+        { { 138, 31, 36, 171, 27, 166, 38, 44, 229 },
+          { 67, 87, 58, 169, 82, 115, 26, 59, 179 },
+          { 63, 59, 90, 180, 59, 166, 93, 73, 154 },
+          { 40, 40, 21, 116, 143, 209, 34, 39, 175 },
+          { 57, 46, 22, 24, 128, 1, 54, 17, 37 },
+          { 47, 15, 16, 183, 34, 223, 49, 45, 183 },
+          { 46, 17, 33, 183, 6, 98, 15, 32, 183 },
+          { 65, 32, 73, 115, 28, 128, 23, 128, 205 },
+          { 40, 3, 9, 115, 51, 192, 18, 6, 223 },
+          { 87, 37, 9, 115, 59, 77, 64, 21, 47 } },
+        { { 104, 55, 44, 218, 9, 54, 53, 130, 226 },
+          { 64, 90, 70, 205, 40, 41, 23, 26, 57 },
+          { 54, 57, 112, 184, 5, 41, 38, 166, 213 },
+          { 30, 34, 26, 133, 152, 116, 10, 32, 134 },
+          { 75, 32, 12, 51, 192, 255, 160, 43, 51 },
+          { 39, 19, 53, 221, 26, 114, 32, 73, 255 },
+          { 31, 9, 65, 234, 2, 15, 1, 118, 73 },
+          { 88, 31, 35, 67, 102, 85, 55, 186, 85 },
+          { 56, 21, 23, 111, 59, 205, 45, 37, 192 },
+          { 55, 38, 70, 124, 73, 102, 1, 34, 98 } },
+        { { 102, 61, 71, 37, 34, 53, 31, 243, 192 },
+          { 69, 60, 71, 38, 73, 119, 28, 222, 37 },
+          { 68, 45, 128, 34, 1, 47, 11, 245, 171 },
+          { 62, 17, 19, 70, 146, 85, 55, 62, 70 },
+          { 75, 15, 9, 9, 64, 255, 184, 119, 16 },
+          { 37, 43, 37, 154, 100, 163, 85, 160, 1 },
+          { 63, 9, 92, 136, 28, 64, 32, 201, 85 },
+          { 86, 6, 28, 5, 64, 255, 25, 248, 1 },
+          { 56, 8, 17, 132, 137, 255, 55, 116, 128 },
+          { 58, 15, 20, 82, 135, 57, 26, 121, 40 } },
+        { { 164, 50, 31, 137, 154, 133, 25, 35, 218 },
+          { 51, 103, 44, 131, 131, 123, 31, 6, 158 },
+          { 86, 40, 64, 135, 148, 224, 45, 183, 128 },
+          { 22, 26, 17, 131, 240, 154, 14, 1, 209 },
+          { 83, 12, 13, 54, 192, 255, 68, 47, 28 },
+          { 45, 16, 21, 91, 64, 222, 7, 1, 197 },
+          { 56, 21, 39, 155, 60, 138, 23, 102, 213 },
+          { 85, 26, 85, 85, 128, 128, 32, 146, 171 },
+          { 18, 11, 7, 63, 144, 171, 4, 4, 246 },
+          { 35, 27, 10, 146, 174, 171, 12, 26, 128 } },
+        { { 190, 80, 35, 99, 180, 80, 126, 54, 45 },
+          { 85, 126, 47, 87, 176, 51, 41, 20, 32 },
+          { 101, 75, 128, 139, 118, 146, 116, 128, 85 },
+          { 56, 41, 15, 176, 236, 85, 37, 9, 62 },
+          { 146, 36, 19, 30, 171, 255, 97, 27, 20 },
+          { 71, 30, 17, 119, 118, 255, 17, 18, 138 },
+          { 101, 38, 60, 138, 55, 70, 43, 26, 142 },
+          { 138, 45, 61, 62, 219, 1, 81, 188, 64 },
+          { 32, 41, 20, 117, 151, 142, 20, 21, 163 },
+          { 112, 19, 12, 61, 195, 128, 48, 4, 24 } },
+    };
+    // Default DCT coefficient probabilities, indexed by block type, coefficient
+    // band, context and token tree node.
+    private static final int[][][][] DEFAULT_COEFF_PROBS = {
+        { { { 128, 128, 128, 128, 128, 128, 128, 128, 128, 128, 128 },
+            { 128, 128, 128, 128, 128, 128, 128, 128, 128, 128, 128 },
+            { 128, 128, 128, 128, 128, 128, 128, 128, 128, 128, 128 } },
+          { { 253, 136, 254, 255, 228, 219, 128, 128, 128, 128, 128 },
+            { 189, 129, 242, 255, 227, 213, 255, 219, 128, 128, 128 },
+            { 106, 126, 227, 252, 214, 209, 255, 255, 128, 128, 128 } },
+          { { 1, 98, 248, 255, 236, 226, 255, 255, 128, 128, 128 },
+            { 181, 133, 238, 254, 221, 234, 255, 154, 128, 128, 128 },
+            { 78, 134, 202, 247, 198, 180, 255, 219, 128, 128, 128 } },
+          { { 1, 185, 249, 255, 243, 255, 128, 128, 128, 128, 128 },
+            { 184, 150, 247, 255, 236, 224, 128, 128, 128, 128, 128 },
+            { 77, 110, 216, 255, 236, 230, 128, 128, 128, 128, 128 } },
+          { { 1, 101, 251, 255, 241, 255, 128, 128, 128, 128, 128 },
+            { 170, 139, 241, 252, 236, 209, 255, 255, 128, 128, 128 },
+            { 37, 116, 196, 243, 228, 255, 255, 255, 128, 128, 128 } },
+          { { 1, 204, 254, 255, 245, 255, 128, 128, 128, 128, 128 },
+            { 207, 160, 250, 255, 238, 128, 128, 128, 128, 128, 128 },
+            { 102, 103, 231, 255, 211, 171, 128, 128, 128, 128, 128 } },
+          { { 1, 152, 252, 255, 240, 255, 128, 128, 128, 128, 128 },
+            { 177, 135, 243, 255, 234, 225, 128, 128, 128, 128, 128 },
+            { 80, 129, 211, 255, 194, 224, 128, 128, 128, 128, 128 } },
+          { { 1, 1, 255, 128, 128, 128, 128, 128, 128, 128, 128 },
+            { 246, 1, 255, 128, 128, 128, 128, 128, 128, 128, 128 },
+            { 255, 128, 128, 128, 128, 128, 128, 128, 128, 128, 128 } } },
+        { { { 198, 35, 237, 223, 193, 187, 162, 160, 145, 155, 62 },
+            { 131, 45, 198, 221, 172, 176, 220, 157, 252, 221, 1 },
+            { 68, 47, 146, 208, 149, 167, 221, 162, 255, 223, 128 } },
+          { { 1, 149, 241, 255, 221, 224, 255, 255, 128, 128, 128 },
+            { 184, 141, 234, 253, 222, 220, 255, 199, 128, 128, 128 },
+            { 81, 99, 181, 242, 176, 190, 249, 202, 255, 255, 128 } },
+          { { 1, 129, 232, 253, 214, 197, 242, 196, 255, 255, 128 },
+            { 99, 121, 210, 250, 201, 198, 255, 202, 128, 128, 128 },
+            { 23, 91, 163, 242, 170, 187, 247, 210, 255, 255, 128 } },
+          { { 1, 200, 246, 255, 234, 255, 128, 128, 128, 128, 128 },
+            { 109, 178, 241, 255, 231, 245, 255, 255, 128, 128, 128 },
+            { 44, 130, 201, 253, 205, 192, 255, 255, 128, 128, 128 } },
+          { { 1, 132, 239, 251, 219, 209, 255, 165, 128, 128, 128 },
+            { 94, 136, 225, 251, 218, 190, 255, 255, 128, 128, 128 },
+            { 22, 100, 174, 245, 186, 161, 255, 199, 128, 128, 128 } },
+          { { 1, 182, 249, 255, 232, 235, 128, 128, 128, 128, 128 },
+            { 124, 143, 241, 255, 227, 234, 128, 128, 128, 128, 128 },
+            { 35, 77, 181, 251, 193, 211, 255, 205, 128, 128, 128 } },
+          { { 1, 157, 247, 255, 236, 231, 255, 255, 128, 128, 128 },
+            { 121, 141, 235, 255, 225, 227, 255, 255, 128, 128, 128 },
+            { 45, 99, 188, 251, 195, 217, 255, 224, 128, 128, 128 } },
+          { { 1, 1, 251, 255, 213, 255, 128, 128, 128, 128, 128 },
+            { 203, 1, 248, 255, 255, 128, 128, 128, 128, 128, 128 },
+            { 137, 1, 177, 255, 224, 255, 128, 128, 128, 128, 128 } } },
+        { { { 253, 9, 248, 251, 207, 208, 255, 192, 128, 128, 128 },
+            { 175, 13, 224, 243, 193, 185, 249, 198, 255, 255, 128 },
+            { 73, 17, 171, 221, 161, 179, 236, 167, 255, 234, 128 } },
+          { { 1, 95, 247, 253, 212, 183, 255, 255, 128, 128, 128 },
+            { 239, 90, 244, 250, 211, 209, 255, 255, 128, 128, 128 },
+            { 155, 77, 195, 248, 188, 195, 255, 255, 128, 128, 128 } },
+          { { 1, 24, 239, 251, 218, 219, 255, 205, 128, 128, 128 },
+            { 201, 51, 219, 255, 196, 186, 128, 128, 128, 128, 128 },
+            { 69, 46, 190, 239, 201, 218, 255, 228, 128, 128, 128 } },
+          { { 1, 191, 251, 255, 255, 128, 128, 128, 128, 128, 128 },
+            { 223, 165, 249, 255, 213, 255, 128, 128, 128, 128, 128 },
+            { 141, 124, 248, 255, 255, 128, 128, 128, 128, 128, 128 } },
+          { { 1, 16, 248, 255, 255, 128, 128, 128, 128, 128, 128 },
+            { 190, 36, 230, 255, 236, 255, 128, 128, 128, 128, 128 },
+            { 149, 1, 255, 128, 128, 128, 128, 128, 128, 128, 128 } },
+          { { 1, 226, 255, 128, 128, 128, 128, 128, 128, 128, 128 },
+            { 247, 192, 255, 128, 128, 128, 128, 128, 128, 128, 128 },
+            { 240, 128, 255, 128, 128, 128, 128, 128, 128, 128, 128 } },
+          { { 1, 134, 252, 255, 255, 128, 128, 128, 128, 128, 128 },
+            { 213, 62, 250, 255, 255, 128, 128, 128, 128, 128, 128 },
+            { 55, 93, 255, 128, 128, 128, 128, 128, 128, 128, 128 } },
+          { { 128, 128, 128, 128, 128, 128, 128, 128, 128, 128, 128 },
+            { 128, 128, 128, 128, 128, 128, 128, 128, 128, 128, 128 },
+            { 128, 128, 128, 128, 128, 128, 128, 128, 128, 128, 128 } } },
+        { { { 202, 24, 213, 235, 186, 191, 220, 160, 240, 118, 255 },
+            { 126, 38, 182, 232, 169, 184, 228, 174, 255, 187, 128 },
+            { 61, 46, 138, 219, 151, 178, 240, 170, 255, 216, 128 } },
+          { { 1, 112, 230, 250, 199, 191, 247, 159, 255, 255, 128 },
+            { 166, 109, 228, 252, 211, 215, 255, 174, 128, 128, 128 },
+            { 39, 77, 162, 232, 172, 180, 245, 178, 255, 255, 128 } },
+          { { 1, 52, 220, 246, 198, 199, 249, 220, 255, 255, 128 },
+            { 124, 74, 191, 243, 183, 193, 250, 221, 255, 255, 128 },
+            { 24, 71, 130, 219, 154, 170, 243, 182, 255, 255, 128 } },
+          { { 1, 182, 225, 249, 219, 240, 255, 224, 128, 128, 128 },
+            { 149, 150, 226, 252, 216, 205, 255, 171, 128, 128, 128 },
+            { 28, 108, 170, 242, 183, 194, 254, 223, 255, 255, 128 } },
+          { { 1, 81, 230, 252, 204, 203, 255, 192, 128, 128, 128 },
+            { 123, 102, 209, 247, 188, 196, 255, 233, 128, 128, 128 },
+            { 20, 95, 153, 243, 164, 173, 255, 203, 128, 128, 128 } },
+          { { 1, 222, 248, 255, 216, 213, 128, 128, 128, 128, 128 },
+            { 168, 175, 246, 252, 235, 205, 255, 255, 128, 128, 128 },
+            { 47, 116, 215, 255, 211, 212, 255, 255, 128, 128, 128 } },
+          { { 1, 121, 236, 253, 212, 214, 255, 255, 128, 128, 128 },
+            { 141, 84, 213, 252, 201, 202, 255, 219, 128, 128, 128 },
+            { 42, 80, 160, 240, 162, 185, 255, 205, 128, 128, 128 } },
+          { { 1, 1, 255, 128, 128, 128, 128, 128, 128, 128, 128 },
+            { 244, 1, 255, 128, 128, 128, 128, 128, 128, 128, 128 },
+            { 238, 1, 255, 128, 128, 128, 128, 128, 128, 128, 128 } } },
+    };
+    // Probabilities of DCT coefficient probability updates, indexed by block type,
+    // coefficient band, context and token tree node.
+    static final int[][][][] COEFF_UPDATE_PROBS = {
+        { { { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 176, 246, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 223, 241, 252, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 249, 253, 253, 255, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 244, 252, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 234, 254, 254, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 253, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 246, 254, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 239, 253, 254, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 254, 255, 254, 255, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 248, 254, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 251, 255, 254, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 253, 254, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 251, 254, 254, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 254, 255, 254, 255, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 254, 253, 255, 254, 255, 255, 255, 255, 255, 255 },
+            { 250, 255, 254, 255, 254, 255, 255, 255, 255, 255, 255 },
+            { 254, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 } } },
+        { { { 217, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 225, 252, 241, 253, 255, 255, 254, 255, 255, 255, 255 },
+            { 234, 250, 241, 250, 253, 255, 253, 254, 255, 255, 255 } },
+          { { 255, 254, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 223, 254, 254, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 238, 253, 254, 254, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 248, 254, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 249, 254, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 253, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 247, 254, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 253, 254, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 252, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 254, 254, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 253, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 254, 253, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 250, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 254, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 } } },
+        { { { 186, 251, 250, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 234, 251, 244, 254, 255, 255, 255, 255, 255, 255, 255 },
+            { 251, 251, 243, 253, 254, 255, 254, 255, 255, 255, 255 } },
+          { { 255, 253, 254, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 236, 253, 254, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 251, 253, 253, 254, 254, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 254, 254, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 254, 254, 254, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 254, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 254, 254, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 254, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 254, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 } } },
+        { { { 248, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 250, 254, 252, 254, 255, 255, 255, 255, 255, 255, 255 },
+            { 248, 254, 249, 253, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 253, 253, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 246, 253, 253, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 252, 254, 251, 254, 254, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 254, 252, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 248, 254, 253, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 253, 255, 254, 254, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 251, 254, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 245, 251, 254, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 253, 253, 254, 255, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 251, 253, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 252, 253, 254, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 254, 255, 255, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 252, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 249, 255, 254, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 254, 255, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 255, 253, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 250, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 } },
+          { { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 254, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 },
+            { 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255 } } },
+    };
+
+    /**
+     * Macroblock statistics of a frame or a sum over several frames.
+     */
+    public static class FrameStatistics {
+        public int frameIndex;
+        public boolean valid;           // First partition was parsed successfully.
+        public boolean keyFrame;
+        public int qIndex;
+        public int mbCols;
+        public int mbRows;
+        public int frameCount;          // Number of frames summed up by add().
+        public final int[] mbModeCount = new int[MB_MODE_COUNT];
+        public final int[] uvModeCount = new int[UV_MODE_COUNT];
+        public final int[] subblockModeCount = new int[SUBBLOCK_MODE_COUNT];
+        public final int[] refFrameCount = new int[REF_FRAME_COUNT];
+        public final int[] segmentCount = new int[Vp8FrameHeader.MAX_SEGMENTS];
+        public int skipCount;
+        // Per macroblock mode, reference frame, segment and skip flag in raster
+        // order - see MB_MAP_* constants.
+        public short[] mbMap;
+
+        /**
+         * Adds macroblock counts of a frame to this sum.
+         */
+        public void add(FrameStatistics frame) {
+            frameCount++;
+            for (int i = 0; i < MB_MODE_COUNT; i++) {
+                mbModeCount[i] += frame.mbModeCount[i];
+            }
+            for (int i = 0; i < UV_MODE_COUNT; i++) {
+                uvModeCount[i] += frame.uvModeCount[i];
+            }
+            for (int i = 0; i < SUBBLOCK_MODE_COUNT; i++) {
+                subblockModeCount[i] += frame.subblockModeCount[i];
+            }
+            for (int i = 0; i < REF_FRAME_COUNT; i++) {
+                refFrameCount[i] += frame.refFrameCount[i];
+            }
+            for (int i = 0; i < segmentCount.length; i++) {
+                segmentCount[i] += frame.segmentCount[i];
+            }
+            skipCount += frame.skipCount;
+        }
+
+        /**
+         * Returns a one line summary of the macroblock counts.
+         */
+        public String getSummary() {
+            return "Frames: " + frameCount +
+                    ". Modes DC/V/H/TM/B: " + join(mbModeCount, DC_PRED, NEARESTMV) +
+                    ". Modes NEAREST/NEAR/ZERO/NEW/SPLIT: " +
+                    join(mbModeCount, NEARESTMV, MB_MODE_COUNT) +
+                    ". Ref intra/last/golden/altref: " + join(refFrameCount, 0, REF_FRAME_COUNT) +
+                    ". Segments: " + join(segmentCount, 0, segmentCount.length) +
+                    ". Skip: " + skipCount;
+        }
+
+        private static String join(int[] values, int start, int end) {
+            StringBuilder result = new StringBuilder();
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    result.append('/');
+                }
+                result.append(values[i]);
+            }
+            return result.toString();
+        }
+    }
+
+    private final Vp8FrameHeader mHeader = new Vp8FrameHeader();
+    private int mMbCols;
+    private int mMbRows;
+    // Persistent probabilities and their copies saved for frames, which do not
+    // refresh entropy probabilities.
+    private final int[] mYModeProbs = new int[4];
+    private final int[] mUvModeProbs = new int[3];
+    private final int[][] mMvProbs = new int[2][MV_PROB_COUNT];
+    private final int[] mSavedYModeProbs = new int[4];
+    private final int[] mSavedUvModeProbs = new int[3];
+    private final int[][] mSavedMvProbs = new int[2][MV_PROB_COUNT];
+    private final int[][][][] mCoeffProbs = new int[4][8][3][11];
+    private final int[][][][] mSavedCoeffProbs = new int[4][8][3][11];
+    private final boolean[] mSignBias = new boolean[REF_FRAME_COUNT];
+    private byte[] mSegmentMap;
+    // Current frame macroblock info used as prediction context.
+    private byte[] mMbModes;
+    private byte[] mMbRefs;
+    private byte[] mUvModes;
+    private byte[] mSkipFlags;
+    private byte[] mSubblockModes;  // 16 intra sub-block modes per B_PRED macroblock.
+    private int[] mBlockMvs;        // 16 motion vectors per macroblock, see packMv().
+    private byte[] mAboveBModes;    // Bottom sub-block modes of the macroblock row above.
+    private final byte[] mLeftBModes = new byte[4];
+    private final int[] mBModes = new int[16];
+    private final int[] mNearMvs = new int[4];
+    private final int[] mNearCounts = new int[4];
+
+    /**
+     * Analyzes a frame.
+     *
+     * @param frame      buffer containing the frame
+     * @param offset     offset of the frame in the buffer
+     * @param length     frame size
+     * @param statistics output statistics; counts are added to the existing values
+     * @return false if the frame could not be parsed, e.g. no key frame was seen yet.
+     */
+    public boolean analyze(ByteBuffer frame, int offset, int length, FrameStatistics statistics) {
+        statistics.valid = false;
+        if (!mHeader.parse(frame, offset, length)) {
+            return false;
+        }
+        Vp8FrameHeader header = mHeader;
+        if (header.keyFrame) {
+            initKeyFrame(header.width, header.height);
+        } else if (mMbCols == 0) {
+            return false;
+        }
+        statistics.keyFrame = header.keyFrame;
+        statistics.qIndex = header.qIndex;
+        statistics.mbCols = mMbCols;
+        statistics.mbRows = mMbRows;
+        if (statistics.mbMap == null || statistics.mbMap.length != mMbCols * mMbRows) {
+            statistics.mbMap = new short[mMbCols * mMbRows];
+        }
+
+        // Rest of the frame header - RFC 6386 sections 9.7 - 9.11.
+        Vp8BoolDecoder bd = header.getFirstPartitionDecoder();
+        if (header.keyFrame) {
+            header.refreshGoldenFrame = true;
+            header.refreshAltrefFrame = true;
+            header.copyBufferToGolden = 0;
+            header.copyBufferToAltref = 0;
+            header.signBiasGolden = false;
+            header.signBiasAltref = false;
+            header.refreshEntropyProbs = bd.readFlag();
+            header.refreshLastFrame = true;
+        } else {
+            header.refreshGoldenFrame = bd.readFlag();
+            header.refreshAltrefFrame = bd.readFlag();
+            header.copyBufferToGolden = header.refreshGoldenFrame ? 0 : bd.readLiteral(2);
+            header.copyBufferToAltref = header.refreshAltrefFrame ? 0 : bd.readLiteral(2);
+            header.signBiasGolden = bd.readFlag();
+            header.signBiasAltref = bd.readFlag();
+            header.refreshEntropyProbs = bd.readFlag();
+            header.refreshLastFrame = bd.readFlag();
+        }
+        mSignBias[GOLDEN_FRAME] = header.signBiasGolden;
+        mSignBias[ALTREF_FRAME] = header.signBiasAltref;
+        boolean refreshEntropyProbs = header.refreshEntropyProbs;
+        if (!refreshEntropyProbs) {
+            System.arraycopy(mYModeProbs, 0, mSavedYModeProbs, 0, mYModeProbs.length);
+            System.arraycopy(mUvModeProbs, 0, mSavedUvModeProbs, 0, mUvModeProbs.length);
+            for (int i = 0; i < 2; i++) {
+                System.arraycopy(mMvProbs[i], 0, mSavedMvProbs[i], 0, MV_PROB_COUNT);
+            }
+            copyCoeffProbs(mCoeffProbs, mSavedCoeffProbs);
+        }
+        for (int i = 0; i < COEFF_UPDATE_PROBS.length; i++) {
+            for (int j = 0; j < COEFF_UPDATE_PROBS[i].length; j++) {
+                for (int k = 0; k < COEFF_UPDATE_PROBS[i][j].length; k++) {
+                    int[] updateProbs = COEFF_UPDATE_PROBS[i][j][k];
+                    for (int l = 0; l < updateProbs.length; l++) {
+                        if (bd.readBool(updateProbs[l]) != 0) {
+                            mCoeffProbs[i][j][k][l] = bd.readLiteral(8);
+                        }
+                    }
+                }
+            }
+        }
+        boolean mbNoCoeffSkip = bd.readFlag();
+        int probSkipFalse = mbNoCoeffSkip ? bd.readLiteral(8) : 0;
+        int probIntra = 0;
+        int probLast = 0;
+        int probGolden = 0;
+        if (!header.keyFrame) {
+            probIntra = bd.readLiteral(8);
+            probLast = bd.readLiteral(8);
+            probGolden = bd.readLiteral(8);
+            if (bd.readFlag()) {
+                for (int i = 0; i < 4; i++) {
+                    mYModeProbs[i] = bd.readLiteral(8);
+                }
+            }
+            if (bd.readFlag()) {
+                for (int i = 0; i < 3; i++) {
+                    mUvModeProbs[i] = bd.readLiteral(8);
+                }
+            }
+            for (int i = 0; i < 2; i++) {
+                for (int j = 0; j < MV_PROB_COUNT; j++) {
+                    if (bd.readBool(MV_UPDATE_PROBS[i][j]) != 0) {
+                        int prob = bd.readLiteral(7);
+                        mMvProbs[i][j] = (prob != 0) ? prob << 1 : 1;
+                    }
+                }
+            }
+        }
+
+        // Macroblock headers - RFC 6386 sections 10, 11, 16 and 19.3.
+        for (int i = 0; i < mAboveBModes.length; i++) {
+            mAboveBModes[i] = B_DC_PRED;
+        }
+        for (int mbRow = 0; mbRow < mMbRows; mbRow++) {
+            for (int i = 0; i < 4; i++) {
+                mLeftBModes[i] = B_DC_PRED;
+            }
+            for (int mbCol = 0; mbCol < mMbCols; mbCol++) {
+                int mb = mbRow * mMbCols + mbCol;
+                if (header.updateSegmentMap) {
+                    int[] probs = header.segmentTreeProbs;
+                    mSegmentMap[mb] = (byte)(bd.readBool(probs[0]) == 0 ?
+                            bd.readBool(probs[1]) : 2 + bd.readBool(probs[2]));
+                }
+                int segment = header.segmentationEnabled ? mSegmentMap[mb] : 0;
+                boolean skip = mbNoCoeffSkip && bd.readBool(probSkipFalse) != 0;
+
+                int mode;
+                int ref = INTRA_FRAME;
+                int uvMode = -1;
+                if (header.keyFrame) {
+                    mode = readTree(bd, KF_YMODE_TREE, KF_YMODE_PROBS, 0);
+                    readKeyFrameSubblockModes(bd, mode, mb, mbCol, statistics);
+                    uvMode = readTree(bd, UV_MODE_TREE, KF_UV_MODE_PROBS, 0);
+                    setMbMvs(mb, 0);
+                } else if (bd.readBool(probIntra) != 0) {
+                    ref = (bd.readBool(probLast) == 0) ? LAST_FRAME :
+                            (bd.readBool(probGolden) == 0 ? GOLDEN_FRAME : ALTREF_FRAME);
+                    mode = readInterModes(bd, mb, mbRow, mbCol, ref, statistics);
+                } else {
+                    mode = readTree(bd, YMODE_TREE, mYModeProbs, 0);
+                    if (mode == B_PRED) {
+                        for (int b = 0; b < 16; b++) {
+                            int bMode = readTree(bd, BMODE_TREE, BMODE_PROBS, 0);
+                            mSubblockModes[mb * 16 + b] = (byte)bMode;
+                            statistics.subblockModeCount[bMode]++;
+                        }
+                    }
+                    uvMode = readTree(bd, UV_MODE_TREE, mUvModeProbs, 0);
+                    setMbMvs(mb, 0);
+                }
+                mMbModes[mb] = (byte)mode;
+                mMbRefs[mb] = (byte)ref;
+                mUvModes[mb] = (byte)uvMode;
+                mSkipFlags[mb] = (byte)(skip ? 1 : 0);
+
+                statistics.mbModeCount[mode]++;
+                if (uvMode >= 0) {
+                    statistics.uvModeCount[uvMode]++;
+                }
+                statistics.refFrameCount[ref]++;
+                statistics.segmentCount[segment]++;
+                int mapEntry = mode | (ref << MB_MAP_REF_SHIFT) | (segment << MB_MAP_SEGMENT_SHIFT);
+                if (skip) {
+                    statistics.skipCount++;
+                    mapEntry |= MB_MAP_SKIP;
+                }
+                statistics.mbMap[mb] = (short)mapEntry;
+            }
+        }
+
+        if (!refreshEntropyProbs) {
+            System.arraycopy(mSavedYModeProbs, 0, mYModeProbs, 0, mYModeProbs.length);
+            System.arraycopy(mSavedUvModeProbs, 0, mUvModeProbs, 0, mUvModeProbs.length);
+            for (int i = 0; i < 2; i++) {
+                System.arraycopy(mSavedMvProbs[i], 0, mMvProbs[i], 0, MV_PROB_COUNT);
+            }
+            copyCoeffProbs(mSavedCoeffProbs, mCoeffProbs);
+        }
+        statistics.valid = !bd.isOverrun();
+        return statistics.valid;
+    }
+
+    /**
+     * Returns the frame header parsed by the last analyze() call.
+     */
+    public Vp8FrameHeader getFrameHeader() {
+        return mHeader;
+    }
+
+    public int getMbCols() {
+        return mMbCols;
+    }
+
+    public int getMbRows() {
+        return mMbRows;
+    }
+
+    // Macroblock info of the last analyzed frame in raster order, used by Vp8Decoder.
+
+    byte[] getMbModes() {
+        return mMbModes;
+    }
+
+    byte[] getMbRefs() {
+        return mMbRefs;
+    }
+
+    byte[] getUvModes() {
+        return mUvModes;
+    }
+
+    byte[] getSkipFlags() {
+        return mSkipFlags;
+    }
+
+    byte[] getSegmentMap() {
+        return mSegmentMap;
+    }
+
+    byte[] getSubblockModes() {
+        return mSubblockModes;
+    }
+
+    int[] getBlockMvs() {
+        return mBlockMvs;
+    }
+
+    /**
+     * Returns DCT coefficient probabilities of the last analyzed frame, indexed by
+     * block type, coefficient band, context and token tree node.
+     */
+    int[][][][] getCoeffProbs() {
+        return mCoeffProbs;
+    }
+
+    /**
+     * Analyzes all frames of an IVF file. Groups of frames starting at key frames
+     * are independent and are analyzed in parallel.
+     *
+     * @param ivf         IVF file reader, memory mapped or not
+     * @param threadCount number of analysis threads
+     * @return per frame statistics.
+     */
+    public static FrameStatistics[] analyzeFile(final IvfReader ivf, int threadCount)
+            throws Exception {
+        final int frameCount = ivf.getFrameCount();
+        final FrameStatistics[] statistics = new FrameStatistics[frameCount];
+        ArrayList<Integer> groupStarts = new ArrayList<Integer>();
+        for (int i = 0; i < frameCount; i++) {
+            if (i == 0 || ivf.isKeyFrame(i)) {
+                groupStarts.add(i);
+            }
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threadCount));
+        try {
+            ArrayList<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int g = 0; g < groupStarts.size(); g++) {
+                final int start = groupStarts.get(g);
+                final int end = (g + 1 < groupStarts.size()) ? groupStarts.get(g + 1) : frameCount;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        analyzeFrames(ivf, start, end, statistics);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return statistics;
+    }
+
+    private static void analyzeFrames(IvfReader ivf, int start, int end,
+            FrameStatistics[] statistics) throws Exception {
+        Vp8MacroblockAnalyzer analyzer = new Vp8MacroblockAnalyzer();
+        ByteBuffer frameBuffer = null;
+        for (int i = start; i < end; i++) {
+            ByteBuffer frame;
+            if (ivf.isMapped()) {
+                frame = ivf.getFrameBuffer(i);
+            } else {
+                if (frameBuffer == null || frameBuffer.capacity() < ivf.getFrameSize(i)) {
+                    frameBuffer = ByteBuffer.allocate(ivf.getMaxFrameSize());
+                }
+                frameBuffer.clear();
+                ivf.readFrame(i, frameBuffer);
+                frameBuffer.flip();
+                frame = frameBuffer;
+            }
+            FrameStatistics frameStatistics = new FrameStatistics();
+            frameStatistics.frameIndex = i;
+            frameStatistics.frameCount = 1;
+            analyzer.analyze(frame, 0, frame.remaining(), frameStatistics);
+            statistics[i] = frameStatistics;
+        }
+    }
+
+    private void initKeyFrame(int width, int height) {
+        int mbCols = (width + 15) >> 4;
+        int mbRows = (height + 15) >> 4;
+        if (mbCols != mMbCols || mbRows != mMbRows) {
+            mMbCols = mbCols;
+            mMbRows = mbRows;
+            int mbCount = mbCols * mbRows;
+            mSegmentMap = new byte[mbCount];
+            mMbModes = new byte[mbCount];
+            mMbRefs = new byte[mbCount];
+            mUvModes = new byte[mbCount];
+            mSkipFlags = new byte[mbCount];
+            mSubblockModes = new byte[mbCount * 16];
+            mBlockMvs = new int[mbCount * 16];
+            mAboveBModes = new byte[mbCols * 4];
+        }
+        // Key frames reset probabilities, sign bias and the segment map.
+        System.arraycopy(DEFAULT_YMODE_PROBS, 0, mYModeProbs, 0, mYModeProbs.length);
+        System.arraycopy(DEFAULT_UV_MODE_PROBS, 0, mUvModeProbs, 0, mUvModeProbs.length);
+        for (int i = 0; i < 2; i++) {
+            System.arraycopy(DEFAULT_MV_PROBS[i], 0, mMvProbs[i], 0, MV_PROB_COUNT);
+        }
+        copyCoeffProbs(DEFAULT_COEFF_PROBS, mCoeffProbs);
+        for (int i = 0; i < REF_FRAME_COUNT; i++) {
+            mSignBias[i] = false;
+        }
+        for (int i = 0; i < mSegmentMap.length; i++) {
+            mSegmentMap[i] = 0;
+        }
+    }
+
+    /**
+     * Reads key frame sub-block modes, which are coded in the context of the
+     * above and left sub-block modes. Macroblocks with a 16x16 luma mode provide
+     * the equivalent sub-block mode as context.
+     */
+    private void readKeyFrameSubblockModes(Vp8BoolDecoder bd, int mode, int mb, int mbCol,
+            FrameStatistics statistics) {
+        int[] bModes = mBModes;
+        if (mode == B_PRED) {
+            for (int b = 0; b < 16; b++) {
+                int above = (b < 4) ? mAboveBModes[mbCol * 4 + b] : bModes[b - 4];
+                int left = ((b & 3) == 0) ? mLeftBModes[b >> 2] : bModes[b - 1];
+                bModes[b] = readTree(bd, BMODE_TREE, KF_BMODE_PROBS[above][left], 0);
+                mSubblockModes[mb * 16 + b] = (byte)bModes[b];
+                statistics.subblockModeCount[bModes[b]]++;
+            }
+        } else {
+            int bMode;
+            switch (mode) {
+                case V_PRED:
+                    bMode = B_VE_PRED;
+                    break;
+                case H_PRED:
+                    bMode = B_HE_PRED;
+                    break;
+                case TM_PRED:
+                    bMode = B_TM_PRED;
+                    break;
+                default:
+                    bMode = B_DC_PRED;
+                    break;
+            }
+            for (int b = 0; b < 16; b++) {
+                bModes[b] = bMode;
+            }
+        }
+        for (int i = 0; i < 4; i++) {
+            mAboveBModes[mbCol * 4 + i] = (byte)bModes[12 + i];
+            mLeftBModes[i] = (byte)bModes[i * 4 + 3];
+        }
+    }
+
+    /**
+     * Reads inter macroblock mode and motion vectors.
+     *
+     * @return macroblock mode.
+     */
+    private int readInterModes(Vp8BoolDecoder bd, int mb, int mbRow, int mbCol, int ref,
+            FrameStatistics statistics) {
+        findNearMvs(mb, mbRow, mbCol, ref);
+        int[] counts = mNearCounts;
+        // Motion vector bounds in 1/8 pel with a one macroblock margin.
+        int toLeft = -((mbCol * 16) << 3) - 128;
+        int toRight = (((mMbCols - 1 - mbCol) * 16) << 3) + 128;
+        int toTop = -((mbRow * 16) << 3) - 128;
+        int toBottom = (((mMbRows - 1 - mbRow) * 16) << 3) + 128;
+
+        int mode;
+        if (bd.readBool(MODE_CONTEXTS[counts[0]][0]) == 0) {
+            mode = ZEROMV;
+            setMbMvs(mb, 0);
+        } else if (bd.readBool(MODE_CONTEXTS[counts[1]][1]) == 0) {
+            mode = NEARESTMV;
+            setMbMvs(mb, clampMv(mNearMvs[1], toLeft, toRight, toTop, toBottom));
+        } else if (bd.readBool(MODE_CONTEXTS[counts[2]][2]) == 0) {
+            mode = NEARMV;
+            setMbMvs(mb, clampMv(mNearMvs[2], toLeft, toRight, toTop, toBottom));
+        } else {
+            int bestMv = clampMv(mNearMvs[0], toLeft, toRight, toTop, toBottom);
+            if (bd.readBool(MODE_CONTEXTS[counts[3]][3]) == 0) {
+                mode = NEWMV;
+                setMbMvs(mb, addMv(readMv(bd), bestMv));
+            } else {
+                mode = SPLITMV;
+                readSplitMvs(bd, mb, mbRow, mbCol, bestMv, statistics);
+            }
+        }
+        return mode;
+    }
+
+    /**
+     * Finds best, nearest and near motion vectors and their weights from the
+     * above, left and above-left macroblocks - RFC 6386 section 16.3.
+     * Results are stored in mNearMvs and mNearCounts.
+     */
+    private void findNearMvs(int mb, int mbRow, int mbCol, int ref) {
+        int[] nearMvs = mNearMvs;
+        int[] counts = mNearCounts;
+        for (int i = 0; i < 4; i++) {
+            nearMvs[i] = 0;
+            counts[i] = 0;
+        }
+        int index = 0;
+        int above = (mbRow > 0) ? mb - mMbCols : -1;
+        int left = (mbCol > 0) ? mb - 1 : -1;
+        int aboveLeft = (mbRow > 0 && mbCol > 0) ? mb - mMbCols - 1 : -1;
+
+        if (above >= 0 && mMbRefs[above] != INTRA_FRAME) {
+            int mv = getMbMv(above);
+            if (mv != 0) {
+                nearMvs[++index] = biasMv(mv, mMbRefs[above], ref);
+            }
+            counts[index] += 2;
+        }
+        if (left >= 0 && mMbRefs[left] != INTRA_FRAME) {
+            int mv = getMbMv(left);
+            if (mv != 0) {
+                mv = biasMv(mv, mMbRefs[left], ref);
+                if (mv != nearMvs[index]) {
+                    nearMvs[++index] = mv;
+                }
+                counts[index] += 2;
+            } else {
+                counts[0] += 2;
+            }
+        }
+        if (aboveLeft >= 0 && mMbRefs[aboveLeft] != INTRA_FRAME) {
+            int mv = getMbMv(aboveLeft);
+            if (mv != 0) {
+                mv = biasMv(mv, mMbRefs[aboveLeft], ref);
+                if (mv != nearMvs[index]) {
+                    nearMvs[++index] = mv;
+                }
+                counts[index] += 1;
+            } else {
+                counts[0] += 1;
+            }
+        }
+
+        // If there are three distinct motion vectors, merge the last one with
+        // the nearest one if they are equal.
+        if (counts[3] != 0 && nearMvs[index] == nearMvs[1]) {
+            counts[1] += 1;
+        }
+        counts[3] = ((above >= 0 && mMbModes[above] == SPLITMV) ? 2 : 0) +
+                ((left >= 0 && mMbModes[left] == SPLITMV) ? 2 : 0) +
+                ((aboveLeft >= 0 && mMbModes[aboveLeft] == SPLITMV) ? 1 : 0);
+        if (counts[2] > counts[1]) {
+            int count = counts[1];
+            counts[1] = counts[2];
+            counts[2] = count;
+            int mv = nearMvs[1];
+            nearMvs[1] = nearMvs[2];
+            nearMvs[2] = mv;
+        }
+        if (counts[1] >= counts[0]) {
+            nearMvs[0] = nearMvs[1];
+        }
+    }
+
+    /**
+     * Reads split motion vectors - RFC 6386 section 17.2.
+     */
+    private void readSplitMvs(Vp8BoolDecoder bd, int mb, int mbRow, int mbCol, int bestMv,
+            FrameStatistics statistics) {
+        int splitType = readTree(bd, SPLIT_MV_TREE, SPLIT_MV_PROBS, 0);
+        int[] partitions = SPLIT_MV_PARTITIONS[splitType];
+        int blockBase = mb * 16;
+        int leftBase = (mbCol > 0) ? (mb - 1) * 16 : -1;
+        int aboveBase = (mbRow > 0) ? (mb - mMbCols) * 16 : -1;
+        for (int part = 0; part < SPLIT_MV_PARTITION_COUNT[splitType]; part++) {
+            // First sub-block of the partition.
+            int k = 0;
+            while (partitions[k] != part) {
+                k++;
+            }
+            int leftMv;
+            if ((k & 3) != 0) {
+                leftMv = mBlockMvs[blockBase + k - 1];
+            } else {
+                leftMv = (leftBase >= 0) ? mBlockMvs[leftBase + k + 3] : 0;
+            }
+            int aboveMv;
+            if (k >= 4) {
+                aboveMv = mBlockMvs[blockBase + k - 4];
+            } else {
+                aboveMv = (aboveBase >= 0) ? mBlockMvs[aboveBase + k + 12] : 0;
+            }
+            int context;
+            if (leftMv == aboveMv) {
+                context = (leftMv == 0) ? 4 : 3;
+            } else if (aboveMv == 0) {
+                context = 2;
+            } else if (leftMv == 0) {
+                context = 1;
+            } else {
+                context = 0;
+            }
+            int subMode = readTree(bd, SUB_MV_REF_TREE, SUB_MV_REF_PROBS[context], 0);
+            statistics.subblockModeCount[subMode]++;
+            int mv;
+            switch (subMode) {
+                case LEFT4X4:
+                    mv = leftMv;
+                    break;
+                case ABOVE4X4:
+                    mv = aboveMv;
+                    break;
+                case ZERO4X4:
+                    mv = 0;
+                    break;
+                default:
+                    mv = addMv(readMv(bd), bestMv);
+                    break;
+            }
+            for (int b = 0; b < 16; b++) {
+                if (partitions[b] == part) {
+                    mBlockMvs[blockBase + b] = mv;
+                }
+            }
+        }
+    }
+
+    private int readMv(Vp8BoolDecoder bd) {
+        int row = readMvComponent(bd, mMvProbs[0]) * 2;
+        int col = readMvComponent(bd, mMvProbs[1]) * 2;
+        return packMv(row, col);
+    }
+
+    /**
+     * Reads a motion vector component - RFC 6386 section 17.2.
+     */
+    private static int readMvComponent(Vp8BoolDecoder bd, int[] probs) {
+        int x = 0;
+        if (bd.readBool(probs[MVP_IS_SHORT]) != 0) {
+            for (int i = 0; i < 3; i++) {
+                x += bd.readBool(probs[MVP_BITS + i]) << i;
+            }
+            for (int i = MV_LONG_BITS - 1; i > 3; i--) {
+                x += bd.readBool(probs[MVP_BITS + i]) << i;
+            }
+            // Bit 3 is implicit if no higher bit is set.
+            if ((x & 0xfff0) == 0 || bd.readBool(probs[MVP_BITS + 3]) != 0) {
+                x += 8;
+            }
+        } else {
+            x = readTree(bd, SMALL_MV_TREE, probs, MVP_SHORT);
+        }
+        if (x != 0 && bd.readBool(probs[MVP_SIGN]) != 0) {
+            x = -x;
+        }
+        return x;
+    }
+
+    /**
+     * Reads a tree coded value. Tree nodes hold indices of the next node pair,
+     * leaves hold negated values.
+     */
+    private static int readTree(Vp8BoolDecoder bd, int[] tree, int[] probs, int probOffset) {
+        int i = 0;
+        while ((i = tree[i + bd.readBool(probs[probOffset + (i >> 1)])]) > 0) {
+        }
+        return -i;
+    }
+
+    private static void copyCoeffProbs(int[][][][] src, int[][][][] dst) {
+        for (int i = 0; i < src.length; i++) {
+            for (int j = 0; j < src[i].length; j++) {
+                for (int k = 0; k < src[i][j].length; k++) {
+                    System.arraycopy(src[i][j][k], 0, dst[i][j][k], 0, src[i][j][k].length);
+                }
+            }
+        }
+    }
+
+    private void setMbMvs(int mb, int mv) {
+        int base = mb * 16;
+        for (int b = 0; b < 16; b++) {
+            mBlockMvs[base + b] = mv;
+        }
+    }
+
+    /**
+     * Returns macroblock motion vector - the last sub-block one for split macroblocks.
+     */
+    private int getMbMv(int mb) {
+        return mBlockMvs[mb * 16 + 15];
+    }
+
+    /**
+     * Inverts the motion vector of a neighbour referencing a frame with different sign bias.
+     */
+    private int biasMv(int mv, int neighbourRef, int ref) {
+        if (mSignBias[neighbourRef] != mSignBias[ref]) {
+            return packMv(-getMvRow(mv), -getMvCol(mv));
+        }
+        return mv;
+    }
+
+    /**
+     * Packs a motion vector into an int, so vectors can be compared as one value.
+     */
+    static int packMv(int row, int col) {
+        return (row << 16) | (col & 0xffff);
+    }
+
+    static int getMvRow(int mv) {
+        return mv >> 16;
+    }
+
+    static int getMvCol(int mv) {
+        return (short)mv;
+    }
+
+    private static int addMv(int mv1, int mv2) {
+        return packMv(getMvRow(mv1) + getMvRow(mv2), getMvCol(mv1) + getMvCol(mv2));
+    }
+
+    private static int clampMv(int mv, int toLeft, int toRight, int toTop, int toBottom) {
+        int row = Math.max(toTop, Math.min(toBottom, getMvRow(mv)));
+        int col = Math.max(toLeft, Math.min(toRight, getMvCol(mv)));
+        return packMv(row, col);
+    }
+}
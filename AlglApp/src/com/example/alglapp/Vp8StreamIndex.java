@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Per frame VP8 header tables of an IVF file: frame type, show_frame flag,
+ * first partition size, quantizer index and loop filter level.
+ *
+ * Frame positions and sizes come from the IvfReader frame index and only
+ * the first bytes of every frame are read and parsed, so an existing
+ * encoded file can be analyzed without decoding it or re-running the encoder.
+ */
+public class Vp8StreamIndex {
+    // Frame header parsed here fits in the first few dozen bytes of the frame.
+    private static final int FRAME_PREFIX_SIZE = 256;
+    private static final byte FLAG_KEY_FRAME = 1;
+    private static final byte FLAG_SHOW_FRAME = 2;
+    private static final byte FLAG_SEGMENTATION = 4;
+    private static final byte FLAG_VALID = 8;
+
+    private int mWidth;
+    private int mHeight;
+    private int mFrameCount;
+    private int[] mFrameSizes;
+    private long[] mTimestampsUs;
+    private int[] mFirstPartitionSizes;
+    private byte[] mQIndices;
+    private byte[] mLoopFilterLevels;
+    private byte[] mFlags;
+
+    /**
+     * Builds the index of an open IVF file.
+     *
+     * @param ivf IVF file reader
+     */
+    public Vp8StreamIndex(IvfReader ivf) throws IOException {
+        mWidth = ivf.getWidth();
+        mHeight = ivf.getHeight();
+        mFrameCount = ivf.getFrameCount();
+        mFrameSizes = new int[mFrameCount];
+        mTimestampsUs = new long[mFrameCount];
+        mFirstPartitionSizes = new int[mFrameCount];
+        mQIndices = new byte[mFrameCount];
+        mLoopFilterLevels = new byte[mFrameCount];
+        mFlags = new byte[mFrameCount];
+
+        Vp8FrameHeader header = new Vp8FrameHeader();
+        ByteBuffer prefix = ByteBuffer.allocate(FRAME_PREFIX_SIZE);
+        for (int i = 0; i < mFrameCount; i++) {
+            mFrameSizes[i] = ivf.getFrameSize(i);
+            mTimestampsUs[i] = (long)(ivf.getFrameTimestamp(i) * 1e6 + 0.5);
+            ByteBuffer frame;
+            int length;
+            if (ivf.isMapped()) {
+                frame = ivf.getFrameBuffer(i);
+                length = frame.remaining();
+            } else {
+                prefix.clear();
+                length = ivf.readFramePrefix(i, prefix);
+                frame = prefix;
+            }
+            if (!header.parse(frame, 0, length)) {
+                continue;
+            }
+            byte flags = FLAG_VALID;
+            if (header.keyFrame) {
+                flags |= FLAG_KEY_FRAME;
+            }
+            if (header.showFrame) {
+                flags |= FLAG_SHOW_FRAME;
+            }
+            if (header.segmentationEnabled) {
+                flags |= FLAG_SEGMENTATION;
+            }
+            mFlags[i] = flags;
+            mFirstPartitionSizes[i] = header.firstPartitionSize;
+            mQIndices[i] = (byte)header.qIndex;
+            mLoopFilterLevels[i] = (byte)header.loopFilterLevel;
+        }
+    }
+
+    /**
+     * Builds the index of an IVF file.
+     *
+     * @param filename name of the IVF file
+     */
+    public static Vp8StreamIndex build(String filename) throws IOException {
+        IvfReader ivf = new IvfReader(filename, false, true);
+        try {
+            return new Vp8StreamIndex(ivf);
+        } finally {
+            ivf.close();
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    public int getFrameSize(int frameIndex) {
+        return mFrameSizes[frameIndex];
+    }
+
+    /**
+     * Returns frame presentation timestamp in microseconds.
+     */
+    public long getFrameTimestampUs(int frameIndex) {
+        return mTimestampsUs[frameIndex];
+    }
+
+    /**
+     * Tells if the frame header was parsed successfully. Other per frame values
+     * are zero for frames with invalid headers.
+     */
+    public boolean isValid(int frameIndex) {
+        return (mFlags[frameIndex] & FLAG_VALID) != 0;
+    }
+
+    public boolean isKeyFrame(int frameIndex) {
+        return (mFlags[frameIndex] & FLAG_KEY_FRAME) != 0;
+    }
+
+    public boolean isShownFrame(int frameIndex) {
+        return (mFlags[frameIndex] & FLAG_SHOW_FRAME) != 0;
+    }
+
+    public boolean isSegmentationEnabled(int frameIndex) {
+        return (mFlags[frameIndex] & FLAG_SEGMENTATION) != 0;
+    }
+
+    public int getFirstPartitionSize(int frameIndex) {
+        return mFirstPartitionSizes[frameIndex];
+    }
+
+    /**
+     * Returns base quantizer index of the frame, 0..127.
+     */
+    public int getQIndex(int frameIndex) {
+        return mQIndices[frameIndex];
+    }
+
+    /**
+     * Returns frame loop filter level, 0..63.
+     */
+    public int getLoopFilterLevel(int frameIndex) {
+        return mLoopFilterLevels[frameIndex];
+    }
+
+    /**
+     * Returns indices of key frames.
+     */
+    public int[] getKeyFrames() {
+        int keyFrameCount = 0;
+        for (int i = 0; i < mFrameCount; i++) {
+            if (isKeyFrame(i)) {
+                keyFrameCount++;
+            }
+        }
+        int[] keyFrames = new int[keyFrameCount];
+        keyFrameCount = 0;
+        for (int i = 0; i < mFrameCount; i++) {
+            if (isKeyFrame(i)) {
+                keyFrames[keyFrameCount++] = i;
+            }
+        }
+        return keyFrames;
+    }
+}
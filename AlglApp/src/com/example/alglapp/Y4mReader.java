@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * A random access reader for a Y4M (YUV4MPEG2) file.
+ *
+ * The stream header provides frame geometry and frame rate, so the sequence
+ * does not need to be described by the caller. Frame headers are parsed one
+ * by one when the file is opened to build an index of frame data offsets,
+ * after which frames are read the same way as from a raw YUV file.
+ * Only 8 bit 4:2:0 sampled sequences are supported.
+ */
+public class Y4mReader extends YuvFrameSource {
+    private static final String SIGNATURE = "YUV4MPEG2 ";
+    private static final String FRAME_MARKER = "FRAME";
+    private static final String FILE_EXTENSION = ".y4m";
+    // Maximum size of the stream and frame header lines.
+    private static final int MAX_STREAM_HEADER_SIZE = 1024;
+    private static final int MAX_FRAME_HEADER_SIZE = 256;
+    // Color space tags of 8 bit 4:2:0 sequences - chroma siting differs only.
+    // High bit depth tags such as 420p10 are not supported.
+    private static final String[] SUPPORTED_COLOR_SPACES =
+            { "420", "420jpeg", "420paldv", "420mpeg2" };
+
+    private int mFrameRateNumerator;
+    private int mFrameRateDenominator;
+    private char mInterlacing;
+    private String mColorSpace;
+    private long[] mFrameOffsets;   // Frame data offsets from the first frame data.
+
+    /**
+     * Initializes the Y4M file reader.
+     *
+     * @param filename   name of the Y4M file
+     * @param mapFile    map the file to memory instead of reading it
+     */
+    public Y4mReader(String filename, boolean mapFile) throws IOException {
+        this(new RandomAccessFile(filename, "r"), mapFile);
+    }
+
+    /**
+     * Initializes the Y4M file reader using positional reads.
+     *
+     * @param filename   name of the Y4M file
+     */
+    public Y4mReader(String filename) throws IOException {
+        this(filename, false);
+    }
+
+    private Y4mReader(RandomAccessFile y4mFile, boolean mapFile) throws IOException {
+        super(y4mFile);
+        try {
+            readHeaders(y4mFile.getChannel(), mapFile);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Tells if the file name has Y4M extension.
+     */
+    public static boolean isY4mFile(String filename) {
+        return filename != null &&
+                filename.toLowerCase(Locale.US).endsWith(FILE_EXTENSION);
+    }
+
+    /**
+     * Returns frame rate numerator according to header information.
+     */
+    public int getFrameRateNumerator() {
+        return mFrameRateNumerator;
+    }
+
+    /**
+     * Returns frame rate denominator according to header information.
+     */
+    public int getFrameRateDenominator() {
+        return mFrameRateDenominator;
+    }
+
+    /**
+     * Returns frame rate in frames per second.
+     */
+    public double getFrameRate() {
+        return (double)mFrameRateNumerator / mFrameRateDenominator;
+    }
+
+    /**
+     * Returns interlacing mode from the header: 'p' - progressive, 't' - top
+     * field first, 'b' - bottom field first, 'm' - mixed, '?' - unknown.
+     */
+    public char getInterlacing() {
+        return mInterlacing;
+    }
+
+    /**
+     * Returns color space tag from the header, e.g. "420jpeg".
+     */
+    public String getColorSpace() {
+        return mColorSpace;
+    }
+
+    @Override
+    protected long getFrameDataOffset(int frameIndex) {
+        return mFrameOffsets[frameIndex];
+    }
+
+    /**
+     * Parses the stream header and walks frame headers to build the frame index.
+     * Truncated last frame is ignored.
+     */
+    private void readHeaders(FileChannel channel, boolean mapFile) throws IOException {
+        long fileLength = channel.size();
+        String header = readLine(channel, 0, ByteBuffer.allocate(MAX_STREAM_HEADER_SIZE));
+        if (header == null || !header.startsWith(SIGNATURE)) {
+            throw new IOException("Invalid Y4M stream header");
+        }
+
+        int width = 0;
+        int height = 0;
+        mFrameRateNumerator = 30;
+        mFrameRateDenominator = 1;
+        mInterlacing = '?';
+        mColorSpace = "420jpeg";
+        try {
+            for (String param : header.substring(SIGNATURE.length()).split(" ")) {
+                if (param.length() == 0) {
+                    continue;
+                }
+                String value = param.substring(1);
+                switch (param.charAt(0)) {
+                    case 'W':
+                        width = Integer.parseInt(value);
+                        break;
+                    case 'H':
+                        height = Integer.parseInt(value);
+                        break;
+                    case 'F':
+                        int separator = value.indexOf(':');
+                        mFrameRateNumerator = Integer.parseInt(value.substring(0, separator));
+                        mFrameRateDenominator = Integer.parseInt(value.substring(separator + 1));
+                        break;
+                    case 'I':
+                        mInterlacing = value.length() > 0 ? value.charAt(0) : '?';
+                        break;
+                    case 'C':
+                        mColorSpace = value;
+                        break;
+                    default:
+                        // Pixel aspect ratio and extensions are not used.
+                        break;
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid Y4M stream header: " + header);
+        }
+        if (width <= 0 || height <= 0 ||
+                mFrameRateNumerator <= 0 || mFrameRateDenominator <= 0) {
+            throw new IOException("Invalid Y4M stream header: " + header);
+        }
+        if (!isSupportedColorSpace(mColorSpace)) {
+            throw new IOException("Unsupported Y4M color space C" + mColorSpace +
+                    " - only 8 bit 4:2:0 is supported");
+        }
+
+        // Walk frame headers.
+        long headerSize = header.length() + 1;
+        int frameSize = width * height * 3 / 2;
+        int frameCount = 0;
+        long estimatedFrameCount =
+                (fileLength - headerSize) / (frameSize + FRAME_MARKER.length() + 1);
+        mFrameOffsets = new long[(int)Math.max(1, Math.min(estimatedFrameCount, 1 << 20))];
+        ByteBuffer frameHeaderBuffer = ByteBuffer.allocate(MAX_FRAME_HEADER_SIZE);
+        long position = headerSize;
+        while (position < fileLength) {
+            String frameHeader = readLine(channel, position, frameHeaderBuffer);
+            if (frameHeader == null) {
+                break;
+            }
+            if (!frameHeader.startsWith(FRAME_MARKER) ||
+                    (frameHeader.length() > FRAME_MARKER.length() &&
+                     frameHeader.charAt(FRAME_MARKER.length()) != ' ')) {
+                throw new IOException("Invalid Y4M frame header at offset " + position);
+            }
+            long dataPosition = position + frameHeader.length() + 1;
+            if (dataPosition + frameSize > fileLength) {
+                break;
+            }
+            if (frameCount == mFrameOffsets.length) {
+                long[] frameOffsets = new long[2 * frameCount];
+                System.arraycopy(mFrameOffsets, 0, frameOffsets, 0, frameCount);
+                mFrameOffsets = frameOffsets;
+            }
+            mFrameOffsets[frameCount++] = dataPosition - headerSize;
+            position = dataPosition + frameSize;
+        }
+        init(headerSize, position - headerSize, frameCount, width, height, mapFile);
+    }
+
+    private static boolean isSupportedColorSpace(String colorSpace) {
+        for (String supported : SUPPORTED_COLOR_SPACES) {
+            if (supported.equals(colorSpace)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads a header line starting at |position| using |buffer| as scratch space.
+     *
+     * @return line without the terminating new line character or null if the
+     *         end of file was reached before the end of line.
+     */
+    private static String readLine(FileChannel channel, long position, ByteBuffer buffer)
+            throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, position + buffer.position());
+            if (bytesRead < 0) {
+                break;
+            }
+        }
+        byte[] data = buffer.array();
+        for (int i = 0; i < buffer.position(); i++) {
+            if (data[i] == '\n') {
+                return new String(data, 0, i, "US-ASCII");
+            }
+        }
+        if (!buffer.hasRemaining()) {
+            throw new IOException("Y4M header at offset " + position + " is too long");
+        }
+        return null;
+    }
+}
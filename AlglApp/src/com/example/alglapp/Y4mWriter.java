@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Writes decoded frames to a Y4M (YUV4MPEG2) file.
+ *
+ * The stream header carries frame geometry and frame rate, so the file can be
+ * consumed by Y4mReader and external tools without a separate description.
+ * Frames are expected in YUV420 planar format.
+ */
+public class Y4mWriter extends YuvFrameWriter {
+    private static final byte[] FRAME_HEADER = { 'F', 'R', 'A', 'M', 'E', '\n' };
+
+    /**
+     * Initializes the Y4M file writer. Existing file is truncated.
+     *
+     * @param filename             name of the Y4M file
+     * @param width                frame width
+     * @param height               frame height
+     * @param frameRateNumerator   frame rate numerator
+     * @param frameRateDenominator frame rate denominator
+     */
+    public Y4mWriter(String filename, int width, int height,
+            int frameRateNumerator, int frameRateDenominator) throws IOException {
+        super(filename);
+        String header = String.format(Locale.US, "YUV4MPEG2 W%d H%d F%d:%d Ip A1:1 C420jpeg\n",
+                width, height, frameRateNumerator, frameRateDenominator);
+        writeHeaderData(header.getBytes("US-ASCII"));
+    }
+
+    /**
+     * Initializes the Y4M file writer with integer frame rate.
+     *
+     * @param filename   name of the Y4M file
+     * @param width      frame width
+     * @param height     frame height
+     * @param frameRate  frame rate in frames per second
+     */
+    public Y4mWriter(String filename, int width, int height, int frameRate) throws IOException {
+        this(filename, width, height, frameRate, 1);
+    }
+
+    @Override
+    protected void writeFrameHeader() throws IOException {
+        writeHeaderData(FRAME_HEADER);
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import android.content.res.AssetFileDescriptor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A random access reader for a raw YUV420 planar file.
+ *
+ * Frames are read with positional channel reads or copied from a memory
+ * mapping of the file, so a frame can be read straight into its destination
+ * buffer, e.g. a codec input buffer, and any frame can be read without
+ * seeking. Reads always return whole frames - a partial frame at the end of
+ * file is not counted.
+ *
+ * The source can be trimmed to a range of frames and can loop, in which case
+ * frame indices past the end wrap around to the first frame of the range.
+ * Besides regular files it can read an uncompressed raw resource opened as
+ * an AssetFileDescriptor.
+ *
+ * Reads do not allocate, so frames can be read in a steady-state codec loop
+ * without garbage. The reader is not thread safe.
+ */
+public class YuvFrameSource {
+    private RandomAccessFile mYuvFile;
+    private AssetFileDescriptor mAssetFd;
+    private FileChannel mYuvChannel;
+    private long mBaseOffset;       // Offset of the first frame in the file.
+    private MappedByteBuffer mMapping;
+    private ByteBuffer mMappingView;    // Reusable view of the mapping for reads.
+    private int mWidth;
+    private int mHeight;
+    private int mFrameSize;
+    private int mTotalFrameCount;   // Number of complete frames in the file.
+    private int mStartFrame;        // First frame of the trimmed range.
+    private int mFrameCount;        // Number of frames in the trimmed range.
+    private boolean mLooping;
+
+    /**
+     * Initializes the YUV file reader.
+     *
+     * @param filename   name of the YUV file
+     * @param width      frame width
+     * @param height     frame height
+     * @param mapFile    map the file to memory instead of reading it
+     */
+    public YuvFrameSource(String filename, int width, int height, boolean mapFile)
+            throws IOException {
+        this(new RandomAccessFile(filename, "r"));
+        int frameSize = width * height * 3 / 2;
+        long length = mYuvChannel.size();
+        init(0, length, (int)(length / frameSize), width, height, mapFile);
+    }
+
+    /**
+     * Initializes the YUV file reader using positional reads.
+     *
+     * @param filename   name of the YUV file
+     * @param width      frame width
+     * @param height     frame height
+     */
+    public YuvFrameSource(String filename, int width, int height) throws IOException {
+        this(filename, width, height, false);
+    }
+
+    /**
+     * Initializes the reader for YUV data stored in a part of a file, e.g. an
+     * uncompressed raw resource. The reader takes ownership of the descriptor.
+     *
+     * @param assetFd    descriptor of the YUV data
+     * @param width      frame width
+     * @param height     frame height
+     * @param mapFile    map the data to memory instead of reading it
+     */
+    public YuvFrameSource(AssetFileDescriptor assetFd, int width, int height, boolean mapFile)
+            throws IOException {
+        mAssetFd = assetFd;
+        mYuvChannel = assetFd.createInputStream().getChannel();
+        long length = assetFd.getLength();
+        if (length == AssetFileDescriptor.UNKNOWN_LENGTH) {
+            length = mYuvChannel.size() - assetFd.getStartOffset();
+        }
+        int frameSize = width * height * 3 / 2;
+        init(assetFd.getStartOffset(), length, (int)(length / frameSize),
+                width, height, mapFile);
+    }
+
+    /**
+     * Opens the file for a container format reader. The reader parses the
+     * container and then calls init().
+     */
+    protected YuvFrameSource(RandomAccessFile yuvFile) {
+        mYuvFile = yuvFile;
+        mYuvChannel = yuvFile.getChannel();
+    }
+
+    /**
+     * Sets frame geometry and location of the frame data in the file.
+     *
+     * @param baseOffset offset of the first frame in the file
+     * @param dataSize   size of the data from the first frame to the end of the last frame
+     * @param frameCount number of complete frames
+     * @param width      frame width
+     * @param height     frame height
+     * @param mapFile    map the data to memory instead of reading it
+     */
+    protected void init(long baseOffset, long dataSize, int frameCount,
+            int width, int height, boolean mapFile) throws IOException {
+        mBaseOffset = baseOffset;
+        mWidth = width;
+        mHeight = height;
+        mFrameSize = width * height * 3 / 2;
+        mTotalFrameCount = frameCount;
+        mStartFrame = 0;
+        mFrameCount = mTotalFrameCount;
+        if (mapFile && dataSize > 0 && dataSize <= Integer.MAX_VALUE) {
+            mMapping = mYuvChannel.map(FileChannel.MapMode.READ_ONLY, mBaseOffset, dataSize);
+            mMappingView = mMapping.duplicate();
+        }
+    }
+
+    /**
+     * Returns offset of the frame data from the first frame. Raw YUV frames
+     * follow each other, container formats may have frame headers in between.
+     *
+     * @param frameIndex index of the frame in the file
+     */
+    protected long getFrameDataOffset(int frameIndex) {
+        return (long)frameIndex * mFrameSize;
+    }
+
+    /**
+     * Returns frame width.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns frame height.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns frame size in bytes.
+     */
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    /**
+     * Returns number of frames in the trimmed range.
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Tells if the data is mapped to memory.
+     */
+    public boolean isMapped() {
+        return mMapping != null;
+    }
+
+    /**
+     * Restricts the source to a range of frames. Frame indices passed to the
+     * read functions are counted from the start of the range.
+     *
+     * @param startFrame first frame of the range
+     * @param frameCount number of frames in the range, 0 to read till the end of file
+     */
+    public void setRange(int startFrame, int frameCount) throws IOException {
+        if (startFrame < 0 || startFrame >= mTotalFrameCount || frameCount < 0) {
+            throw new IOException("Invalid frame range " + startFrame + " + " + frameCount +
+                    " for " + mTotalFrameCount + " frames");
+        }
+        mStartFrame = startFrame;
+        mFrameCount = mTotalFrameCount - startFrame;
+        if (frameCount > 0) {
+            mFrameCount = Math.min(frameCount, mFrameCount);
+        }
+    }
+
+    /**
+     * Enables looping - frame indices past the end of the range wrap around
+     * to the start of the range.
+     */
+    public void setLooping(boolean looping) {
+        mLooping = looping;
+    }
+
+    /**
+     * Reads a whole frame to the buffer starting at its position.
+     * Buffer position is advanced by the frame size.
+     *
+     * @param frameIndex index of the frame
+     * @param dst        destination buffer
+     */
+    public void readFrame(int frameIndex, ByteBuffer dst) throws IOException {
+        readFrameData(frameIndex, 0, mFrameSize, dst);
+    }
+
+    /**
+     * Reads a whole frame to the array.
+     *
+     * @param frameIndex index of the frame
+     * @param dst        destination array
+     * @param offset     offset in the destination array
+     */
+    public void readFrame(int frameIndex, byte[] dst, int offset) throws IOException {
+        readFrameData(frameIndex, 0, mFrameSize, ByteBuffer.wrap(dst, offset, mFrameSize));
+    }
+
+    /**
+     * Reads a part of a frame, e.g. one plane, to the buffer starting at its position.
+     * Buffer position is advanced by the number of bytes read.
+     *
+     * @param frameIndex index of the frame
+     * @param offset     offset of the data in the frame
+     * @param length     number of bytes to read
+     * @param dst        destination buffer
+     */
+    public void readFrameData(int frameIndex, int offset, int length, ByteBuffer dst)
+            throws IOException {
+        if (offset < 0 || length < 0 || offset + length > mFrameSize) {
+            throw new IOException("Invalid data range " + offset + " + " + length);
+        }
+        long position = getFrameOffset(frameIndex) + offset;
+        if (mMapping != null) {
+            mMappingView.clear();
+            mMappingView.position((int)position);
+            mMappingView.limit((int)position + length);
+            dst.put(mMappingView);
+            return;
+        }
+
+        // Read exactly |length| bytes by limiting the destination temporarily.
+        int limit = dst.limit();
+        dst.limit(dst.position() + length);
+        position += mBaseOffset;
+        try {
+            while (dst.hasRemaining()) {
+                int bytesRead = mYuvChannel.read(dst, position);
+                if (bytesRead < 0) {
+                    throw new EOFException("Unexpected end of file in frame " + frameIndex);
+                }
+                position += bytesRead;
+            }
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    /**
+     * Returns a read-only view of the frame in the memory mapping.
+     * Only available if the data is mapped.
+     *
+     * @param frameIndex index of the frame
+     */
+    public ByteBuffer getFrameBuffer(int frameIndex) throws IOException {
+        if (mMapping == null) {
+            throw new IOException("YUV data is not mapped");
+        }
+        int position = (int)getFrameOffset(frameIndex);
+        ByteBuffer frame = mMapping.asReadOnlyBuffer();
+        frame.position(position);
+        frame.limit(position + mFrameSize);
+        return frame.slice();
+    }
+
+    /**
+     * Closes YUV file.
+     */
+    public void close() throws IOException {
+        mMapping = null;
+        mMappingView = null;
+        if (mYuvFile != null) {
+            mYuvFile.close();
+        }
+        if (mAssetFd != null) {
+            mYuvChannel.close();
+            mAssetFd.close();
+        }
+    }
+
+    /**
+     * Returns offset of the frame from the first frame in the file.
+     */
+    private long getFrameOffset(int frameIndex) throws IOException {
+        if (frameIndex < 0 || mFrameCount == 0 || (!mLooping && frameIndex >= mFrameCount)) {
+            throw new IOException("Frame index " + frameIndex + " out of range");
+        }
+        if (mLooping) {
+            frameIndex %= mFrameCount;
+        }
+        return getFrameDataOffset(mStartFrame + frameIndex);
+    }
+}
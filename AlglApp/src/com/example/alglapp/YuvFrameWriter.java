@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.alglapp;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes decoded frames to a raw YUV file.
+ *
+ * Frames can be supplied either as an array or as a ByteBuffer, e.g. a codec
+ * output buffer, which is written to the file directly without an intermediate copy.
+ */
+public class YuvFrameWriter {
+    private FileOutputStream mOutputStream;
+    private FileChannel mOutputChannel;
+    private int mFrameCount;
+
+    /**
+     * Initializes the YUV file writer. Existing file is truncated.
+     *
+     * @param filename   name of the YUV file
+     */
+    public YuvFrameWriter(String filename) throws IOException {
+        mOutputStream = new FileOutputStream(filename, false);
+        mOutputChannel = mOutputStream.getChannel();
+        mFrameCount = 0;
+    }
+
+    /**
+     * Returns number of frames written so far.
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Writes a frame stored in an array.
+     *
+     * @param frame      frame data
+     * @param offset     offset of the frame in the array
+     * @param length     frame size in bytes
+     */
+    public void writeFrame(byte[] frame, int offset, int length) throws IOException {
+        writeFrameHeader();
+        mOutputStream.write(frame, offset, length);
+        mFrameCount++;
+    }
+
+    /**
+     * Writes a frame stored between position and limit of the buffer.
+     * Buffer position is not modified.
+     *
+     * @param frame      frame data
+     */
+    public void writeFrame(ByteBuffer frame) throws IOException {
+        writeFrameHeader();
+        ByteBuffer data = frame.duplicate();
+        while (data.hasRemaining()) {
+            mOutputChannel.write(data);
+        }
+        mFrameCount++;
+    }
+
+    /**
+     * Writes data preceding every frame. Raw YUV files have none.
+     */
+    protected void writeFrameHeader() throws IOException {
+    }
+
+    /**
+     * Writes container specific data, e.g. a file or frame header.
+     */
+    protected void writeHeaderData(byte[] data) throws IOException {
+        mOutputStream.write(data);
+    }
+
+    /**
+     * Closes YUV file.
+     */
+    public void close() throws IOException {
+        mOutputStream.close();
+    }
+}